@@ -0,0 +1,109 @@
+package com.saccorina.securehttpproxy.benchmark;
+
+import com.saccorina.securehttpproxy.Acceptors;
+import com.saccorina.securehttpproxy.nio.EventLoopGroup;
+import com.saccorina.securehttpproxy.nio.NioConnection;
+import com.saccorina.securehttpproxy.nio.NioServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * New connections per second against the number of acceptors, each one with its own SO_REUSEPORT
+ * listener: every operation connects, waits for the server to accept and close the connection, and
+ * resets it so that no port is left in TIME_WAIT. Runs with one client thread per core by default,
+ * change it with "-t".
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class AcceptBenchmark {
+
+    @Param({"blocking", "nio"})
+    String engine;
+
+    @Param({"1", "2", "4", "8"})
+    int acceptors;
+
+    private ServerSocketChannel[] listeners;
+
+    private InetSocketAddress address;
+
+    @Setup
+    public void setUp() throws IOException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        if (this.engine.equals("nio")) {
+            // one loop for each acceptor, so that connections stay in the loop that accepted them
+            EventLoopGroup group = new EventLoopGroup("AcceptBenchmark-loop", this.acceptors);
+            NioServer server = new NioServer(port, this.acceptors, group, (channel, loop) ->
+                    new NioConnection(channel, loop, 1024) {
+                        protected void onOpen() {
+                            this.close();
+                        }
+
+                        protected void onRead(ByteBuffer input) {}
+                    });
+            server.start();
+
+        } else {
+            this.listeners = Acceptors.open(port, this.acceptors);
+            Acceptors.start("AcceptBenchmark", this.listeners, this.acceptors, channel -> {
+                try {
+                    channel.close();
+
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        this.address = new InetSocketAddress("localhost", port);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (this.listeners != null) {
+            for (ServerSocketChannel listener : this.listeners) {
+                listener.close();
+            }
+        }
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setSoLinger(true, 0);
+            socket.connect(this.address);
+            return socket.getInputStream().read();
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.saccorina.securehttpproxy.benchmark;
+
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.CipherPool;
+import com.saccorina.securehttpproxy.ConnectionCipher;
+import com.saccorina.securehttpproxy.FlowCipher;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption shared by many threads: the cipher pool against a single cipher behind a lock.
+ * Runs with one thread per core by default, change it with "-t".
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class CipherPoolBenchmark {
+
+    @Param({"ECB", "GCM"})
+    CipherMode mode;
+
+    @Param({"1024", "16384", "1048576"})
+    int size;
+
+    private CipherPool pool;
+
+    private ConnectionCipher shared;
+
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws CipherException {
+        SecretKeySpec secretKey = new SecretKeySpec(new byte[16], "AES");
+        this.pool = new CipherPool(secretKey, this.mode, FlowCipher.CLIENT_TO_SERVER);
+        this.shared = ConnectionCipherBenchmark.newCipher(this.mode, secretKey, FlowCipher.CLIENT_TO_SERVER);
+
+        this.message = new byte[this.size];
+        new Random(42).nextBytes(this.message);
+    }
+
+    @Benchmark
+    public byte[] pooled() throws CipherException {
+        return this.pool.encrypt(this.message);
+    }
+
+    @Benchmark
+    public byte[] synchronizedBaseline() throws CipherException {
+        synchronized (this.shared) {
+            return this.shared.encrypt(this.message);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.saccorina.securehttpproxy.benchmark;
+
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.ConnectionCipher;
+import com.saccorina.securehttpproxy.FlowCipher;
+import com.saccorina.securehttpproxy.NonceSequence;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption and decryption of messages of a single thread, for each cipher mode.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+@State(Scope.Thread)
+public class ConnectionCipherBenchmark {
+
+    @Param({"ECB", "GCM"})
+    CipherMode mode;
+
+    @Param({"1024", "65536", "1048576", "67108864"})
+    int size;
+
+    private ConnectionCipher encryptor;
+
+    private ConnectionCipher decryptor;
+
+    private byte[] message;
+
+    private byte[] encryptedMessage;
+
+    private ByteBuffer input;
+
+    private ByteBuffer output;
+
+    private NonceSequence nonces;
+
+    @Setup
+    public void setUp() throws CipherException {
+        byte[] key = new byte[16];
+        new Random(42).nextBytes(key);
+        SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
+
+        this.encryptor = newCipher(this.mode, secretKey, FlowCipher.CLIENT_TO_SERVER);
+        this.decryptor = newCipher(this.mode, secretKey, FlowCipher.SERVER_TO_CLIENT);
+
+        this.message = new byte[this.size];
+        new Random(42).nextBytes(this.message);
+        this.encryptedMessage = this.encryptor.encrypt(this.message);
+
+        this.input = ByteBuffer.allocateDirect(this.size);
+        this.input.put(this.message);
+        this.output = ByteBuffer.allocateDirect(this.size + 2 * ConnectionCipher.TAG_LENGTH);
+        this.nonces = new NonceSequence(FlowCipher.CLIENT_TO_SERVER);
+    }
+
+    static ConnectionCipher newCipher(CipherMode mode, SecretKeySpec secretKey, byte direction)
+            throws CipherException
+    {
+        ConnectionCipher cipher = new ConnectionCipher(mode);
+        cipher.setSecretKey(secretKey);
+        cipher.setNonceSequence(new NonceSequence(direction));
+        return cipher;
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws CipherException {
+        return this.encryptor.encrypt(this.message);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws CipherException {
+        return this.decryptor.decrypt(this.encryptedMessage);
+    }
+
+    @Benchmark
+    public int encryptBuffer() throws CipherException {
+        this.input.clear();
+        this.output.clear();
+        return this.encryptor.encrypt(this.nonces.next(), null, this.input, this.output);
+    }
+
+}
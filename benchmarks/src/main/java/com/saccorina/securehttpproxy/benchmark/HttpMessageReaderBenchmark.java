@@ -0,0 +1,94 @@
+package com.saccorina.securehttpproxy.benchmark;
+
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of HTTP messages: the head alone, and whole messages with the payload buffered or streamed.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class HttpMessageReaderBenchmark {
+
+    /**
+     * The head of a request sent by a browser.
+     */
+    static final String REQUEST_HEAD = "POST http://localhost/upload HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "Content-Type: application/octet-stream\r\n";
+
+    @State(Scope.Benchmark)
+    public static class Head {
+
+        byte[] head;
+
+        @Setup
+        public void setUp() {
+            this.head = (REQUEST_HEAD + "Content-Length: 0\r\n\r\n").getBytes();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Message {
+
+        @Param({"1024", "65536", "1048576", "67108864"})
+        int payloadSize;
+
+        byte[] message;
+
+        @Setup
+        public void setUp() {
+            byte[] head = (REQUEST_HEAD + "Content-Length: " + this.payloadSize + "\r\n\r\n").getBytes();
+            this.message = new byte[head.length + this.payloadSize];
+            System.arraycopy(head, 0, this.message, 0, head.length);
+        }
+    }
+
+    @Benchmark
+    public void parseHead(Head state, Blackhole blackhole) throws IOException {
+        HttpMessageReader reader = new HttpMessageReader(new ByteArrayInputStream(state.head), false);
+        blackhole.consume(reader.getHost());
+        blackhole.consume(reader.isKeepAlive());
+    }
+
+    @Benchmark
+    public byte[] readBuffered(Message state) throws IOException {
+        return new HttpMessageReader(new ByteArrayInputStream(state.message)).getMessage();
+    }
+
+    @Benchmark
+    public long transferStreamed(Message state) throws IOException {
+        HttpMessageReader reader = new HttpMessageReader(new ByteArrayInputStream(state.message), false);
+        return reader.transferPayload(OutputStream.nullOutputStream());
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.saccorina.securehttpproxy.benchmark;
+
+import com.saccorina.securehttpproxy.Utility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hexadecimal codec of the legacy tunnel encoding.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+@State(Scope.Benchmark)
+public class UtilityBenchmark {
+
+    @Param({"1024", "65536", "1048576", "67108864"})
+    int size;
+
+    private byte[] bytes;
+
+    private String hex;
+
+    @Setup
+    public void setUp() {
+        this.bytes = new byte[this.size];
+        new Random(42).nextBytes(this.bytes);
+        this.hex = Utility.bytesToHexString(this.bytes);
+    }
+
+    @Benchmark
+    public String encodeHex() {
+        return Utility.bytesToHexString(this.bytes);
+    }
+
+    @Benchmark
+    public byte[] decodeHex() {
+        return Utility.hexStringToBytes(this.hex);
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.server.ServerHandshake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole key exchange between the client and the server proxy, on a loopback connection.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DHKeyExchangeBenchmark {
+
+    private ServerSocket server;
+
+    private ExecutorService serverExecutor;
+
+    @Setup
+    public void setUp() throws IOException {
+        // the key exchange logs each step
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.serverExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.serverExecutor.shutdownNow();
+        this.server.close();
+    }
+
+    @Benchmark
+    public byte[] handshake() throws Exception {
+        Future<byte[]> serverSecret = this.serverExecutor.submit(() -> {
+            try (Socket socket = this.server.accept()) {
+                return ServerHandshake.perform(socket);
+            }
+        });
+
+        try (Socket socket = new Socket(this.server.getInetAddress(), this.server.getLocalPort())) {
+            DHKeyExchange keyExchange = new DHKeyExchange();
+            keyExchange.performsKeyExchange(socket);
+            serverSecret.get();
+            return keyExchange.getSecretKey();
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.FrameReader;
+import com.saccorina.securehttpproxy.FrameWriter;
+import com.saccorina.securehttpproxy.KeyExchange;
+import com.saccorina.securehttpproxy.TunnelEncoding;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.server.ServerHandshake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The binary handshake that establishes a session, on a loopback connection: a single round trip with
+ * the key derivation of both sides. Compare with {@link DHKeyExchangeBenchmark}, the legacy exchange.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyExchangeBenchmark {
+
+    @Param({"DH", "X25519"})
+    KeyExchange keyExchange;
+
+    private ServerSocket server;
+
+    private ExecutorService serverExecutor;
+
+    @Setup
+    public void setUp() throws IOException {
+        // the key exchange logs each step
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.serverExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.serverExecutor.shutdownNow();
+        this.server.close();
+    }
+
+    @Benchmark
+    public TunnelSession handshake() throws Exception {
+        Future<TunnelSession> serverSession = this.serverExecutor.submit(() -> {
+            try (Socket socket = this.server.accept()) {
+                return ServerHandshake.respond(socket);
+            }
+        });
+
+        try (Socket socket = new Socket(this.server.getInetAddress(), this.server.getLocalPort())) {
+            TunnelSession session = TunnelClient.exchangeKeys(
+                    new FrameReader(socket.getInputStream(), TunnelEncoding.BINARY),
+                    new FrameWriter(socket.getOutputStream(), TunnelEncoding.BINARY),
+                    this.keyExchange,
+                    CipherMode.GCM);
+            serverSession.get();
+            return session;
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.saccorina.securehttpproxy.server;
+
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.FrameReader;
+import com.saccorina.securehttpproxy.FrameWriter;
+import com.saccorina.securehttpproxy.TunnelEncoding;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.exception.SocketException;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Exposes the server side of the key exchange to the benchmarks.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public final class ServerHandshake {
+
+    /**
+     * The sessions of the binary handshakes, shared by all the benchmarks.
+     */
+    private static final SessionTable sessions = new SessionTable(CipherMode.GCM);
+
+    private ServerHandshake() {}
+
+    /**
+     * Performs the server side of the key exchange.
+     *
+     * @param socket The socket connected to the client.
+     * @return Returns the shared secret key.
+     *
+     * @throws CipherException if an error occurs during key generation.
+     * @throws SocketException if an I/O error occurs during the exchange.
+     */
+    public static byte[] perform(Socket socket) throws CipherException, SocketException {
+        DHKeyExchange keyExchange = new DHKeyExchange();
+        keyExchange.performsKeyExchange(socket);
+        return keyExchange.getSecretKey();
+    }
+
+    /**
+     * Answers the handshake frame of a binary tunnel connection, as the server proxy does.
+     *
+     * @param socket The socket connected to the client.
+     * @return Returns the session established by the handshake.
+     *
+     * @throws IOException if an I/O error occurs or the handshake is refused.
+     * @throws CipherException if an error occurs during key generation.
+     */
+    public static TunnelSession respond(Socket socket) throws IOException, CipherException {
+        Frame frame = new FrameReader(socket.getInputStream(), TunnelEncoding.BINARY).read();
+        if (frame == null) {
+            throw new IOException("Connection closed by the client during the handshake");
+        }
+        SessionTable.Handshake handshake = sessions.accept(frame);
+        new FrameWriter(socket.getOutputStream(), TunnelEncoding.BINARY).write(handshake.getReply());
+        if (handshake.getSession() == null) {
+            throw new IOException("Handshake " + handshake.describe());
+        }
+        sessions.release(handshake.getSession());
+        return handshake.getSession();
+    }
+
+}
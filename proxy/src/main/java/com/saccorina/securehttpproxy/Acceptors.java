@@ -0,0 +1,151 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * The listening channels of a proxy and the threads that accept their connections.
+ *
+ * With more than one acceptor each one has its own listener bound to the same port with SO_REUSEPORT, so
+ * that the kernel spreads the incoming connections among them instead of waking every acceptor for
+ * each connection. Where SO_REUSEPORT is not supported the acceptors share a single listener.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class Acceptors {
+
+    /**
+     * The number of acceptors of a proxy.
+     */
+    public static final int COUNT = Math.max(1, Configuration.getInt("acceptors", 1));
+
+    /**
+     * The maximum number of connections waiting to be accepted by each listener.
+     */
+    private static final int BACKLOG = Configuration.getInt("acceptors.backlog", 1024);
+
+    /**
+     * The pause in milliseconds of an acceptor after a failed accept, e.g. when the process is out of file
+     * descriptors, so that it does not spin until the condition clears.
+     */
+    private static final long ACCEPT_BACKOFF = 100;
+
+    /**
+     * The application logger.
+     */
+    private static final Logger logger = Logger.getInstance();
+
+    private Acceptors() {}
+
+    /**
+     * Opens the listeners of the acceptors, in blocking mode.
+     *
+     * @param port The port to listen, 0 to pick an ephemeral port shared by all the listeners.
+     * @param count The number of acceptors.
+     * @return Returns one listener for each acceptor, or a single one if SO_REUSEPORT is not supported.
+     *
+     * @throws IOException if a listener cannot be bound.
+     */
+    public static ServerSocketChannel[] open(int port, int count) throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = count > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (count > 1 && !reusePort) {
+            logger.log("[Acceptors] SO_REUSEPORT is not supported, " + count + " acceptors share a listener");
+        }
+
+        ServerSocketChannel[] listeners = new ServerSocketChannel[reusePort ? count : 1];
+        listeners[0] = bind(first, port, reusePort);
+        port = ((InetSocketAddress) first.getLocalAddress()).getPort();
+        try {
+            for (int i = 1; i < listeners.length; i++) {
+                listeners[i] = bind(ServerSocketChannel.open(), port, true);
+            }
+
+        } catch (IOException e) {
+            for (ServerSocketChannel listener : listeners) {
+                if (listener != null) {
+                    listener.close();
+                }
+            }
+            throw e;
+        }
+        return listeners;
+    }
+
+    /**
+     * Starts the threads that accept connections in blocking mode, one for each acceptor.
+     *
+     * A failed accept is logged and retried after a short pause; an acceptor stops only when its listener
+     * is closed.
+     *
+     * @param name The prefix of the thread names.
+     * @param listeners The listeners opened with {@link #open(int, int)}.
+     * @param count The number of acceptors, sharing the listeners in round-robin.
+     * @param handler The handler of the accepted connections, run in the acceptor thread.
+     */
+    public static void start(String name,
+                             ServerSocketChannel[] listeners,
+                             int count,
+                             Consumer<SocketChannel> handler)
+    {
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel listener = listeners[i % listeners.length];
+            Thread thread = new Thread(() -> {
+                while (listener.isOpen()) {
+                    SocketChannel channel;
+                    try {
+                        channel = listener.accept();
+
+                    } catch (IOException e) {
+                        if (!listener.isOpen()) {
+                            break;
+                        }
+                        logger.error("Error accepting connections", e);
+                        try {
+                            Thread.sleep(ACCEPT_BACKOFF);
+
+                        } catch (InterruptedException interrupted) {
+                            break;
+                        }
+                        continue;
+                    }
+                    handler.accept(channel);
+                }
+            }, name + "-acceptor-" + i);
+            thread.start();
+        }
+    }
+
+    /**
+     * Binds a listener.
+     *
+     * @param listener The listener.
+     * @param port The port to listen.
+     * @param reusePort Whether the port is shared with the listeners of other acceptors.
+     * @return Returns the bound listener.
+     *
+     * @throws IOException if the listener cannot be bound.
+     */
+    private static ServerSocketChannel bind(ServerSocketChannel listener, int port, boolean reusePort)
+            throws IOException
+    {
+        try {
+            listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            listener.bind(new InetSocketAddress(port), BACKLOG);
+            return listener;
+
+        } catch (IOException e) {
+            listener.close();
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory budget shared by the HTTP bodies buffered in the heap of a proxy.
+ *
+ * Bytes are acquired before they are allocated and released once they are not referenced anymore.
+ * Buffers that cannot acquire more bytes spill to memory-mapped files, whose pages are not in the heap,
+ * while a new message that must be held whole (to be encrypted at once) is refused, so that the proxy
+ * answers 503 instead of running out of memory.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public final class BodyBudget {
+
+    /**
+     * The reply to a request refused because the budget is exhausted.
+     */
+    public static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n"
+            + "Retry-After: 1\r\nConnection: close\r\n\r\n").getBytes();
+
+    /**
+     * The maximum number of bytes of the bodies in the heap.
+     */
+    private static final long LIMIT = Configuration.getInt("body.memoryBudget", 256 * 1024 * 1024);
+
+    /**
+     * The copies of a message held in the heap while it is protected whole: the plaintext, the ciphertext
+     * and a compressed or encoded one.
+     */
+    private static final int PROTECTED_COPIES = 3;
+
+    /**
+     * The additional copies in hexadecimal encoding: the text of the ciphertext and its bytes, both two
+     * bytes for each byte of the ciphertext.
+     */
+    private static final int HEX_COPIES = 4;
+
+    /**
+     * The number of bytes acquired.
+     */
+    private static final AtomicLong used = new AtomicLong();
+
+    private BodyBudget() {}
+
+    /**
+     * Estimates the bytes of the heap held while a message is protected whole, to be acquired before the
+     * message is copied in the heap.
+     *
+     * @param length The length in bytes of the message.
+     * @param encoding The encoding of the tunnel.
+     * @return Returns the number of bytes.
+     */
+    public static long protectedFootprint(long length, TunnelEncoding encoding) {
+        return length * (encoding == TunnelEncoding.HEX ? PROTECTED_COPIES + HEX_COPIES : PROTECTED_COPIES);
+    }
+
+    /**
+     * Acquires bytes of the budget if they are available, without waiting.
+     *
+     * @param bytes The number of bytes.
+     * @return Returns TRUE if the bytes have been acquired and must be released.
+     */
+    public static boolean tryAcquire(long bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > LIMIT) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        Metrics.BUFFERED_BYTES.add(bytes);
+        return true;
+    }
+
+    /**
+     * Releases bytes acquired with {@link #tryAcquire(long)}.
+     *
+     * @param bytes The number of bytes.
+     */
+    public static void release(long bytes) {
+        used.addAndGet(-bytes);
+        Metrics.BUFFERED_BYTES.add(-bytes);
+    }
+
+}
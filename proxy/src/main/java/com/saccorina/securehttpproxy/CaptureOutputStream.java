@@ -0,0 +1,92 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that writes to another stream keeping a copy of the bytes, up to a limit.
+ *
+ * Used by the caches to store a response while it is streamed to its destination.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class CaptureOutputStream extends OutputStream {
+
+    /**
+     * The destination stream.
+     */
+    private final OutputStream out;
+
+    /**
+     * The maximum number of bytes copied.
+     */
+    private final int limit;
+
+    /**
+     * The copy of the written bytes or NULL if they exceeded the limit.
+     */
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    /**
+     * Initialize the stream.
+     *
+     * @param out The destination stream.
+     * @param limit The maximum number of bytes copied.
+     */
+    public CaptureOutputStream(OutputStream out, int limit) {
+        this.out   = out;
+        this.limit = limit;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void write(int b) throws IOException {
+        this.out.write(b);
+        if (this.keep(1)) {
+            this.copy.write(b);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.out.write(b, off, len);
+        if (this.keep(len)) {
+            this.copy.write(b, off, len);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    /**
+     * Checks if the next bytes fit in the copy, discarding it otherwise.
+     *
+     * @param len The number of bytes.
+     * @return Returns TRUE if the bytes must be copied.
+     */
+    private boolean keep(int len) {
+        if (this.copy != null && this.copy.size() + len > this.limit) {
+            this.copy = null;
+        }
+        return this.copy != null;
+    }
+
+    /**
+     * Retrieves the copy of the written bytes.
+     *
+     * @return Returns the bytes or NULL if they exceeded the limit.
+     */
+    public byte[] toByteArray() {
+        return this.copy == null ? null : this.copy.toByteArray();
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.saccorina.securehttpproxy;
+
+/**
+ * The block cipher mode used to protect the messages exchanged in the tunnel.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public enum CipherMode {
+
+    /**
+     * Legacy mode: AES/ECB/PKCS5Padding, without integrity.
+     */
+    ECB("ECB", "PKCS5Padding"),
+
+    /**
+     * Authenticated encryption: AES/GCM/NoPadding, with a counter-based nonce for each message or record
+     * and the tunnel metadata as associated data.
+     */
+    GCM("GCM", "NoPadding");
+
+    /**
+     * The name of the mode in the cipher transformation.
+     */
+    private final String mode;
+
+    /**
+     * The padding of the cipher transformation.
+     */
+    private final String padding;
+
+    /**
+     * Initialize a cipher mode.
+     *
+     * @param mode The name of the mode in the cipher transformation.
+     * @param padding The padding of the cipher transformation.
+     */
+    CipherMode(String mode, String padding) {
+        this.mode    = mode;
+        this.padding = padding;
+    }
+
+    public String getMode() {
+        return this.mode;
+    }
+
+    public String getPadding() {
+        return this.padding;
+    }
+
+    /**
+     * Checks if the mode provides authenticated encryption.
+     *
+     * @return Returns TRUE for AEAD modes.
+     */
+    public boolean isAead() {
+        return this == GCM;
+    }
+
+    /**
+     * Retrieves the mode configured with the "cipher.mode" setting.
+     *
+     * @return Returns the configured mode, ECB by default.
+     */
+    public static CipherMode configured() {
+        return valueOf(Configuration.getString("cipher.mode", "ecb").toUpperCase());
+    }
+
+}
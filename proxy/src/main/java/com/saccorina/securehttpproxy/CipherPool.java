@@ -0,0 +1,560 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-safe encryption and decryption of messages, backed by a pool of {@link ConnectionCipher}.
+ *
+ * A cipher is not thread-safe, so each operation borrows one from a lock-free queue and gives it back
+ * when done. The queue never blocks: when it's empty a new cipher is created, so the number of ciphers
+ * follows the actual concurrency. Ciphers are not bound to threads, so virtual threads don't create
+ * one each.
+ *
+ * In AEAD modes all the ciphers of the pool share the nonce sequence of the direction they encrypt, and
+ * each message is authenticated together with its frame type and direction. With a different key for
+ * each direction the ciphers that encrypt and the ones that decrypt are pooled apart.
+ *
+ * A pool created from secrets instead of keys rotates the keys in band: each message starts with the
+ * key epoch it was encrypted under, and the key of every epoch is derived with HKDF from the secret of
+ * the previous one. The sender moves to the next epoch after {@link #REKEY_BYTES} bytes or
+ * {@link #REKEY_INTERVAL} milliseconds, the receiver follows as soon as it sees the new epoch and still
+ * accepts the previous one for {@link #REKEY_GRACE} milliseconds, for the messages already in flight on
+ * other connections. The keys of the next epoch are derived in background as soon as an epoch begins,
+ * so the rotation itself is just the swap of a reference; until they are ready the sender stays in the
+ * current epoch.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class CipherPool {
+
+    /**
+     * The maximum number of idle ciphers kept in a pool.
+     */
+    public static final int MAX_IDLE = Configuration.getInt("cipher.poolSize",
+            Runtime.getRuntime().availableProcessors() * 4);
+
+    /**
+     * The number of bytes encrypted under a key before moving to the next epoch, 0 for no limit.
+     */
+    public static final long REKEY_BYTES = Configuration.getLong("rekey.bytes", 1L << 30);
+
+    /**
+     * The time in milliseconds a key is used before moving to the next epoch, 0 for no limit.
+     */
+    public static final long REKEY_INTERVAL = Configuration.getInt("rekey.interval", 3600000);
+
+    /**
+     * The time in milliseconds the key of the previous epoch still decrypts the received messages.
+     */
+    public static final long REKEY_GRACE = Configuration.getInt("rekey.grace", 60000);
+
+    /**
+     * The maximum number of epochs the sender can be ahead, when the messages of some epochs were lost
+     * with a connection.
+     */
+    private static final int MAX_EPOCH_GAP = 8;
+
+    /**
+     * The length in bytes of the secret of an epoch.
+     */
+    private static final int SECRET_LENGTH = 32;
+
+    /**
+     * The length in bytes of the key of an epoch.
+     */
+    private static final int KEY_LENGTH = 16;
+
+    private static final byte[] KEY_INFO = "securehttpproxy epoch key".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] NEXT_SECRET_INFO = "securehttpproxy next epoch".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Logger logger = Logger.getInstance();
+
+    /**
+     * The ciphers of the encrypted messages, of the current epoch.
+     */
+    private final AtomicReference<Ciphers> encryptionCiphers;
+
+    /**
+     * The ciphers of the decrypted messages, the same of the encrypted ones if the key is the same.
+     */
+    private volatile Ciphers decryptionCiphers;
+
+    /**
+     * The ciphers of the decrypted messages of the previous epoch, NULL if the keys were never rotated.
+     */
+    private volatile Ciphers retiredCiphers;
+
+    /**
+     * Whether the keys are rotated and the messages carry their epoch.
+     */
+    private final boolean rekeying;
+
+    /**
+     * The mode of the ciphers.
+     */
+    private final CipherMode mode;
+
+    /**
+     * The nonces of the encrypted messages.
+     */
+    private final NonceSequence nonces;
+
+    /**
+     * The associated data of the encrypted messages.
+     */
+    private final byte[] encryptionData;
+
+    /**
+     * The associated data of the decrypted messages.
+     */
+    private final byte[] decryptionData;
+
+    /**
+     * Initialize a pool of AES/ECB/PKCS5Padding ciphers.
+     *
+     * @param secretKey The secret key used for encryption/decryption.
+     */
+    public CipherPool(SecretKeySpec secretKey) {
+        this(secretKey, CipherMode.ECB, FlowCipher.CLIENT_TO_SERVER);
+    }
+
+    /**
+     * Initialize a pool of AES ciphers.
+     *
+     * @param secretKey The secret key used for encryption/decryption.
+     * @param mode The mode of the ciphers.
+     * @param direction The direction of the encrypted messages, {@link FlowCipher#CLIENT_TO_SERVER} or
+     *                  {@link FlowCipher#SERVER_TO_CLIENT}.
+     */
+    public CipherPool(SecretKeySpec secretKey, CipherMode mode, byte direction) {
+        this(secretKey, secretKey, mode, direction);
+    }
+
+    /**
+     * Initialize a pool of AES ciphers with a different key for each direction.
+     *
+     * @param encryptionKey The secret key of the encrypted messages.
+     * @param decryptionKey The secret key of the decrypted messages.
+     * @param mode The mode of the ciphers.
+     * @param direction The direction of the encrypted messages, {@link FlowCipher#CLIENT_TO_SERVER} or
+     *                  {@link FlowCipher#SERVER_TO_CLIENT}.
+     */
+    public CipherPool(SecretKeySpec encryptionKey, SecretKeySpec decryptionKey, CipherMode mode, byte direction) {
+        this.encryptionCiphers = new AtomicReference<>(new Ciphers(0, encryptionKey, null));
+        this.decryptionCiphers = decryptionKey.equals(encryptionKey)
+                ? this.encryptionCiphers.get() : new Ciphers(0, decryptionKey, null);
+        this.rekeying          = false;
+        this.mode              = mode;
+        this.nonces            = new NonceSequence(direction);
+        this.encryptionData    = new byte[] {Frame.TYPE_MESSAGE, direction};
+        this.decryptionData    = new byte[] {Frame.TYPE_MESSAGE, (byte) (1 - direction)};
+    }
+
+    /**
+     * Initialize a pool of AES ciphers whose keys are rotated, with a different key chain for each direction.
+     *
+     * @param encryptionSecret The secret of the first epoch of the encrypted messages.
+     * @param decryptionSecret The secret of the first epoch of the decrypted messages.
+     * @param mode The mode of the ciphers.
+     * @param direction The direction of the encrypted messages, {@link FlowCipher#CLIENT_TO_SERVER} or
+     *                  {@link FlowCipher#SERVER_TO_CLIENT}.
+     *
+     * @throws CipherException if the keys cannot be derived.
+     */
+    public CipherPool(byte[] encryptionSecret, byte[] decryptionSecret, CipherMode mode, byte direction)
+            throws CipherException
+    {
+        this.mode              = mode;
+        this.nonces            = new NonceSequence(direction);
+        this.encryptionData    = new byte[] {Frame.TYPE_MESSAGE, direction};
+        this.decryptionData    = new byte[] {Frame.TYPE_MESSAGE, (byte) (1 - direction)};
+        this.rekeying          = true;
+        this.encryptionCiphers = new AtomicReference<>(new Ciphers(0, encryptionSecret));
+        this.decryptionCiphers = new Ciphers(0, decryptionSecret);
+        this.encryptionCiphers.get().prepareNext();
+        this.decryptionCiphers.prepareNext();
+    }
+
+    /**
+     * Encrypt a message.
+     *
+     * @param message The message in bytes to be encrypted.
+     * @return Returns the result in bytes of the encryption.
+     *
+     * @throws CipherException for an invalid value.
+     */
+    public byte[] encrypt(byte[] message) throws CipherException {
+        return this.encrypt(message, Frame.TYPE_MESSAGE);
+    }
+
+    /**
+     * Encrypt the payload of a frame, authenticated together with the frame type.
+     *
+     * @param message The payload in bytes to be encrypted.
+     * @param type The type of the frame carrying the payload.
+     * @return Returns the result in bytes of the encryption.
+     *
+     * @throws CipherException for an invalid value.
+     */
+    public byte[] encrypt(byte[] message, byte type) throws CipherException {
+        byte[] associatedData = type == Frame.TYPE_MESSAGE
+                ? this.encryptionData : new byte[] {type, this.encryptionData[1]};
+        Ciphers ciphers = this.encryptionCiphers.get();
+        if (this.rekeying && ciphers.isExhausted(message.length)) {
+            ciphers = this.rotate(ciphers);
+        }
+
+        ConnectionCipher cipher = ciphers.borrow();
+        try {
+            if (!this.rekeying) {
+                return cipher.encrypt(message, associatedData);
+            }
+            byte[] result = cipher.encrypt(message, associatedData, 1);
+            result[0] = (byte) ciphers.epoch;
+            return result;
+
+        } finally {
+            ciphers.giveBack(cipher);
+        }
+    }
+
+    /**
+     * Decrypt a message.
+     *
+     * @param message The message in bytes to be decrypted.
+     * @return Returns the result in bytes of the decryption.
+     *
+     * @throws CipherException for an invalid value.
+     */
+    public byte[] decrypt(byte[] message) throws CipherException {
+        return this.decrypt(message, Frame.TYPE_MESSAGE);
+    }
+
+    /**
+     * Decrypt the payload of a frame, authenticated together with the frame type.
+     *
+     * @param message The payload in bytes to be decrypted.
+     * @param type The type of the frame carrying the payload.
+     * @return Returns the result in bytes of the decryption.
+     *
+     * @throws CipherException for an invalid value or a payload not authentic.
+     */
+    public byte[] decrypt(byte[] message, byte type) throws CipherException {
+        byte[] associatedData = type == Frame.TYPE_MESSAGE
+                ? this.decryptionData : new byte[] {type, this.decryptionData[1]};
+        Ciphers ciphers = this.decryptionCiphers;
+        if (this.rekeying) {
+            if (message.length == 0) {
+                throw new CipherException("Message without key epoch");
+            }
+            int epoch = message[0] & 0xff;
+            if (epoch != ciphers.epoch) {
+                ciphers = this.receivingCiphers(epoch);
+            }
+        }
+
+        byte[] result;
+        ConnectionCipher cipher = ciphers.borrow();
+        try {
+            result = cipher.decrypt(message, associatedData, this.rekeying ? 1 : 0);
+
+        } finally {
+            ciphers.giveBack(cipher);
+        }
+
+        if (this.rekeying && ciphers != this.decryptionCiphers && ciphers != this.retiredCiphers) {
+            this.advance(ciphers);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the encrypted messages to the next epoch, unless another thread already did it. The senders
+     * never wait for the derivation of the next keys: until it is done they stay in the current epoch.
+     *
+     * @param exhausted The ciphers of the epoch that reached its limits.
+     * @return Returns the ciphers of the current epoch.
+     *
+     * @throws CipherException if the keys of the next epoch cannot be derived.
+     */
+    private Ciphers rotate(Ciphers exhausted) throws CipherException {
+        if (!exhausted.isNextReady()) {
+            return this.encryptionCiphers.get();
+        }
+
+        Ciphers next = exhausted.next();
+        if (this.encryptionCiphers.compareAndSet(exhausted, next)) {
+            next.prepareNext();
+            logger.log("[CipherPool] Sending under key epoch " + next.epoch);
+        }
+        return this.encryptionCiphers.get();
+    }
+
+    /**
+     * Retrieves the ciphers of a received message whose epoch is not the current one. The receiver
+     * does not move to an epoch ahead until a message under it has been decrypted, see
+     * {@link #advance(Ciphers)}, so that a forged epoch cannot retire the current key.
+     *
+     * @param epoch The epoch of the received message.
+     * @return Returns the ciphers of the epoch.
+     *
+     * @throws CipherException if the epoch is expired or unknown, or its keys cannot be derived.
+     */
+    private Ciphers receivingCiphers(int epoch) throws CipherException {
+        Ciphers ciphers = this.retiredCiphers(epoch);
+        if (ciphers != null) {
+            return ciphers;
+        }
+
+        ciphers = this.decryptionCiphers;
+        int gap = (epoch - ciphers.epoch) & 0xff;
+        if (gap > MAX_EPOCH_GAP) {
+            throw new CipherException("Message under the unknown key epoch " + epoch);
+        }
+        for (int i = 0; i < gap; i++) {
+            ciphers = ciphers.next();
+        }
+        return ciphers;
+    }
+
+    /**
+     * Moves the decrypted messages to an epoch ahead, unless another thread already did it, keeping
+     * the current key for the messages still in flight.
+     *
+     * @param ciphers The ciphers of the epoch ahead.
+     */
+    private synchronized void advance(Ciphers ciphers) {
+        Ciphers current = this.decryptionCiphers;
+        int gap = (ciphers.epoch - current.epoch) & 0xff;
+        if (gap == 0 || gap > MAX_EPOCH_GAP) {
+            return;
+        }
+
+        ciphers.prepareNext();
+        current.retiredUntil = System.currentTimeMillis() + REKEY_GRACE;
+        this.retiredCiphers = current;
+        this.decryptionCiphers = ciphers;
+        logger.log("[CipherPool] Receiving under key epoch " + ciphers.epoch);
+    }
+
+    /**
+     * Retrieves the ciphers of the previous epoch of the decrypted messages.
+     *
+     * @param epoch The epoch of the received message.
+     * @return Returns the ciphers or NULL if the epoch is not the previous one.
+     *
+     * @throws CipherException if the epoch is the previous one but its grace time is over.
+     */
+    private Ciphers retiredCiphers(int epoch) throws CipherException {
+        Ciphers retired = this.retiredCiphers;
+        if (retired == null || retired.epoch != epoch) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= retired.retiredUntil) {
+            throw new CipherException("Message under the expired key epoch " + epoch);
+        }
+        return retired;
+    }
+
+    /**
+     * The idle ciphers of a key, in one epoch of its direction.
+     */
+    private class Ciphers {
+
+        /**
+         * The idle ciphers.
+         */
+        private final Queue<ConnectionCipher> idle = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The number of idle ciphers, tracked apart because the size of the queue is not constant-time.
+         */
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        /**
+         * The secret key of the ciphers.
+         */
+        private final SecretKeySpec secretKey;
+
+        /**
+         * The epoch of the key, from 0 to 255 and then again from 0.
+         */
+        private final int epoch;
+
+        /**
+         * The secret the key was derived from, NULL if the key is not rotated.
+         */
+        private final byte[] secret;
+
+        /**
+         * The time in milliseconds since the epoch after which the key must be replaced.
+         */
+        private final long expiry;
+
+        /**
+         * The number of bytes encrypted with the key.
+         */
+        private final AtomicLong encryptedBytes = new AtomicLong();
+
+        /**
+         * The ciphers of the next epoch, derived in background, NULL until the epoch begins.
+         */
+        private volatile CompletableFuture<Ciphers> next;
+
+        /**
+         * The time in milliseconds since the epoch until which the key decrypts the messages in flight,
+         * once the next epoch has begun.
+         */
+        private volatile long retiredUntil;
+
+        /**
+         * Initialize the ciphers of an epoch.
+         *
+         * @param epoch The epoch of the key.
+         * @param secretKey The secret key of the ciphers.
+         * @param secret The secret the key was derived from, NULL if the key is not rotated.
+         */
+        private Ciphers(int epoch, SecretKeySpec secretKey, byte[] secret) {
+            this.epoch     = epoch;
+            this.secretKey = secretKey;
+            this.secret    = secret;
+            this.expiry    = System.currentTimeMillis() + REKEY_INTERVAL;
+        }
+
+        /**
+         * Initialize the ciphers of an epoch, deriving the key from its secret.
+         *
+         * @param epoch The epoch of the key.
+         * @param secret The secret of the epoch.
+         *
+         * @throws CipherException if the key cannot be derived.
+         */
+        private Ciphers(int epoch, byte[] secret) throws CipherException {
+            this(epoch, new SecretKeySpec(Hkdf.expand(secret, KEY_INFO, KEY_LENGTH), "AES"), secret);
+        }
+
+        /**
+         * Counts the bytes of a message to encrypt and checks if the key has reached its limits.
+         *
+         * @param length The length in bytes of the message.
+         * @return Returns TRUE if the message must be encrypted in the next epoch.
+         */
+        private boolean isExhausted(int length) {
+            return REKEY_BYTES > 0 && this.encryptedBytes.addAndGet(length) > REKEY_BYTES
+                    || REKEY_INTERVAL > 0 && System.currentTimeMillis() >= this.expiry;
+        }
+
+        /**
+         * Starts the derivation of the next epoch in background, unless already started.
+         */
+        private synchronized void prepareNext() {
+            if (this.next == null) {
+                this.next = CompletableFuture.supplyAsync(this::derive);
+            }
+        }
+
+        /**
+         * Checks if the ciphers of the next epoch are derived, starting their derivation if needed.
+         *
+         * @return Returns TRUE if {@link #next()} returns without waiting.
+         */
+        private boolean isNextReady() {
+            this.prepareNext();
+            return this.next.isDone();
+        }
+
+        /**
+         * Retrieves the ciphers of the next epoch, waiting for their derivation if not done yet.
+         *
+         * @return Returns the ciphers of the next epoch.
+         *
+         * @throws CipherException if the keys of the next epoch cannot be derived.
+         */
+        private Ciphers next() throws CipherException {
+            this.prepareNext();
+            try {
+                return this.next.join();
+
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof CipherException
+                        ? (CipherException) e.getCause()
+                        : new CipherException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Derives the ciphers of the next epoch, with a first cipher ready for use.
+         *
+         * @return Returns the ciphers of the next epoch.
+         */
+        private Ciphers derive() {
+            try {
+                Ciphers next = new Ciphers((this.epoch + 1) & 0xff,
+                        Hkdf.expand(this.secret, NEXT_SECRET_INFO, SECRET_LENGTH));
+                next.giveBack(next.create());
+                return next;
+
+            } catch (CipherException e) {
+                throw new CompletionException(e);
+            }
+        }
+
+        /**
+         * Takes an idle cipher or creates a new one.
+         *
+         * @return Returns a cipher for the exclusive use of the caller.
+         *
+         * @throws CipherException if the cipher cannot be created.
+         */
+        private ConnectionCipher borrow() throws CipherException {
+            ConnectionCipher cipher = this.idle.poll();
+            if (cipher != null) {
+                this.idleCount.decrementAndGet();
+                return cipher;
+            }
+
+            return this.create();
+        }
+
+        /**
+         * Creates a new cipher of the key.
+         *
+         * @return Returns the cipher.
+         *
+         * @throws CipherException if the cipher cannot be created.
+         */
+        private ConnectionCipher create() throws CipherException {
+            ConnectionCipher cipher = new ConnectionCipher(mode);
+            cipher.setSecretKey(this.secretKey);
+            cipher.setNonceSequence(nonces);
+            return cipher;
+        }
+
+        /**
+         * Puts a cipher back in the pool, unless there are already enough idle ciphers.
+         *
+         * @param cipher The borrowed cipher.
+         */
+        private void giveBack(ConnectionCipher cipher) {
+            if (this.idleCount.incrementAndGet() <= MAX_IDLE) {
+                this.idle.offer(cipher);
+            } else {
+                this.idleCount.decrementAndGet();
+            }
+        }
+
+    }
+
+}
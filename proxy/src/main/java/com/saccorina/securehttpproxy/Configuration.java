@@ -0,0 +1,86 @@
+package com.saccorina.securehttpproxy;
+
+/**
+ * Helper class for reading the proxy settings from the system properties.
+ *
+ * Every setting is read from a system property prefixed with "securehttpproxy." (e.g.
+ * -Dsecurehttpproxy.tunnel.encoding=hex), so that both proxies can be tuned at startup.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class Configuration {
+
+    private static final String PREFIX = "securehttpproxy.";
+
+    private Configuration() {}
+
+    /**
+     * Retrieves a string setting.
+     *
+     * @param name The setting name, without prefix.
+     * @param defaultValue The value returned if the setting is not defined.
+     * @return Returns the setting value.
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Retrieves an integer setting.
+     *
+     * @param name The setting name, without prefix.
+     * @param defaultValue The value returned if the setting is not defined.
+     * @return Returns the setting value.
+     *
+     * @throws IllegalArgumentException if the value is not a valid integer.
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for setting \"" + name + "\": " + value, e);
+        }
+    }
+
+    /**
+     * Retrieves a long integer setting, for the sizes that may exceed 2 GiB.
+     *
+     * @param name The setting name, without prefix.
+     * @param defaultValue The value returned if the setting is not defined.
+     * @return Returns the setting value.
+     *
+     * @throws IllegalArgumentException if the value is not a valid long integer.
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for setting \"" + name + "\": " + value, e);
+        }
+    }
+
+    /**
+     * Retrieves a boolean setting.
+     *
+     * @param name The setting name, without prefix.
+     * @param defaultValue The value returned if the setting is not defined.
+     * @return Returns the setting value.
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+}
@@ -0,0 +1,375 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Performs encryption and decryption of messages.
+ *
+ * In AEAD modes (GCM) every encryption needs a new nonce: messages encrypted as byte arrays take it
+ * from the {@link NonceSequence} and carry it in front of the ciphertext, followed by the tag. The
+ * nonces of the decrypted messages are checked against the same sequence, which rejects the replayed
+ * ones.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class ConnectionCipher {
+
+    /**
+     * The length in bytes of the nonce of AEAD modes.
+     */
+    public static final int NONCE_LENGTH = 12;
+
+    /**
+     * The length in bytes of the authentication tag of AEAD modes.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The cipher instance.
+     */
+    private Cipher cipher;
+
+    /**
+     * The initialization vector used in CBC, OFB and CFB modes.
+     */
+    private IvParameterSpec initializationVector;
+
+    /**
+     * The secret key used for encryption/decryption.
+     */
+    private SecretKey secretKey;
+
+    /**
+     * The mode the cipher is initialized for, 0 if it must be initialized before the next operation.
+     */
+    private int initializedMode;
+
+    /**
+     * Whether the mode provides authenticated encryption.
+     */
+    private final boolean aead;
+
+    /**
+     * The generator of the nonces of messages encrypted in an AEAD mode.
+     */
+    private NonceSequence nonces;
+
+    /**
+     * Initialize the connection cipher with AES/ECB/PKCS5Padding.
+     *
+     * @throws CipherException for an empty algorithm or padding mode.
+     */
+    public ConnectionCipher() throws CipherException {
+        this(CipherMode.ECB);
+    }
+
+    /**
+     * Initialize the connection cipher with AES in the given mode.
+     *
+     * @param mode The cipher mode.
+     *
+     * @throws CipherException if the mode is not supported.
+     */
+    public ConnectionCipher(CipherMode mode) throws CipherException {
+        this("AES", mode.getMode(), mode.getPadding());
+    }
+
+    /**
+     * Initialize the connection cipher.
+     *
+     * @param algorithm Algorithm name (e.g. AES).
+     * @param mode Encryption/decryption mode (ECB, CBC, OFB, CFB, CTR, GCM).
+     * @param padding Padding mode (e.g. PKCS5Padding, NoPadding).
+     *
+     * @throws CipherException for an empty algorithm or padding mode.
+     */
+    public ConnectionCipher(String algorithm, String mode, String padding) throws CipherException {
+        this.aead = mode.equalsIgnoreCase("GCM");
+        try {
+            this.cipher = Cipher.getInstance(algorithm + "/" + mode + "/" + padding);
+
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new CipherException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Set the initialization vector used in CBC, OFB and CFB modes.
+     *
+     * @param iv The initialization vector in bytes.
+     */
+    public void setInitializationVector(byte[] iv) {
+        this.initializationVector = new IvParameterSpec(iv);
+        this.initializedMode = 0;
+    }
+
+    /**
+     * Set the secret key used for encryption/decryption.
+     *
+     * @param secretKey The secret key specifications.
+     */
+    public void setSecretKey(SecretKeySpec secretKey) {
+        this.secretKey = secretKey;
+        this.initializedMode = 0;
+    }
+
+    /**
+     * Set the generator of the nonces of messages encrypted in an AEAD mode.
+     *
+     * @param nonces The nonce sequence of the direction of the encrypted messages.
+     */
+    public void setNonceSequence(NonceSequence nonces) {
+        this.nonces = nonces;
+    }
+
+    /**
+     * Checks if the mode provides authenticated encryption.
+     *
+     * @return Returns TRUE for AEAD modes.
+     */
+    public boolean isAead() {
+        return this.aead;
+    }
+
+    /**
+     * Encrypt a message.
+     *
+     * @param message The message in bytes to be encrypted.
+     * @return Returns the result in bytes of the encryption.
+     *
+     * @throws CipherException for an invalid value.
+     */
+    public byte[] encrypt(byte[] message) throws CipherException {
+        return this.encrypt(message, null);
+    }
+
+    /**
+     * Encrypt a message, authenticating also some associated data in AEAD modes.
+     *
+     * @param message The message in bytes to be encrypted.
+     * @param associatedData The data authenticated but not encrypted, ignored if the mode is not AEAD.
+     * @return Returns the result in bytes of the encryption, preceded by the nonce in AEAD modes.
+     *
+     * @throws CipherException for an invalid value.
+     */
+    public byte[] encrypt(byte[] message, byte[] associatedData) throws CipherException {
+        return this.encrypt(message, associatedData, 0);
+    }
+
+    /**
+     * Encrypt a message into an array that reserves some bytes in front, so that a header can be added
+     * without copying the result.
+     *
+     * @param message The message in bytes to be encrypted.
+     * @param associatedData The data authenticated but not encrypted, ignored if the mode is not AEAD.
+     * @param offset The number of bytes left free at the beginning of the result.
+     * @return Returns the result in bytes of the encryption after the free bytes, preceded by the nonce
+     *         in AEAD modes.
+     *
+     * @throws CipherException for an invalid value.
+     */
+    public byte[] encrypt(byte[] message, byte[] associatedData, int offset) throws CipherException {
+        if (this.aead) {
+            if (this.nonces == null) {
+                throw new CipherException("The nonce sequence must be set before authenticated encryption");
+            }
+            byte[] nonce = this.nonces.next();
+            byte[] result = new byte[offset + NONCE_LENGTH + message.length + TAG_LENGTH];
+            System.arraycopy(nonce, 0, result, offset, NONCE_LENGTH);
+
+            int start = offset + NONCE_LENGTH;
+            this.encrypt(nonce, associatedData == null ? null : ByteBuffer.wrap(associatedData),
+                    ByteBuffer.wrap(message), ByteBuffer.wrap(result, start, result.length - start));
+            return result;
+        }
+
+        if (this.secretKey == null) {
+            throw new CipherException("The secret key must be set before encryption");
+        }
+
+        try {
+            this.init(Cipher.ENCRYPT_MODE);
+            if (offset == 0) {
+                return this.cipher.doFinal(message);
+            }
+            byte[] result = new byte[offset + this.cipher.getOutputSize(message.length)];
+            int length = this.cipher.doFinal(message, 0, message.length, result, offset);
+            return offset + length == result.length ? result : Arrays.copyOf(result, offset + length);
+
+        } catch (GeneralSecurityException e) {
+            this.initializedMode = 0;
+            throw new CipherException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decrypt a message.
+     *
+     * @param message The message in bytes to be decrypted.
+     * @return Returns the result in bytes of the decryption.
+     *
+     * @throws CipherException for an invalid value.
+     */
+    public byte[] decrypt(byte[] message) throws CipherException {
+        return this.decrypt(message, null);
+    }
+
+    /**
+     * Decrypt a message, verifying also the associated data in AEAD modes.
+     *
+     * @param message The message in bytes to be decrypted, preceded by the nonce in AEAD modes.
+     * @param associatedData The data authenticated with the message, ignored if the mode is not AEAD.
+     * @return Returns the result in bytes of the decryption.
+     *
+     * @throws CipherException for an invalid value or, in AEAD modes, a message not authentic.
+     */
+    public byte[] decrypt(byte[] message, byte[] associatedData) throws CipherException {
+        return this.decrypt(message, associatedData, 0);
+    }
+
+    /**
+     * Decrypt a message that follows a header, without copying it apart.
+     *
+     * @param message The header followed by the message in bytes to be decrypted, preceded by the nonce
+     *                in AEAD modes.
+     * @param associatedData The data authenticated with the message, ignored if the mode is not AEAD.
+     * @param offset The length in bytes of the header.
+     * @return Returns the result in bytes of the decryption.
+     *
+     * @throws CipherException for an invalid value or, in AEAD modes, a message not authentic.
+     */
+    public byte[] decrypt(byte[] message, byte[] associatedData, int offset) throws CipherException {
+        if (this.aead) {
+            if (message.length < offset + NONCE_LENGTH + TAG_LENGTH) {
+                throw new CipherException("Message too short");
+            }
+            byte[] nonce = Arrays.copyOfRange(message, offset, offset + NONCE_LENGTH);
+            if (this.nonces != null) {
+                this.nonces.verify(nonce);
+            }
+            int start = offset + NONCE_LENGTH;
+            byte[] result = new byte[message.length - start - TAG_LENGTH];
+
+            this.decrypt(nonce, associatedData == null ? null : ByteBuffer.wrap(associatedData),
+                    ByteBuffer.wrap(message, start, message.length - start), ByteBuffer.wrap(result));
+            if (this.nonces != null) {
+                // only an authentic nonce moves the replay window
+                this.nonces.accept(nonce);
+            }
+            return result;
+        }
+
+        if (this.secretKey == null) {
+            throw new CipherException("The secret key must be set before decryption");
+        }
+
+        try {
+            this.init(Cipher.DECRYPT_MODE);
+            return this.cipher.doFinal(message, offset, message.length - offset);
+
+        } catch (GeneralSecurityException e) {
+            this.initializedMode = 0;
+            throw new CipherException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Encrypt the remaining bytes of a buffer into another buffer, without intermediate copies.
+     *
+     * @param nonce The nonce, never used before with the same key, ignored if the mode is not AEAD.
+     * @param associatedData The data authenticated but not encrypted, NULL for none.
+     * @param input The buffer with the plaintext, consumed.
+     * @param output The buffer receiving the ciphertext, followed by the tag in AEAD modes.
+     * @return Returns the number of bytes written in the output buffer.
+     *
+     * @throws CipherException for an invalid value or an output buffer too small.
+     */
+    public int encrypt(byte[] nonce, ByteBuffer associatedData, ByteBuffer input, ByteBuffer output)
+            throws CipherException
+    {
+        return this.process(Cipher.ENCRYPT_MODE, nonce, associatedData, input, output);
+    }
+
+    /**
+     * Decrypt the remaining bytes of a buffer into another buffer, without intermediate copies.
+     *
+     * @param nonce The nonce used for the encryption, ignored if the mode is not AEAD.
+     * @param associatedData The data authenticated with the message, NULL for none.
+     * @param input The buffer with the ciphertext, followed by the tag in AEAD modes, consumed.
+     * @param output The buffer receiving the plaintext.
+     * @return Returns the number of bytes written in the output buffer.
+     *
+     * @throws CipherException for an invalid value or, in AEAD modes, a message not authentic.
+     */
+    public int decrypt(byte[] nonce, ByteBuffer associatedData, ByteBuffer input, ByteBuffer output)
+            throws CipherException
+    {
+        return this.process(Cipher.DECRYPT_MODE, nonce, associatedData, input, output);
+    }
+
+    /**
+     * Encrypts or decrypts a buffer.
+     *
+     * @param mode The operation mode of the cipher.
+     * @param nonce The nonce of AEAD modes.
+     * @param associatedData The associated data of AEAD modes, NULL for none.
+     * @param input The input buffer.
+     * @param output The output buffer.
+     * @return Returns the number of bytes written in the output buffer.
+     *
+     * @throws CipherException for an invalid value.
+     */
+    private int process(int mode, byte[] nonce, ByteBuffer associatedData, ByteBuffer input, ByteBuffer output)
+            throws CipherException
+    {
+        if (this.secretKey == null) {
+            throw new CipherException("The secret key must be set before encryption or decryption");
+        }
+
+        try {
+            if (this.aead) {
+                // a GCM cipher must be initialized with a new nonce for each message
+                this.cipher.init(mode, this.secretKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+                this.initializedMode = 0;
+                if (associatedData != null) {
+                    this.cipher.updateAAD(associatedData);
+                }
+            } else {
+                this.init(mode);
+            }
+            return this.cipher.doFinal(input, output);
+
+        } catch (GeneralSecurityException e) {
+            this.initializedMode = 0;
+            throw new CipherException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Initializes the cipher for a mode, unless already done: doFinal resets the cipher to the state
+     * of the last initialization, so the key schedule is computed again only when the mode changes.
+     *
+     * @param mode The operation mode of the cipher.
+     *
+     * @throws GeneralSecurityException if the cipher cannot be initialized.
+     */
+    private void init(int mode) throws GeneralSecurityException {
+        if (this.initializedMode != mode) {
+            this.cipher.init(mode, this.secretKey, this.initializationVector);
+            this.initializedMode = mode;
+        }
+    }
+
+}
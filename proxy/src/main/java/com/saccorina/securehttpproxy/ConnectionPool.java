@@ -0,0 +1,430 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Pool of persistent connections to remote hosts, keyed by host and port.
+ *
+ * Idle connections are kept in lock-free deques and the limits are enforced with semaphores, so that
+ * many handler threads can lease and release connections without contending on a lock. Every open
+ * connection, idle or leased, holds one permit of its host and one of the pool.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class ConnectionPool {
+
+    /**
+     * The time in milliseconds a lease waits for a permit before looking again for idle connections.
+     */
+    private static final long ACQUIRE_SLICE = 50;
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The name of the pool, used in logs.
+     */
+    private final String name;
+
+    /**
+     * The maximum number of open connections to a single host.
+     */
+    private final int maxPerHost;
+
+    /**
+     * The time in milliseconds an idle connection is kept in the pool.
+     */
+    private final long idleTimeout;
+
+    /**
+     * The maximum time in milliseconds to wait for a connection when the limits are reached.
+     */
+    private final long leaseTimeout;
+
+    /**
+     * The connection timeout in milliseconds.
+     */
+    private final int connectTimeout;
+
+    /**
+     * The maximum time in milliseconds a read waits for the remote host, 0 to wait forever.
+     */
+    private final int readTimeout;
+
+    /**
+     * The permits of the open connections of the whole pool.
+     */
+    private final Semaphore totalPermits;
+
+    /**
+     * The connections of each host, by "host:port" key.
+     */
+    private final Map<String, HostPool> hosts = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * The number of leases at the last statistics log.
+     */
+    private long loggedLeases;
+
+    /**
+     * Initialize the pool with the settings prefixed by "pool.".
+     *
+     * @param name The name of the pool, used in logs.
+     */
+    public ConnectionPool(String name) {
+        this(name,
+                Configuration.getInt("pool.maxPerHost", 32),
+                Configuration.getInt("pool.maxTotal", 512),
+                Configuration.getInt("pool.idleTimeout", 30000),
+                Configuration.getInt("pool.leaseTimeout", 10000),
+                Configuration.getInt("pool.connectTimeout", 10000),
+                Configuration.getInt("pool.readTimeout", 60000));
+    }
+
+    /**
+     * Initialize the pool and start the eviction of expired idle connections.
+     *
+     * @param name The name of the pool, used in logs.
+     * @param maxPerHost The maximum number of open connections to a single host.
+     * @param maxTotal The maximum number of open connections of the whole pool.
+     * @param idleTimeout The time in milliseconds an idle connection is kept in the pool.
+     * @param leaseTimeout The maximum time in milliseconds to wait for a connection when the limits are reached.
+     * @param connectTimeout The connection timeout in milliseconds.
+     * @param readTimeout The maximum time in milliseconds a read waits for the remote host, 0 to wait forever.
+     */
+    public ConnectionPool(String name, int maxPerHost, int maxTotal, long idleTimeout, long leaseTimeout,
+                          int connectTimeout, int readTimeout)
+    {
+        this.name           = name;
+        this.maxPerHost     = maxPerHost;
+        this.totalPermits   = new Semaphore(maxTotal);
+        this.idleTimeout    = idleTimeout;
+        this.leaseTimeout   = leaseTimeout;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout    = readTimeout;
+
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, name + "-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evictExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leases a connection to a host, reusing an idle one if available.
+     *
+     * @param host The remote host.
+     * @param port The remote port.
+     * @return Returns the leased connection, to be given back with {@link #release(PooledConnection, boolean)}.
+     *
+     * @throws IOException if the connection cannot be opened or the limits are reached for too long.
+     */
+    public PooledConnection lease(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        HostPool hostPool = this.hosts.computeIfAbsent(key, k -> new HostPool());
+        long deadline = System.currentTimeMillis() + this.leaseTimeout;
+        boolean hostAcquired = false;
+
+        try {
+            while (true) {
+                // most recently used first: it is the most likely to be still open
+                PooledConnection connection;
+                while ((connection = hostPool.idle.pollFirst()) != null) {
+                    if (connection.isAlive()) {
+                        this.hits.increment();
+                        return connection;
+                    }
+                    this.stale.increment();
+                    this.discard(hostPool, connection);
+                }
+
+                // wait in short slices, a connection of the host may be released in the meantime
+                if (hostPool.permits.tryAcquire(ACQUIRE_SLICE, TimeUnit.MILLISECONDS)) {
+                    hostAcquired = true;
+                    break;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("No connection available to " + key + " in " + this.leaseTimeout + " ms");
+                }
+            }
+
+            if (!this.totalPermits.tryAcquire()) {
+                // make room closing the least recently used idle connection of any host
+                this.evictOldestIdle();
+                if (!this.totalPermits.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS)) {
+                    hostPool.permits.release();
+                    throw new IOException("Connection pool " + this.name + " exhausted");
+                }
+            }
+
+        } catch (InterruptedException e) {
+            if (hostAcquired) {
+                hostPool.permits.release();
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + key, e);
+        }
+
+        this.misses.increment();
+        try {
+            return new PooledConnection(key, host, port, this.connectTimeout, this.readTimeout);
+
+        } catch (IOException e) {
+            hostPool.permits.release();
+            this.totalPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a leased connection.
+     *
+     * @param connection The leased connection.
+     * @param reusable Whether the connection can be used for another request.
+     */
+    public void release(PooledConnection connection, boolean reusable) {
+        HostPool hostPool = this.hosts.get(connection.getKey());
+        if (reusable) {
+            connection.markIdle();
+            hostPool.idle.offerFirst(connection);
+        } else {
+            this.discard(hostPool, connection);
+        }
+    }
+
+    /**
+     * Sends an HTTP request to a host on a pooled connection and retrieves the response.
+     *
+     * @param host The remote host.
+     * @param port The remote port.
+     * @param request The HTTP request in bytes.
+     * @return Returns the HTTP response in bytes.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public byte[] exchange(String host, int port, byte[] request) throws IOException {
+        return this.exchange(host, port, request, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Sends an HTTP request to a host on a pooled connection and retrieves the response within the
+     * memory budget.
+     *
+     * The payload of the response is spilled out of the heap while it is read, and the whole response is
+     * copied in the heap only once its footprint has been acquired from the {@link BodyBudget}.
+     *
+     * A reused connection may have been closed by the host right before the request, so an idempotent
+     * request failing on it before a response is sent again once on a new connection. A read timeout is
+     * not retried, since the host is stalled rather than gone.
+     *
+     * @param host The remote host.
+     * @param port The remote port.
+     * @param request The HTTP request in bytes.
+     * @param maxLength The maximum length in bytes of the response.
+     * @param footprint The bytes of the heap held by a response of a given length, acquired from the
+     *                  budget and released by the caller once the response is not referenced anymore;
+     *                  NULL to hold the response outside of the budget.
+     * @return Returns the HTTP response in bytes or NULL if the budget cannot hold it.
+     *
+     * @throws IOException if an I/O error occurs or the response is longer than the maximum length.
+     */
+    public byte[] exchange(String host, int port, byte[] request, long maxLength, LongUnaryOperator footprint)
+            throws IOException
+    {
+        HttpMessageReader requestHead = new HttpMessageReader(new ByteArrayInputStream(request), false);
+        String method = requestHead.getMethod();
+        boolean idempotent = method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS");
+
+        while (true) {
+            PooledConnection connection = this.lease(host, port);
+            boolean reusable = false;
+            boolean responded = false;
+            try {
+                OutputStream out = connection.getOutputStream();
+                out.write(request);
+                out.flush();
+
+                HttpMessageReader responseReader = new HttpMessageReader(connection.getInputStream(), false, method);
+                responded = true;
+                long length = responseReader.getDeclaredLength();
+                if (length == -1) {
+                    length = responseReader.getMessageLength();
+                }
+                if (length > maxLength) {
+                    throw new IOException("Response too long: " + length + " bytes");
+                }
+
+                long reserved = footprint == null ? 0 : footprint.applyAsLong(length);
+                if (!BodyBudget.tryAcquire(reserved)) {
+                    return null;
+                }
+                byte[] response;
+                try {
+                    response = responseReader.getMessage();
+
+                } catch (IOException | RuntimeException e) {
+                    BodyBudget.release(reserved);
+                    throw e;
+                }
+                reusable = requestHead.isKeepAlive() && responseReader.isKeepAlive()
+                        && !responseReader.isCloseDelimited();
+                return response;
+
+            } catch (IOException e) {
+                if (responded || !connection.isReused() || !idempotent || e instanceof SocketTimeoutException) {
+                    throw e;
+                }
+                this.logger.log(Logger.Level.DEBUG, this.name, "Reused connection to {} failed, retrying: {}",
+                        connection.getKey(), e.getMessage());
+
+            } finally {
+                this.release(connection, reusable);
+            }
+        }
+    }
+
+    /**
+     * Closes the least recently used idle connection of the pool.
+     *
+     * @return Returns TRUE if a connection has been closed.
+     */
+    private boolean evictOldestIdle() {
+        HostPool oldestPool = null;
+        PooledConnection oldest = null;
+        for (HostPool hostPool : this.hosts.values()) {
+            PooledConnection candidate = hostPool.idle.peekLast();
+            if (candidate != null && (oldest == null || candidate.getLastUsed() < oldest.getLastUsed())) {
+                oldest = candidate;
+                oldestPool = hostPool;
+            }
+        }
+        if (oldest != null && oldestPool.idle.remove(oldest)) {
+            this.evictions.increment();
+            this.discard(oldestPool, oldest);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes the idle connections unused for longer than the idle timeout.
+     */
+    private void evictExpired() {
+        long expiration = System.currentTimeMillis() - this.idleTimeout;
+        for (HostPool hostPool : this.hosts.values()) {
+            for (PooledConnection connection : hostPool.idle) {
+                if (connection.getLastUsed() < expiration && hostPool.idle.remove(connection)) {
+                    this.evictions.increment();
+                    this.discard(hostPool, connection);
+                }
+            }
+        }
+
+        long leases = this.getHits() + this.getMisses();
+        if (leases != this.loggedLeases) {
+            this.loggedLeases = leases;
+            this.logger.log(Logger.Level.INFO, this.name, "Statistics: {}", this);
+        }
+    }
+
+    /**
+     * Closes a connection and releases its permits.
+     *
+     * @param hostPool The pool of the host.
+     * @param connection The connection.
+     */
+    private void discard(HostPool hostPool, PooledConnection connection) {
+        connection.close();
+        hostPool.permits.release();
+        this.totalPermits.release();
+    }
+
+    /**
+     * Retrieves the number of leases served by an idle connection.
+     *
+     * @return Returns the number of hits.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Retrieves the number of leases that opened a new connection.
+     *
+     * @return Returns the number of misses.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Retrieves the number of idle connections found closed by the remote host.
+     *
+     * @return Returns the number of stale connections.
+     */
+    public long getStale() {
+        return this.stale.sum();
+    }
+
+    /**
+     * Retrieves the number of idle connections closed by the pool.
+     *
+     * @return Returns the number of evictions.
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        long hits = this.getHits();
+        long leases = hits + this.getMisses();
+        return "hits=" + hits + ", misses=" + this.getMisses()
+                + ", hitRatio=" + (leases == 0 ? 0 : hits * 100 / leases) + "%"
+                + ", stale=" + this.getStale() + ", evictions=" + this.getEvictions();
+    }
+
+    /**
+     * The connections of a single host.
+     */
+    private class HostPool {
+
+        /**
+         * The idle connections, most recently used first.
+         */
+        private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+        /**
+         * The permits of the open connections of the host.
+         */
+        private final Semaphore permits = new Semaphore(maxPerHost);
+
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.saccorina.securehttpproxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The engine used by a proxy to handle its connections.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public enum Engine {
+
+    /**
+     * Each connection is handled with blocking I/O in its own platform thread.
+     */
+    BLOCKING,
+
+    /**
+     * Each connection is handled with blocking I/O in its own virtual thread (Java 21 or later).
+     */
+    VIRTUAL,
+
+    /**
+     * Connections are multiplexed with non-blocking I/O on a small set of event loops.
+     */
+    NIO;
+
+    /**
+     * Retrieves the engine configured with the "engine" setting.
+     *
+     * @return Returns the configured engine, BLOCKING by default.
+     */
+    public static Engine configured() {
+        return valueOf(Configuration.getString("engine", "blocking").toUpperCase());
+    }
+
+    /**
+     * Creates the executor that runs blocking tasks, such as connection handlers, with this engine.
+     *
+     * The VIRTUAL engine starts a virtual thread for each task, falling back to platform threads if the
+     * running JVM does not support them. The other engines use a pool of platform threads.
+     *
+     * @param name The prefix of the thread names.
+     * @return Returns the executor.
+     */
+    public ExecutorService newExecutor(String name) {
+        if (this == VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+
+            } catch (ReflectiveOperationException e) {
+                Logger.getInstance().log("[Engine] Virtual threads are not supported by this JVM, "
+                        + "using platform threads");
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = task -> new Thread(task, name + "-" + counter.incrementAndGet());
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+}
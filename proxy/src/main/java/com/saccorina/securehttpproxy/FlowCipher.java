@@ -0,0 +1,267 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Protects the byte flow of tunnel streams, as a sequence of fixed-size authenticated records.
+ *
+ * Each record is encrypted and followed by a HMAC-SHA256 computed over direction, stream id, sequence
+ * number, flags and ciphertext, so that records cannot be altered, reordered, replayed or truncated.
+ * With an AEAD mode the HMAC is skipped: the nonce is derived from stream id and sequence number, the
+ * direction, stream id and flags are the associated data, and the cipher tag takes the place of the MAC.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class FlowCipher {
+
+    /**
+     * Direction of the records sent by the client proxy.
+     */
+    public static final byte CLIENT_TO_SERVER = 0;
+
+    /**
+     * Direction of the records sent by the server proxy.
+     */
+    public static final byte SERVER_TO_CLIENT = 1;
+
+    /**
+     * The length in bytes of the authentication tag of each record.
+     */
+    static final int MAC_LENGTH = 32;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The secret keys used for encryption/decryption, by direction.
+     */
+    private final SecretKeySpec[] encryptionKeys;
+
+    /**
+     * The secret keys used for authentication, by direction.
+     */
+    private final SecretKeySpec[] macKeys;
+
+    /**
+     * The maximum number of plaintext bytes in a record.
+     */
+    private final int recordSize;
+
+    /**
+     * The mode of the record ciphers.
+     */
+    private final CipherMode mode;
+
+    /**
+     * Initialize the flow cipher with the ECB mode.
+     *
+     * @param secret The shared secret, at least 48 bytes: the first 16 are the encryption key,
+     *               the following 32 the authentication key.
+     * @param recordSize The maximum number of plaintext bytes in a record.
+     */
+    public FlowCipher(byte[] secret, int recordSize) {
+        this(secret, recordSize, CipherMode.ECB);
+    }
+
+    /**
+     * Initialize the flow cipher.
+     *
+     * @param secret The shared secret, at least 48 bytes: the first 16 are the encryption key,
+     *               the following 32 the authentication key. With an AEAD mode bytes 16 to 32 are
+     *               the key of the records, apart from the key of the messages.
+     * @param recordSize The maximum number of plaintext bytes in a record.
+     * @param mode The mode of the record ciphers.
+     */
+    public FlowCipher(byte[] secret, int recordSize, CipherMode mode) {
+        this(secret, secret, recordSize, mode);
+    }
+
+    /**
+     * Initialize the flow cipher with a different secret for each direction.
+     *
+     * @param clientToServerSecret The secret of the records sent by the client proxy, with the same layout of
+     *                             the shared secret.
+     * @param serverToClientSecret The secret of the records sent by the server proxy.
+     * @param recordSize The maximum number of plaintext bytes in a record.
+     * @param mode The mode of the record ciphers.
+     */
+    public FlowCipher(byte[] clientToServerSecret, byte[] serverToClientSecret, int recordSize, CipherMode mode) {
+        int keyOffset = mode.isAead() ? 16 : 0;
+        this.encryptionKeys = new SecretKeySpec[] {
+                new SecretKeySpec(clientToServerSecret, keyOffset, 16, "AES"),
+                new SecretKeySpec(serverToClientSecret, keyOffset, 16, "AES")
+        };
+        this.macKeys        = new SecretKeySpec[] {
+                new SecretKeySpec(clientToServerSecret, 16, 32, MAC_ALGORITHM),
+                new SecretKeySpec(serverToClientSecret, 16, 32, MAC_ALGORITHM)
+        };
+        this.recordSize     = recordSize;
+        this.mode           = mode;
+    }
+
+    /**
+     * Creates the output stream that sends the byte flow of a stream as records.
+     *
+     * @param sink The destination of the frames.
+     * @param direction The direction of the flow.
+     * @param streamId The identifier of the stream.
+     * @return Returns the output stream.
+     *
+     * @throws CipherException if the ciphers cannot be created.
+     */
+    public RecordOutputStream newOutputStream(FrameSink sink, byte direction, int streamId)
+            throws CipherException
+    {
+        return new RecordOutputStream(this, sink, direction, streamId);
+    }
+
+    /**
+     * Creates the input stream that receives the byte flow of a stream as records.
+     *
+     * @param sink The destination of the frames granting credit to the sender.
+     * @param direction The direction of the flow.
+     * @param streamId The identifier of the stream.
+     * @param timeout The maximum time in milliseconds to wait for a record, 0 to wait forever.
+     * @return Returns the input stream.
+     *
+     * @throws CipherException if the ciphers cannot be created.
+     */
+    public RecordInputStream newInputStream(FrameSink sink, byte direction, int streamId, long timeout)
+            throws CipherException
+    {
+        return new RecordInputStream(this, sink, direction, streamId, timeout);
+    }
+
+    int getRecordSize() {
+        return this.recordSize;
+    }
+
+    boolean isAead() {
+        return this.mode.isAead();
+    }
+
+    /**
+     * Creates a cipher for the records of a single stream.
+     *
+     * @param direction The direction of the flow.
+     * @return Returns the cipher configured with the encryption key of the direction.
+     *
+     * @throws CipherException if the cipher cannot be created.
+     */
+    ConnectionCipher createCipher(byte direction) throws CipherException {
+        ConnectionCipher cipher = new ConnectionCipher(this.mode);
+        cipher.setSecretKey(this.encryptionKeys[direction]);
+        return cipher;
+    }
+
+    /**
+     * Creates a MAC for the records of a single stream.
+     *
+     * @param direction The direction of the flow.
+     * @return Returns the MAC initialized with the authentication key of the direction.
+     *
+     * @throws CipherException if the MAC cannot be created.
+     */
+    Mac createMac(byte direction) throws CipherException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(this.macKeys[direction]);
+            return mac;
+
+        } catch (GeneralSecurityException e) {
+            throw new CipherException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Computes the nonce of a record encrypted with an AEAD mode.
+     *
+     * Stream ids are at most 31 bits, so the direction fits in the first bit.
+     *
+     * @param direction The direction of the flow.
+     * @param streamId The identifier of the stream.
+     * @param sequence The sequence number of the record in the stream.
+     * @return Returns the nonce.
+     */
+    static byte[] nonce(byte direction, int streamId, long sequence) {
+        return ByteBuffer.allocate(ConnectionCipher.NONCE_LENGTH)
+                .putInt(direction << 31 | streamId)
+                .putLong(sequence)
+                .array();
+    }
+
+    /**
+     * Builds the associated data of a record encrypted with an AEAD mode.
+     *
+     * @param direction The direction of the flow.
+     * @param streamId The identifier of the stream.
+     * @param flags The frame flags.
+     * @return Returns the associated data, ready to be read.
+     */
+    static ByteBuffer associatedData(byte direction, int streamId, byte flags) {
+        return ByteBuffer.allocate(6)
+                .put(direction)
+                .putInt(streamId)
+                .put(flags)
+                .flip();
+    }
+
+    /**
+     * Computes the authentication tag of a record.
+     *
+     * @param mac The MAC of the stream.
+     * @param direction The direction of the flow.
+     * @param streamId The identifier of the stream.
+     * @param sequence The sequence number of the record in the stream.
+     * @param flags The frame flags.
+     * @param ciphertext The encrypted record.
+     * @return Returns the authentication tag.
+     */
+    static byte[] authenticate(Mac mac, byte direction, int streamId, long sequence, byte flags, byte[] ciphertext) {
+        ByteBuffer header = ByteBuffer.allocate(14)
+                .put(direction)
+                .putInt(streamId)
+                .putLong(sequence)
+                .put(flags);
+        mac.update(header.array());
+        mac.update(ciphertext);
+        return mac.doFinal();
+    }
+
+    /**
+     * Verifies a record and retrieves its ciphertext.
+     *
+     * @param mac The MAC of the stream.
+     * @param direction The direction of the flow.
+     * @param frame The frame containing the record.
+     * @param sequence The expected sequence number of the record.
+     * @return Returns the encrypted record.
+     *
+     * @throws IOException if the record is not authentic.
+     */
+    static byte[] verify(Mac mac, byte direction, Frame frame, long sequence) throws IOException {
+        byte[] payload = frame.getPayload();
+        if (payload.length < MAC_LENGTH) {
+            throw new IOException("Record too short");
+        }
+
+        byte[] ciphertext = new byte[payload.length - MAC_LENGTH];
+        System.arraycopy(payload, 0, ciphertext, 0, ciphertext.length);
+        byte[] tag = new byte[MAC_LENGTH];
+        System.arraycopy(payload, ciphertext.length, tag, 0, MAC_LENGTH);
+
+        byte[] expected = authenticate(mac, direction, frame.getStreamId(), sequence, frame.getFlags(), ciphertext);
+        if (!MessageDigest.isEqual(expected, tag)) {
+            throw new IOException("Record authentication failed in stream " + frame.getStreamId());
+        }
+        return ciphertext;
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A single message exchanged in the tunnel between the client proxy and the server proxy.
+ *
+ * In binary encoding a frame is composed by a fixed-size header followed by the payload:
+ * <pre>
+ * +--------+--------+-----------------+-----------------+-------------+
+ * | type   | flags  | stream id       | length          | payload     |
+ * | 1 byte | 1 byte | 4 bytes         | 4 bytes         | length bytes|
+ * +--------+--------+-----------------+-----------------+-------------+
+ * </pre>
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class Frame {
+
+    /**
+     * The length in bytes of the frame header.
+     */
+    public static final int HEADER_LENGTH = 10;
+
+    /**
+     * The maximum length in bytes of the frame payload.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Frame carrying an entire encrypted HTTP message.
+     */
+    public static final byte TYPE_MESSAGE = 0x01;
+
+    /**
+     * Frame aborting a stream, optionally carrying an error description.
+     */
+    public static final byte TYPE_RESET = 0x02;
+
+    /**
+     * Frame carrying an encrypted record of the byte flow of a stream.
+     */
+    public static final byte TYPE_DATA = 0x03;
+
+    /**
+     * Frame sent by both sides when a connection is opened, carrying the features supported by the sender
+     * (by the client) or the ones enabled for the connection (by the server), encrypted under the session
+     * keys and authenticated together with the frame type.
+     */
+    public static final byte TYPE_HELLO = 0x04;
+
+    /**
+     * Feature of the hello frame: the HTTP messages may be compressed with {@link MessageCompressor}.
+     */
+    public static final byte FEATURE_COMPRESSION = 0x01;
+
+    /**
+     * Feature of the hello frame: small HTTP messages may be sent together in batch frames.
+     */
+    public static final byte FEATURE_BATCHING = 0x02;
+
+    /**
+     * First frame of a connection establishing a new {@link TunnelSession}: the client sends the id of the
+     * {@link KeyExchange} (1 byte) and its public key, the server answers with the session id, the ticket
+     * length (2 bytes), the ticket and its public key.
+     */
+    public static final byte TYPE_KEY_EXCHANGE = 0x05;
+
+    /**
+     * First frame of a connection resuming a session forgotten by the server: the client sends its random
+     * value and the ticket, the server answers with the session id, the ticket length (2 bytes), the
+     * ticket and its random value.
+     */
+    public static final byte TYPE_RESUME = 0x06;
+
+    /**
+     * First frame of a connection joining a session known by the server: the client sends the session id,
+     * its random value and the proof of the session secret, the server answers with an empty payload.
+     */
+    public static final byte TYPE_JOIN = 0x07;
+
+    /**
+     * Frame carrying many small HTTP messages of different streams, encrypted together by a
+     * {@link RecordBatcher}: each message is preceded by its stream id (4 bytes) and its length (4 bytes).
+     */
+    public static final byte TYPE_BATCH = 0x08;
+
+    /**
+     * Health probe of the client, echoed by the server in the same stream with the same payload.
+     */
+    public static final byte TYPE_PING = 0x09;
+
+    /**
+     * Frame granting the sender of the records of a stream credit for more records, as the receiver reads
+     * them: the payload is the number of records (4 bytes).
+     */
+    public static final byte TYPE_WINDOW_UPDATE = 0x0A;
+
+    /**
+     * Flag of the last frame of a stream in one direction.
+     */
+    public static final byte FLAG_END_STREAM = 0x01;
+
+    /**
+     * The frame type.
+     */
+    private final byte type;
+
+    /**
+     * The frame flags.
+     */
+    private final byte flags;
+
+    /**
+     * The identifier of the stream the frame belongs to.
+     */
+    private final int streamId;
+
+    /**
+     * The frame payload in bytes.
+     */
+    private final byte[] payload;
+
+    /**
+     * Initialize a frame.
+     *
+     * @param type The frame type.
+     * @param flags The frame flags.
+     * @param streamId The identifier of the stream the frame belongs to.
+     * @param payload The frame payload in bytes.
+     */
+    public Frame(byte type, byte flags, int streamId, byte[] payload) {
+        this.type     = type;
+        this.flags    = flags;
+        this.streamId = streamId;
+        this.payload  = payload == null ? new byte[0] : payload;
+    }
+
+    /**
+     * Initialize a frame without flags.
+     *
+     * @param type The frame type.
+     * @param streamId The identifier of the stream the frame belongs to.
+     * @param payload The frame payload in bytes.
+     */
+    public Frame(byte type, int streamId, byte[] payload) {
+        this(type, (byte) 0, streamId, payload);
+    }
+
+    public byte getType() {
+        return this.type;
+    }
+
+    public byte getFlags() {
+        return this.flags;
+    }
+
+    public int getStreamId() {
+        return this.streamId;
+    }
+
+    public byte[] getPayload() {
+        return this.payload;
+    }
+
+    /**
+     * Checks if a flag is set.
+     *
+     * @param flag The flag to check.
+     * @return Returns TRUE if the flag is set.
+     */
+    public boolean hasFlag(byte flag) {
+        return (this.flags & flag) != 0;
+    }
+
+    /**
+     * Encodes the frame in binary encoding.
+     *
+     * @return Returns a buffer containing header and payload, ready to be written.
+     */
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + this.payload.length);
+        buffer.put(this.type)
+                .put(this.flags)
+                .putInt(this.streamId)
+                .putInt(this.payload.length)
+                .put(this.payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a binary frame from a buffer, if it has been entirely received.
+     *
+     * @param buffer The buffer of received bytes, its position is moved after the frame.
+     * @return Returns the frame or NULL if more bytes are needed.
+     *
+     * @throws IOException if the frame is malformed.
+     */
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+
+        int start = buffer.position();
+        int length = buffer.getInt(start + 6);
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        int streamId = buffer.getInt();
+        buffer.getInt(); // length
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+
+        return new Frame(type, flags, streamId, payload);
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Helper class for reading tunnel frames from an input stream.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class FrameReader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The buffered input stream used for binary frames.
+     */
+    private DataInputStream in;
+
+    /**
+     * The buffered reader used for hexadecimal frames.
+     */
+    private BufferedReader reader;
+
+    /**
+     * The encoding used for frames.
+     */
+    private final TunnelEncoding encoding;
+
+    /**
+     * The number of bytes read from the wire.
+     */
+    private long bytesRead;
+
+    /**
+     * Initialize the frame reader.
+     *
+     * @param in The input stream.
+     * @param encoding The encoding used for frames.
+     */
+    public FrameReader(InputStream in, TunnelEncoding encoding) {
+        this.encoding = encoding;
+        if (encoding == TunnelEncoding.HEX) {
+            this.reader = new BufferedReader(new InputStreamReader(in));
+        } else {
+            this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        }
+    }
+
+    /**
+     * Read the next frame.
+     *
+     * @return Returns the frame or NULL if the end of stream is reached.
+     *
+     * @throws IOException if an I/O error occurs or the frame is malformed.
+     */
+    public Frame read() throws IOException {
+        return this.encoding == TunnelEncoding.HEX ? this.readHex() : this.readBinary();
+    }
+
+    /**
+     * Read a binary frame.
+     *
+     * @return Returns the frame or NULL if the end of stream is reached.
+     *
+     * @throws IOException if an I/O error occurs or the frame is malformed.
+     */
+    private Frame readBinary() throws IOException {
+        int type = this.in.read();
+        if (type == -1) {
+            return null;
+        }
+
+        try {
+            byte flags = this.in.readByte();
+            int streamId = this.in.readInt();
+            int length = this.in.readInt();
+            if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+
+            byte[] payload = new byte[length];
+            this.in.readFully(payload);
+            this.bytesRead += Frame.HEADER_LENGTH + length;
+
+            return new Frame((byte) type, flags, streamId, payload);
+
+        } catch (EOFException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    /**
+     * Read a legacy hexadecimal frame.
+     *
+     * @return Returns the frame or NULL if the end of stream is reached.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private Frame readHex() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        String line;
+        while ((line = this.reader.readLine()) != null) {
+            if (line.isEmpty()) break;
+            builder.append(line);
+        }
+        if (line == null && builder.length() == 0) {
+            return null;
+        }
+        this.bytesRead += builder.length() + 2;
+
+        return new Frame(Frame.TYPE_MESSAGE, 0, Utility.hexStringToBytes(builder.toString()));
+    }
+
+    /**
+     * Retrieves the number of bytes read from the wire so far.
+     *
+     * @return Returns the number of bytes.
+     */
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.IOException;
+
+/**
+ * Destination of the frames sent in the tunnel.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public interface FrameSink {
+
+    /**
+     * Sends a frame, can be called concurrently by many streams.
+     *
+     * @param frame The frame to send.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void send(Frame frame) throws IOException;
+
+}
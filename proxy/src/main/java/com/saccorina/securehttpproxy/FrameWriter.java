@@ -0,0 +1,81 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Helper class for writing tunnel frames into an output stream.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class FrameWriter {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The buffered output stream.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * The encoding used for frames.
+     */
+    private final TunnelEncoding encoding;
+
+    /**
+     * The number of bytes written on the wire.
+     */
+    private long bytesWritten;
+
+    /**
+     * Initialize the frame writer.
+     *
+     * @param out The output stream.
+     * @param encoding The encoding used for frames.
+     */
+    public FrameWriter(OutputStream out, TunnelEncoding encoding) {
+        this.out      = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.encoding = encoding;
+    }
+
+    /**
+     * Write a frame and flush the output stream.
+     *
+     * @param frame The frame to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(Frame frame) throws IOException {
+        byte[] payload = frame.getPayload();
+
+        if (this.encoding == TunnelEncoding.HEX) {
+            byte[] encoded = Utility.bytesToHexString(payload)
+                    .concat("\n\n") // needed to terminate message in output stream
+                    .getBytes();
+            this.out.write(encoded);
+            this.bytesWritten += encoded.length;
+
+        } else {
+            this.out.writeByte(frame.getType());
+            this.out.writeByte(frame.getFlags());
+            this.out.writeInt(frame.getStreamId());
+            this.out.writeInt(payload.length);
+            this.out.write(payload);
+            this.bytesWritten += Frame.HEADER_LENGTH + payload.length;
+        }
+        this.out.flush();
+    }
+
+    /**
+     * Retrieves the number of bytes written on the wire so far.
+     *
+     * @return Returns the number of bytes.
+     */
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+}
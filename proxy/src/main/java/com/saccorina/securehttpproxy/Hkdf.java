@@ -0,0 +1,105 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * HMAC-based key derivation function with SHA-256 (RFC 5869).
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public final class Hkdf {
+
+    /**
+     * The HMAC algorithm.
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The length in bytes of the HMAC output.
+     */
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {}
+
+    /**
+     * Derives a key from an input secret.
+     *
+     * @param salt The salt, non-secret random value, may be empty.
+     * @param secret The input keying material.
+     * @param info The context of the derived key, different for each use of the same secret.
+     * @param length The length in bytes of the derived key.
+     * @return Returns the derived key.
+     *
+     * @throws CipherException if the HMAC algorithm is not available.
+     */
+    public static byte[] derive(byte[] salt, byte[] secret, String info, int length) throws CipherException {
+        return expand(extract(salt, secret), info.getBytes(StandardCharsets.US_ASCII), length);
+    }
+
+    /**
+     * Extracts a pseudorandom key from an input secret.
+     *
+     * @param salt The salt, non-secret random value, may be empty.
+     * @param secret The input keying material.
+     * @return Returns the pseudorandom key.
+     *
+     * @throws CipherException if the HMAC algorithm is not available.
+     */
+    public static byte[] extract(byte[] salt, byte[] secret) throws CipherException {
+        Mac mac = newMac(salt.length == 0 ? new byte[HASH_LENGTH] : salt);
+        return mac.doFinal(secret);
+    }
+
+    /**
+     * Expands a pseudorandom key into a derived key.
+     *
+     * @param key The pseudorandom key.
+     * @param info The context of the derived key.
+     * @param length The length in bytes of the derived key, at most 255 times the hash length.
+     * @return Returns the derived key.
+     *
+     * @throws CipherException if the HMAC algorithm is not available.
+     */
+    public static byte[] expand(byte[] key, byte[] info, int length) throws CipherException {
+        if (length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Derived key too long: " + length + " bytes");
+        }
+        Mac mac = newMac(key);
+        byte[] result = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; offset += HASH_LENGTH, counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            System.arraycopy(block, 0, result, offset, Math.min(HASH_LENGTH, length - offset));
+        }
+        return result;
+    }
+
+    /**
+     * Creates an HMAC initialized with a key.
+     *
+     * @param key The key.
+     * @return Returns the HMAC.
+     *
+     * @throws CipherException if the HMAC algorithm is not available.
+     */
+    private static Mac newMac(byte[] key) throws CipherException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+
+        } catch (GeneralSecurityException e) {
+            throw new CipherException(e.getMessage(), e);
+        }
+    }
+
+}
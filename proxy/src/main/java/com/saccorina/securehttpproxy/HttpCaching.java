@@ -0,0 +1,267 @@
+package com.saccorina.securehttpproxy;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helper class with the HTTP caching rules of RFC 9111 shared by the caches of the proxies.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public final class HttpCaching {
+
+    public static final String HEADER_AGE = "Age";
+    public static final String HEADER_AUTHORIZATION = "Authorization";
+    public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    public static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    public static final String HEADER_DATE = "Date";
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_EXPIRES = "Expires";
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    public static final String HEADER_PRAGMA = "Pragma";
+    public static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String HEADER_VARY = "Vary";
+
+    /**
+     * The request headers that make a request conditional or partial: the response is meant for the
+     * cache of the client, so it is forwarded as is.
+     */
+    private static final String[] CONDITIONAL_HEADERS = {
+            "If-Match", "If-None-Match", "If-Modified-Since", "If-Unmodified-Since", "If-Range", "Range"
+    };
+
+    /**
+     * The status codes cacheable by default (RFC 9110, section 15.1).
+     */
+    private static final int[] HEURISTICALLY_CACHEABLE = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+
+    /**
+     * The heuristic freshness is this fraction of the time since the last modification.
+     */
+    private static final int HEURISTIC_FRACTION = 10;
+
+    /**
+     * The maximum heuristic freshness lifetime in milliseconds.
+     */
+    private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+    private HttpCaching() {}
+
+    /**
+     * Checks if the response to a request can be served from and stored in a cache.
+     *
+     * @param request The request.
+     * @return Returns TRUE for GET requests without payload, credentials and conditions.
+     */
+    public static boolean isCacheable(HttpMessageReader request) {
+        if (!request.getStartLine().startsWith("GET ")
+                || request.getHeader(HEADER_AUTHORIZATION) != null
+                || request.getHeader(HEADER_TRANSFER_ENCODING) != null
+                || request.hasToken(HEADER_CACHE_CONTROL, "no-store")) {
+            return false;
+        }
+        String contentLength = request.getHeader(HEADER_CONTENT_LENGTH);
+        if (contentLength != null && !contentLength.equals("0")) {
+            return false;
+        }
+        for (String header : CONDITIONAL_HEADERS) {
+            if (request.getHeader(header) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a request has a method that may change the state of the server.
+     *
+     * @param request The request.
+     * @return Returns TRUE if the method is not GET, HEAD, OPTIONS or TRACE.
+     */
+    public static boolean isUnsafe(HttpMessageReader request) {
+        String line = request.getStartLine();
+        return !line.startsWith("GET ") && !line.startsWith("HEAD ")
+                && !line.startsWith("OPTIONS ") && !line.startsWith("TRACE ");
+    }
+
+    /**
+     * Checks if a request asks not to be answered with a stored response without validation.
+     *
+     * @param request The request.
+     * @return Returns TRUE if the request has the no-cache directive, also in the Pragma header.
+     */
+    public static boolean isNoCache(HttpMessageReader request) {
+        Map<String, String> directives = directives(request);
+        return directives.isEmpty() ? request.hasToken(HEADER_PRAGMA, "no-cache") : directives.containsKey("no-cache");
+    }
+
+    /**
+     * Checks if a status code is cacheable by default.
+     *
+     * @param status The status code.
+     * @return Returns TRUE if the status code allows the heuristic freshness.
+     */
+    public static boolean isHeuristicallyCacheable(int status) {
+        for (int code : HEURISTICALLY_CACHEABLE) {
+            if (code == status) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the absolute URI of a request, the primary key of the caches.
+     *
+     * @param request The request.
+     * @return Returns the URI.
+     */
+    public static String key(HttpMessageReader request) {
+        String line = request.getStartLine();
+        int start = line.indexOf(' ') + 1;
+        int end = line.indexOf(' ', start);
+        String target = end == -1 ? line.substring(start) : line.substring(start, end);
+        if (target.startsWith("/")) {
+            target = "http://" + request.getHeader("Host") + target;
+        }
+        return target;
+    }
+
+    /**
+     * Parses the Cache-Control directives of a message.
+     *
+     * @param message The request or the response.
+     * @return Returns the directives by lower case name, with the values unquoted, empty if the header is
+     *         not present.
+     */
+    public static Map<String, String> directives(HttpMessageReader message) {
+        List<String> values = message.getHeaderValues(HEADER_CACHE_CONTROL);
+        if (values == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> directives = new HashMap<>();
+        for (String value : values) {
+            for (String directive : value.split(",")) {
+                int equals = directive.indexOf('=');
+                String name = (equals == -1 ? directive : directive.substring(0, equals)).trim();
+                String argument = equals == -1 ? null : directive.substring(equals + 1).trim().replace("\"", "");
+                if (!name.isEmpty()) {
+                    directives.putIfAbsent(name.toLowerCase(Locale.ROOT), argument);
+                }
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * Calculates the freshness lifetime of a response, explicit or heuristic.
+     *
+     * @param response The response.
+     * @param directives The Cache-Control directives of the response.
+     * @param responseTime The time in milliseconds the response was received.
+     * @return Returns the lifetime in milliseconds, 0 if the response must always be validated.
+     */
+    public static long freshnessLifetime(HttpMessageReader response, Map<String, String> directives,
+                                         long responseTime)
+    {
+        if (directives.containsKey("no-cache")) {
+            return 0;
+        }
+        if (directives.containsKey("s-maxage")) {
+            return seconds(directives, "s-maxage", 0);
+        }
+        if (directives.containsKey("max-age")) {
+            return seconds(directives, "max-age", 0);
+        }
+
+        long date = parseDate(response.getHeader(HEADER_DATE));
+        if (date == -1) {
+            date = responseTime;
+        }
+        if (response.getHeader(HEADER_EXPIRES) != null) {
+            long expires = parseDate(response.getHeader(HEADER_EXPIRES));
+            return expires == -1 ? 0 : Math.max(0, expires - date);
+        }
+
+        long lastModified = parseDate(response.getHeader(HEADER_LAST_MODIFIED));
+        if (lastModified == -1 || !isHeuristicallyCacheable(response.getStatus())) {
+            return 0;
+        }
+        return Math.min(MAX_HEURISTIC_LIFETIME, Math.max(0, date - lastModified) / HEURISTIC_FRACTION);
+    }
+
+    /**
+     * Calculates the age of a response when it was received, from its Date and Age headers.
+     *
+     * @param response The response.
+     * @param responseTime The time in milliseconds the response was received.
+     * @return Returns the age in milliseconds.
+     */
+    public static long initialAge(HttpMessageReader response, long responseTime) {
+        long date = parseDate(response.getHeader(HEADER_DATE));
+        long apparentAge = date == -1 ? 0 : Math.max(0, responseTime - date);
+        return Math.max(apparentAge, Math.max(0, seconds(response.getHeader(HEADER_AGE))));
+    }
+
+    /**
+     * Retrieves a directive with a delta-seconds argument.
+     *
+     * @param directives The directives.
+     * @param name The directive name.
+     * @param defaultValue The value in milliseconds if the directive is not present.
+     * @return Returns the argument in milliseconds, 0 if it is not valid.
+     */
+    public static long seconds(Map<String, String> directives, String name, long defaultValue) {
+        if (!directives.containsKey(name)) {
+            return defaultValue;
+        }
+        long seconds = seconds(directives.get(name));
+        return seconds == -1 ? 0 : seconds;
+    }
+
+    /**
+     * Parses a delta-seconds value.
+     *
+     * @param value The number of seconds.
+     * @return Returns the value in milliseconds or -1 if it is not valid.
+     */
+    private static long seconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : Math.min(seconds, Integer.MAX_VALUE) * 1000L;
+
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a HTTP date.
+     *
+     * @param value The date in the IMF-fixdate format.
+     * @return Returns the time in milliseconds or -1 if it is not valid.
+     */
+    public static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered input stream of HTTP messages, which reads the message heads scanning the buffer in bulk.
+ *
+ * The stream may read beyond the end of a message, so it must be kept for the whole connection: the
+ * exceeding bytes are the beginning of the next message.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class HttpInputStream extends InputStream {
+
+    /**
+     * The maximum length in bytes of the head of a message.
+     */
+    public static final int MAX_HEAD_LENGTH = Configuration.getInt("http.maxHeadLength", 64 * 1024);
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The underlying input stream.
+     */
+    private final InputStream in;
+
+    /**
+     * The buffer of the bytes read and not consumed yet.
+     */
+    private byte[] buffer;
+
+    /**
+     * The position of the next byte to consume in the buffer.
+     */
+    private int position;
+
+    /**
+     * The number of valid bytes in the buffer.
+     */
+    private int limit;
+
+    /**
+     * Initialize a HTTP input stream.
+     *
+     * @param in The underlying input stream.
+     */
+    public HttpInputStream(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    /**
+     * Initialize a HTTP input stream.
+     *
+     * @param in The underlying input stream.
+     * @param bufferSize The initial size of the buffer, it grows for longer heads.
+     */
+    public HttpInputStream(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Wraps an input stream, unless it's already a HTTP input stream.
+     *
+     * @param in The input stream.
+     * @return Returns the HTTP input stream.
+     */
+    public static HttpInputStream of(InputStream in) {
+        if (in instanceof HttpInputStream) {
+            return (HttpInputStream) in;
+        }
+        if (in instanceof ByteArrayInputStream) {
+            // the whole message is already in memory: a buffer as large as it is enough
+            return new HttpInputStream(in, Math.max(1, ((ByteArrayInputStream) in).available()));
+        }
+        return new HttpInputStream(in);
+    }
+
+    /**
+     * Reads the head of a message: the starting line, the headers and the empty line that ends them.
+     * Empty lines before the starting line are skipped (RFC 7230, section 3.5).
+     *
+     * @return Returns the head, with its line terminators, or NULL if the stream ended before a message.
+     *
+     * @throws IOException if an I/O error occurs, the stream ends within the head or the head is too long.
+     */
+    public byte[] readHead() throws IOException {
+        int scanned = 0;        // bytes after position already scanned
+        int lineStart = 0;      // start of the current line, relative to position
+        while (true) {
+            for (int i = this.position + scanned; i < this.limit; i++) {
+                if (this.buffer[i] != '\n') continue;
+
+                int lineLength = i - (this.position + lineStart);
+                boolean empty = lineLength == 0 || (lineLength == 1 && this.buffer[i - 1] == '\r');
+                if (empty && lineStart == 0) {
+                    // empty line before the starting line
+                    this.position = i + 1;
+                    scanned = 0;
+                    continue;
+                }
+                if (empty) {
+                    byte[] head = new byte[i + 1 - this.position];
+                    System.arraycopy(this.buffer, this.position, head, 0, head.length);
+                    this.position = i + 1;
+                    return head;
+                }
+                lineStart = i + 1 - this.position;
+            }
+            scanned = this.limit - this.position;
+
+            if (scanned >= MAX_HEAD_LENGTH) {
+                throw new IOException("Message head longer than " + MAX_HEAD_LENGTH + " bytes");
+            }
+            if (this.fill() == -1) {
+                if (scanned == 0) {
+                    return null;
+                }
+                throw new IOException("Stream ended within the message head");
+            }
+        }
+    }
+
+    /**
+     * Reads a line, scanning the buffer in bulk.
+     *
+     * @return Returns the line with its terminator or NULL if the end of stream is reached.
+     *
+     * @throws IOException if an I/O error occurs or the line is too long.
+     */
+    public byte[] readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = this.position + scanned; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    return this.consume(i + 1 - this.position);
+                }
+            }
+            scanned = this.limit - this.position;
+
+            if (scanned >= MAX_HEAD_LENGTH) {
+                throw new IOException("Line longer than " + MAX_HEAD_LENGTH + " bytes");
+            }
+            if (this.fill() == -1) {
+                return scanned == 0 ? null : this.consume(scanned);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the next byte without consuming it, waiting for it if needed.
+     *
+     * @return Returns the next byte or -1 if the end of stream is reached.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public int peek() throws IOException {
+        if (this.position == this.limit && this.fill() == -1) {
+            return -1;
+        }
+        return this.buffer[this.position] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read() throws IOException {
+        if (this.position == this.limit && this.fill() == -1) {
+            return -1;
+        }
+        return this.buffer[this.position++] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (this.position == this.limit) {
+            if (len >= this.buffer.length) {
+                // nothing buffered: large reads bypass the buffer
+                return this.in.read(b, off, len);
+            }
+            if (this.fill() == -1) {
+                return -1;
+            }
+        }
+        int chunk = Math.min(len, this.limit - this.position);
+        System.arraycopy(this.buffer, this.position, b, off, chunk);
+        this.position += chunk;
+        return chunk;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int available() throws IOException {
+        return (this.limit - this.position) + this.in.available();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    /**
+     * Consumes bytes of the buffer.
+     *
+     * @param length The number of bytes.
+     * @return Returns the consumed bytes.
+     */
+    private byte[] consume(int length) {
+        byte[] bytes = new byte[length];
+        System.arraycopy(this.buffer, this.position, bytes, 0, length);
+        this.position += length;
+        return bytes;
+    }
+
+    /**
+     * Reads more bytes from the underlying stream, compacting or growing the buffer if it is full.
+     *
+     * @return Returns the number of bytes read or -1 if the end of stream is reached.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private int fill() throws IOException {
+        if (this.position == this.limit) {
+            this.position = 0;
+            this.limit = 0;
+
+        } else if (this.limit == this.buffer.length) {
+            int remaining = this.limit - this.position;
+            byte[] target = remaining > this.buffer.length / 2
+                    ? new byte[this.buffer.length * 2]
+                    : this.buffer;
+            System.arraycopy(this.buffer, this.position, target, 0, remaining);
+            this.buffer = target;
+            this.position = 0;
+            this.limit = remaining;
+        }
+
+        int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (read > 0) {
+            this.limit += read;
+        }
+        return read;
+    }
+
+}
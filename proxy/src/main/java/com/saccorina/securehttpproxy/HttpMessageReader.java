@@ -0,0 +1,986 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper class for transforming HTTP message from input stream to byte array.
+ *
+ * The payload is delimited by Content-Length, by the chunked transfer coding (chunks and trailers are
+ * kept as received) or, for responses without both headers, by the closing of the connection. Responses
+ * to HEAD, successful responses to CONNECT and 1xx, 204 and 304 responses have no payload, so a response
+ * is read knowing the method of its request. A buffered
+ * payload is kept in a {@link SpillBuffer}, out of the heap when it is large, until the whole message is
+ * needed.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class HttpMessageReader {
+
+    private static final String HEADER_CONNECTION = "Connection";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_HOST = "Host";
+    private static final String HEADER_PROXY_CONNECTION = "Proxy-Connection";
+    private static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+
+    private static final int TRANSFER_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The maximum length in bytes of a buffered payload.
+     */
+    private static final int MAX_BODY_LENGTH = Configuration.getInt("body.maxLength", 1024 * 1024 * 1024);
+
+    /**
+     * The number of offsets stored for each header: name start, name end, value start, value end.
+     */
+    private static final int HEADER_FIELDS = 4;
+
+    /**
+     * The head of the message as received: starting line, headers and empty line.
+     */
+    private final byte[] head;
+
+    /**
+     * The end of the starting line in the head, line terminator excluded.
+     */
+    private int startLineEnd;
+
+    /**
+     * The offsets of the headers in the head, {@link #HEADER_FIELDS} for each header.
+     */
+    private int[] headerOffsets = new int[16 * HEADER_FIELDS];
+
+    /**
+     * The number of headers.
+     */
+    private int headerCount;
+
+    /**
+     * The buffered payload, NULL if empty, not buffered yet or already copied in the message.
+     */
+    private SpillBuffer payload;
+
+    /**
+     * The entire message, NULL until it is retrieved.
+     */
+    private byte[] message;
+
+    /**
+     * The input stream, used to read the payload when it is not buffered.
+     */
+    private final HttpInputStream in;
+
+    /**
+     * The method of the request answered by the response, NULL for requests or if it is not known.
+     */
+    private final String requestMethod;
+
+    /**
+     * Whether the payload has been read from the input stream.
+     */
+    private boolean payloadRead;
+
+    /**
+     * Whether the buffered payload has been transferred without retrieving the message.
+     */
+    private boolean payloadConsumed;
+
+    /**
+     * Initialize message reader and parse HTTP headers and payload.
+     *
+     * @param in The input stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public HttpMessageReader(InputStream in) throws IOException {
+        this(in, true);
+    }
+
+    /**
+     * Initialize message reader and parse HTTP headers.
+     *
+     * @param in The input stream, a {@link HttpInputStream} kept for the whole connection if more
+     *           messages follow, since the bytes read beyond this message are buffered there.
+     * @param bufferPayload Whether to read the payload now, otherwise it must be
+     *                      read with {@link #transferPayload(OutputStream)}.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public HttpMessageReader(InputStream in, boolean bufferPayload) throws IOException {
+        this(in, bufferPayload, null);
+    }
+
+    /**
+     * Initialize message reader and parse the HTTP headers of a response.
+     *
+     * @param in The input stream, a {@link HttpInputStream} kept for the whole connection if more
+     *           messages follow.
+     * @param bufferPayload Whether to read the payload now, otherwise it must be
+     *                      read with {@link #transferPayload(OutputStream)}.
+     * @param requestMethod The method of the request answered by the response, which may exclude the
+     *                      payload, NULL for requests.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public HttpMessageReader(InputStream in, boolean bufferPayload, String requestMethod) throws IOException {
+        this.in = HttpInputStream.of(in);
+        this.requestMethod = requestMethod;
+        this.head = this.in.readHead();
+        if (this.head == null) {
+            throw new IOException("No starting header found in message");
+        }
+        this.parseHead();
+        if (bufferPayload) {
+            this.payload = this.parsePayload(this.in);
+            this.payloadRead = true;
+        }
+    }
+
+    /**
+     * Initialize message reader from a head already received.
+     *
+     * @param head The head of the message, terminated by an empty line.
+     */
+    private HttpMessageReader(byte[] head) {
+        this.in = null;
+        this.requestMethod = null;
+        this.head = head;
+        this.parseHead();
+    }
+
+    /**
+     * Indexes the starting line and the headers of the head, skipping malformed headers.
+     */
+    private void parseHead() {
+        int lineStart = 0;
+        for (int i = 0; i < this.head.length; i++) {
+            if (this.head[i] != '\n') continue;
+
+            int lineEnd = i > lineStart && this.head[i - 1] == '\r' ? i - 1 : i;
+            if (lineStart == 0) {
+                this.startLineEnd = lineEnd;
+            } else if (lineEnd > lineStart) {
+                this.indexHeader(lineStart, lineEnd);
+            }
+            lineStart = i + 1;
+        }
+    }
+
+    /**
+     * Stores the offsets of the name and the trimmed value of a header line.
+     *
+     * @param start The start of the line.
+     * @param end The end of the line, terminator excluded.
+     */
+    private void indexHeader(int start, int end) {
+        int colon = start;
+        while (colon < end && this.head[colon] != ':') colon++;
+        if (colon == end) return; // skip malformed headers
+
+        int nameEnd = colon;
+        while (nameEnd > start && isWhitespace(this.head[nameEnd - 1])) nameEnd--;
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(this.head[valueStart])) valueStart++;
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(this.head[valueEnd - 1])) valueEnd--;
+
+        if ((this.headerCount + 1) * HEADER_FIELDS > this.headerOffsets.length) {
+            int[] offsets = new int[this.headerOffsets.length * 2];
+            System.arraycopy(this.headerOffsets, 0, offsets, 0, this.headerOffsets.length);
+            this.headerOffsets = offsets;
+        }
+        int offset = this.headerCount++ * HEADER_FIELDS;
+        this.headerOffsets[offset]     = start;
+        this.headerOffsets[offset + 1] = nameEnd;
+        this.headerOffsets[offset + 2] = valueStart;
+        this.headerOffsets[offset + 3] = valueEnd;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Retrieves the payload of the HTTP message.
+     *
+     * @param in The input stream to read.
+     * @return Returns the message payload or NULL if it is empty.
+     *
+     * @throws IOException if an I/O error occurs or the payload is too long.
+     */
+    private SpillBuffer parsePayload(HttpInputStream in) throws IOException {
+        PayloadFraming framing = this.getPayloadFraming();
+        if (framing == PayloadFraming.NONE) {
+            return null;
+        }
+        if (framing == PayloadFraming.LENGTH && this.getContentLength() > MAX_BODY_LENGTH) {
+            throw new IOException("Payload too long: " + this.getContentLength() + " bytes");
+        }
+
+        SpillBuffer payload = new SpillBuffer(MAX_BODY_LENGTH);
+        try {
+            this.copyPayload(in, payload);
+
+        } catch (IOException | RuntimeException e) {
+            payload.close();
+            throw e;
+        }
+        if (payload.size() == 0) {
+            payload.close();
+            return null;
+        }
+        return payload;
+    }
+
+    /**
+     * Retrieves the value of the Content-Length header.
+     *
+     * @return Returns the payload length in bytes, 0 if the header is not present.
+     *
+     * @throws IOException if the header value is not valid.
+     */
+    private long getContentLength() throws IOException {
+        int index = this.indexOf(HEADER_CONTENT_LENGTH, 0);
+        if (index == -1) {
+            return 0;
+        }
+        int offset = index * HEADER_FIELDS;
+        int start = this.headerOffsets[offset + 2];
+        int end = this.headerOffsets[offset + 3];
+        if (start == end || end - start > 18) {
+            throw new IOException("Invalid Content-Length: " + this.getHeaderValue(index));
+        }
+        long contentLength = 0;
+        for (int i = start; i < end; i++) {
+            int digit = this.head[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Invalid Content-Length: " + this.getHeaderValue(index));
+            }
+            contentLength = contentLength * 10 + digit;
+        }
+        return contentLength;
+    }
+
+    /**
+     * Copies the payload not buffered by the reader into an output stream, using a fixed-size buffer.
+     *
+     * The output stream is flushed whenever no more bytes are immediately available, so that streaming
+     * payloads (e.g. server-sent events) are forwarded as they arrive.
+     *
+     * @param out The output stream.
+     * @return Returns the number of bytes copied.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public long transferPayload(OutputStream out) throws IOException {
+        if (this.message != null) {
+            out.write(this.message, this.head.length, this.message.length - this.head.length);
+            return this.message.length - this.head.length;
+        }
+        if (this.payloadRead) {
+            if (this.payload == null) return 0;
+            // a buffered payload is transferred only once, releasing its buffer
+            long length = this.payload.size();
+            try {
+                this.payload.writeTo(out);
+
+            } finally {
+                this.payload.close();
+                this.payload = null;
+                this.payloadConsumed = true;
+            }
+            return length;
+        }
+        this.payloadRead = true;
+
+        return this.copyPayload(this.in, out);
+    }
+
+    /**
+     * Checks if the payload is delimited by the closing of the connection.
+     *
+     * @return Returns TRUE if the connection must be closed after the message.
+     *
+     * @throws IOException if the headers are not valid.
+     */
+    public boolean isCloseDelimited() throws IOException {
+        return this.getPayloadFraming() == PayloadFraming.CLOSE;
+    }
+
+    /**
+     * Checks if the sender of the message wants to keep the connection open after it.
+     *
+     * HTTP/1.1 connections are persistent unless "Connection: close" is present, while HTTP/1.0 ones
+     * need "Connection: keep-alive". Proxy-Connection, sent by some browsers to proxies, is honored too.
+     *
+     * @return Returns TRUE if the connection is persistent.
+     */
+    public boolean isKeepAlive() {
+        boolean persistent = this.isResponse()
+                ? this.regionMatches(0, "HTTP/1.1")
+                : this.regionMatches(this.startLineEnd - 8, "HTTP/1.1");
+
+        for (String name : new String[] {HEADER_CONNECTION, HEADER_PROXY_CONNECTION}) {
+            if (this.hasToken(name, "close")) {
+                return false;
+            }
+            if (this.hasToken(name, "keep-alive")) {
+                persistent = true;
+            }
+        }
+        return persistent;
+    }
+
+    /**
+     * Checks if the message is a response.
+     *
+     * @return Returns TRUE for responses, FALSE for requests.
+     */
+    private boolean isResponse() {
+        return this.regionMatches(0, "HTTP/");
+    }
+
+    /**
+     * Checks if the message is a CONNECT request, which asks to open a tunnel to the target.
+     *
+     * @return Returns TRUE for CONNECT requests.
+     */
+    public boolean isConnect() {
+        return this.regionMatches(0, "CONNECT ");
+    }
+
+    /**
+     * Retrieves the method of a request, the first field of the request line.
+     *
+     * @return Returns the method, e.g. "GET".
+     */
+    public String getMethod() {
+        int end = 0;
+        while (end < this.startLineEnd && this.head[end] != ' ') end++;
+        return this.headString(0, end);
+    }
+
+    /**
+     * Retrieves the target of a request, the second field of the request line.
+     *
+     * @return Returns the target, e.g. "host:port" for CONNECT requests.
+     */
+    public String getTarget() {
+        int start = 0;
+        while (start < this.startLineEnd && this.head[start] != ' ') start++;
+        int end = ++start;
+        while (end < this.startLineEnd && this.head[end] != ' ') end++;
+        return this.headString(start, end);
+    }
+
+    /**
+     * Checks if the head contains a string at a given offset.
+     *
+     * @param offset The offset in the head.
+     * @param value The string, in ASCII.
+     * @return Returns TRUE if the string is present.
+     */
+    private boolean regionMatches(int offset, String value) {
+        if (offset < 0 || offset + value.length() > this.head.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (this.head[offset + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the payload from the input stream to an output stream.
+     *
+     * @param in The input stream.
+     * @param out The output stream.
+     * @return Returns the number of bytes copied.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private long copyPayload(HttpInputStream in, OutputStream out) throws IOException {
+        PayloadFraming framing = this.getPayloadFraming();
+        if (framing == PayloadFraming.NONE) {
+            return 0;
+        }
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        switch (framing) {
+            case LENGTH:
+                long contentLength = this.getContentLength();
+                if (copy(in, out, buffer, contentLength) < contentLength) {
+                    throw new IOException("Payload truncated before " + contentLength + " bytes");
+                }
+                return contentLength;
+
+            case CHUNKED:
+                return this.copyChunks(in, out, buffer);
+
+            case CLOSE:
+                return copy(in, out, buffer, -1);
+
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Copies a chunked payload, including chunk sizes, extensions and trailers.
+     *
+     * @param in The input stream.
+     * @param out The output stream.
+     * @param buffer The buffer used for the copy.
+     * @return Returns the number of bytes copied.
+     *
+     * @throws IOException if an I/O error occurs or the payload is malformed.
+     */
+    private long copyChunks(HttpInputStream in, OutputStream out, byte[] buffer) throws IOException {
+        long copied = 0;
+        while (true) {
+            byte[] sizeLine = in.readLine();
+            if (sizeLine == null) {
+                throw new IOException("Chunked payload truncated");
+            }
+            out.write(sizeLine);
+            copied += sizeLine.length;
+
+            long chunkSize = parseChunkSize(sizeLine);
+            if (chunkSize == 0) {
+                // last chunk: copy the trailers until the empty line
+                byte[] trailer;
+                do {
+                    trailer = in.readLine();
+                    if (trailer == null) {
+                        throw new IOException("Chunked payload truncated in trailers");
+                    }
+                    out.write(trailer);
+                    copied += trailer.length;
+                } while (!isEmptyLine(trailer));
+
+                out.flush();
+                return copied;
+            }
+
+            if (copy(in, out, buffer, chunkSize) < chunkSize) {
+                throw new IOException("Chunked payload truncated");
+            }
+            byte[] chunkEnd = in.readLine();
+            if (chunkEnd == null || !isEmptyLine(chunkEnd)) {
+                throw new IOException("Malformed chunk terminator");
+            }
+            out.write(chunkEnd);
+            copied += chunkSize + chunkEnd.length;
+
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Copies bytes from an input stream, flushing the output when no more bytes are immediately available.
+     *
+     * @param in The input stream.
+     * @param out The output stream.
+     * @param buffer The buffer used for the copy.
+     * @param limit The number of bytes to copy, -1 to copy until the end of the stream.
+     * @return Returns the number of bytes copied.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private static long copy(InputStream in, OutputStream out, byte[] buffer, long limit) throws IOException {
+        long copied = 0;
+        while (limit < 0 || copied < limit) {
+            int length = limit < 0 ? buffer.length : (int) Math.min(buffer.length, limit - copied);
+            int read = in.read(buffer, 0, length);
+            if (read == -1) break;
+
+            out.write(buffer, 0, read);
+            copied += read;
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Parses the size of a chunk from its first line, ignoring chunk extensions.
+     *
+     * @param line The chunk size line.
+     * @return Returns the chunk size in bytes.
+     *
+     * @throws IOException if the size is not valid.
+     */
+    private static long parseChunkSize(byte[] line) throws IOException {
+        String size = new String(line).trim();
+        int extension = size.indexOf(';');
+        if (extension != -1) {
+            size = size.substring(0, extension).trim();
+        }
+        try {
+            long chunkSize = Long.parseLong(size, 16);
+            if (chunkSize < 0) {
+                throw new IOException("Invalid chunk size: " + size);
+            }
+            return chunkSize;
+
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + size, e);
+        }
+    }
+
+    /**
+     * Checks if a line read with its terminator is empty.
+     *
+     * @param line The line.
+     * @return Returns TRUE if the line contains only CRLF or LF.
+     */
+    private static boolean isEmptyLine(byte[] line) {
+        return line.length == 1 || (line.length == 2 && line[0] == '\r');
+    }
+
+    /**
+     * Determines how the payload of the message is delimited (RFC 7230, section 3.3.3).
+     *
+     * @return Returns the payload framing.
+     *
+     * @throws IOException if the headers are not valid.
+     */
+    private PayloadFraming getPayloadFraming() throws IOException {
+        boolean response = this.isResponse();
+        if (response) {
+            int status = this.getStatus();
+            if ((status >= 100 && status < 200) || status == 204 || status == 304) {
+                return PayloadFraming.NONE;
+            }
+            if ("HEAD".equals(this.requestMethod) || ("CONNECT".equals(this.requestMethod) && status / 100 == 2)) {
+                return PayloadFraming.NONE;
+            }
+        }
+
+        int transferEncoding = this.lastIndexOf(HEADER_TRANSFER_ENCODING);
+        if (transferEncoding != -1) {
+            String last = this.getHeaderValue(transferEncoding);
+            String[] codings = last.split(",");
+            if (codings[codings.length - 1].trim().equalsIgnoreCase("chunked")) {
+                return PayloadFraming.CHUNKED;
+            }
+            if (response) {
+                return PayloadFraming.CLOSE;
+            }
+            throw new IOException("Request with unsupported Transfer-Encoding: " + last);
+        }
+
+        if (this.indexOf(HEADER_CONTENT_LENGTH, 0) != -1) {
+            return PayloadFraming.LENGTH;
+        }
+        return response ? PayloadFraming.CLOSE : PayloadFraming.NONE;
+    }
+
+    /**
+     * Retrieves the status code of a response.
+     *
+     * @return Returns the status code, 0 if it is not valid or the message is a request.
+     */
+    public int getStatus() {
+        int start = 0;
+        while (start < this.startLineEnd && this.head[start] != ' ') start++;
+        start++;
+        if (!this.isResponse() || start + 3 > this.startLineEnd) {
+            return 0;
+        }
+        int status = 0;
+        for (int i = start; i < start + 3; i++) {
+            int digit = this.head[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+            status = status * 10 + digit;
+        }
+        return status;
+    }
+
+    /**
+     * Retrieves the number of headers.
+     *
+     * @return Returns the number of headers, in the order they were received.
+     */
+    public int getHeaderCount() {
+        return this.headerCount;
+    }
+
+    /**
+     * Retrieves the name of a header.
+     *
+     * @param index The index of the header, in the order they were received.
+     * @return Returns the header name.
+     */
+    public String getHeaderName(int index) {
+        int offset = index * HEADER_FIELDS;
+        return this.headString(this.headerOffsets[offset], this.headerOffsets[offset + 1]);
+    }
+
+    /**
+     * Retrieves the value of a header.
+     *
+     * @param index The index of the header, in the order they were received.
+     * @return Returns the header value, without leading and trailing whitespaces.
+     */
+    public String getHeaderValue(int index) {
+        int offset = index * HEADER_FIELDS;
+        return this.headString(this.headerOffsets[offset + 2], this.headerOffsets[offset + 3]);
+    }
+
+    /**
+     * Retrieves the first value of a header, ignoring the case of its name.
+     *
+     * @param name The header name.
+     * @return Returns the header value or NULL if the header is not present.
+     */
+    public String getHeader(String name) {
+        int index = this.indexOf(name, 0);
+        return index == -1 ? null : this.getHeaderValue(index);
+    }
+
+    /**
+     * Retrieves the values of a header, ignoring the case of its name.
+     *
+     * @param name The header name.
+     * @return Returns the header values in the order they were received or NULL if the header is not present.
+     */
+    public List<String> getHeaderValues(String name) {
+        List<String> values = null;
+        for (int index = this.indexOf(name, 0); index != -1; index = this.indexOf(name, index + 1)) {
+            if (values == null) {
+                values = new ArrayList<>(1);
+            }
+            values.add(this.getHeaderValue(index));
+        }
+        return values;
+    }
+
+    /**
+     * Finds a header, ignoring the case of its name.
+     *
+     * @param name The header name, in ASCII.
+     * @param from The index of the first header to check.
+     * @return Returns the index of the header or -1 if it is not present.
+     */
+    private int indexOf(String name, int from) {
+        for (int index = from; index < this.headerCount; index++) {
+            int offset = index * HEADER_FIELDS;
+            int start = this.headerOffsets[offset];
+            if (this.headerOffsets[offset + 1] - start == name.length() && this.equalsIgnoreCase(start, name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the last occurrence of a header, ignoring the case of its name.
+     *
+     * @param name The header name, in ASCII.
+     * @return Returns the index of the header or -1 if it is not present.
+     */
+    private int lastIndexOf(String name) {
+        int last = -1;
+        for (int index = this.indexOf(name, 0); index != -1; index = this.indexOf(name, index + 1)) {
+            last = index;
+        }
+        return last;
+    }
+
+    /**
+     * Checks if a comma-separated token is present in the values of a header, ignoring the case.
+     *
+     * @param name The header name, in ASCII.
+     * @param token The token, in ASCII.
+     * @return Returns TRUE if the token is present.
+     */
+    public boolean hasToken(String name, String token) {
+        for (int index = this.indexOf(name, 0); index != -1; index = this.indexOf(name, index + 1)) {
+            int offset = index * HEADER_FIELDS;
+            int end = this.headerOffsets[offset + 3];
+
+            int tokenStart = this.headerOffsets[offset + 2];
+            while (tokenStart <= end) {
+                int tokenEnd = tokenStart;
+                while (tokenEnd < end && this.head[tokenEnd] != ',') tokenEnd++;
+
+                int start = tokenStart;
+                int stop = tokenEnd;
+                while (start < stop && isWhitespace(this.head[start])) start++;
+                while (stop > start && isWhitespace(this.head[stop - 1])) stop--;
+                if (stop - start == token.length() && this.equalsIgnoreCase(start, token)) {
+                    return true;
+                }
+                tokenStart = tokenEnd + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares a region of the head with an ASCII string, ignoring the case.
+     *
+     * @param offset The offset of the region in the head.
+     * @param value The string, as long as the region.
+     * @return Returns TRUE if they are equal.
+     */
+    private boolean equalsIgnoreCase(int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            int a = this.head[offset + i];
+            int b = value.charAt(i);
+            if (a == b) continue;
+
+            int lower = a | 0x20;
+            if (lower < 'a' || lower > 'z' || lower != (b | 0x20)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a region of the head.
+     *
+     * @param start The start of the region.
+     * @param end The end of the region.
+     * @return Returns the region as a string.
+     */
+    private String headString(int start, int end) {
+        return new String(this.head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Retrieves the length of the HTTP request at the beginning of a buffer, if it has been entirely received.
+     *
+     * @param buffer The buffer of received bytes, its position is not modified.
+     * @return Returns the message length in bytes or -1 if more bytes are needed.
+     *
+     * @throws IOException if the message is malformed.
+     */
+    public static int getMessageLength(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int end = buffer.limit();
+
+        // find the empty line between headers and payload
+        int headersEnd = -1;
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) != '\n') continue;
+
+            int lineLength = i - lineStart;
+            if (lineStart > start && (lineLength == 0 || (lineLength == 1 && buffer.get(lineStart) == '\r'))) {
+                headersEnd = i + 1;
+                break;
+            }
+            lineStart = i + 1;
+        }
+        if (headersEnd == -1) {
+            return -1;
+        }
+
+        byte[] head = new byte[headersEnd - start];
+        buffer.get(start, head);
+        HttpMessageReader reader = new HttpMessageReader(head);
+
+        PayloadFraming framing = reader.getPayloadFraming();
+        if (framing == PayloadFraming.CHUNKED) {
+            return getChunkedLength(buffer, headersEnd, end);
+        }
+        long length = head.length + (framing == PayloadFraming.LENGTH ? reader.getContentLength() : 0);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Message too long: " + length + " bytes");
+        }
+        return end - start >= length ? (int) length : -1;
+    }
+
+    /**
+     * Retrieves the length of a message with chunked payload in a buffer, if it has been entirely received.
+     *
+     * @param buffer The buffer of received bytes.
+     * @param payloadStart The position of the payload in the buffer.
+     * @param end The limit of the received bytes.
+     * @return Returns the message length in bytes or -1 if more bytes are needed.
+     *
+     * @throws IOException if the payload is malformed.
+     */
+    private static int getChunkedLength(ByteBuffer buffer, int payloadStart, int end) throws IOException {
+        int position = payloadStart;
+        boolean trailers = false;
+        while (true) {
+            int lineEnd = -1;
+            for (int i = position; i < end; i++) {
+                if (buffer.get(i) == '\n') {
+                    lineEnd = i + 1;
+                    break;
+                }
+            }
+            if (lineEnd == -1) {
+                return -1;
+            }
+
+            byte[] line = new byte[lineEnd - position];
+            buffer.get(position, line);
+            position = lineEnd;
+
+            if (trailers) {
+                if (isEmptyLine(line)) {
+                    return position - buffer.position();
+                }
+                continue;
+            }
+
+            long chunkSize = parseChunkSize(line);
+            if (chunkSize == 0) {
+                trailers = true;
+                continue;
+            }
+            // skip chunk data and its CRLF
+            if (end - position < chunkSize + 1) {
+                return -1;
+            }
+            position += (int) chunkSize;
+            if (buffer.get(position) == '\r') position++;
+            if (position >= end) {
+                return -1;
+            }
+            if (buffer.get(position) != '\n') {
+                throw new IOException("Malformed chunk terminator");
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Retrieves the host of the HTTP request.
+     *
+     * @return Returns the host or NULL if the header is not present.
+     */
+    public String getHost() {
+        String host = this.getHeader(HEADER_HOST);
+        if (host == null) {
+            return null;
+        }
+        int port = host.indexOf(':');
+        return port == -1 ? host : host.substring(0, port); // remove port if present
+    }
+
+    /**
+     * Retrieves the starting line of the message.
+     *
+     * @return Returns the request line or the status line, without line terminator.
+     */
+    public String getStartLine() {
+        return this.headString(0, this.startLineEnd);
+    }
+
+    /**
+     * Retrieves the starting header and the HTTP headers as an array of bytes, as received.
+     *
+     * @return Returns the message head as a byte array, not to be modified.
+     */
+    public byte[] getHead() {
+        return this.head;
+    }
+
+    /**
+     * Retrieves the length of the message declared by its head, without reading the payload.
+     *
+     * @return Returns the length in bytes or -1 if it is known only once the payload is read.
+     *
+     * @throws IOException if the headers are not valid.
+     */
+    public long getDeclaredLength() throws IOException {
+        if (this.payloadRead) {
+            return this.getMessageLength();
+        }
+        switch (this.getPayloadFraming()) {
+            case NONE:
+                return this.head.length;
+
+            case LENGTH:
+                return this.head.length + this.getContentLength();
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Retrieves the length of the entire HTTP message, buffering the payload if not buffered yet.
+     *
+     * @return Returns the length in bytes.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public long getMessageLength() throws IOException {
+        if (this.message != null) {
+            return this.message.length;
+        }
+        this.bufferPayload();
+        return this.head.length + (this.payload == null ? 0 : this.payload.size());
+    }
+
+    /**
+     * Retrieves the entire HTTP message as an array of bytes, reading the payload if not buffered yet.
+     *
+     * The message is copied once from the buffer of the payload, which is then released.
+     *
+     * @return Returns the message as a byte array, not to be modified.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public byte[] getMessage() throws IOException {
+        if (this.message != null) {
+            return this.message;
+        }
+        this.bufferPayload();
+        if (this.payload == null) {
+            this.message = this.head;
+            return this.message;
+        }
+
+        byte[] message = new byte[Math.toIntExact(this.head.length + this.payload.size())];
+        System.arraycopy(this.head, 0, message, 0, this.head.length);
+        this.payload.copyTo(message, this.head.length);
+        this.payload.close();
+        this.payload = null;
+        this.message = message;
+        return message;
+    }
+
+    /**
+     * Reads and buffers the payload if it has not been read yet.
+     *
+     * @throws IOException if an I/O error occurs or the payload has already been transferred.
+     */
+    private void bufferPayload() throws IOException {
+        if (this.payloadConsumed) {
+            throw new IllegalStateException("The payload has already been transferred");
+        }
+        if (!this.payloadRead) {
+            this.payload = this.parsePayload(this.in);
+            this.payloadRead = true;
+        }
+    }
+
+    /**
+     * The ways the payload of a HTTP message can be delimited.
+     */
+    private enum PayloadFraming {
+        NONE, LENGTH, CHUNKED, CLOSE
+    }
+
+}
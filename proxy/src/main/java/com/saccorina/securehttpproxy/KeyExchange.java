@@ -0,0 +1,74 @@
+package com.saccorina.securehttpproxy;
+
+/**
+ * The key agreement that establishes a new {@link TunnelSession} in the binary tunnel encoding.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public enum KeyExchange {
+
+    /**
+     * Finite-field Diffie-Hellman with 2048-bit parameters, the only one of the hexadecimal encoding.
+     */
+    DH((byte) 0x01, "DH"),
+
+    /**
+     * Elliptic-curve Diffie-Hellman on Curve25519: keys of 32 bytes and a much cheaper computation.
+     */
+    X25519((byte) 0x02, "X25519");
+
+    /**
+     * The identifier in the key exchange frame.
+     */
+    private final byte id;
+
+    /**
+     * The name of the algorithm of the key pairs and of the key agreement.
+     */
+    private final String algorithm;
+
+    /**
+     * Initialize a key exchange.
+     *
+     * @param id The identifier in the key exchange frame.
+     * @param algorithm The name of the algorithm of the key pairs and of the key agreement.
+     */
+    KeyExchange(byte id, String algorithm) {
+        this.id        = id;
+        this.algorithm = algorithm;
+    }
+
+    public byte getId() {
+        return this.id;
+    }
+
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * Retrieves the key exchange with an identifier.
+     *
+     * @param id The identifier in the key exchange frame.
+     * @return Returns the key exchange or NULL if the identifier is unknown.
+     */
+    public static KeyExchange fromId(byte id) {
+        for (KeyExchange keyExchange : values()) {
+            if (keyExchange.id == id) {
+                return keyExchange;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the key exchange configured with the "keyExchange" setting, used by the client proxy.
+     *
+     * @return Returns the configured key exchange, DH by default.
+     */
+    public static KeyExchange configured() {
+        return valueOf(Configuration.getString("keyExchange", "dh").toUpperCase());
+    }
+
+}
@@ -0,0 +1,443 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Helper class for print log in console output.
+ *
+ * The threads that log don't write the console: each message is stored in a slot of a ring buffer,
+ * allocated once at startup, and a background writer formats the messages and writes them in batches.
+ * Messages below the level of the "log.level" setting are discarded before they are stored, and the
+ * ones with a format have their text built by the writer only, so that a message costs the caller just
+ * the claim of a slot. When the buffer is full the message is dropped instead of waiting, and the
+ * writer reports how many were lost.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class Logger {
+
+    /**
+     * The severity of a message.
+     */
+    public enum Level {
+
+        /**
+         * Details of each connection and message, for troubleshooting.
+         */
+        DEBUG,
+
+        /**
+         * Events of the proxy, such as startup, sessions and statistics.
+         */
+        INFO,
+
+        /**
+         * Errors, written with their stack trace.
+         */
+        ERROR
+
+    }
+
+    /**
+     * The placeholder of the arguments in the format of a message.
+     */
+    private static final String PLACEHOLDER = "{}";
+
+    /**
+     * The maximum time in nanoseconds the writer sleeps when the buffer is empty.
+     */
+    private static final long IDLE_NANOS = 10_000_000;
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss.SSS");
+
+    private static Logger ourInstance = new Logger(
+            Level.valueOf(Configuration.getString("log.level", "info").toUpperCase()),
+            Configuration.getInt("log.bufferSize", 8192));
+
+    public static Logger getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * The minimum level of the logged messages.
+     */
+    private final Level level;
+
+    /**
+     * The slots of the ring buffer, the slot of a sequence number is the number modulo the length.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The mask that maps a sequence number to its slot.
+     */
+    private final int mask;
+
+    /**
+     * The sequence number of the next slot to claim.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * The sequence number of the next slot to write, only advanced by the writer.
+     */
+    private volatile long written;
+
+    /**
+     * The number of messages dropped since the last report.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * The thread that writes the messages.
+     */
+    private final Thread writer;
+
+    /**
+     * Whether the writer is sleeping and must be woken up by the next message.
+     */
+    private volatile boolean writerIdle;
+
+    /**
+     * The text of the messages of the console output, reused by each batch.
+     */
+    private final StringBuilder outBatch = new StringBuilder(8192);
+
+    /**
+     * The text of the messages of the console error, reused by each batch.
+     */
+    private final StringBuilder errBatch = new StringBuilder(1024);
+
+    /**
+     * Initialize the logger and start its writer.
+     *
+     * @param level The minimum level of the logged messages.
+     * @param bufferSize The number of slots of the ring buffer, rounded up to a power of two.
+     */
+    private Logger(Level level, int bufferSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) * 2 - 1);
+        this.level = level;
+        this.slots = new Slot[capacity];
+        this.mask  = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            this.slots[i] = new Slot(i - capacity);
+        }
+
+        this.writer = new Thread(this::writeLoop, "Logger-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "Logger-shutdown"));
+    }
+
+    /**
+     * Checks if the messages of a level are logged.
+     *
+     * @param level The level of the messages.
+     * @return Returns TRUE if they are logged.
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Log something in output console.
+     *
+     * @param log The message to log.
+     */
+    public void log(String log) {
+        if (this.isEnabled(Level.INFO)) {
+            this.publish(Level.INFO, null, log, false, null, null, false, 0, null);
+        }
+    }
+
+    /**
+     * Log a message of a source in output console.
+     *
+     * @param level The level of the message.
+     * @param source The source of the message, written in brackets before it.
+     * @param message The message to log.
+     */
+    public void log(Level level, String source, String message) {
+        if (this.isEnabled(level)) {
+            this.publish(level, source, message, false, null, null, false, 0, null);
+        }
+    }
+
+    /**
+     * Log a message of a source in output console, built from a format only if the level is enabled.
+     *
+     * @param level The level of the message.
+     * @param source The source of the message, written in brackets before it.
+     * @param format The message with a "{}" placeholder for the argument.
+     * @param arg The argument, whose string is taken by the writer.
+     */
+    public void log(Level level, String source, String format, Object arg) {
+        if (this.isEnabled(level)) {
+            this.publish(level, source, format, true, arg, null, false, 0, null);
+        }
+    }
+
+    /**
+     * Log a message of a source in output console, built from a format only if the level is enabled.
+     *
+     * @param level The level of the message.
+     * @param source The source of the message, written in brackets before it.
+     * @param format The message with a "{}" placeholder for the argument.
+     * @param arg The numeric argument, not boxed.
+     */
+    public void log(Level level, String source, String format, long arg) {
+        if (this.isEnabled(level)) {
+            this.publish(level, source, format, true, null, null, true, arg, null);
+        }
+    }
+
+    /**
+     * Log a message of a source in output console, built from a format only if the level is enabled.
+     *
+     * @param level The level of the message.
+     * @param source The source of the message, written in brackets before it.
+     * @param format The message with two "{}" placeholders for the arguments.
+     * @param arg1 The first argument, whose string is taken by the writer.
+     * @param arg2 The second argument, whose string is taken by the writer.
+     */
+    public void log(Level level, String source, String format, Object arg1, Object arg2) {
+        if (this.isEnabled(level)) {
+            this.publish(level, source, format, true, arg1, arg2, false, 0, null);
+        }
+    }
+
+    /**
+     * Print the details of an error in console.
+     *
+     * @param log The message to log.
+     * @param throwable The exception thrown.
+     */
+    public void error(String log, Throwable throwable) {
+        this.publish(Level.ERROR, null, log, false, null, null, false, 0, throwable);
+    }
+
+    /**
+     * Stores a message in the next free slot, or drops it if the buffer is full.
+     *
+     * @param level The level of the message.
+     * @param source The source of the message or NULL.
+     * @param format The message, with placeholders if formatted.
+     * @param formatted Whether the placeholders of the message are replaced by the arguments.
+     * @param arg1 The first argument or NULL.
+     * @param arg2 The second argument or NULL.
+     * @param numeric Whether the first argument is the number.
+     * @param number The numeric argument.
+     * @param throwable The exception of an error or NULL.
+     */
+    private void publish(Level level, String source, String format, boolean formatted,
+                         Object arg1, Object arg2, boolean numeric, long number, Throwable throwable)
+    {
+        long sequence;
+        do {
+            sequence = this.claimed.get();
+            if (sequence - this.written >= this.slots.length) {
+                this.dropped.increment();
+                return;
+            }
+        } while (!this.claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = this.slots[(int) sequence & this.mask];
+        slot.time      = System.currentTimeMillis();
+        slot.level     = level;
+        slot.source    = source;
+        slot.format    = format;
+        slot.formatted = formatted;
+        slot.arg1      = arg1;
+        slot.arg2      = arg2;
+        slot.numeric   = numeric;
+        slot.number    = number;
+        slot.throwable = throwable;
+        slot.sequence  = sequence;
+
+        if (this.writerIdle) {
+            this.writerIdle = false;
+            LockSupport.unpark(this.writer);
+        }
+    }
+
+    /**
+     * Writes the messages as they are published, sleeping while the buffer is empty.
+     */
+    private void writeLoop() {
+        while (true) {
+            if (this.drain() == 0) {
+                this.writerIdle = true;
+                if (!this.isReady()) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+                this.writerIdle = false;
+            }
+        }
+    }
+
+    /**
+     * Checks if the next message to write has been published.
+     *
+     * @return Returns TRUE if it can be written.
+     */
+    private boolean isReady() {
+        long next = this.written;
+        return this.slots[(int) next & this.mask].sequence == next;
+    }
+
+    /**
+     * Writes the published messages in a batch, called by the writer and at shutdown.
+     *
+     * @return Returns the number of messages written.
+     */
+    private synchronized int drain() {
+        int count = 0;
+        long next = this.written;
+        Slot slot;
+        while ((slot = this.slots[(int) next & this.mask]).sequence == next) {
+            StringBuilder batch = slot.level == Level.ERROR ? this.errBatch : this.outBatch;
+            int length = batch.length();
+            try {
+                this.format(slot, batch);
+
+            } catch (RuntimeException e) {
+                // an argument failed to build its text, the writer must go on
+                batch.setLength(length);
+                batch.append("[Logger] Message not formatted: ").append(e).append('\n');
+            }
+            if (slot.throwable != null) {
+                this.flush(this.errBatch, System.err);
+                slot.throwable.printStackTrace();
+            }
+
+            slot.clear();
+            this.written = ++next;
+            count++;
+        }
+
+        long lost = this.dropped.sumThenReset();
+        if (lost > 0) {
+            this.outBatch.append('[');
+            FORMATTER.formatTo(LocalDateTime.now(), this.outBatch);
+            this.outBatch.append("] [Logger] ").append(lost).append(" messages dropped, buffer full\n");
+        }
+
+        this.flush(this.outBatch, System.out);
+        this.flush(this.errBatch, System.err);
+        return count;
+    }
+
+    /**
+     * Appends the line of a message.
+     *
+     * @param slot The slot of the message.
+     * @param output The batch of the line.
+     */
+    private void format(Slot slot, StringBuilder output) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(slot.time), ZoneId.systemDefault());
+        output.append('[');
+        FORMATTER.formatTo(time, output);
+        output.append("] ");
+        if (slot.level == Level.ERROR) {
+            output.append("[ERROR] ");
+        }
+        if (slot.source != null) {
+            output.append('[').append(slot.source).append("] ");
+        }
+
+        if (!slot.formatted) {
+            output.append(slot.format);
+
+        } else {
+            int argument = 0;
+            int from = 0;
+            int placeholder;
+            while ((placeholder = slot.format.indexOf(PLACEHOLDER, from)) != -1) {
+                output.append(slot.format, from, placeholder);
+                if (argument == 0 && slot.numeric) {
+                    output.append(slot.number);
+                } else {
+                    output.append(argument == 0 ? slot.arg1 : slot.arg2);
+                }
+                argument++;
+                from = placeholder + PLACEHOLDER.length();
+            }
+            output.append(slot.format, from, slot.format.length());
+        }
+
+        if (slot.level == Level.ERROR && slot.throwable != null) {
+            output.append(": ").append(slot.throwable.getMessage());
+        }
+        output.append('\n');
+    }
+
+    /**
+     * Writes a batch in a console stream.
+     *
+     * @param batch The batch.
+     * @param stream The console stream.
+     */
+    private void flush(StringBuilder batch, PrintStream stream) {
+        if (batch.length() > 0) {
+            stream.print(batch);
+            stream.flush();
+            batch.setLength(0);
+        }
+    }
+
+    /**
+     * A message in the ring buffer.
+     */
+    private static class Slot {
+
+        /**
+         * The sequence number of the published message, written last.
+         */
+        private volatile long sequence;
+
+        private long time;
+
+        private Level level;
+
+        private String source;
+
+        private String format;
+
+        private boolean formatted;
+
+        private Object arg1;
+
+        private Object arg2;
+
+        private boolean numeric;
+
+        private long number;
+
+        private Throwable throwable;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Releases the references of the written message.
+         */
+        private void clear() {
+            this.source    = null;
+            this.format    = null;
+            this.arg1      = null;
+            this.arg2      = null;
+            this.throwable = null;
+        }
+
+    }
+
+}
@@ -0,0 +1,463 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the HTTP messages sent in the tunnel, applied before the encryption.
+ *
+ * A compressed message starts with a 0 byte, which can't start a HTTP message, followed by the original
+ * length and the raw deflate data, so the marker is encrypted and authenticated with the message. The
+ * peers enable it with {@link Frame#TYPE_HELLO} frames, and content already compressed is sent as is,
+ * detected by its Content-Encoding, its Content-Type or the entropy of a sample of its bytes.
+ *
+ * The deflate level adapts every second: it decreases when the CPU is busy or compressing is slower
+ * than the link, it increases when the CPU is idle and compressing is much faster than the link.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class MessageCompressor {
+
+    /**
+     * The first byte of a compressed message.
+     */
+    private static final byte MARKER = 0;
+
+    /**
+     * The length of the header of a compressed message: marker and original length.
+     */
+    private static final int HEADER_LENGTH = 1 + 4;
+
+    /**
+     * The maximum number of bytes sampled to estimate the entropy of a payload.
+     */
+    private static final int ENTROPY_SAMPLE = 4096;
+
+    /**
+     * The entropy in bits per byte above which a payload is considered already compressed.
+     */
+    private static final double MAX_ENTROPY = 7.0;
+
+    /**
+     * The maximum size ratio of a compressed message, above which the original is sent.
+     */
+    private static final double MAX_RATIO = 0.95;
+
+    /**
+     * The period of the level adaptation in nanoseconds.
+     */
+    private static final long ADAPT_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The CPU load above which the level decreases.
+     */
+    private static final double HIGH_CPU_LOAD = 0.85;
+
+    /**
+     * The CPU load below which the level may increase.
+     */
+    private static final double LOW_CPU_LOAD = 0.5;
+
+    /**
+     * The maximum number of idle deflaters and inflaters kept for reuse.
+     */
+    private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * The media types of content always compressed, without sampling.
+     */
+    private static final String[] TEXT_TYPES = {
+            "text/", "application/json", "application/javascript", "application/xml",
+            "application/x-www-form-urlencoded", "+json", "+xml"
+    };
+
+    /**
+     * The media types of content already compressed.
+     */
+    private static final String[] COMPRESSED_TYPES = {
+            "image/", "audio/", "video/", "font/woff", "application/zip", "application/gzip",
+            "application/x-gzip", "application/x-7z-compressed", "application/x-rar-compressed",
+            "application/x-bzip2", "application/x-xz", "application/zstd", "application/pdf"
+    };
+
+    /**
+     * The idle inflaters, shared by all the compressors.
+     */
+    private static final Queue<Inflater> IDLE_INFLATERS = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of idle inflaters.
+     */
+    private static final AtomicInteger IDLE_INFLATER_COUNT = new AtomicInteger();
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The minimum length in bytes of a compressed message.
+     */
+    private final int minSize;
+
+    /**
+     * The throughput of the link in bytes per second.
+     */
+    private final long linkRate;
+
+    /**
+     * The current deflate level, from 1 to 9.
+     */
+    private final AtomicInteger level;
+
+    /**
+     * The idle deflaters.
+     */
+    private final Queue<Deflater> idleDeflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of idle deflaters.
+     */
+    private final AtomicInteger idleDeflaterCount = new AtomicInteger();
+
+    /**
+     * The time of the next level adaptation, from {@link System#nanoTime()}.
+     */
+    private final AtomicLong nextAdaptation = new AtomicLong(System.nanoTime() + ADAPT_PERIOD);
+
+    /**
+     * The bytes compressed since the last level adaptation.
+     */
+    private final LongAdder windowBytes = new LongAdder();
+
+    /**
+     * The nanoseconds spent compressing since the last level adaptation.
+     */
+    private final LongAdder windowNanos = new LongAdder();
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * Creates the compressor with the settings prefixed by "compression".
+     *
+     * @return Returns the compressor or NULL if the compression is off.
+     */
+    public static MessageCompressor configured() {
+        String algorithm = Configuration.getString("compression", "off");
+        if (algorithm.equalsIgnoreCase("off")) {
+            return null;
+        }
+        if (!algorithm.equalsIgnoreCase("deflate")) {
+            throw new IllegalArgumentException("Unknown compression \"" + algorithm + "\"");
+        }
+        return new MessageCompressor(
+                Configuration.getInt("compression.level", Deflater.DEFAULT_COMPRESSION),
+                Configuration.getInt("compression.minSize", 512),
+                Configuration.getInt("compression.linkRate", 12_500_000));
+    }
+
+    /**
+     * Initialize a compressor.
+     *
+     * @param level The initial deflate level, from 1 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param minSize The minimum length in bytes of a compressed message.
+     * @param linkRate The throughput of the link in bytes per second.
+     */
+    public MessageCompressor(int level, int minSize, long linkRate) {
+        this.level    = new AtomicInteger(level == Deflater.DEFAULT_COMPRESSION ? 6 : Math.max(1, Math.min(9, level)));
+        this.minSize  = Math.max(minSize, HEADER_LENGTH + 1);
+        this.linkRate = linkRate;
+    }
+
+    /**
+     * Compresses a HTTP message, if worthwhile.
+     *
+     * @param message The HTTP message.
+     * @return Returns the compressed message or the same message if it's not compressible.
+     */
+    public byte[] compress(byte[] message) {
+        if (message.length < this.minSize || !isCompressible(message)) {
+            this.skipped.increment();
+            return message;
+        }
+
+        Deflater deflater = this.borrowDeflater();
+        byte[] output = new byte[(int) (message.length * MAX_RATIO)];
+        int length;
+        long start = System.nanoTime();
+        try {
+            deflater.setLevel(this.level.get());
+            deflater.setInput(message);
+            deflater.finish();
+            length = deflater.deflate(output, HEADER_LENGTH, output.length - HEADER_LENGTH);
+            if (!deflater.finished()) {
+                length = -1; // it doesn't fit, not worthwhile
+            }
+        } finally {
+            this.giveBack(deflater);
+        }
+        this.windowBytes.add(message.length);
+        this.windowNanos.add(System.nanoTime() - start);
+        this.adaptLevel();
+
+        if (length == -1) {
+            this.skipped.increment();
+            return message;
+        }
+        this.compressed.increment();
+        this.bytesIn.add(message.length);
+        this.bytesOut.add(HEADER_LENGTH + length);
+
+        output[0] = MARKER;
+        ByteBuffer.wrap(output, 1, 4).putInt(message.length);
+        return Arrays.copyOf(output, HEADER_LENGTH + length);
+    }
+
+    /**
+     * Decompresses a message if it is compressed.
+     *
+     * @param message The decrypted message.
+     * @return Returns the HTTP message.
+     *
+     * @throws IOException if the compressed data is not valid.
+     */
+    public static byte[] decompress(byte[] message) throws IOException {
+        if (message.length == 0 || message[0] != MARKER) {
+            return message;
+        }
+        if (message.length < HEADER_LENGTH) {
+            throw new IOException("Truncated compressed message");
+        }
+        int length = ByteBuffer.wrap(message, 1, 4).getInt();
+        if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid length of compressed message: " + length);
+        }
+
+        Inflater inflater = IDLE_INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        } else {
+            IDLE_INFLATER_COUNT.decrementAndGet();
+        }
+        try {
+            byte[] output = new byte[length];
+            inflater.setInput(message, HEADER_LENGTH, message.length - HEADER_LENGTH);
+            int inflated = inflater.inflate(output);
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Compressed message of " + inflated + " bytes instead of " + length);
+            }
+            return output;
+
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed message", e);
+
+        } finally {
+            inflater.reset();
+            if (IDLE_INFLATER_COUNT.incrementAndGet() <= MAX_IDLE) {
+                IDLE_INFLATERS.offer(inflater);
+            } else {
+                IDLE_INFLATER_COUNT.decrementAndGet();
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Checks if the payload of a HTTP message is not already compressed.
+     *
+     * @param message The HTTP message.
+     * @return Returns TRUE if the message should be compressed.
+     */
+    static boolean isCompressible(byte[] message) {
+        HttpMessageReader head;
+        try {
+            head = new HttpMessageReader(new ByteArrayInputStream(message), false);
+
+        } catch (IOException e) {
+            return false;
+        }
+
+        String encoding = head.getHeader("Content-Encoding");
+        if (encoding != null && !encoding.equalsIgnoreCase("identity")) {
+            return false;
+        }
+        String type = head.getHeader("Content-Type");
+        if (type != null) {
+            type = type.toLowerCase(Locale.ROOT);
+            for (String textType : TEXT_TYPES) {
+                if (type.startsWith(textType) || (textType.startsWith("+") && type.contains(textType))) {
+                    return true;
+                }
+            }
+            for (String compressedType : COMPRESSED_TYPES) {
+                if (type.startsWith(compressedType)) {
+                    return false;
+                }
+            }
+        }
+
+        // unknown content: estimate the entropy of a sample of the payload, or of the head if there is none
+        int start = head.getHead().length < message.length ? head.getHead().length : 0;
+        return entropy(message, start, Math.min(message.length - start, ENTROPY_SAMPLE)) <= MAX_ENTROPY;
+    }
+
+    /**
+     * Calculates the Shannon entropy of a sequence of bytes.
+     *
+     * @param bytes The bytes.
+     * @param offset The start of the sequence.
+     * @param length The length of the sequence.
+     * @return Returns the entropy in bits per byte, from 0 to 8.
+     */
+    static double entropy(byte[] bytes, int offset, int length) {
+        int[] counts = new int[256];
+        for (int i = offset; i < offset + length; i++) {
+            counts[bytes[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * Adapts the deflate level to the compression speed, the link throughput and the CPU load, once per period.
+     */
+    private void adaptLevel() {
+        long now = System.nanoTime();
+        long next = this.nextAdaptation.get();
+        if (now < next || !this.nextAdaptation.compareAndSet(next, now + ADAPT_PERIOD)) {
+            return;
+        }
+        long bytes = this.windowBytes.sumThenReset();
+        long nanos = this.windowNanos.sumThenReset();
+        if (bytes == 0 || nanos == 0) {
+            return;
+        }
+
+        double rate = bytes * 1e9 / nanos;
+        double cpuLoad = cpuLoad();
+        int level = this.level.get();
+        int newLevel = level;
+        if (cpuLoad > HIGH_CPU_LOAD || rate < this.linkRate) {
+            newLevel = Math.max(1, level - 1);
+        } else if (cpuLoad >= 0 && cpuLoad < LOW_CPU_LOAD && rate > this.linkRate * 4) {
+            newLevel = Math.min(9, level + 1);
+        }
+
+        if (newLevel != level && this.level.compareAndSet(level, newLevel)) {
+            this.logger.log("[Compression] Level " + level + " -> " + newLevel + " (" + (long) (rate / 1000)
+                    + " KB/s, cpu " + (cpuLoad < 0 ? "n/a" : (int) (cpuLoad * 100) + "%") + ")");
+        }
+    }
+
+    /**
+     * Retrieves the recent CPU load of the system.
+     *
+     * @return Returns the load from 0 to 1 or a negative value if it is not available.
+     */
+    private static double cpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+        }
+        return -1;
+    }
+
+    /**
+     * Takes an idle deflater or creates a new one.
+     *
+     * @return Returns a deflater for the exclusive use of the caller.
+     */
+    private Deflater borrowDeflater() {
+        Deflater deflater = this.idleDeflaters.poll();
+        if (deflater != null) {
+            this.idleDeflaterCount.decrementAndGet();
+            return deflater;
+        }
+        return new Deflater(this.level.get(), true);
+    }
+
+    /**
+     * Puts a deflater back in the pool, unless there are already enough idle deflaters.
+     *
+     * @param deflater The borrowed deflater.
+     */
+    private void giveBack(Deflater deflater) {
+        deflater.reset();
+        if (this.idleDeflaterCount.incrementAndGet() <= MAX_IDLE) {
+            this.idleDeflaters.offer(deflater);
+        } else {
+            this.idleDeflaterCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Retrieves the current deflate level.
+     *
+     * @return Returns the level, from 1 to 9.
+     */
+    public int getLevel() {
+        return this.level.get();
+    }
+
+    /**
+     * Retrieves the number of messages compressed.
+     *
+     * @return Returns the number of compressed messages.
+     */
+    public long getCompressed() {
+        return this.compressed.sum();
+    }
+
+    /**
+     * Retrieves the number of messages sent as they are.
+     *
+     * @return Returns the number of skipped messages.
+     */
+    public long getSkipped() {
+        return this.skipped.sum();
+    }
+
+    /**
+     * Retrieves the number of bytes of the compressed messages before the compression.
+     *
+     * @return Returns the number of bytes.
+     */
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    /**
+     * Retrieves the number of bytes of the compressed messages after the compression.
+     *
+     * @return Returns the number of bytes.
+     */
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Generates the nonces of the messages encrypted with an AEAD mode in one direction of the tunnel.
+ *
+ * A nonce is the direction followed by a counter, so it's never repeated under the same key as long
+ * as each direction has a single sequence. The sequence can be shared by many ciphers and threads.
+ *
+ * The sequence also tracks the counters of the authentic messages received from the other direction, so
+ * that a recorded message cannot be replayed: the peer's counter keeps growing across the key epochs,
+ * and since the messages of concurrent streams and connections may arrive out of order, a sliding window
+ * of {@link #REPLAY_WINDOW} counters below the highest one is accepted once each.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class NonceSequence {
+
+    /**
+     * The number of counters below the highest received one that are still accepted, a power of 2.
+     */
+    static final int REPLAY_WINDOW = 1 << 16;
+
+    /**
+     * The direction of the messages.
+     */
+    private final byte direction;
+
+    /**
+     * The received counters in the window, one bit each at the index of the counter modulo the window.
+     */
+    private final long[] received = new long[REPLAY_WINDOW / 64];
+
+    /**
+     * The highest received counter, -1 if none.
+     */
+    private long highestReceived = -1;
+
+    /**
+     * The lock guarding the received counters, not a monitor so virtual threads don't pin.
+     */
+    private final Lock receivedLock = new ReentrantLock();
+
+    /**
+     * The counter of the next nonce.
+     */
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * Initialize a nonce sequence.
+     *
+     * @param direction The direction of the messages, {@link FlowCipher#CLIENT_TO_SERVER} or
+     *                  {@link FlowCipher#SERVER_TO_CLIENT}.
+     */
+    public NonceSequence(byte direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * Generates the next nonce.
+     *
+     * @return Returns a nonce of {@link ConnectionCipher#NONCE_LENGTH} bytes.
+     *
+     * @throws CipherException if the counter is exhausted and the key must be replaced.
+     */
+    public byte[] next() throws CipherException {
+        long value = this.counter.getAndIncrement();
+        if (value < 0) {
+            throw new CipherException("Nonce sequence exhausted, the key must be replaced");
+        }
+        return ByteBuffer.allocate(ConnectionCipher.NONCE_LENGTH)
+                .putInt((this.direction & 0xff) << 24)
+                .putLong(value)
+                .array();
+    }
+
+    /**
+     * Verifies that a received nonce has been generated by the peer, not reflected back from this side.
+     *
+     * @param nonce The received nonce.
+     *
+     * @throws CipherException if the nonce belongs to this direction.
+     */
+    public void verify(byte[] nonce) throws CipherException {
+        if (nonce[0] == this.direction) {
+            throw new CipherException("Message with a nonce of the own direction");
+        }
+    }
+
+    /**
+     * Records the nonce of an authentic message received from the other direction, rejecting it if it has
+     * already been received or it is too old to be told apart from a replay.
+     *
+     * @param nonce The received nonce, verified with {@link #verify(byte[])}.
+     *
+     * @throws CipherException if the message is replayed or below the window.
+     */
+    public void accept(byte[] nonce) throws CipherException {
+        long value = ByteBuffer.wrap(nonce, 4, 8).getLong();
+        this.receivedLock.lock();
+        try {
+            if (value > this.highestReceived) {
+                // clear the counters that slide out of the window
+                if (value - this.highestReceived >= REPLAY_WINDOW) {
+                    Arrays.fill(this.received, 0);
+                } else {
+                    for (long cleared = this.highestReceived + 1; cleared < value; cleared++) {
+                        this.received[(int) (cleared & (REPLAY_WINDOW - 1)) >>> 6] &= ~(1L << cleared);
+                    }
+                }
+                this.highestReceived = value;
+
+            } else if (this.highestReceived - value >= REPLAY_WINDOW) {
+                throw new CipherException("Message with a nonce below the replay window");
+
+            } else if ((this.received[(int) (value & (REPLAY_WINDOW - 1)) >>> 6] & (1L << value)) != 0) {
+                throw new CipherException("Replayed message");
+            }
+            this.received[(int) (value & (REPLAY_WINDOW - 1)) >>> 6] |= 1L << value;
+
+        } finally {
+            this.receivedLock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection to a remote host that can be leased from a {@link ConnectionPool} and reused.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class PooledConnection implements Closeable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The key of the pool the connection belongs to.
+     */
+    private final String key;
+
+    /**
+     * The channel of the connection, used in blocking mode except for liveness checks.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The buffered input stream of the connection, kept across responses.
+     */
+    private final HttpInputStream in;
+
+    /**
+     * The buffered output stream of the connection.
+     */
+    private final OutputStream out;
+
+    /**
+     * The time in milliseconds the connection was last released in the pool.
+     */
+    private volatile long lastUsed;
+
+    /**
+     * Whether the connection has already been used for a request.
+     */
+    private boolean reused;
+
+    /**
+     * Open a new connection.
+     *
+     * @param key The key of the pool the connection belongs to.
+     * @param host The remote host.
+     * @param port The remote port.
+     * @param connectTimeout The connection timeout in milliseconds.
+     * @param readTimeout The maximum time in milliseconds a read waits for the remote host, 0 to wait forever.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    PooledConnection(String key, String host, int port, int connectTimeout, int readTimeout) throws IOException {
+        this.key = key;
+        this.channel = SocketChannel.open();
+        try {
+            Socket socket = this.channel.socket();
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setTcpNoDelay(true);
+            // a stalled host fails the exchange, which discards the connection, instead of holding its permit
+            socket.setSoTimeout(readTimeout);
+
+            this.in  = new HttpInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    public HttpInputStream getInputStream() {
+        return this.in;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    /**
+     * Checks if the connection has already been used for a previous request.
+     *
+     * @return Returns TRUE if the connection has been leased again from the pool.
+     */
+    public boolean isReused() {
+        return this.reused;
+    }
+
+    String getKey() {
+        return this.key;
+    }
+
+    long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * Marks the connection as idle in the pool.
+     */
+    void markIdle() {
+        this.lastUsed = System.currentTimeMillis();
+        this.reused = true;
+    }
+
+    /**
+     * Checks without blocking that the remote host has not closed the idle connection.
+     *
+     * @return Returns TRUE if the connection can be reused.
+     */
+    boolean isAlive() {
+        if (!this.channel.isOpen()) {
+            return false;
+        }
+        try {
+            if (this.in.available() > 0) {
+                return false; // unexpected bytes from the previous response
+            }
+
+            this.channel.configureBlocking(false);
+            try {
+                // a closed connection reads end of stream, a live idle one has nothing to read
+                return this.channel.read(ByteBuffer.allocate(1)) == 0;
+
+            } finally {
+                this.channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        try {
+            this.channel.close();
+
+        } catch (IOException e) {
+            Logger.getInstance().error("Error closing pooled connection", e);
+        }
+    }
+
+}
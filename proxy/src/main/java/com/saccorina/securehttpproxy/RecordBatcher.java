@@ -0,0 +1,252 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.metrics.Histogram;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces the small HTTP messages sent in a tunnel connection into batch frames, so that many messages
+ * cost a single encryption and a single write.
+ *
+ * A message is held until the pending ones reach {@link #BATCH_SIZE} bytes or its deadline expires,
+ * whichever comes first. The deadline is chosen by the sender of each message: {@link #MAX_DELAY_NANOS}
+ * by default, 0 to flush at once, for instance when no other stream is in flight and there is nothing
+ * to wait for. Messages larger than {@link #MAX_MESSAGE_SIZE} bytes are not worth batching and are sent
+ * alone by the caller.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class RecordBatcher {
+
+    /**
+     * The maximum time in nanoseconds a message waits for others, 0 if batching is disabled.
+     */
+    public static final long MAX_DELAY_NANOS = Configuration.getInt("batch.delay", 0) * 1000L;
+
+    /**
+     * The number of pending bytes that flushes a batch at once.
+     */
+    public static final int BATCH_SIZE = Configuration.getInt("batch.size", 16 * 1024);
+
+    /**
+     * The maximum length in bytes of a batched message.
+     */
+    public static final int MAX_MESSAGE_SIZE = Configuration.getInt("batch.messageSize", 1024);
+
+    /**
+     * The length in bytes of the header of each message in a batch: stream id and length.
+     */
+    private static final int ENTRY_HEADER_LENGTH = 8;
+
+    /**
+     * The timer of the flush deadlines, shared by all the connections.
+     */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "RecordBatcher-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Logger logger = Logger.getInstance();
+
+    /**
+     * The destination of the batch frames.
+     */
+    private final FrameSink sink;
+
+    /**
+     * The cipher of the session.
+     */
+    private final CipherPool cipher;
+
+    /**
+     * The histogram of the encryption stage.
+     */
+    private final Histogram encryptStage;
+
+    /**
+     * The lock guarding the pending messages.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * The pending messages with their headers, in plaintext.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(BATCH_SIZE + MAX_MESSAGE_SIZE + ENTRY_HEADER_LENGTH);
+
+    /**
+     * The time from {@link System#nanoTime()} of the earliest scheduled flush, or {@link Long#MAX_VALUE}.
+     */
+    private long deadline = Long.MAX_VALUE;
+
+    /**
+     * Checks if batching is enabled with the "batch.delay" setting.
+     *
+     * @return Returns TRUE if it is enabled.
+     */
+    public static boolean isConfigured() {
+        return MAX_DELAY_NANOS > 0;
+    }
+
+    /**
+     * Initialize a batcher for a tunnel connection.
+     *
+     * @param sink The destination of the batch frames.
+     * @param cipher The cipher of the session.
+     * @param encryptStage The histogram of the encryption stage.
+     */
+    public RecordBatcher(FrameSink sink, CipherPool cipher, Histogram encryptStage) {
+        this.sink         = sink;
+        this.cipher       = cipher;
+        this.encryptStage = encryptStage;
+    }
+
+    /**
+     * Checks if a message is small enough to be batched.
+     *
+     * @param message The message in bytes.
+     * @return Returns TRUE if it can be added to a batch.
+     */
+    public boolean accepts(byte[] message) {
+        return message.length <= MAX_MESSAGE_SIZE;
+    }
+
+    /**
+     * Adds a message to the pending batch.
+     *
+     * @param streamId The identifier of the stream of the message.
+     * @param message The message in bytes, not encrypted.
+     * @param maxDelayNanos The maximum time in nanoseconds the message can wait, 0 to flush at once.
+     *
+     * @throws IOException if the batch is flushed and an I/O error occurs.
+     * @throws CipherException if the batch is flushed and cannot be encrypted.
+     */
+    public void add(int streamId, byte[] message, long maxDelayNanos) throws IOException, CipherException {
+        byte[] batch = null;
+        this.lock.lock();
+        try {
+            if (this.pending.remaining() < ENTRY_HEADER_LENGTH + message.length) {
+                this.pending = ByteBuffer.allocate(this.pending.position() + ENTRY_HEADER_LENGTH + message.length)
+                        .put(this.pending.flip());
+            }
+            this.pending.putInt(streamId).putInt(message.length).put(message);
+
+            if (maxDelayNanos <= 0 || this.pending.position() >= BATCH_SIZE) {
+                batch = this.take();
+
+            } else {
+                long messageDeadline = System.nanoTime() + maxDelayNanos;
+                if (this.deadline == Long.MAX_VALUE || messageDeadline - this.deadline < 0) {
+                    this.deadline = messageDeadline;
+                    timer.schedule(this::flushScheduled, maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (batch != null) {
+            this.write(batch);
+        }
+    }
+
+    /**
+     * Sends the pending messages when a deadline expires.
+     */
+    private void flushScheduled() {
+        byte[] batch;
+        this.lock.lock();
+        try {
+            batch = this.take();
+
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (batch != null) {
+            try {
+                this.write(batch);
+
+            } catch (IOException | CipherException e) {
+                logger.error("Error flushing batch", e);
+            }
+        }
+    }
+
+    /**
+     * Takes the pending messages, must be called with the lock held.
+     *
+     * @return Returns the pending messages or NULL if there are none.
+     */
+    private byte[] take() {
+        this.deadline = Long.MAX_VALUE;
+        if (this.pending.position() == 0) {
+            return null;
+        }
+        byte[] batch = Arrays.copyOf(this.pending.array(), this.pending.position());
+        this.pending.clear();
+        return batch;
+    }
+
+    /**
+     * Encrypts the messages and sends them in a batch frame.
+     *
+     * @param batch The messages with their headers.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws CipherException if the batch cannot be encrypted.
+     */
+    private void write(byte[] batch) throws IOException, CipherException {
+        long start = System.nanoTime();
+        byte[] encryptedBatch = this.cipher.encrypt(batch, Frame.TYPE_BATCH);
+        this.encryptStage.recordSince(start);
+
+        this.sink.send(new Frame(Frame.TYPE_BATCH, 0, encryptedBatch));
+    }
+
+    /**
+     * Decrypts a batch frame and splits it into its messages.
+     *
+     * @param cipher The cipher of the session.
+     * @param batch The batch frame.
+     * @return Returns a frame for each message, of type {@link Frame#TYPE_BATCH} with the stream id of the
+     *         message and the message as payload, already decrypted.
+     *
+     * @throws IOException if the batch is malformed.
+     * @throws CipherException if the batch cannot be decrypted.
+     */
+    public static List<Frame> open(CipherPool cipher, Frame batch) throws IOException, CipherException {
+        ByteBuffer buffer = ByteBuffer.wrap(cipher.decrypt(batch.getPayload(), Frame.TYPE_BATCH));
+        List<Frame> messages = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                int streamId = buffer.getInt();
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IOException("Invalid message length in batch: " + length);
+                }
+                byte[] message = new byte[length];
+                buffer.get(message);
+                messages.add(new Frame(Frame.TYPE_BATCH, streamId, message));
+            }
+
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed batch", e);
+        }
+        return messages;
+    }
+
+}
@@ -0,0 +1,337 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import javax.crypto.Mac;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input stream that receives the byte flow of a tunnel stream as encrypted and authenticated records.
+ *
+ * The thread reading the tunnel hands the frames of the stream to {@link #offer(Frame)}, while the
+ * handler of the stream reads the decrypted bytes as soon as each record arrives. A relay that must
+ * not block reads with {@link #readAvailable(ByteBuffer)} instead, when its listener is notified.
+ *
+ * The sender may have at most {@link TunnelProtection#FLOW_WINDOW} records not read yet: as the handler
+ * reads them, the stream grants the sender credit for as many new ones with window update frames. The
+ * frames queued for a stream are therefore bounded, and a slow reader slows down only its own sender,
+ * never the thread reading the tunnel.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class RecordInputStream extends InputStream {
+
+    /**
+     * The destination of the frames granting credit to the sender.
+     */
+    private final FrameSink sink;
+
+    /**
+     * The direction of the flow.
+     */
+    private final byte direction;
+
+    /**
+     * The identifier of the stream.
+     */
+    private final int streamId;
+
+    /**
+     * The maximum time in milliseconds to wait for a record, 0 to wait forever.
+     */
+    private final long timeout;
+
+    /**
+     * The cipher of the stream.
+     */
+    private final ConnectionCipher cipher;
+
+    /**
+     * The MAC of the stream, NULL with an AEAD mode.
+     */
+    private final Mac mac;
+
+    /**
+     * The frames received and not read yet.
+     */
+    private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+
+    /**
+     * The plaintext of the current record.
+     */
+    private byte[] record = new byte[0];
+
+    /**
+     * The number of bytes of the current record.
+     */
+    private int limit;
+
+    /**
+     * The position of the next byte to read in the current record.
+     */
+    private int position;
+
+    /**
+     * The sequence number of the next record.
+     */
+    private long sequence;
+
+    /**
+     * Whether the last record of the stream has been received.
+     */
+    private boolean ended;
+
+    /**
+     * The number of records read and not granted to the sender yet.
+     */
+    private int consumed;
+
+    /**
+     * The listener notified when a frame is received, NULL if the reader blocks.
+     */
+    private volatile Runnable listener;
+
+    /**
+     * Initialize the record input stream.
+     *
+     * @param flowCipher The flow cipher.
+     * @param sink The destination of the frames granting credit to the sender.
+     * @param direction The direction of the flow.
+     * @param streamId The identifier of the stream.
+     * @param timeout The maximum time in milliseconds to wait for a record, 0 to wait forever.
+     *
+     * @throws CipherException if the ciphers cannot be created.
+     */
+    RecordInputStream(FlowCipher flowCipher, FrameSink sink, byte direction, int streamId, long timeout)
+            throws CipherException
+    {
+        this.sink      = sink;
+        this.direction = direction;
+        this.streamId  = streamId;
+        this.timeout   = timeout;
+        this.cipher    = flowCipher.createCipher(direction);
+        this.mac       = flowCipher.isAead() ? null : flowCipher.createMac(direction);
+        if (this.mac == null) {
+            // AEAD records are decrypted in place of the previous one
+            this.record = new byte[flowCipher.getRecordSize()];
+        }
+    }
+
+    /**
+     * Hands a frame of the stream to the reader, can be called from any thread.
+     *
+     * A data frame beyond the window granted to the sender is replaced by a reset, since the sender
+     * ignored the flow control.
+     *
+     * @param frame A data or reset frame of the stream.
+     */
+    public void offer(Frame frame) {
+        if (frame.getType() == Frame.TYPE_DATA && this.frames.size() >= TunnelProtection.FLOW_WINDOW) {
+            frame = new Frame(Frame.TYPE_RESET, this.streamId, "Flow window exceeded".getBytes());
+        }
+        this.frames.add(frame);
+        Runnable listener = this.listener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets the listener notified from the thread of {@link #offer(Frame)} each time a frame is received.
+     *
+     * @param listener The listener, usually handing a read over to an event loop.
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+        if (!this.frames.isEmpty()) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Checks whether the last record of the stream has been received, by the thread reading the stream.
+     *
+     * @return Returns TRUE if the sender has ended the stream.
+     */
+    public boolean isEnded() {
+        return this.ended;
+    }
+
+    /**
+     * Reads the decrypted bytes of the frames already received, without waiting for others.
+     *
+     * @param dst The buffer to fill.
+     * @return Returns the number of bytes read, 0 if no record is available, -1 at the end of the stream.
+     *
+     * @throws IOException if the stream is reset or a record is not authentic.
+     */
+    public int readAvailable(ByteBuffer dst) throws IOException {
+        while (this.position == this.limit) {
+            if (this.ended) {
+                return -1;
+            }
+            Frame frame = this.frames.poll();
+            if (frame == null) {
+                return 0;
+            }
+            this.open(frame);
+        }
+        int chunk = Math.min(dst.remaining(), this.limit - this.position);
+        dst.put(this.record, this.position, chunk);
+        this.position += chunk;
+        return chunk;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read() throws IOException {
+        if (!this.fill()) {
+            return -1;
+        }
+        return this.record[this.position++] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!this.fill()) {
+            return -1;
+        }
+        int chunk = Math.min(len, this.limit - this.position);
+        System.arraycopy(this.record, this.position, b, off, chunk);
+        this.position += chunk;
+        return chunk;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int available() {
+        return this.limit - this.position;
+    }
+
+    /**
+     * Waits for the next record if the current one has been entirely read.
+     *
+     * @return Returns FALSE if the end of the stream has been reached.
+     *
+     * @throws IOException if the stream is reset or a record is not authentic.
+     */
+    private boolean fill() throws IOException {
+        while (this.position == this.limit) {
+            if (this.ended) {
+                return false;
+            }
+
+            this.open(this.take());
+        }
+        return true;
+    }
+
+    /**
+     * Verifies and decrypts the record of a frame, which becomes the current record.
+     *
+     * @param frame The frame of the stream.
+     *
+     * @throws IOException if the stream is reset or the record is not authentic.
+     */
+    private void open(Frame frame) throws IOException {
+        if (frame.getType() == Frame.TYPE_RESET) {
+            throw new IOException("Stream " + this.streamId + " reset: " + new String(frame.getPayload()));
+        }
+
+        if (this.mac == null) {
+            this.limit = this.openAeadRecord(frame);
+        } else {
+            byte[] ciphertext = FlowCipher.verify(this.mac, this.direction, frame, this.sequence++);
+            try {
+                this.record = this.cipher.decrypt(ciphertext);
+                this.limit = this.record.length;
+
+            } catch (CipherException e) {
+                throw new IOException("Record decryption failed: " + e.getMessage(), e);
+            }
+        }
+        this.position = 0;
+        this.ended = frame.hasFlag(Frame.FLAG_END_STREAM);
+        if (!this.ended) {
+            this.grant();
+        }
+    }
+
+    /**
+     * Grants the sender credit for the records read, once they are half of the window, so that the
+     * sender is not stalled while the frame carrying the credit is in flight.
+     *
+     * @throws IOException if the frame cannot be sent.
+     */
+    private void grant() throws IOException {
+        if (++this.consumed < Math.max(1, TunnelProtection.FLOW_WINDOW / 2)) {
+            return;
+        }
+        byte[] credit = ByteBuffer.allocate(4).putInt(this.consumed).array();
+        this.consumed = 0;
+        this.sink.send(new Frame(Frame.TYPE_WINDOW_UPDATE, this.streamId, credit));
+    }
+
+    /**
+     * Verifies and decrypts a record encrypted with an AEAD mode.
+     *
+     * @param frame The frame containing the record.
+     * @return Returns the number of plaintext bytes.
+     *
+     * @throws IOException if the record is not authentic.
+     */
+    private int openAeadRecord(Frame frame) throws IOException {
+        byte[] payload = frame.getPayload();
+        if (payload.length < ConnectionCipher.TAG_LENGTH
+                || payload.length - ConnectionCipher.TAG_LENGTH > this.record.length) {
+            throw new IOException("Invalid record length in stream " + this.streamId);
+        }
+        try {
+            return this.cipher.decrypt(
+                    FlowCipher.nonce(this.direction, this.streamId, this.sequence++),
+                    FlowCipher.associatedData(this.direction, this.streamId, frame.getFlags()),
+                    ByteBuffer.wrap(payload),
+                    ByteBuffer.wrap(this.record));
+
+        } catch (CipherException e) {
+            throw new IOException("Record authentication failed in stream " + this.streamId, e);
+        }
+    }
+
+    /**
+     * Waits for the next frame of the stream.
+     *
+     * @return Returns the frame.
+     *
+     * @throws IOException if the timeout expires or the thread is interrupted.
+     */
+    private Frame take() throws IOException {
+        try {
+            Frame frame = this.timeout > 0
+                    ? this.frames.poll(this.timeout, TimeUnit.MILLISECONDS)
+                    : this.frames.take();
+            if (frame == null) {
+                throw new IOException("No data received in stream " + this.streamId + " for " + this.timeout + " ms");
+            }
+            return frame;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for stream " + this.streamId, e);
+        }
+    }
+
+}
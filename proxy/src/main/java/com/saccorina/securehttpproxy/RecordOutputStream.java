@@ -0,0 +1,343 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import javax.crypto.Mac;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Output stream that sends the byte flow of a tunnel stream as encrypted and authenticated records.
+ *
+ * Bytes are collected until a record is full, so memory usage does not depend on the flow length.
+ * Closing the stream sends the last record, flagged as the end of the stream.
+ *
+ * Each record takes a credit of the window granted by the receiver, starting with
+ * {@link TunnelProtection#FLOW_WINDOW}: once the credit is over, writing blocks until the receiver
+ * grants more, so a reader slower than the writer bounds the records queued on its side. A writer that
+ * must not block asks for {@link #writableBytes()} before writing and waits for its listener.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class RecordOutputStream extends OutputStream {
+
+    /**
+     * The destination of the frames.
+     */
+    private final FrameSink sink;
+
+    /**
+     * The direction of the flow.
+     */
+    private final byte direction;
+
+    /**
+     * The identifier of the stream.
+     */
+    private final int streamId;
+
+    /**
+     * The cipher of the stream.
+     */
+    private final ConnectionCipher cipher;
+
+    /**
+     * The MAC of the stream, NULL with an AEAD mode.
+     */
+    private final Mac mac;
+
+    /**
+     * The plaintext of the record being filled.
+     */
+    private final byte[] record;
+
+    /**
+     * The number of bytes in the record being filled.
+     */
+    private int count;
+
+    /**
+     * The sequence number of the next record.
+     */
+    private long sequence;
+
+    /**
+     * Whether the end of the stream has been sent.
+     */
+    private boolean closed;
+
+    /**
+     * The number of records that can be sent before the receiver grants more.
+     */
+    private int credit = TunnelProtection.FLOW_WINDOW;
+
+    /**
+     * The reason the receiver aborted the stream, NULL while it accepts records.
+     */
+    private String cancelled;
+
+    /**
+     * The lock guarding the credit, not a monitor so virtual threads don't pin.
+     */
+    private final Lock creditLock = new ReentrantLock();
+
+    /**
+     * The condition signalled when credit is granted or the stream is cancelled.
+     */
+    private final Condition creditGranted = this.creditLock.newCondition();
+
+    /**
+     * The listener notified when credit is granted, NULL if the writer blocks.
+     */
+    private volatile Runnable listener;
+
+    /**
+     * Initialize the record output stream.
+     *
+     * @param flowCipher The flow cipher.
+     * @param sink The destination of the frames.
+     * @param direction The direction of the flow.
+     * @param streamId The identifier of the stream.
+     *
+     * @throws CipherException if the ciphers cannot be created.
+     */
+    RecordOutputStream(FlowCipher flowCipher, FrameSink sink, byte direction, int streamId) throws CipherException {
+        this.sink      = sink;
+        this.direction = direction;
+        this.streamId  = streamId;
+        this.cipher    = flowCipher.createCipher(direction);
+        this.mac       = flowCipher.isAead() ? null : flowCipher.createMac(direction);
+        this.record    = new byte[flowCipher.getRecordSize()];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void write(int b) throws IOException {
+        if (this.count == this.record.length) {
+            this.sendRecord((byte) 0);
+        }
+        this.record[this.count++] = (byte) b;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (this.count == this.record.length) {
+                this.sendRecord((byte) 0);
+            }
+            int chunk = Math.min(len, this.record.length - this.count);
+            System.arraycopy(b, off, this.record, this.count, chunk);
+            this.count += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer, such as a direct buffer filled by a channel.
+     *
+     * @param src The buffer, its position is moved to its limit.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (this.count == this.record.length) {
+                this.sendRecord((byte) 0);
+            }
+            int chunk = Math.min(src.remaining(), this.record.length - this.count);
+            src.get(this.record, this.count, chunk);
+            this.count += chunk;
+        }
+    }
+
+    /**
+     * Sends the bytes collected so far in a record.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void flush() throws IOException {
+        if (this.count > 0) {
+            this.sendRecord((byte) 0);
+        }
+    }
+
+    /**
+     * Sends the last record, flagged as the end of the stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void close() throws IOException {
+        if (!this.closed) {
+            this.closed = true;
+            this.sendRecord(Frame.FLAG_END_STREAM);
+        }
+    }
+
+    /**
+     * Aborts the stream, discarding the bytes not sent yet.
+     *
+     * @param reason The reason sent to the other side.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void reset(String reason) throws IOException {
+        if (!this.closed) {
+            this.closed = true;
+            this.count  = 0;
+            this.sink.send(new Frame(Frame.TYPE_RESET, this.streamId, reason.getBytes()));
+        }
+    }
+
+    /**
+     * Adds credit granted by the receiver, can be called from any thread.
+     *
+     * @param records The number of records granted.
+     */
+    public void grant(int records) {
+        this.creditLock.lock();
+        try {
+            this.credit += records;
+            this.creditGranted.signalAll();
+
+        } finally {
+            this.creditLock.unlock();
+        }
+        Runnable listener = this.listener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Fails the writes waiting for credit, since the receiver has aborted the stream or is gone.
+     *
+     * @param reason The reason of the abort.
+     */
+    public void cancel(String reason) {
+        this.creditLock.lock();
+        try {
+            this.cancelled = reason;
+            this.creditGranted.signalAll();
+
+        } finally {
+            this.creditLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of bytes that can be written without waiting for credit.
+     *
+     * @return Returns 0 if the credit is over.
+     */
+    public int writableBytes() {
+        this.creditLock.lock();
+        try {
+            return Math.max(0, this.credit * this.record.length - this.count);
+
+        } finally {
+            this.creditLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the listener notified from the thread of {@link #grant(int)} each time credit is granted.
+     *
+     * @param listener The listener, usually handing a write over to an event loop.
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Takes the credit of a record, waiting until the receiver grants it.
+     *
+     * @throws IOException if the stream has been cancelled or the thread is interrupted.
+     */
+    private void acquireCredit() throws IOException {
+        this.creditLock.lock();
+        try {
+            while (this.credit == 0 && this.cancelled == null) {
+                this.creditGranted.await();
+            }
+            if (this.cancelled != null) {
+                throw new IOException("Stream " + this.streamId + " reset: " + this.cancelled);
+            }
+            this.credit--;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for credit in stream " + this.streamId, e);
+
+        } finally {
+            this.creditLock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts, authenticates and sends the record being filled.
+     *
+     * @param flags The frame flags.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void sendRecord(byte flags) throws IOException {
+        this.acquireCredit();
+        if (this.mac == null) {
+            this.sendAeadRecord(flags);
+            return;
+        }
+
+        byte[] plaintext = new byte[this.count];
+        System.arraycopy(this.record, 0, plaintext, 0, this.count);
+        this.count = 0;
+
+        byte[] ciphertext;
+        try {
+            ciphertext = this.cipher.encrypt(plaintext);
+
+        } catch (CipherException e) {
+            throw new IOException("Record encryption failed: " + e.getMessage(), e);
+        }
+        byte[] tag = FlowCipher.authenticate(this.mac, this.direction, this.streamId, this.sequence++, flags, ciphertext);
+
+        byte[] payload = new byte[ciphertext.length + tag.length];
+        System.arraycopy(ciphertext, 0, payload, 0, ciphertext.length);
+        System.arraycopy(tag, 0, payload, ciphertext.length, tag.length);
+
+        this.sink.send(new Frame(Frame.TYPE_DATA, flags, this.streamId, payload));
+    }
+
+    /**
+     * Encrypts and sends the record being filled with an AEAD mode, in a single pass.
+     *
+     * @param flags The frame flags.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void sendAeadRecord(byte flags) throws IOException {
+        byte[] payload = new byte[this.count + ConnectionCipher.TAG_LENGTH];
+        try {
+            this.cipher.encrypt(
+                    FlowCipher.nonce(this.direction, this.streamId, this.sequence++),
+                    FlowCipher.associatedData(this.direction, this.streamId, flags),
+                    ByteBuffer.wrap(this.record, 0, this.count),
+                    ByteBuffer.wrap(payload));
+
+        } catch (CipherException e) {
+            throw new IOException("Record encryption failed: " + e.getMessage(), e);
+        }
+        this.count = 0;
+
+        this.sink.send(new Frame(Frame.TYPE_DATA, flags, this.streamId, payload));
+    }
+
+}
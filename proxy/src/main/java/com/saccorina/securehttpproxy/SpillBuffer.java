@@ -0,0 +1,239 @@
+package com.saccorina.securehttpproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream that buffers an HTTP body in the heap while it is small, and in a memory-mapped
+ * temporary file once it is large.
+ *
+ * The heap part is made of fixed-size chunks, so that growing never copies the bytes already buffered,
+ * and each chunk is acquired from the {@link BodyBudget}. The body spills to the file when the heap part
+ * reaches the "body.spillThreshold" setting or the budget is exhausted: its pages are cached by the
+ * kernel outside the heap and written to disk only under memory pressure. The file is deleted as soon
+ * as it is open where the platform allows it, otherwise when the buffer is closed.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class SpillBuffer extends OutputStream {
+
+    /**
+     * The maximum number of bytes buffered in the heap.
+     */
+    private static final int SPILL_THRESHOLD = Configuration.getInt("body.spillThreshold", 1024 * 1024);
+
+    /**
+     * The directory of the temporary files, the default temporary directory if not set.
+     */
+    private static final String SPILL_DIR = Configuration.getString("body.spillDir", null);
+
+    /**
+     * The size in bytes of a heap chunk.
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * The size in bytes of a mapped region of the temporary file.
+     */
+    private static final int REGION_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The maximum number of bytes of the body.
+     */
+    private final long maxSize;
+
+    /**
+     * The chunks in the heap, all full except the last one.
+     */
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    /**
+     * The mapped regions of the temporary file, all full except the last one.
+     */
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+
+    /**
+     * The temporary file, NULL until the body spills.
+     */
+    private FileChannel file;
+
+    /**
+     * The number of bytes in the heap.
+     */
+    private int heapSize;
+
+    /**
+     * The number of bytes in the temporary file.
+     */
+    private long fileSize;
+
+    /**
+     * Whether the buffer has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Initialize an empty buffer.
+     *
+     * @param maxSize The maximum number of bytes of the body.
+     */
+    public SpillBuffer(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void write(int b) throws IOException {
+        this.write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Buffer closed");
+        }
+        if (this.size() + len > this.maxSize) {
+            throw new IOException("Body exceeds " + this.maxSize + " bytes");
+        }
+        while (len > 0 && this.file == null) {
+            int room = this.heapSize % CHUNK_SIZE == 0 ? 0 : CHUNK_SIZE - this.heapSize % CHUNK_SIZE;
+            if (room == 0) {
+                if (this.heapSize + CHUNK_SIZE > SPILL_THRESHOLD || !BodyBudget.tryAcquire(CHUNK_SIZE)) {
+                    this.spill();
+                    break;
+                }
+                this.chunks.add(new byte[CHUNK_SIZE]);
+                room = CHUNK_SIZE;
+            }
+            int chunk = Math.min(len, room);
+            System.arraycopy(b, off, this.chunks.get(this.chunks.size() - 1), this.heapSize % CHUNK_SIZE, chunk);
+            this.heapSize += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+
+        while (len > 0) {
+            MappedByteBuffer region = this.regions.isEmpty() ? null : this.regions.get(this.regions.size() - 1);
+            if (region == null || !region.hasRemaining()) {
+                region = this.file.map(FileChannel.MapMode.READ_WRITE, (long) this.regions.size() * REGION_SIZE,
+                        REGION_SIZE);
+                this.regions.add(region);
+            }
+            int chunk = Math.min(len, region.remaining());
+            region.put(b, off, chunk);
+            this.fileSize += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * Retrieves the number of bytes buffered.
+     *
+     * @return Returns the size of the body.
+     */
+    public long size() {
+        return this.heapSize + this.fileSize;
+    }
+
+    /**
+     * Checks whether the body has spilled to a temporary file.
+     *
+     * @return Returns TRUE if part of the body is in the file.
+     */
+    public boolean isSpilled() {
+        return this.file != null;
+    }
+
+    /**
+     * Writes the buffered bytes to an output stream.
+     *
+     * @param out The output stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        int remaining = this.heapSize;
+        for (byte[] chunk : this.chunks) {
+            out.write(chunk, 0, Math.min(remaining, CHUNK_SIZE));
+            remaining -= CHUNK_SIZE;
+        }
+
+        byte[] transfer = this.regions.isEmpty() ? null : new byte[CHUNK_SIZE];
+        for (MappedByteBuffer region : this.regions) {
+            for (int position = 0; position < region.position(); position += CHUNK_SIZE) {
+                int length = Math.min(CHUNK_SIZE, region.position() - position);
+                region.get(position, transfer, 0, length);
+                out.write(transfer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Copies the buffered bytes into an array.
+     *
+     * @param dest The destination array, with room for {@link #size()} bytes.
+     * @param offset The offset in the destination array.
+     */
+    public void copyTo(byte[] dest, int offset) {
+        int remaining = this.heapSize;
+        for (byte[] chunk : this.chunks) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            System.arraycopy(chunk, 0, dest, offset, length);
+            offset += length;
+            remaining -= length;
+        }
+        for (MappedByteBuffer region : this.regions) {
+            region.get(0, dest, offset, region.position());
+            offset += region.position();
+        }
+    }
+
+    /**
+     * Releases the heap chunks and deletes the temporary file.
+     *
+     * @throws IOException if the temporary file cannot be closed.
+     */
+    public void close() throws IOException {
+        if (this.closed) return;
+        this.closed = true;
+        BodyBudget.release((long) this.chunks.size() * CHUNK_SIZE);
+        this.chunks.clear();
+        // the mappings are released by the garbage collector, the file is already deleted
+        this.regions.clear();
+        if (this.file != null) {
+            this.file.close();
+        }
+    }
+
+    /**
+     * Opens the temporary file the next bytes are written to.
+     *
+     * @throws IOException if the file cannot be created.
+     */
+    private void spill() throws IOException {
+        Path path = SPILL_DIR == null ? Files.createTempFile("securehttpproxy-", ".body")
+                : Files.createTempFile(Paths.get(SPILL_DIR), "securehttpproxy-", ".body");
+        this.file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            Files.delete(path);
+
+        } catch (IOException e) {
+            // the file is open, it is deleted when closed
+        }
+    }
+
+}
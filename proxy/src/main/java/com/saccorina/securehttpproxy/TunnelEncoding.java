@@ -0,0 +1,31 @@
+package com.saccorina.securehttpproxy;
+
+/**
+ * The encoding used for frames exchanged in the tunnel between the client proxy and the server proxy.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public enum TunnelEncoding {
+
+    /**
+     * Frames are sent as a binary header followed by the raw payload.
+     */
+    BINARY,
+
+    /**
+     * Legacy format: only the payload is sent, as a hexadecimal string terminated by an empty line.
+     * Kept for compatibility and for comparing the wire overhead with the binary encoding.
+     */
+    HEX;
+
+    /**
+     * Retrieves the encoding configured with the "tunnel.encoding" setting.
+     *
+     * @return Returns the configured encoding, BINARY by default.
+     */
+    public static TunnelEncoding configured() {
+        return valueOf(Configuration.getString("tunnel.encoding", "binary").toUpperCase());
+    }
+
+}
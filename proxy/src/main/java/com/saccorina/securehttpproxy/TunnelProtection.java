@@ -0,0 +1,40 @@
+package com.saccorina.securehttpproxy;
+
+/**
+ * The way HTTP traffic is protected in the tunnel between the client proxy and the server proxy.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public enum TunnelProtection {
+
+    /**
+     * Each HTTP message is buffered and separately encrypted/decrypted.
+     */
+    MESSAGE,
+
+    /**
+     * The byte flow of each HTTP exchange is encrypted incrementally, in fixed-size authenticated records.
+     */
+    FLOW;
+
+    /**
+     * The maximum number of plaintext bytes in a record of the per-flow protection.
+     */
+    public static final int RECORD_SIZE = Configuration.getInt("tunnel.recordSize", 16 * 1024);
+
+    /**
+     * The maximum number of records of a stream sent and not read yet by the receiver.
+     */
+    public static final int FLOW_WINDOW = Math.max(1, Configuration.getInt("tunnel.flowWindow", 16));
+
+    /**
+     * Retrieves the protection configured with the "tunnel.protection" setting.
+     *
+     * @return Returns the configured protection, MESSAGE by default.
+     */
+    public static TunnelProtection configured() {
+        return valueOf(Configuration.getString("tunnel.protection", "message").toUpperCase());
+    }
+
+}
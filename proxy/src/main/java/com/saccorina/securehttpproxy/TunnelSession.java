@@ -0,0 +1,266 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The keys shared by the client proxy and the server proxy after a handshake.
+ *
+ * A session is established with a full key exchange, which has a costly DH computation, and then
+ * joined by the other connections of the same client with its id. When the server has forgotten the
+ * session, the client resumes it with the ticket issued by the server: a new session is derived from
+ * the resumption secret and fresh random values of both sides, so its keys never repeat a nonce.
+ *
+ * The keys are never taken from the shared secret as is: a pseudorandom key is extracted from it with
+ * HKDF, salted with the session id, and then expanded into a different key for each direction and use.
+ * The keys of the messages are rotated in band by the {@link CipherPool}, except in the legacy session
+ * of the hexadecimal encoding, whose messages have no room for the key epoch.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class TunnelSession {
+
+    /**
+     * The length in bytes of a session id.
+     */
+    public static final int ID_LENGTH = 16;
+
+    /**
+     * The length in bytes of the random values of the handshakes.
+     */
+    public static final int RANDOM_LENGTH = 32;
+
+    /**
+     * The length in bytes of the keys of the messages.
+     */
+    private static final int MESSAGE_KEY_LENGTH = 16;
+
+    /**
+     * The length in bytes of the secrets of the messages, when their keys are rotated.
+     */
+    private static final int MESSAGE_SECRET_LENGTH = 32;
+
+    /**
+     * The length in bytes of the secrets of the flows, see {@link FlowCipher}.
+     */
+    private static final int FLOW_SECRET_LENGTH = 48;
+
+    /**
+     * The length in bytes of the secrets and of the proof of the joining connections.
+     */
+    private static final int KEY_LENGTH = 32;
+
+    /**
+     * The generator of ids and random values.
+     */
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * The session id.
+     */
+    private final byte[] id;
+
+    /**
+     * The pseudorandom key extracted from the shared secret.
+     */
+    private final byte[] key;
+
+    /**
+     * The ticket to resume the session, NULL if not issued.
+     */
+    private final byte[] ticket;
+
+    /**
+     * The cipher of the HTTP messages.
+     */
+    private final CipherPool cipher;
+
+    /**
+     * The cipher of the streams opened with the per-flow protection.
+     */
+    private final FlowCipher flowCipher;
+
+    /**
+     * The cycle of the stream ids whose flows the session protects, -1 before the first flow: the nonces
+     * of the flow records are made of the stream ids, so the flow keys must not outlive a cycle of ids.
+     */
+    private final AtomicLong flowCycle = new AtomicLong(-1);
+
+    /**
+     * Initialize a session whose message keys are rotated.
+     *
+     * @param id The session id.
+     * @param secret The shared secret of the key exchange or of the resumption.
+     * @param ticket The ticket to resume the session, NULL if not issued.
+     * @param mode The cipher mode used in the tunnel.
+     * @param direction The direction of the encrypted messages, {@link FlowCipher#CLIENT_TO_SERVER} or
+     *                  {@link FlowCipher#SERVER_TO_CLIENT}.
+     *
+     * @throws CipherException if the key derivation fails.
+     */
+    public TunnelSession(byte[] id, byte[] secret, byte[] ticket, CipherMode mode, byte direction)
+            throws CipherException
+    {
+        this(id, secret, ticket, mode, direction, true);
+    }
+
+    /**
+     * Initialize a session.
+     *
+     * @param id The session id.
+     * @param secret The shared secret of the key exchange or of the resumption.
+     * @param ticket The ticket to resume the session, NULL if not issued.
+     * @param mode The cipher mode used in the tunnel.
+     * @param direction The direction of the encrypted messages, {@link FlowCipher#CLIENT_TO_SERVER} or
+     *                  {@link FlowCipher#SERVER_TO_CLIENT}.
+     * @param rekeying Whether the message keys are rotated, with the key epoch in front of each message.
+     *
+     * @throws CipherException if the key derivation fails.
+     */
+    public TunnelSession(byte[] id, byte[] secret, byte[] ticket, CipherMode mode, byte direction,
+                         boolean rekeying) throws CipherException
+    {
+        this.id     = id;
+        this.key    = Hkdf.extract(id, secret);
+        this.ticket = ticket;
+
+        if (rekeying) {
+            byte[] clientToServerSecret = this.expand("client message", MESSAGE_SECRET_LENGTH);
+            byte[] serverToClientSecret = this.expand("server message", MESSAGE_SECRET_LENGTH);
+            this.cipher = direction == FlowCipher.CLIENT_TO_SERVER
+                    ? new CipherPool(clientToServerSecret, serverToClientSecret, mode, direction)
+                    : new CipherPool(serverToClientSecret, clientToServerSecret, mode, direction);
+        } else {
+            SecretKeySpec clientToServerKey = new SecretKeySpec(
+                    this.expand("client message", MESSAGE_KEY_LENGTH), "AES");
+            SecretKeySpec serverToClientKey = new SecretKeySpec(
+                    this.expand("server message", MESSAGE_KEY_LENGTH), "AES");
+            this.cipher = direction == FlowCipher.CLIENT_TO_SERVER
+                    ? new CipherPool(clientToServerKey, serverToClientKey, mode, direction)
+                    : new CipherPool(serverToClientKey, clientToServerKey, mode, direction);
+        }
+
+        this.flowCipher = new FlowCipher(this.expand("client flow", FLOW_SECRET_LENGTH),
+                this.expand("server flow", FLOW_SECRET_LENGTH), TunnelProtection.RECORD_SIZE, mode);
+    }
+
+    /**
+     * Get the session id.
+     *
+     * @return Returns the session id.
+     */
+    public byte[] getId() {
+        return this.id;
+    }
+
+    /**
+     * Get the ticket to resume the session.
+     *
+     * @return Returns the ticket or NULL if not issued.
+     */
+    public byte[] getTicket() {
+        return this.ticket;
+    }
+
+    /**
+     * Get the cipher of the HTTP messages.
+     *
+     * @return Returns the cipher.
+     */
+    public CipherPool getCipher() {
+        return this.cipher;
+    }
+
+    /**
+     * Get the cipher of the streams opened with the per-flow protection.
+     *
+     * @return Returns the cipher.
+     */
+    public FlowCipher getFlowCipher() {
+        return this.flowCipher;
+    }
+
+    /**
+     * Binds the flow keys of the session to a cycle of the stream ids, before a flow of the cycle is opened.
+     *
+     * @param cycle The number of times the stream ids wrapped around.
+     * @return Returns TRUE if the flows of the cycle can be protected by the session, FALSE if the session
+     *         already protected the flows of another cycle and its ids would be reused.
+     */
+    public boolean claimFlowCycle(long cycle) {
+        return this.flowCycle.compareAndSet(-1, cycle) || this.flowCycle.get() == cycle;
+    }
+
+    /**
+     * Derives the secret from which the resumed sessions are derived, sealed in the ticket by the server.
+     *
+     * @return Returns the resumption secret.
+     *
+     * @throws CipherException if the key derivation fails.
+     */
+    public byte[] resumptionSecret() throws CipherException {
+        return this.expand("resumption", KEY_LENGTH);
+    }
+
+    /**
+     * Derives the proof that a connection joining the session knows its secret.
+     *
+     * @param clientRandom The random value of the client.
+     * @return Returns the proof.
+     *
+     * @throws CipherException if the key derivation fails.
+     */
+    public byte[] joinProof(byte[] clientRandom) throws CipherException {
+        return Hkdf.derive(clientRandom, this.expand("join", KEY_LENGTH), "securehttpproxy join", KEY_LENGTH);
+    }
+
+    /**
+     * Expands the pseudorandom key of the session into a key for a single use.
+     *
+     * @param label The use of the key.
+     * @param length The length in bytes of the key.
+     * @return Returns the key.
+     *
+     * @throws CipherException if the key derivation fails.
+     */
+    private byte[] expand(String label, int length) throws CipherException {
+        return Hkdf.expand(this.key, ("securehttpproxy " + label).getBytes(StandardCharsets.US_ASCII), length);
+    }
+
+    /**
+     * Derives the secret of a resumed session.
+     *
+     * @param resumptionSecret The resumption secret of the previous session.
+     * @param clientRandom The random value of the client.
+     * @param serverRandom The random value of the server.
+     * @return Returns the shared secret of the new session.
+     *
+     * @throws CipherException if the key derivation fails.
+     */
+    public static byte[] resumedSecret(byte[] resumptionSecret, byte[] clientRandom, byte[] serverRandom)
+            throws CipherException
+    {
+        byte[] salt = new byte[clientRandom.length + serverRandom.length];
+        System.arraycopy(clientRandom, 0, salt, 0, clientRandom.length);
+        System.arraycopy(serverRandom, 0, salt, clientRandom.length, serverRandom.length);
+        return Hkdf.derive(salt, resumptionSecret, "securehttpproxy session", KEY_LENGTH);
+    }
+
+    /**
+     * Generates a random value, used for the session ids and the handshakes.
+     *
+     * @param length The length in bytes.
+     * @return Returns the random bytes.
+     */
+    public static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+}
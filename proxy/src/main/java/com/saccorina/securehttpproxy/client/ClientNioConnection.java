@@ -0,0 +1,335 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.BodyBudget;
+import com.saccorina.securehttpproxy.ConnectionPool;
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.MessageCompressor;
+import com.saccorina.securehttpproxy.RecordBatcher;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+import com.saccorina.securehttpproxy.nio.ChannelRelay;
+import com.saccorina.securehttpproxy.nio.EventLoop;
+import com.saccorina.securehttpproxy.nio.NioConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking handler for the connection between real-client and proxy-client.
+ *
+ * The request is read, encrypted and sent in the tunnel by the event loop, which also decrypts and
+ * writes the response once the tunnel completes the stream. Requests to external hosts use blocking
+ * sockets, so they are handed to a separate executor, as well as the requests that have to wait for the
+ * handshake of a persistent connection.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class ClientNioConnection extends NioConnection {
+
+    /**
+     * The server host.
+     */
+    private final String serverHost;
+
+    /**
+     * The exit nodes the tunnelled requests are balanced on.
+     */
+    private final ExitNodePool exitNodes;
+
+    /**
+     * The executor for requests to external hosts.
+     */
+    private final Executor blockingExecutor;
+
+    /**
+     * The pool of connections to external hosts.
+     */
+    private final ConnectionPool externalPool;
+
+    /**
+     * Whether the request has been entirely received.
+     */
+    private boolean requestReceived;
+
+    /**
+     * The source of the log messages of the connection.
+     */
+    private final String logSource;
+
+    /**
+     * Initialize a non-blocking proxy connection.
+     *
+     * @param channel The channel used for the proxy connection.
+     * @param loop The event loop of the connection.
+     * @param serverHost The server host.
+     * @param exitNodes The exit nodes the tunnelled requests are balanced on.
+     * @param blockingExecutor The executor for requests to external hosts.
+     * @param externalPool The pool of connections to external hosts.
+     */
+    ClientNioConnection(SocketChannel channel,
+                        EventLoop loop,
+                        String serverHost,
+                        ExitNodePool exitNodes,
+                        Executor blockingExecutor,
+                        ConnectionPool externalPool)
+    {
+        super(channel, loop, Frame.MAX_PAYLOAD_LENGTH);
+        this.serverHost       = serverHost;
+        this.exitNodes        = exitNodes;
+        this.blockingExecutor = blockingExecutor;
+        this.externalPool     = externalPool;
+        this.logSource        = "ClientProxy@" + this.remoteAddress;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void onOpen() {
+        this.log("Connection established");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void onRead(ByteBuffer input) throws IOException {
+        int length = HttpMessageReader.getMessageLength(input);
+        if (length == -1) {
+            return; // wait for the rest of the request
+        }
+
+        byte[] message = new byte[length];
+        input.get(message);
+        this.requestReceived = true;
+        this.stopReading();
+
+        // retrieve the request from the client
+        long start = System.nanoTime();
+        // the message is complete, only its head needs to be parsed
+        HttpMessageReader requestReader = new HttpMessageReader(new ByteArrayInputStream(message), false);
+        String requestedHost = requestReader.getHost();
+        byte[] request = message;
+        Metrics.CLIENT_PARSE.recordSince(start);
+        Metrics.REQUESTS.increment();
+        Metrics.REQUEST_BYTES.add(request.length);
+
+        if (requestReader.isConnect()) {
+            this.relayConnect(requestReader);
+            return;
+        }
+
+        if (requestedHost != null && requestedHost.equals(this.serverHost)) {
+            ExitNodePool.Node node = this.exitNodes.select();
+            if (node.getTunnel().isConnected()) {
+                this.sendInTunnel(node, request);
+                return;
+            }
+            // a reconnection blocks until the handshake completes, out of the loop
+            this.blockingExecutor.execute(() -> {
+                try {
+                    this.sendInTunnel(node, request);
+
+                } catch (IOException e) {
+                    this.loop.execute(() -> this.onError(e));
+                }
+            });
+
+        } else {
+            logger.log(Logger.Level.DEBUG, this.logSource, "HTTP request sent to external host \"{}\"", requestedHost);
+            this.blockingExecutor.execute(() -> {
+                try {
+                    byte[] response = this.externalPool.exchange(requestedHost, 80, request);
+                    logger.log(Logger.Level.DEBUG, this.logSource, "HTTP response received from external host \"{}\"",
+                            requestedHost);
+                    Metrics.RESPONSE_BYTES.add(response.length);
+                    this.write(ByteBuffer.wrap(response));
+                    this.closeAfterWrite();
+
+                } catch (IOException e) {
+                    this.loop.execute(() -> this.onError(e));
+                }
+            });
+        }
+    }
+
+    /**
+     * Encrypts a request and sends it in the tunnel of an exit node, the response is handled in the loop.
+     *
+     * @param node The exit node.
+     * @param request The client HTTP request in bytes.
+     *
+     * @throws IOException if the connection with the exit node cannot be opened.
+     */
+    private void sendInTunnel(ExitNodePool.Node node, byte[] request) throws IOException {
+        TunnelClient tunnel = node.getTunnel();
+        MessageCompressor compressor = tunnel.getCompressor();
+        byte[] tunnelRequest = compressor == null ? request : compressor.compress(request);
+
+        long sent = node.begin();
+        TunnelSession session;
+        try {
+            session = tunnel.getSession();
+
+        } catch (IOException e) {
+            node.failed(e);
+            throw e;
+        }
+        tunnel.exchangeAsync(session, tunnelRequest, RecordBatcher.MAX_DELAY_NANOS)
+                .whenComplete((tunnelResponse, e) -> {
+                    if (e == null) {
+                        node.succeeded(sent);
+                    } else {
+                        node.failed(e instanceof IOException ? (IOException) e : new IOException(e));
+                    }
+                    Metrics.TUNNEL_ROUND_TRIP.recordSince(sent);
+                    this.loop.execute(() -> this.onTunnelResponse(tunnel, session, tunnelResponse, e));
+                });
+        this.log("HTTP request encrypted and sent ({} bytes)", request.length);
+    }
+
+    /**
+     * Opens the tunnel asked by a CONNECT request in the blocking executor and hands the channel over to
+     * its relay, in the same event loop.
+     *
+     * @param requestReader The reader of the CONNECT request.
+     *
+     * @throws IOException if the target is not valid.
+     */
+    private void relayConnect(HttpMessageReader requestReader) throws IOException {
+        InetSocketAddress target = ChannelRelay.parseTarget(requestReader.getTarget());
+        byte[] request = requestReader.getHead();
+
+        this.blockingExecutor.execute(() -> {
+            try {
+                if (target.getHostString().equals(this.serverHost)) {
+                    TunnelClient.Flow flow = this.exitNodes.openTunnel(request);
+                    this.loop.execute(() -> {
+                        if (this.handOver()) {
+                            flow.relay(this.loop, this.channel, this.logSource)
+                                    .start(ChannelRelay.CONNECTION_ESTABLISHED);
+                        } else {
+                            flow.close();
+                        }
+                    });
+
+                } else {
+                    SocketChannel remote = ChannelRelay.connect(target.getHostString(), target.getPort());
+                    this.loop.execute(() -> {
+                        if (this.handOver()) {
+                            new ChannelRelay(this.loop, this.channel, remote, this.logSource)
+                                    .start(ChannelRelay.CONNECTION_ESTABLISHED);
+                        } else {
+                            this.closeQuietly(remote);
+                        }
+                    });
+                }
+                logger.log(Logger.Level.DEBUG, this.logSource, "CONNECT tunnel opened to \"{}\"",
+                        target.getHostString());
+
+            } catch (IOException | CipherException e) {
+                Metrics.ERRORS.increment();
+                logger.error("Error opening CONNECT tunnel to " + target, e);
+                this.write(ByteBuffer.wrap(ChannelRelay.BAD_GATEWAY));
+                this.closeAfterWrite();
+            }
+        });
+    }
+
+    /**
+     * Closes the channel of a tunnel not relayed.
+     *
+     * @param channel The channel.
+     */
+    private void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+
+        } catch (IOException e) {
+            logger.error("Error closing tunnel channel", e);
+        }
+    }
+
+    /**
+     * Decrypts the response received from the tunnel and writes it to the client.
+     *
+     * @param tunnel The tunnel of the exchange.
+     * @param session The session whose keys encrypted the exchange.
+     * @param tunnelResponse The frame of the server response or NULL if the exchange failed.
+     * @param error The error of the exchange or NULL if it succeeded.
+     */
+    private void onTunnelResponse(TunnelClient tunnel, TunnelSession session, Frame tunnelResponse, Throwable error) {
+        if (error != null) {
+            this.onError(error instanceof Exception ? (Exception) error : new IOException(error));
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            byte[] response = MessageCompressor.decompress(tunnel.open(session, tunnelResponse));
+            Metrics.CLIENT_DECRYPT.recordSince(start);
+            this.log("HTTP response received and decrypted ({} bytes)", response.length);
+
+            start = System.nanoTime();
+            this.write(ByteBuffer.wrap(response));
+            this.closeAfterWrite();
+            Metrics.CLIENT_WRITE.recordSince(start);
+            Metrics.RESPONSE_BYTES.add(response.length);
+
+        } catch (IOException | CipherException e) {
+            this.onError(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void onEndOfStream() {
+        if (!this.requestReceived) {
+            this.close();
+        }
+    }
+
+    /**
+     * Refuses the request with 503, since the memory budget cannot hold it.
+     */
+    protected void onOverload() {
+        Metrics.REJECTED.increment();
+        logger.log(Logger.Level.DEBUG, this.logSource, "Request refused, memory budget exhausted");
+        this.stopReading();
+        this.write(ByteBuffer.wrap(BodyBudget.SERVICE_UNAVAILABLE));
+        this.closeAfterWrite();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void onClose() {
+        this.log("Connection closed");
+    }
+
+    /**
+     * Log some message.
+     *
+     * @param message The message to log.
+     */
+    private void log(String message) {
+        logger.log(Logger.Level.DEBUG, this.logSource, message);
+    }
+
+    /**
+     * Log some message built from a format.
+     *
+     * @param format The message with a "{}" placeholder for the argument.
+     * @param arg The numeric argument.
+     */
+    private void log(String format, long arg) {
+        logger.log(Logger.Level.DEBUG, this.logSource, format, arg);
+    }
+
+}
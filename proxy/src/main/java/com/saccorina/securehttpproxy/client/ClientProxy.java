@@ -0,0 +1,183 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.Acceptors;
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.ConnectionPool;
+import com.saccorina.securehttpproxy.Engine;
+import com.saccorina.securehttpproxy.KeyExchange;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.MessageCompressor;
+import com.saccorina.securehttpproxy.TunnelEncoding;
+import com.saccorina.securehttpproxy.TunnelProtection;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.exception.SocketException;
+import com.saccorina.securehttpproxy.metrics.MetricsServer;
+import com.saccorina.securehttpproxy.nio.EventLoopGroup;
+import com.saccorina.securehttpproxy.nio.NioServer;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class provide a Secure HTTP Proxy in the client-side.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class ClientProxy {
+
+    static final boolean DEBUG = false;
+
+    /**
+     * The encoding used for frames in the tunnel with the server proxy.
+     */
+    static final TunnelEncoding TUNNEL_ENCODING = TunnelEncoding.configured();
+
+    /**
+     * The cipher mode used in the tunnel with the server proxy.
+     */
+    static final CipherMode CIPHER_MODE = CipherMode.configured();
+
+    /**
+     * The key exchange that establishes the sessions of the binary encoding.
+     */
+    static final KeyExchange KEY_EXCHANGE = KeyExchange.configured();
+
+    /**
+     * The protection of the traffic in the tunnel with the server proxy.
+     */
+    static final TunnelProtection TUNNEL_PROTECTION = TunnelProtection.configured();
+
+    /**
+     * The engine used to handle the client connections.
+     */
+    static final Engine ENGINE = Engine.configured();
+
+    /**
+     * The number of event loops of the non-blocking engine, 0 to use one for each processor.
+     */
+    private static final int ENGINE_THREADS = Configuration.getInt("engine.threads", 0);
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The host whose requests go through the tunnel.
+     */
+    private final String serverHost;
+
+    /**
+     * The exit nodes the tunnelled requests are balanced on.
+     */
+    private final ExitNodePool exitNodes;
+
+    /**
+     * Initialize the secure proxy client.
+     *
+     * @param serverHost The host whose requests go through the tunnel.
+     *
+     * @throws CipherException if an error occurs during key generation.
+     * @throws SocketException if an I/O error occurs during a legacy key exchange.
+     */
+    private ClientProxy(String serverHost) throws CipherException, SocketException {
+        this.serverHost = serverHost;
+        this.exitNodes  = ExitNodePool.configured(TUNNEL_ENCODING, CIPHER_MODE, MessageCompressor.configured());
+    }
+
+    /**
+     * Starts the proxy server in the client side.
+     *
+     * @param port The port number for the proxy server.
+     *
+     * @throws SocketException if a socket error occurs.
+     */
+    private void startServer(int port) throws SocketException {
+        ConnectionPool externalPool = new ConnectionPool("ExternalPool");
+        ResponseCache responseCache = ResponseCache.configured();
+
+        try {
+            // establish the sessions before accepting clients, as the legacy key exchange does
+            this.exitNodes.start();
+            MetricsServer.startConfigured("ClientProxy");
+
+            if (ENGINE == Engine.NIO) {
+                this.startNioServer(port, externalPool);
+                return;
+            }
+
+            // blocking channels, so that the connections can be handed over to the relays of CONNECT
+            ServerSocketChannel[] listeners = Acceptors.open(port, Acceptors.COUNT);
+            logger.log("[ClientProxy] Started on localhost, port " + port + " (" + listeners.length + " listeners, "
+                    + Acceptors.COUNT + " acceptors)");
+
+            ExecutorService connectionExecutor = ENGINE.newExecutor("ClientProxyConnection");
+            EventLoopGroup relayGroup = new EventLoopGroup("ClientProxy-relay", ENGINE_THREADS);
+
+            Acceptors.start("ClientProxy", listeners, Acceptors.COUNT, channel -> {
+                ClientProxyConnection connection = new ClientProxyConnection(
+                        channel.socket(),
+                        this.serverHost,
+                        this.exitNodes,
+                        externalPool,
+                        responseCache,
+                        relayGroup
+                );
+                connectionExecutor.execute(connection);
+            });
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts the proxy server in the client side with the non-blocking engine.
+     *
+     * @param port The port number for the proxy server.
+     * @param externalPool The pool of connections to external hosts.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void startNioServer(int port, ConnectionPool externalPool)
+            throws IOException
+    {
+        if (TUNNEL_ENCODING != TunnelEncoding.BINARY || TUNNEL_PROTECTION != TunnelProtection.MESSAGE) {
+            throw new IllegalStateException("The nio engine requires the binary tunnel encoding "
+                    + "and the per-message protection");
+        }
+
+        EventLoopGroup group = new EventLoopGroup("ClientProxy-loop", ENGINE_THREADS);
+        ExecutorService blockingExecutor = ENGINE.newExecutor("ClientProxy-blocking");
+
+        NioServer server = new NioServer(port, Acceptors.COUNT, group, (channel, loop) -> new ClientNioConnection(
+                channel,
+                loop,
+                this.serverHost,
+                this.exitNodes,
+                blockingExecutor,
+                externalPool
+        ));
+        server.start();
+        logger.log("[ClientProxy] Started on localhost, port " + port + " (" + group.size() + " event loops, "
+                + server.getListenerCount() + " listeners)");
+    }
+
+    /**
+     * ClientProxy application entry-point.
+     *
+     * @param args Console arguments.
+     */
+    public static void main(String[] args) {
+        try {
+            ClientProxy client = new ClientProxy("localhost");
+            client.startServer(1234);
+
+        } catch (Throwable e) {
+            Logger.getInstance().error("FATAL ERROR", e);
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,462 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.BodyBudget;
+import com.saccorina.securehttpproxy.CaptureOutputStream;
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.ConnectionPool;
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.HttpCaching;
+import com.saccorina.securehttpproxy.HttpInputStream;
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.MessageCompressor;
+import com.saccorina.securehttpproxy.TunnelProtection;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+import com.saccorina.securehttpproxy.nio.ChannelRelay;
+import com.saccorina.securehttpproxy.nio.EventLoop;
+import com.saccorina.securehttpproxy.nio.EventLoopGroup;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Handler class for the connection between real-client and proxy-client.
+ *
+ * A CONNECT request hands the connection over to a relay on an event loop, so that a long-lived tunnel
+ * (usually TLS) doesn't hold a thread. The tunnel goes through the server proxy when its target is the
+ * server host, and directly to the target otherwise.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class ClientProxyConnection implements Runnable {
+
+    /**
+     * The time in milliseconds an idle client connection is kept open.
+     */
+    private static final int KEEP_ALIVE_TIMEOUT = Configuration.getInt("keepAlive.timeout", 15000);
+
+    /**
+     * The maximum number of requests served in a client connection.
+     */
+    private static final int KEEP_ALIVE_MAX_REQUESTS = Configuration.getInt("keepAlive.maxRequests", 100);
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The socket used for the proxy connection with the local client.
+     */
+    private Socket socket;
+
+    /**
+     * The server host.
+     */
+    private final String serverHost;
+
+    /**
+     * The exit nodes the tunnelled requests are balanced on.
+     */
+    private final ExitNodePool exitNodes;
+
+    /**
+     * The pool of connections to external hosts.
+     */
+    private final ConnectionPool externalPool;
+
+    /**
+     * The cache of the responses or NULL if disabled.
+     */
+    private final ResponseCache responseCache;
+
+    /**
+     * The event loops of the relays of the CONNECT tunnels.
+     */
+    private final EventLoopGroup relayGroup;
+
+    /**
+     * Whether the connection has been handed over to a relay, which closes it.
+     */
+    private boolean relayed;
+
+    /**
+     * The source of the log messages of the connection.
+     */
+    private final String logSource;
+
+    /**
+     * Initialize a proxy connection.
+     *
+     * @param proxySocket The socket used for the proxy connection.
+     * @param serverHost The server host.
+     * @param exitNodes The exit nodes the tunnelled requests are balanced on.
+     * @param externalPool The pool of connections to external hosts.
+     * @param responseCache The cache of the responses or NULL if disabled.
+     * @param relayGroup The event loops of the relays of the CONNECT tunnels.
+     */
+    ClientProxyConnection(Socket proxySocket,
+                          String serverHost,
+                          ExitNodePool exitNodes,
+                          ConnectionPool externalPool,
+                          ResponseCache responseCache,
+                          EventLoopGroup relayGroup)
+    {
+        this.socket        = proxySocket;
+        this.serverHost    = serverHost;
+        this.exitNodes     = exitNodes;
+        this.externalPool  = externalPool;
+        this.responseCache = responseCache;
+        this.relayGroup    = relayGroup;
+        this.logSource     = "ClientProxy@" + proxySocket.getInetAddress().getHostAddress();
+
+        this.log("Connection established");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        Metrics.ACTIVE_CONNECTIONS.increment();
+        try {
+            HttpInputStream in = new HttpInputStream(this.socket.getInputStream());
+            OutputStream out = this.socket.getOutputStream();
+            this.socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+
+            // serve the requests of the client until one side closes the connection
+            int requests = 0;
+            boolean keepAlive = true;
+            while (keepAlive && requests < KEEP_ALIVE_MAX_REQUESTS && this.awaitRequest(in)) {
+                keepAlive = this.handleRequest(in, out);
+                requests++;
+            }
+
+        } catch (IOException | CipherException e) {
+            Metrics.ERRORS.increment();
+            logger.error("Error in client-proxy communication", e);
+
+        } finally {
+            Metrics.ACTIVE_CONNECTIONS.decrement();
+            if (this.relayed) return;
+            try {
+                this.socket.close();
+                this.log("Connection closed");
+
+            } catch (IOException e) {
+                logger.error("Error closing proxy socket", e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the client starts sending a new request.
+     *
+     * @param in The input stream of the client socket.
+     * @return Returns FALSE if the client closed the connection or the idle timeout expired.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private boolean awaitRequest(HttpInputStream in) throws IOException {
+        try {
+            return in.peek() != -1;
+
+        } catch (SocketTimeoutException e) {
+            this.log("Idle timeout expired");
+            return false;
+        }
+    }
+
+    /**
+     * Handles a request of the client.
+     *
+     * @param in The input stream of the client socket.
+     * @param out The output stream of the client socket.
+     * @return Returns TRUE if the connection can be used for another request.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws CipherException if an error occurs during encryption or decryption.
+     */
+    private boolean handleRequest(HttpInputStream in, OutputStream out) throws IOException, CipherException {
+        // retrieve the request from the client
+        long start = System.nanoTime();
+        boolean perFlow = ClientProxy.TUNNEL_PROTECTION == TunnelProtection.FLOW;
+        HttpMessageReader requestReader = new HttpMessageReader(in, false);
+        String requestedHost = requestReader.getHost();
+        Metrics.CLIENT_PARSE.recordSince(start);
+        Metrics.REQUESTS.increment();
+
+        if (requestReader.isConnect()) {
+            return this.relayConnect(requestReader, out);
+        }
+
+        // answer from the cache or make the request conditional on the stale response
+        boolean cacheable = this.responseCache != null && HttpCaching.isCacheable(requestReader);
+        ResponseCache.Entry cached = null;
+        if (cacheable) {
+            cached = this.responseCache.lookup(requestReader);
+            byte[] response = cached == null ? null : this.responseCache.serve(cached, requestReader);
+            if (response != null) {
+                requestReader.transferPayload(OutputStream.nullOutputStream());
+                start = System.nanoTime();
+                out.write(response);
+                out.flush();
+                Metrics.CLIENT_WRITE.recordSince(start);
+                Metrics.RESPONSE_BYTES.add(response.length);
+                this.log("HTTP response served from cache ({} bytes)", response.length);
+                return requestReader.isKeepAlive() && cached.isPersistent();
+            }
+            if (cached != null && !cached.hasValidators()) {
+                cached = null;
+            }
+        } else if (this.responseCache != null && HttpCaching.isUnsafe(requestReader)) {
+            this.responseCache.invalidate(requestReader);
+        }
+
+        if (perFlow && requestedHost != null && requestedHost.equals(this.serverHost)) {
+            return this.relayFlow(requestReader, out, cacheable, cached) && requestReader.isKeepAlive();
+        }
+
+        // the whole message is held to be encrypted at once: admit it only within the memory budget, reading
+        // the payload (spilled if large) only when its length is not declared
+        long length = requestReader.getDeclaredLength();
+        if (length == -1) {
+            length = requestReader.getMessageLength();
+        }
+        long footprint = requestedHost != null && requestedHost.equals(this.serverHost)
+                ? BodyBudget.protectedFootprint(length, ClientProxy.TUNNEL_ENCODING) : length;
+        if (!BodyBudget.tryAcquire(footprint)) {
+            Metrics.REJECTED.increment();
+            this.log("Request refused, memory budget exhausted ({} bytes)", length);
+            out.write(BodyBudget.SERVICE_UNAVAILABLE);
+            out.flush();
+            return false;
+        }
+        try {
+            return this.forwardMessage(requestReader, requestedHost, out, cacheable, cached);
+
+        } finally {
+            BodyBudget.release(footprint);
+        }
+    }
+
+    /**
+     * Forwards the entire request to the server proxy or to an external host, and its response back.
+     *
+     * @param requestReader The reader of the client request.
+     * @param requestedHost The host of the request.
+     * @param out The output stream of the client socket.
+     * @param cacheable Whether the response may be stored in the cache.
+     * @param cached The stale response to revalidate or NULL.
+     * @return Returns TRUE if the connection can be used for another request.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws CipherException if an error occurs during encryption or decryption.
+     */
+    private boolean forwardMessage(HttpMessageReader requestReader, String requestedHost, OutputStream out,
+                                   boolean cacheable, ResponseCache.Entry cached) throws IOException, CipherException
+    {
+        long start;
+
+        byte[] request = cached == null ? requestReader.getMessage()
+                : ResponseCache.conditionalRequest(requestReader.getMessage(), cached);
+        if (ClientProxy.DEBUG) {
+            System.out.println("--- CLIENT REQUEST ---");
+            System.out.println(new String(request));
+            System.out.println("--- CLIENT REQUEST ---");
+        }
+
+        byte[] response;
+        if (requestedHost != null && requestedHost.equals(this.serverHost)) {
+            ExitNodePool.Node node = this.exitNodes.select();
+            TunnelClient tunnel = node.getTunnel();
+            MessageCompressor compressor = tunnel.getCompressor();
+            byte[] tunnelRequest = compressor == null ? request : compressor.compress(request);
+
+            start = node.begin();
+            TunnelSession session;
+            Frame tunnelResponse;
+            try {
+                session = tunnel.getSession();
+                tunnelResponse = tunnel.exchange(session, tunnelRequest);
+
+            } catch (IOException e) {
+                node.failed(e);
+                throw e;
+            }
+            node.succeeded(start);
+            Metrics.TUNNEL_ROUND_TRIP.recordSince(start);
+            this.log("HTTP request encrypted and sent ({} bytes)", request.length);
+
+            start = System.nanoTime();
+            response = MessageCompressor.decompress(tunnel.open(session, tunnelResponse));
+            Metrics.CLIENT_DECRYPT.recordSince(start);
+            this.log("HTTP response received and decrypted ({} bytes)", response.length);
+
+        } else {
+            this.log("HTTP request sent to external host \"{}\"", requestedHost);
+            response = this.externalPool.exchange(requestedHost, 80, request);
+            this.log("HTTP response received from external host \"{}\"", requestedHost);
+        }
+
+        if (ClientProxy.DEBUG) {
+            System.out.println("--- SERVER RESPONSE ---");
+            System.out.println(new String(response));
+            System.out.println("--- SERVER RESPONSE ---");
+        }
+
+        HttpMessageReader responseHead = new HttpMessageReader(new ByteArrayInputStream(response), false,
+                requestReader.getMethod());
+        if (cached != null && responseHead.getStatus() == 304) {
+            cached = this.responseCache.revalidate(cached, responseHead);
+            response = this.responseCache.serve(cached);
+            responseHead = new HttpMessageReader(new ByteArrayInputStream(response), false,
+                    requestReader.getMethod());
+            this.log("HTTP response revalidated in cache");
+
+        } else if (cacheable) {
+            this.responseCache.store(requestReader, response);
+        }
+
+        start = System.nanoTime();
+        out.write(response);
+        out.flush();
+        Metrics.CLIENT_WRITE.recordSince(start);
+        Metrics.REQUEST_BYTES.add(request.length);
+        Metrics.RESPONSE_BYTES.add(response.length);
+
+        return requestReader.isKeepAlive() && responseHead.isKeepAlive() && !responseHead.isCloseDelimited();
+    }
+
+    /**
+     * Opens the tunnel asked by a CONNECT request and hands the connection over to its relay.
+     *
+     * @param requestReader The reader of the CONNECT request.
+     * @param out The output stream of the client socket.
+     * @return Returns FALSE, since the connection is not used for other requests.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    private boolean relayConnect(HttpMessageReader requestReader, OutputStream out)
+            throws IOException, CipherException
+    {
+        InetSocketAddress target = ChannelRelay.parseTarget(requestReader.getTarget());
+        EventLoop loop = this.relayGroup.next();
+        try {
+            if (target.getHostString().equals(this.serverHost)) {
+                TunnelClient.Flow flow = this.exitNodes.openTunnel(requestReader.getHead());
+                this.log("CONNECT tunnel opened through the server proxy to port {}", target.getPort());
+                flow.relay(loop, this.socket.getChannel(), this.logSource)
+                        .start(ChannelRelay.CONNECTION_ESTABLISHED);
+
+            } else {
+                SocketChannel remote = ChannelRelay.connect(target.getHostString(), target.getPort());
+                this.log("CONNECT tunnel opened to external host \"{}\"", target.getHostString());
+                new ChannelRelay(loop, this.socket.getChannel(), remote, this.logSource)
+                        .start(ChannelRelay.CONNECTION_ESTABLISHED);
+            }
+            this.relayed = true;
+
+        } catch (IOException e) {
+            Metrics.ERRORS.increment();
+            logger.error("Error opening CONNECT tunnel to " + requestReader.getTarget(), e);
+            out.write(ChannelRelay.BAD_GATEWAY);
+            out.flush();
+        }
+        return false;
+    }
+
+    /**
+     * Streams the request in the tunnel and the response back to the client, record by record.
+     *
+     * @param requestReader The reader of the client request, with the payload not buffered.
+     * @param out The output stream of the client socket.
+     * @param cacheable Whether the response may be stored in the cache.
+     * @param cached The stale response to revalidate or NULL.
+     * @return Returns TRUE if the response allows to reuse the connection.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    private boolean relayFlow(HttpMessageReader requestReader, OutputStream out, boolean cacheable,
+                              ResponseCache.Entry cached) throws IOException, CipherException
+    {
+        try (TunnelClient.Flow flow = this.exitNodes.openFlow()) {
+            OutputStream tunnelOut = flow.getOutputStream();
+            tunnelOut.write(cached == null ? requestReader.getHead()
+                    : ResponseCache.conditionalRequest(requestReader.getHead(), cached));
+            long requestLength = requestReader.transferPayload(tunnelOut);
+            tunnelOut.close();
+            Metrics.REQUEST_BYTES.add(requestReader.getHead().length + requestLength);
+            this.log("HTTP request encrypted and streamed ({} payload bytes)", requestLength);
+
+            long start = System.nanoTime();
+            HttpMessageReader responseReader = new HttpMessageReader(flow.getInputStream(), false,
+                    requestReader.getMethod());
+            Metrics.TUNNEL_ROUND_TRIP.recordSince(start);
+            if (cached != null && responseReader.getStatus() == 304) {
+                responseReader.transferPayload(OutputStream.nullOutputStream());
+                cached = this.responseCache.revalidate(cached, responseReader);
+                out.write(this.responseCache.serve(cached));
+                out.flush();
+                this.log("HTTP response revalidated in cache");
+                return cached.isPersistent();
+            }
+
+            // keep a copy of the response while streaming it, if it can be stored
+            CaptureOutputStream capture = cacheable && this.responseCache.isStorable(requestReader, responseReader)
+                    ? new CaptureOutputStream(out, this.responseCache.getMaxEntrySize()) : null;
+            OutputStream target = capture == null ? out : capture;
+            start = System.nanoTime();
+            target.write(responseReader.getHead());
+            long responseLength = responseReader.transferPayload(target);
+            out.flush();
+            Metrics.CLIENT_WRITE.recordSince(start);
+            Metrics.RESPONSE_BYTES.add(responseReader.getHead().length + responseLength);
+            this.log("HTTP response streamed and decrypted ({} payload bytes)", responseLength);
+
+            byte[] response = capture == null ? null : capture.toByteArray();
+            if (response != null) {
+                this.responseCache.store(requestReader, response);
+            }
+
+            return responseReader.isKeepAlive() && !responseReader.isCloseDelimited();
+        }
+    }
+
+    /**
+     * Log some message.
+     *
+     * @param message The message to log.
+     */
+    private void log(String message) {
+        logger.log(Logger.Level.DEBUG, this.logSource, message);
+    }
+
+    /**
+     * Log some message built from a format.
+     *
+     * @param format The message with a "{}" placeholder for the argument.
+     * @param arg The argument.
+     */
+    private void log(String format, Object arg) {
+        logger.log(Logger.Level.DEBUG, this.logSource, format, arg);
+    }
+
+    /**
+     * Log some message built from a format.
+     *
+     * @param format The message with a "{}" placeholder for the argument.
+     * @param arg The numeric argument.
+     */
+    private void log(String format, long arg) {
+        logger.log(Logger.Level.DEBUG, this.logSource, format, arg);
+    }
+
+}
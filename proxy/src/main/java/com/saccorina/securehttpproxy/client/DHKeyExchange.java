@@ -0,0 +1,173 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.FrameReader;
+import com.saccorina.securehttpproxy.FrameWriter;
+import com.saccorina.securehttpproxy.KeyExchange;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.TunnelEncoding;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.exception.SocketException;
+
+import javax.crypto.KeyAgreement;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * This class performs a Diffie-Hellman Key Exchange from the client side, with finite-field parameters
+ * or on Curve25519.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class DHKeyExchange {
+
+    private static final Logger logger = Logger.getInstance();
+
+    private final KeyExchange keyExchange;
+
+    private KeyAgreement keyAgreement;
+
+    private byte[] secretKey;
+
+    /**
+     * Initialize a finite-field Diffie-Hellman Key Exchange.
+     */
+    DHKeyExchange() {
+        this(KeyExchange.DH);
+    }
+
+    /**
+     * Initialize a Diffie-Hellman Key Exchange.
+     *
+     * @param keyExchange The algorithm of the key exchange.
+     */
+    DHKeyExchange(KeyExchange keyExchange) {
+        this.keyExchange = keyExchange;
+    }
+
+    /**
+     * Create a key pair for this entity.
+     *
+     * @return Returns the key pair for this entity.
+     *
+     * @throws CipherException if an error occurs.
+     */
+    private KeyPair createKeyPair() throws CipherException {
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(this.keyExchange.getAlgorithm());
+            if (this.keyExchange == KeyExchange.DH) {
+                keyPairGenerator.initialize(2048);
+            }
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+            this.keyAgreement = KeyAgreement.getInstance(this.keyExchange.getAlgorithm());
+            this.keyAgreement.init(keyPair.getPrivate());
+
+            logger.log("[DHKeyExchange] Key pair created");
+            return keyPair;
+
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new CipherException("Error during key pair creation: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Performs the Diffie-Hellman Key Exchange.
+     *
+     * @param host The host of the secondary entity.
+     * @param port The port of the secondary entity.
+     *
+     * @throws CipherException if an error occurs during key generation.
+     * @throws SocketException if an I/O error occurs during the exchange.
+     */
+    void performsKeyExchange(String host, int port) throws CipherException, SocketException {
+        // connect to the other entity
+        logger.log("[DHKeyExchange] Connecting to the server...");
+        try (Socket socket = new Socket(host, port)) {
+            this.performsKeyExchange(socket);
+
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Performs the Diffie-Hellman Key Exchange on a connected socket, left open.
+     *
+     * @param socket The socket connected to the secondary entity.
+     *
+     * @throws CipherException if an error occurs during key generation.
+     * @throws SocketException if an I/O error occurs during the exchange.
+     */
+    void performsKeyExchange(Socket socket) throws CipherException, SocketException {
+        try {
+            // send public key, in hexadecimal lines as the key exchange always did
+            FrameWriter out = new FrameWriter(socket.getOutputStream(), TunnelEncoding.HEX);
+            out.write(new Frame(Frame.TYPE_MESSAGE, 0, this.createPublicKey()));
+            logger.log("[DHKeyExchange] Personal public key sent");
+
+            // receive other public key
+            Frame otherPublicKeyFrame = new FrameReader(socket.getInputStream(), TunnelEncoding.HEX).read();
+            if (otherPublicKeyFrame == null) {
+                throw new IOException("Connection closed by the server during the key exchange");
+            }
+            this.complete(otherPublicKeyFrame.getPayload());
+
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts the Diffie-Hellman Key Exchange.
+     *
+     * @return Returns the X.509 encoded public key of this entity, to be sent to the other one.
+     *
+     * @throws CipherException if an error occurs during key generation.
+     */
+    byte[] createPublicKey() throws CipherException {
+        // create a key pair (private/public)
+        return this.createKeyPair().getPublic().getEncoded();
+    }
+
+    /**
+     * Completes the Diffie-Hellman Key Exchange with the public key of the other entity.
+     *
+     * @param otherPublicKeyEnc The X.509 encoded public key of the other entity.
+     *
+     * @throws CipherException if the public key is not valid.
+     */
+    void complete(byte[] otherPublicKeyEnc) throws CipherException {
+        try {
+            // decode other public key
+            KeyFactory keyFactory = KeyFactory.getInstance(this.keyExchange.getAlgorithm());
+            X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(otherPublicKeyEnc);
+            PublicKey otherPublicKey = keyFactory.generatePublic(x509KeySpec);
+            logger.log("[DHKeyExchange] Other public key received");
+
+            // the DH key agreement protocol is completed
+            this.keyAgreement.doPhase(otherPublicKey, true);
+
+            // generate the shared secret
+            this.secretKey = this.keyAgreement.generateSecret();
+            logger.log("[DHKeyExchange] Secret key generated");
+
+        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidKeySpecException e) {
+            throw new CipherException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the generated shared secret key.
+     *
+     * @return Returns the shared secret key.
+     */
+    byte[] getSecretKey() {
+        return this.secretKey;
+    }
+
+}
@@ -0,0 +1,403 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.FlowCipher;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.MessageCompressor;
+import com.saccorina.securehttpproxy.TunnelEncoding;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.exception.SocketException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The exit nodes P2 the requests are balanced on, each one with its own tunnel and session keys.
+ *
+ * Each request picks two healthy nodes at random and goes to the one with the lower cost, the average
+ * latency of the node times its outstanding requests plus one: a slow node gets fewer requests, without
+ * the herding of always choosing the best one. The latency is an exponentially weighted moving average
+ * of the exchanges and of the health probes, seeded by the first handshake; between two nodes of which
+ * one has no sample yet, the one with fewer outstanding requests is chosen.
+ *
+ * A node is ejected after {@link #MAX_FAILURES} consecutive failures of requests or probes, and restored
+ * by the first probe that succeeds. When all the nodes are ejected the requests go to any of them, so
+ * that they fail fast rather than wait.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class ExitNodePool {
+
+    /**
+     * The time in milliseconds between two health probes of a node.
+     */
+    private static final int PROBE_INTERVAL = Configuration.getInt("exitNodes.probeInterval", 5000);
+
+    /**
+     * The maximum time in milliseconds to wait for the answer to a health probe.
+     */
+    private static final int PROBE_TIMEOUT = Configuration.getInt("exitNodes.probeTimeout", 2000);
+
+    /**
+     * The number of consecutive failures that ejects a node.
+     */
+    private static final int MAX_FAILURES = Math.max(1, Configuration.getInt("exitNodes.maxFailures", 3));
+
+    /**
+     * The weight of the previous average in the latency average, as a right shift: 1/8 for a new sample.
+     */
+    private static final int EWMA_SHIFT = 3;
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The exit nodes.
+     */
+    private final Node[] nodes;
+
+    /**
+     * The executor of the health probes.
+     */
+    private final ScheduledExecutorService prober;
+
+    /**
+     * Initialize the pool.
+     *
+     * @param tunnels The tunnels with the exit nodes.
+     */
+    private ExitNodePool(List<TunnelClient> tunnels) {
+        this.nodes = new Node[tunnels.size()];
+        for (int i = 0; i < this.nodes.length; i++) {
+            this.nodes[i] = new Node(tunnels.get(i));
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        this.prober = Executors.newScheduledThreadPool(Math.min(this.nodes.length, 4), task -> {
+            Thread thread = new Thread(task, "ExitNodePool-probe-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates the pool of the exit nodes listed in the "exitNodes" setting, "localhost:4321" by default.
+     *
+     * In the legacy hexadecimal encoding the key exchange is performed with each node before returning.
+     *
+     * @param encoding The encoding used for frames.
+     * @param mode The cipher mode used in the tunnels.
+     * @param compressor The compressor of the messages or NULL if the compression is off.
+     * @return Returns the pool.
+     *
+     * @throws CipherException if an error occurs during key generation.
+     * @throws SocketException if an I/O error occurs during a legacy key exchange.
+     */
+    static ExitNodePool configured(TunnelEncoding encoding, CipherMode mode, MessageCompressor compressor)
+            throws CipherException, SocketException
+    {
+        List<TunnelClient> tunnels = new ArrayList<>();
+        for (String address : Configuration.getString("exitNodes", "localhost:4321").split(",")) {
+            address = address.trim();
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid exit node: " + address);
+            }
+            String host = address.substring(0, colon);
+            int port = Integer.parseInt(address.substring(colon + 1));
+
+            TunnelSession legacySession = null;
+            if (encoding == TunnelEncoding.HEX) {
+                DHKeyExchange dhKeyExchange = new DHKeyExchange();
+                dhKeyExchange.performsKeyExchange(host, port);
+                legacySession = new TunnelSession(new byte[TunnelSession.ID_LENGTH], dhKeyExchange.getSecretKey(),
+                        null, mode, FlowCipher.CLIENT_TO_SERVER, false);
+            }
+            tunnels.add(new TunnelClient(host, port, encoding, mode, legacySession, compressor));
+        }
+        return new ExitNodePool(tunnels);
+    }
+
+    /**
+     * Establishes the sessions with the nodes and starts their health probes.
+     *
+     * @throws IOException if no node can be reached.
+     */
+    void start() throws IOException {
+        IOException failure = null;
+        int reachable = 0;
+        for (Node node : this.nodes) {
+            try {
+                // the handshake seeds the latency, before the first request or probe
+                long start = System.nanoTime();
+                node.tunnel.getSession();
+                node.record(System.nanoTime() - start);
+                reachable++;
+
+            } catch (IOException e) {
+                failure = e;
+                node.eject(e);
+            }
+            this.prober.scheduleWithFixedDelay(node::probe, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        if (reachable == 0) {
+            throw failure;
+        }
+        logger.log("[ExitNodePool] " + reachable + " of " + this.nodes.length + " exit nodes reachable");
+    }
+
+    /**
+     * Picks the node of a request with the power of two choices among the healthy ones.
+     *
+     * @return Returns the node, whose outcome must be reported with {@link Node#succeeded(long)} or
+     *         {@link Node#failed(IOException)} once {@link Node#begin()} has been called.
+     */
+    Node select() {
+        if (this.nodes.length == 1) {
+            return this.nodes[0];
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Node first = this.pickHealthy(random);
+        Node second = this.pickHealthy(random);
+        if (first == null) {
+            return this.nodes[random.nextInt(this.nodes.length)];
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.latency.get() == 0 || second.latency.get() == 0) {
+            // without a latency sample the cost would be 0, the outstanding requests alone decide
+            return first.outstanding.get() <= second.outstanding.get() ? first : second;
+        }
+        return first.cost() <= second.cost() ? first : second;
+    }
+
+    /**
+     * Opens a flow with a node, for the per-flow protection.
+     *
+     * The flow is not timed, since it lasts as long as the client sends and receives bytes.
+     *
+     * @return Returns the flow.
+     *
+     * @throws IOException if the tunnel with the node fails.
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    TunnelClient.Flow openFlow() throws IOException, CipherException {
+        return this.open(null);
+    }
+
+    /**
+     * Opens the flow of a CONNECT tunnel with a node, sending the CONNECT request.
+     *
+     * @param request The head of the CONNECT request.
+     * @return Returns the flow.
+     *
+     * @throws IOException if the tunnel with the node fails.
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    TunnelClient.Flow openTunnel(byte[] request) throws IOException, CipherException {
+        return this.open(request);
+    }
+
+    /**
+     * Opens a flow with the selected node, counting it as outstanding while it is being opened.
+     *
+     * @param request The head of the CONNECT request or NULL for a plain flow.
+     * @return Returns the flow.
+     *
+     * @throws IOException if the tunnel with the node fails.
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    private TunnelClient.Flow open(byte[] request) throws IOException, CipherException {
+        Node node = this.select();
+        node.outstanding.incrementAndGet();
+        try {
+            TunnelClient.Flow flow = request == null ? node.tunnel.openFlow() : node.tunnel.openTunnel(request);
+            node.failures.set(0);
+            return flow;
+
+        } catch (IOException e) {
+            node.countFailure(e);
+            throw e;
+
+        } finally {
+            node.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Picks a healthy node at random.
+     *
+     * @param random The random generator.
+     * @return Returns a healthy node or NULL if all the nodes are ejected.
+     */
+    private Node pickHealthy(ThreadLocalRandom random) {
+        int start = random.nextInt(this.nodes.length);
+        for (int i = 0; i < this.nodes.length; i++) {
+            Node node = this.nodes[(start + i) % this.nodes.length];
+            if (node.healthy) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An exit node with its tunnel, load and health.
+     */
+    class Node {
+
+        /**
+         * The tunnel with the node.
+         */
+        private final TunnelClient tunnel;
+
+        /**
+         * The number of requests sent to the node and not completed yet.
+         */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /**
+         * The moving average of the latency in nanoseconds, 0 before the first sample.
+         */
+        private final AtomicLong latency = new AtomicLong();
+
+        /**
+         * The number of consecutive failures.
+         */
+        private final AtomicInteger failures = new AtomicInteger();
+
+        /**
+         * Whether the node receives requests.
+         */
+        private volatile boolean healthy = true;
+
+        private Node(TunnelClient tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        /**
+         * Retrieves the tunnel with the node.
+         *
+         * @return Returns the tunnel.
+         */
+        TunnelClient getTunnel() {
+            return this.tunnel;
+        }
+
+        /**
+         * Counts a request sent to the node.
+         *
+         * @return Returns the start time of the request, from {@link System#nanoTime()}.
+         */
+        long begin() {
+            this.outstanding.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * Reports a request completed by the node.
+         *
+         * @param start The start time returned by {@link #begin()}.
+         */
+        void succeeded(long start) {
+            this.outstanding.decrementAndGet();
+            this.record(System.nanoTime() - start);
+            this.failures.set(0);
+        }
+
+        /**
+         * Reports a request failed by the node.
+         *
+         * @param e The exception thrown.
+         */
+        void failed(IOException e) {
+            this.outstanding.decrementAndGet();
+            this.countFailure(e);
+        }
+
+        /**
+         * Counts a consecutive failure, ejecting the node when they are too many.
+         *
+         * @param e The exception thrown.
+         */
+        private void countFailure(IOException e) {
+            if (this.failures.incrementAndGet() >= MAX_FAILURES || !this.healthy) {
+                this.eject(e);
+            }
+        }
+
+        /**
+         * Computes the expected cost of a new request.
+         *
+         * @return Returns the average latency times the outstanding requests plus one.
+         */
+        private long cost() {
+            return this.latency.get() * (this.outstanding.get() + 1);
+        }
+
+        /**
+         * Adds a latency sample to the moving average.
+         *
+         * @param nanos The latency in nanoseconds.
+         */
+        private void record(long nanos) {
+            long average;
+            long updated;
+            do {
+                average = this.latency.get();
+                updated = average == 0 ? nanos : average + ((nanos - average) >> EWMA_SHIFT);
+            } while (!this.latency.compareAndSet(average, updated));
+        }
+
+        /**
+         * Stops sending requests to the node until a probe succeeds.
+         *
+         * @param cause The exception of the last failure.
+         */
+        private void eject(IOException cause) {
+            if (this.healthy) {
+                this.healthy = false;
+                logger.log("[ExitNodePool] Exit node " + this.tunnel.getAddress() + " ejected: " + cause.getMessage());
+            }
+        }
+
+        /**
+         * Probes the node, restoring it if it answers.
+         */
+        private void probe() {
+            long start = System.nanoTime();
+            try {
+                this.tunnel.ping(PROBE_TIMEOUT);
+                this.record(System.nanoTime() - start);
+                this.failures.set(0);
+                if (!this.healthy) {
+                    this.healthy = true;
+                    logger.log("[ExitNodePool] Exit node " + this.tunnel.getAddress() + " restored");
+                }
+
+            } catch (IOException e) {
+                this.countFailure(e);
+
+            } catch (RuntimeException e) {
+                // a scheduled task that throws is never run again
+                logger.error("Error probing exit node " + this.tunnel.getAddress(), e);
+            }
+        }
+
+    }
+
+}
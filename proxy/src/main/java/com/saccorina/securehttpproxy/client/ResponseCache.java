@@ -0,0 +1,749 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.HttpCaching;
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import com.saccorina.securehttpproxy.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared HTTP cache of the responses received by the client proxy, following the semantics of RFC 9111.
+ *
+ * Complete responses to GET requests are stored by absolute URI and by the values of the request headers
+ * listed in Vary. Fresh responses are served without contacting the server, stale ones are revalidated
+ * with a conditional request when they carry a validator. The stored bytes are bounded by a memory budget
+ * and the least recently used responses are evicted first.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class ResponseCache {
+
+    /**
+     * The headers of a 304 response that must not replace the stored ones.
+     */
+    private static final String[] NOT_UPDATED_HEADERS = {
+            "Connection", "Keep-Alive", "Content-Length", "Transfer-Encoding", HttpCaching.HEADER_AGE
+    };
+
+    /**
+     * The maximum number of variants stored for the same URI.
+     */
+    private static final int MAX_VARIANTS = 4;
+
+    /**
+     * The period in milliseconds of the statistics log.
+     */
+    private static final long STATISTICS_PERIOD = 60000;
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The maximum number of bytes of the stored responses.
+     */
+    private final long maxBytes;
+
+    /**
+     * The maximum size in bytes of a single stored response.
+     */
+    private final int maxEntrySize;
+
+    /**
+     * The lock guarding the entries and their size.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The variants of the stored responses by URI, least recently used first.
+     */
+    private final LinkedHashMap<String, List<Entry>> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    /**
+     * The number of bytes of the stored responses.
+     */
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * The number of lookups at the last statistics log.
+     */
+    private long loggedLookups;
+
+    /**
+     * Creates the cache with the settings prefixed by "cache.".
+     *
+     * @return Returns the cache or NULL if it is disabled with a budget of 0 bytes.
+     */
+    static ResponseCache configured() {
+        int maxBytes = Configuration.getInt("cache.maxBytes", 64 * 1024 * 1024);
+        if (maxBytes <= 0) {
+            return null;
+        }
+        return new ResponseCache(maxBytes, Configuration.getInt("cache.maxEntrySize", 8 * 1024 * 1024));
+    }
+
+    /**
+     * Initialize the cache and start the statistics log.
+     *
+     * @param maxBytes The maximum number of bytes of the stored responses.
+     * @param maxEntrySize The maximum size in bytes of a single stored response.
+     */
+    ResponseCache(long maxBytes, int maxEntrySize) {
+        this.maxBytes     = maxBytes;
+        this.maxEntrySize = (int) Math.min(maxEntrySize, maxBytes);
+
+        ScheduledExecutorService statistics = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ResponseCache-statistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        statistics.scheduleWithFixedDelay(this::logStatistics, STATISTICS_PERIOD, STATISTICS_PERIOD,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finds the stored response matching a cacheable request.
+     *
+     * @param request The client request.
+     * @return Returns the stored response, fresh or stale, or NULL if there is none.
+     */
+    Entry lookup(HttpMessageReader request) {
+        String key = HttpCaching.key(request);
+        Entry match = null;
+
+        this.lock.lock();
+        try {
+            List<Entry> variants = this.entries.get(key);
+            if (variants != null) {
+                for (Entry entry : variants) {
+                    if (entry.matches(request)) {
+                        match = entry;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (match == null) {
+            this.misses.increment();
+        }
+        return match;
+    }
+
+    /**
+     * Builds the response to a request from a stored response, if it is fresh enough for the request.
+     *
+     * @param entry The stored response found by {@link #lookup(HttpMessageReader)}.
+     * @param request The client request.
+     * @return Returns the response with the Age header or NULL if the stored response must be revalidated.
+     */
+    byte[] serve(Entry entry, HttpMessageReader request) {
+        long now = System.currentTimeMillis();
+        long age = entry.currentAge(now);
+
+        boolean fresh = age < entry.lifetime;
+        if (fresh) {
+            Map<String, String> directives = HttpCaching.directives(request);
+            fresh = !HttpCaching.isNoCache(request)
+                    && age <= HttpCaching.seconds(directives, "max-age", Long.MAX_VALUE)
+                    && entry.lifetime - age >= HttpCaching.seconds(directives, "min-fresh", 0);
+        }
+        if (!fresh) {
+            this.misses.increment();
+            return null;
+        }
+
+        this.hits.increment();
+        return entry.toResponse(now);
+    }
+
+    /**
+     * Builds the response of a stored response revalidated by the server.
+     *
+     * @param entry The stored response.
+     * @return Returns the response with the Age header.
+     */
+    byte[] serve(Entry entry) {
+        return entry.toResponse(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds the validators of a stored response to a request, making it conditional.
+     *
+     * @param head The head of the request, terminated by an empty line.
+     * @param entry The stale stored response.
+     * @return Returns the head of the conditional request.
+     */
+    static byte[] conditionalRequest(byte[] head, Entry entry) {
+        StringBuilder validators = new StringBuilder();
+        if (entry.etag != null) {
+            validators.append("If-None-Match: ").append(entry.etag).append("\r\n");
+        }
+        if (entry.lastModified != null) {
+            validators.append("If-Modified-Since: ").append(entry.lastModified).append("\r\n");
+        }
+        byte[] extra = validators.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        // insert the headers before the empty line, which is "\r\n" or "\n"
+        int end = head.length - 1;
+        if (end > 0 && head[end - 1] == '\r') {
+            end--;
+        }
+        byte[] conditional = new byte[head.length + extra.length];
+        System.arraycopy(head, 0, conditional, 0, end);
+        System.arraycopy(extra, 0, conditional, end, extra.length);
+        System.arraycopy(head, end, conditional, end + extra.length, head.length - end);
+        return conditional;
+    }
+
+    /**
+     * Refreshes a stored response with the headers of a 304 (Not Modified) response.
+     *
+     * @param entry The stored response.
+     * @param notModified The 304 response of the server.
+     * @return Returns the refreshed stored response.
+     *
+     * @throws IOException if the refreshed head cannot be parsed.
+     */
+    Entry revalidate(Entry entry, HttpMessageReader notModified) throws IOException {
+        this.revalidations.increment();
+
+        byte[] storedHead = Arrays.copyOf(entry.head, entry.head.length + 2);
+        storedHead[storedHead.length - 2] = '\r';
+        storedHead[storedHead.length - 1] = '\n';
+        HttpMessageReader stored = new HttpMessageReader(new ByteArrayInputStream(storedHead), false);
+        StringBuilder merged = new StringBuilder(entry.head.length + 256);
+        merged.append(stored.getStartLine()).append("\r\n");
+        for (int i = 0; i < stored.getHeaderCount(); i++) {
+            String name = stored.getHeaderName(i);
+            if (!isUpdated(name, notModified)) {
+                merged.append(name).append(": ").append(stored.getHeaderValue(i)).append("\r\n");
+            }
+        }
+        for (int i = 0; i < notModified.getHeaderCount(); i++) {
+            String name = notModified.getHeaderName(i);
+            if (isUpdated(name, notModified)) {
+                merged.append(name).append(": ").append(notModified.getHeaderValue(i)).append("\r\n");
+            }
+        }
+        merged.append("\r\n");
+
+        HttpMessageReader head = new HttpMessageReader(
+                new ByteArrayInputStream(merged.toString().getBytes(StandardCharsets.ISO_8859_1)), false);
+        Entry refreshed = createEntry(entry.key, entry.varyNames, entry.varyValues, head, entry.payload,
+                System.currentTimeMillis(), false);
+        if (refreshed == null) {
+            this.remove(entry);
+            return entry;
+        }
+        this.put(refreshed);
+        return refreshed;
+    }
+
+    /**
+     * Retrieves the maximum size of a stored response.
+     *
+     * @return Returns the size in bytes.
+     */
+    int getMaxEntrySize() {
+        return this.maxEntrySize;
+    }
+
+    /**
+     * Checks if a header of a 304 response replaces the stored one.
+     *
+     * @param name The header name.
+     * @param notModified The 304 response.
+     * @return Returns TRUE if the header is present in the 304 response and can be updated.
+     */
+    private static boolean isUpdated(String name, HttpMessageReader notModified) {
+        for (String header : NOT_UPDATED_HEADERS) {
+            if (header.equalsIgnoreCase(name)) {
+                return false;
+            }
+        }
+        return notModified.getHeader(name) != null;
+    }
+
+    /**
+     * Checks if the response to a cacheable request may be stored, before its payload is received.
+     *
+     * @param request The client request.
+     * @param response The response of the server, of which only the head is used.
+     * @return Returns TRUE if the response may be stored.
+     */
+    boolean isStorable(HttpMessageReader request, HttpMessageReader response) {
+        if (response.hasToken(HttpCaching.HEADER_VARY, "*")) {
+            return false;
+        }
+        String contentLength = response.getHeader(HttpCaching.HEADER_CONTENT_LENGTH);
+        try {
+            if (contentLength != null && Long.parseLong(contentLength) > this.maxEntrySize) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return createEntry(HttpCaching.key(request), null, null, response, new byte[0], System.currentTimeMillis(),
+                request.getHeader(HttpCaching.HEADER_AUTHORIZATION) != null) != null;
+    }
+
+    /**
+     * Stores the response to a cacheable request, if allowed by the response.
+     *
+     * @param request The client request.
+     * @param response The entire response of the server.
+     *
+     * @throws IOException if the response cannot be parsed.
+     */
+    void store(HttpMessageReader request, byte[] response) throws IOException {
+        if (response.length > this.maxEntrySize) {
+            return;
+        }
+        HttpMessageReader head = new HttpMessageReader(new ByteArrayInputStream(response), false);
+        byte[] payload = Arrays.copyOfRange(response, head.getHead().length, response.length);
+
+        List<String> varyNames = new ArrayList<>();
+        List<String> vary = head.getHeaderValues(HttpCaching.HEADER_VARY);
+        if (vary != null) {
+            for (String value : vary) {
+                for (String name : value.split(",")) {
+                    name = name.trim();
+                    if (name.equals("*")) {
+                        return;
+                    }
+                    if (!name.isEmpty()) {
+                        varyNames.add(name);
+                    }
+                }
+            }
+        }
+        String[] names = varyNames.toArray(new String[0]);
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = varyValue(request, names[i]);
+        }
+
+        Entry entry = createEntry(HttpCaching.key(request), names, values, head, payload, System.currentTimeMillis(),
+                request.getHeader(HttpCaching.HEADER_AUTHORIZATION) != null);
+        if (entry != null) {
+            this.stores.increment();
+            this.put(entry);
+        }
+    }
+
+    /**
+     * Removes the stored responses of the URI of a request that may change the state of the server.
+     *
+     * @param request The client request.
+     */
+    void invalidate(HttpMessageReader request) {
+        String key = HttpCaching.key(request);
+        this.lock.lock();
+        try {
+            List<Entry> variants = this.entries.remove(key);
+            if (variants != null) {
+                for (Entry entry : variants) {
+                    this.size -= entry.size();
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a stored response, checking the directives of the response.
+     *
+     * @param key The absolute URI of the request.
+     * @param varyNames The names of the request headers listed in Vary.
+     * @param varyValues The values of the request headers listed in Vary.
+     * @param head The head of the response.
+     * @param payload The payload of the response, as received.
+     * @param responseTime The time the response was received.
+     * @param authorized Whether the request carries credentials.
+     * @return Returns the stored response or NULL if the response must not be stored.
+     */
+    private static Entry createEntry(String key, String[] varyNames, String[] varyValues, HttpMessageReader head,
+                                     byte[] payload, long responseTime, boolean authorized)
+    {
+        if (!HttpCaching.isHeuristicallyCacheable(head.getStatus())) {
+            return null;
+        }
+        Map<String, String> directives = HttpCaching.directives(head);
+        if (directives.containsKey("no-store") || directives.containsKey("private")) {
+            return null;
+        }
+        if (authorized && !directives.containsKey("public") && !directives.containsKey("s-maxage")
+                && !directives.containsKey("must-revalidate")) {
+            return null;
+        }
+
+        long lifetime = HttpCaching.freshnessLifetime(head, directives, responseTime);
+        String etag = head.getHeader(HttpCaching.HEADER_ETAG);
+        String lastModified = head.getHeader(HttpCaching.HEADER_LAST_MODIFIED);
+        if (lifetime == 0 && etag == null && lastModified == null) {
+            return null; // it would never be used
+        }
+        long initialAge = HttpCaching.initialAge(head, responseTime);
+
+        StringBuilder stored = new StringBuilder(head.getHead().length);
+        stored.append(head.getStartLine()).append("\r\n");
+        for (int i = 0; i < head.getHeaderCount(); i++) {
+            String name = head.getHeaderName(i);
+            if (!name.equalsIgnoreCase(HttpCaching.HEADER_AGE)) {
+                stored.append(name).append(": ").append(head.getHeaderValue(i)).append("\r\n");
+            }
+        }
+
+        try {
+            return new Entry(key, varyNames, varyValues, stored.toString().getBytes(StandardCharsets.ISO_8859_1),
+                    payload, responseTime, initialAge, lifetime, etag, lastModified,
+                    head.isKeepAlive() && !head.isCloseDelimited());
+
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a response, replacing the variant with the same Vary values, and evicts the least recently
+     * used responses exceeding the memory budget.
+     *
+     * @param entry The response to store.
+     */
+    private void put(Entry entry) {
+        this.lock.lock();
+        try {
+            List<Entry> variants = this.entries.computeIfAbsent(entry.key, key -> new ArrayList<>(1));
+            for (int i = 0; i < variants.size(); i++) {
+                Entry other = variants.get(i);
+                if (Arrays.equals(other.varyNames, entry.varyNames)
+                        && Arrays.equals(other.varyValues, entry.varyValues)) {
+                    variants.remove(i);
+                    this.size -= other.size();
+                    break;
+                }
+            }
+            if (variants.size() == MAX_VARIANTS) {
+                this.size -= variants.remove(0).size();
+                this.evictions.increment();
+            }
+            variants.add(entry);
+            this.size += entry.size();
+
+            Iterator<List<Entry>> iterator = this.entries.values().iterator();
+            while (this.size > this.maxBytes && iterator.hasNext()) {
+                for (Entry evicted : iterator.next()) {
+                    this.size -= evicted.size();
+                    this.evictions.increment();
+                }
+                iterator.remove();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a stored response.
+     *
+     * @param entry The stored response.
+     */
+    private void remove(Entry entry) {
+        this.lock.lock();
+        try {
+            List<Entry> variants = this.entries.get(entry.key);
+            if (variants != null && variants.remove(entry)) {
+                this.size -= entry.size();
+                if (variants.isEmpty()) {
+                    this.entries.remove(entry.key);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the value of a request header listed in Vary.
+     *
+     * @param request The client request.
+     * @param name The header name.
+     * @return Returns the values joined by commas or NULL if the header is not present.
+     */
+    private static String varyValue(HttpMessageReader request, String name) {
+        List<String> values = request.getHeaderValues(name);
+        return values == null ? null : String.join(", ", values);
+    }
+
+    /**
+     * Logs the statistics of the cache if there have been lookups since the last log.
+     */
+    private void logStatistics() {
+        long lookups = this.getHits() + this.getMisses();
+        if (lookups != this.loggedLookups) {
+            this.loggedLookups = lookups;
+            this.logger.log(Logger.Level.INFO, "ResponseCache", "Statistics: {}", this);
+        }
+    }
+
+    /**
+     * Retrieves the number of requests served with a fresh stored response.
+     *
+     * @return Returns the number of hits.
+     */
+    long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Retrieves the number of cacheable requests forwarded to the server, including revalidations.
+     *
+     * @return Returns the number of misses.
+     */
+    long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Retrieves the number of stale responses validated by the server with a 304 response.
+     *
+     * @return Returns the number of revalidations.
+     */
+    long getRevalidations() {
+        return this.revalidations.sum();
+    }
+
+    /**
+     * Retrieves the number of responses stored.
+     *
+     * @return Returns the number of stores.
+     */
+    long getStores() {
+        return this.stores.sum();
+    }
+
+    /**
+     * Retrieves the number of responses removed to respect the memory budget.
+     *
+     * @return Returns the number of evictions.
+     */
+    long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Retrieves the number of bytes of the stored responses.
+     *
+     * @return Returns the size in bytes.
+     */
+    long getSize() {
+        this.lock.lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        long hits = this.getHits();
+        long lookups = hits + this.getMisses();
+        return "hits=" + hits + ", misses=" + this.getMisses()
+                + ", hitRatio=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%"
+                + ", revalidations=" + this.getRevalidations() + ", stores=" + this.getStores()
+                + ", evictions=" + this.getEvictions() + ", bytes=" + this.getSize();
+    }
+
+    /**
+     * A stored response, immutable.
+     */
+    static final class Entry {
+
+        /**
+         * The absolute URI of the request.
+         */
+        private final String key;
+
+        /**
+         * The names of the request headers listed in Vary.
+         */
+        private final String[] varyNames;
+
+        /**
+         * The values of the request headers listed in Vary, NULL for the missing ones.
+         */
+        private final String[] varyValues;
+
+        /**
+         * The starting line and the headers of the response, without Age and without the empty line.
+         */
+        private final byte[] head;
+
+        /**
+         * The payload of the response, as received.
+         */
+        private final byte[] payload;
+
+        /**
+         * The time in milliseconds the response was received.
+         */
+        private final long responseTime;
+
+        /**
+         * The age in milliseconds of the response when it was received.
+         */
+        private final long initialAge;
+
+        /**
+         * The freshness lifetime in milliseconds.
+         */
+        private final long lifetime;
+
+        /**
+         * The entity tag validator or NULL if not present.
+         */
+        private final String etag;
+
+        /**
+         * The modification date validator or NULL if not present.
+         */
+        private final String lastModified;
+
+        /**
+         * Whether the connection can be used for another request after the response.
+         */
+        private final boolean persistent;
+
+        /**
+         * Initialize a stored response.
+         *
+         * @param key The absolute URI of the request.
+         * @param varyNames The names of the request headers listed in Vary.
+         * @param varyValues The values of the request headers listed in Vary.
+         * @param head The starting line and the headers of the response.
+         * @param payload The payload of the response.
+         * @param responseTime The time in milliseconds the response was received.
+         * @param initialAge The age in milliseconds of the response when it was received.
+         * @param lifetime The freshness lifetime in milliseconds.
+         * @param etag The entity tag validator.
+         * @param lastModified The modification date validator.
+         * @param persistent Whether the connection can be used for another request after the response.
+         */
+        private Entry(String key, String[] varyNames, String[] varyValues, byte[] head, byte[] payload,
+                      long responseTime, long initialAge, long lifetime, String etag, String lastModified,
+                      boolean persistent)
+        {
+            this.key          = key;
+            this.varyNames    = varyNames;
+            this.varyValues   = varyValues;
+            this.head         = head;
+            this.payload      = payload;
+            this.responseTime = responseTime;
+            this.initialAge   = initialAge;
+            this.lifetime     = lifetime;
+            this.etag         = etag;
+            this.lastModified = lastModified;
+            this.persistent   = persistent;
+        }
+
+        /**
+         * Checks if the request headers listed in Vary have the same values of the stored request.
+         *
+         * @param request The client request.
+         * @return Returns TRUE if the stored response can be used for the request.
+         */
+        private boolean matches(HttpMessageReader request) {
+            for (int i = 0; i < this.varyNames.length; i++) {
+                String value = varyValue(request, this.varyNames[i]);
+                if (value == null ? this.varyValues[i] != null : !value.equals(this.varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Calculates the current age of the response.
+         *
+         * @param now The current time in milliseconds.
+         * @return Returns the age in milliseconds.
+         */
+        private long currentAge(long now) {
+            return this.initialAge + Math.max(0, now - this.responseTime);
+        }
+
+        /**
+         * Builds the response with its current age.
+         *
+         * @param now The current time in milliseconds.
+         * @return Returns the response.
+         */
+        private byte[] toResponse(long now) {
+            byte[] age = (HttpCaching.HEADER_AGE + ": " + this.currentAge(now) / 1000 + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            byte[] response = new byte[this.head.length + age.length + this.payload.length];
+            System.arraycopy(this.head, 0, response, 0, this.head.length);
+            System.arraycopy(age, 0, response, this.head.length, age.length);
+            System.arraycopy(this.payload, 0, response, this.head.length + age.length, this.payload.length);
+            return response;
+        }
+
+        /**
+         * Checks if the response has a validator for a conditional request.
+         *
+         * @return Returns TRUE if ETag or Last-Modified is present.
+         */
+        boolean hasValidators() {
+            return this.etag != null || this.lastModified != null;
+        }
+
+        /**
+         * Checks if the connection can be used for another request after the response.
+         *
+         * @return Returns TRUE if the response is persistent.
+         */
+        boolean isPersistent() {
+            return this.persistent;
+        }
+
+        /**
+         * Retrieves the memory occupied by the response.
+         *
+         * @return Returns the size in bytes.
+         */
+        private long size() {
+            return this.head.length + this.payload.length;
+        }
+
+    }
+
+}
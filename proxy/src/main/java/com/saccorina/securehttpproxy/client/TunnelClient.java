@@ -0,0 +1,1005 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.FlowCipher;
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.FrameReader;
+import com.saccorina.securehttpproxy.FrameWriter;
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import com.saccorina.securehttpproxy.KeyExchange;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.MessageCompressor;
+import com.saccorina.securehttpproxy.RecordBatcher;
+import com.saccorina.securehttpproxy.RecordInputStream;
+import com.saccorina.securehttpproxy.RecordOutputStream;
+import com.saccorina.securehttpproxy.TunnelEncoding;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+import com.saccorina.securehttpproxy.nio.EventLoop;
+import com.saccorina.securehttpproxy.nio.FlowRelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent connection with the server proxy that carries many concurrent request/response streams.
+ *
+ * Each request is sent in a frame tagged with a new stream id and the response frame with the same
+ * id completes the request, so responses can come back in any order. In hexadecimal encoding frames
+ * have no stream id, hence a new connection is opened for every request.
+ *
+ * Each persistent connection starts with a handshake: the first one establishes a {@link TunnelSession}
+ * with a key exchange and the others join it. When the server has forgotten the session, the ticket
+ * resumes it without a new DH computation.
+ *
+ * The messages are encrypted by the tunnel. When the server enables batching, small requests sent while
+ * other streams are in flight are coalesced by a {@link RecordBatcher}, and small responses may come back
+ * the same way.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class TunnelClient {
+
+    /**
+     * The maximum time in milliseconds to wait for a response.
+     */
+    private static final int RESPONSE_TIMEOUT = Configuration.getInt("tunnel.timeout", 60000);
+
+    /**
+     * The number of persistent connections opened with the server.
+     */
+    private static final int CONNECTIONS = Math.max(1, Configuration.getInt("tunnel.connections", 1));
+
+    /**
+     * The connection timeout in milliseconds of the persistent connections.
+     */
+    private static final int CONNECT_TIMEOUT = Configuration.getInt("tunnel.connectTimeout", 5000);
+
+    /**
+     * The maximum time in milliseconds to open a persistent connection, handshake included.
+     */
+    private static final int HANDSHAKE_TIMEOUT = Configuration.getInt("tunnel.handshakeTimeout", 10000);
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The server host.
+     */
+    private final String serverHost;
+    /**
+     * The server port.
+     */
+    private final int serverPort;
+
+    /**
+     * The encoding used for frames.
+     */
+    private final TunnelEncoding encoding;
+
+    /**
+     * The cipher mode used in the tunnel.
+     */
+    private final CipherMode mode;
+
+    /**
+     * The current session, NULL before the first handshake.
+     */
+    private volatile TunnelSession session;
+
+    /**
+     * The compressor of the messages or NULL if the compression is off.
+     */
+    private final MessageCompressor compressor;
+
+    /**
+     * Whether the server enabled the compression in its last hello frame.
+     */
+    private volatile boolean compressionEnabled;
+
+    /**
+     * The session whose flow keys are exhausted, which is not joined again, NULL if none.
+     */
+    private volatile TunnelSession retiredSession;
+
+    /**
+     * The number of streams opened, from which the stream ids are generated.
+     */
+    private final AtomicLong streamCount = new AtomicLong();
+
+    /**
+     * The persistent connections, NULL if not connected.
+     */
+    private final AtomicReferenceArray<Link> links = new AtomicReferenceArray<>(CONNECTIONS);
+
+    /**
+     * The locks guarding the opening of each persistent connection, so that a server that does not answer
+     * the handshake of a connection does not hold back the others.
+     */
+    private final Lock[] connectLocks = new Lock[CONNECTIONS];
+
+    /**
+     * Initialize the tunnel client.
+     *
+     * @param serverHost The server host.
+     * @param serverPort The server port.
+     * @param encoding The encoding used for frames.
+     * @param mode The cipher mode used in the tunnel.
+     * @param session The session of the hexadecimal encoding or NULL to establish it with a handshake.
+     * @param compressor The compressor of the messages or NULL if the compression is off.
+     */
+    TunnelClient(String serverHost, int serverPort, TunnelEncoding encoding, CipherMode mode,
+                 TunnelSession session, MessageCompressor compressor)
+    {
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.encoding   = encoding;
+        this.mode       = mode;
+        this.session    = session;
+        this.compressor = compressor;
+        for (int i = 0; i < CONNECTIONS; i++) {
+            this.connectLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Retrieves the session whose keys encrypt the messages, opening the first connection if needed.
+     *
+     * @return Returns the current session.
+     *
+     * @throws IOException if the connection or the handshake fails.
+     */
+    TunnelSession getSession() throws IOException {
+        if (this.encoding != TunnelEncoding.HEX) {
+            this.getLink(0, HANDSHAKE_TIMEOUT);
+        }
+        return this.session;
+    }
+
+    /**
+     * Checks if the persistent connections are open, so that a request is sent without a handshake.
+     *
+     * @return Returns TRUE if every connection is open, or in hexadecimal encoding.
+     */
+    boolean isConnected() {
+        if (this.encoding == TunnelEncoding.HEX) {
+            return true;
+        }
+        for (int i = 0; i < CONNECTIONS; i++) {
+            Link link = this.links.get(i);
+            if (link == null || link.closed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the address of the server.
+     *
+     * @return Returns the address in "host:port" form.
+     */
+    String getAddress() {
+        return this.serverHost + ":" + this.serverPort;
+    }
+
+    /**
+     * Checks that the server answers, opening the first connection if needed.
+     *
+     * A server of the legacy hexadecimal encoding expects a request on each connection, so it is not
+     * probed.
+     *
+     * @param timeout The maximum time in milliseconds to wait for the echo of the server, connection and
+     *                handshake included.
+     *
+     * @throws IOException if the connection fails or the server does not answer in time.
+     */
+    void ping(long timeout) throws IOException {
+        if (this.encoding == TunnelEncoding.HEX) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        int streamId = this.newStreamId();
+        Link link = this.getLink(streamId % CONNECTIONS, Math.min(timeout, HANDSHAKE_TIMEOUT));
+        CompletableFuture<Frame> echo = new CompletableFuture<>();
+        link.pendingStreams.put(streamId, echo);
+        try {
+            link.send(new Frame(Frame.TYPE_PING, streamId, new byte[0]));
+            echo.get(Math.max(0, remainingMillis(deadline)), TimeUnit.MILLISECONDS);
+
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+
+        } catch (TimeoutException e) {
+            throw new IOException("No echo from the server in " + timeout + " ms", e);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the echo", e);
+
+        } finally {
+            link.pendingStreams.remove(streamId);
+        }
+    }
+
+    /**
+     * Retrieves the compressor of the requests, once the server has enabled the compression.
+     *
+     * @return Returns the compressor or NULL if the requests must not be compressed.
+     */
+    MessageCompressor getCompressor() {
+        return this.compressionEnabled ? this.compressor : null;
+    }
+
+    /**
+     * Sends a request to the server and waits for the response.
+     *
+     * @param session The session whose keys encrypt the request.
+     * @param request The client HTTP request in bytes, compressed if enabled.
+     * @return Returns the frame of the server response, to be opened with {@link #open(TunnelSession, Frame)}.
+     *
+     * @throws IOException if an I/O error occurs or the server does not respond.
+     */
+    Frame exchange(TunnelSession session, byte[] request) throws IOException {
+        try {
+            return this.exchangeAsync(session, request, RecordBatcher.MAX_DELAY_NANOS).get();
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new IOException("No response from the server in " + RESPONSE_TIMEOUT + " ms", cause);
+            }
+            throw cause instanceof IOException
+                    ? (IOException) cause
+                    : new IOException(cause.getMessage(), cause);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the response", e);
+        }
+    }
+
+    /**
+     * Sends a request to the server without waiting for the response.
+     *
+     * A small request is batched with the others only while other streams of the same connection are in
+     * flight, otherwise it is sent at once. In hexadecimal encoding the exchange is performed before
+     * returning.
+     *
+     * @param session The session whose keys encrypt the request.
+     * @param request The client HTTP request in bytes, compressed if enabled.
+     * @param maxDelayNanos The maximum time in nanoseconds the request may wait to be batched, 0 to send
+     *                      it at once.
+     * @return Returns the future completed with the frame of the server response, to be opened with
+     *         {@link #open(TunnelSession, Frame)}.
+     */
+    CompletableFuture<Frame> exchangeAsync(TunnelSession session, byte[] request, long maxDelayNanos) {
+        CompletableFuture<Frame> response = new CompletableFuture<>();
+        if (this.encoding == TunnelEncoding.HEX) {
+            try {
+                response.complete(new Frame(Frame.TYPE_MESSAGE, 0,
+                        this.exchangeOnNewConnection(encrypt(session, request))));
+            } catch (IOException | CipherException e) {
+                response.completeExceptionally(e);
+            }
+            return response;
+        }
+
+        int streamId = this.newStreamId();
+        try {
+            Link link = this.getLink(streamId % CONNECTIONS, HANDSHAKE_TIMEOUT);
+            if (link.session != session) {
+                throw new IOException("Session replaced by a new handshake, request not sent");
+            }
+            link.pendingStreams.put(streamId, response);
+            response.whenComplete((payload, e) -> link.pendingStreams.remove(streamId));
+
+            RecordBatcher batcher = link.batcher;
+            if (batcher != null && batcher.accepts(request)) {
+                batcher.add(streamId, request, link.pendingStreams.size() > 1 ? maxDelayNanos : 0);
+            } else {
+                link.send(new Frame(Frame.TYPE_MESSAGE, streamId, encrypt(session, request)));
+            }
+
+        } catch (IOException | CipherException e) {
+            response.completeExceptionally(e);
+        }
+        return response.orTimeout(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieves the response carried by a frame, decrypting it unless it came in a batch.
+     *
+     * @param session The session whose keys encrypted the exchange.
+     * @param response The frame of the server response.
+     * @return Returns the server response in bytes, compressed if enabled.
+     *
+     * @throws CipherException if the response cannot be decrypted.
+     */
+    byte[] open(TunnelSession session, Frame response) throws CipherException {
+        return response.getType() == Frame.TYPE_BATCH
+                ? response.getPayload() : session.getCipher().decrypt(response.getPayload());
+    }
+
+    /**
+     * Encrypts a request sent alone.
+     *
+     * @param session The session whose keys encrypt the request.
+     * @param request The client HTTP request in bytes.
+     * @return Returns the encrypted request.
+     *
+     * @throws CipherException if the request cannot be encrypted.
+     */
+    private static byte[] encrypt(TunnelSession session, byte[] request) throws CipherException {
+        long start = System.nanoTime();
+        byte[] encryptedRequest = session.getCipher().encrypt(request);
+        Metrics.CLIENT_ENCRYPT.recordSince(start);
+        return encryptedRequest;
+    }
+
+    /**
+     * Opens a stream whose byte flow is protected by encrypted records in both directions.
+     *
+     * @return Returns the opened stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    Flow openFlow() throws IOException, CipherException {
+        if (this.encoding == TunnelEncoding.HEX) {
+            throw new IOException("The per-flow protection requires the binary tunnel encoding");
+        }
+
+        long stream = this.streamCount.getAndIncrement();
+        int streamId = streamId(stream);
+        Link link = this.getLink(streamId % CONNECTIONS, HANDSHAKE_TIMEOUT);
+        if (!link.session.claimFlowCycle(streamCycle(stream))) {
+            this.retireSession(link.session);
+            link = this.getLink(streamId % CONNECTIONS, HANDSHAKE_TIMEOUT);
+            if (!link.session.claimFlowCycle(streamCycle(stream))) {
+                throw new IOException("No session to protect the flow, the stream ids wrapped around");
+            }
+        }
+
+        FlowCipher flowCipher = link.session.getFlowCipher();
+        RecordInputStream in = flowCipher.newInputStream(link::send, FlowCipher.SERVER_TO_CLIENT, streamId,
+                RESPONSE_TIMEOUT);
+        RecordOutputStream out = flowCipher.newOutputStream(link::send, FlowCipher.CLIENT_TO_SERVER, streamId);
+        link.flowStreams.put(streamId, in);
+        link.flowWindows.put(streamId, out);
+
+        return new Flow(link, streamId, in, out);
+    }
+
+    /**
+     * Opens a stream for a CONNECT tunnel and waits until the server has reached the target.
+     *
+     * @param request The head of the CONNECT request.
+     * @return Returns the opened stream, to be relayed with {@link Flow#relay(EventLoop, SocketChannel, String)}.
+     *
+     * @throws IOException if an I/O error occurs or the server cannot reach the target.
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    Flow openTunnel(byte[] request) throws IOException, CipherException {
+        Flow flow = this.openFlow();
+        try {
+            flow.out.write(request);
+            flow.out.flush();
+
+            // the server replies in a record of its own, nothing of the tunnel is buffered by the reader
+            HttpMessageReader reply = new HttpMessageReader(flow.in, false, "CONNECT");
+            if (reply.getStatus() / 100 != 2) {
+                throw new IOException("Tunnel refused by the server: " + reply.getStartLine());
+            }
+            return flow;
+
+        } catch (IOException e) {
+            flow.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Generates the id of a new stream.
+     *
+     * @return Returns a positive stream id.
+     */
+    private int newStreamId() {
+        return streamId(this.streamCount.getAndIncrement());
+    }
+
+    /**
+     * Maps the number of a stream to its id.
+     *
+     * Stream 0 carries the frames of the connection, such as the handshake and the batches, so it is
+     * skipped when the ids wrap around after 2^31 - 1 streams.
+     *
+     * @param stream The number of the stream, counted from 0.
+     * @return Returns a positive stream id.
+     */
+    static int streamId(long stream) {
+        return (int) (stream % Integer.MAX_VALUE) + 1;
+    }
+
+    /**
+     * Maps the number of a stream to the cycle of its id, which is incremented each time the ids wrap around.
+     *
+     * @param stream The number of the stream, counted from 0.
+     * @return Returns the cycle of the stream id.
+     */
+    static long streamCycle(long stream) {
+        return stream / Integer.MAX_VALUE;
+    }
+
+    /**
+     * Retires a session whose flow keys protected the ids of an earlier cycle, before they are reused: its
+     * connections are closed and reopened by resuming the session, so that the flow keys are derived anew.
+     *
+     * @param exhausted The retired session.
+     */
+    private void retireSession(TunnelSession exhausted) {
+        this.retiredSession = exhausted;
+        IOException cause = new IOException("Session retired, the stream ids wrapped around");
+        for (int i = 0; i < CONNECTIONS; i++) {
+            Link link = this.links.get(i);
+            if (link != null && link.session == exhausted && !link.closed) {
+                link.close(cause);
+            }
+        }
+        logger.log("[TunnelClient] Session retired, the stream ids wrapped around");
+    }
+
+    /**
+     * Retrieves a persistent connection, opening it if needed.
+     *
+     * The read timeout of the socket bounds the handshake and is cleared once the connection is open.
+     *
+     * @param index The index of the connection.
+     * @param timeout The maximum time in milliseconds to open the connection, handshake included.
+     * @return Returns the open connection.
+     *
+     * @throws IOException if an I/O error occurs, the handshake fails or it does not complete in time.
+     */
+    private Link getLink(int index, long timeout) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Lock connectLock = this.connectLocks[index];
+        try {
+            if (!connectLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("Connection #" + index + " not opened in " + timeout + " ms");
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening connection #" + index, e);
+        }
+        try {
+            Link link = this.links.get(index);
+            if (link == null || link.closed) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(this.serverHost, this.serverPort),
+                            (int) Math.min(CONNECT_TIMEOUT, checkedRemainingMillis(deadline)));
+                    socket.setTcpNoDelay(true);
+                    socket.setKeepAlive(true);
+
+                    FrameReader reader = new FrameReader(socket.getInputStream(), this.encoding);
+                    FrameWriter writer = new FrameWriter(socket.getOutputStream(), this.encoding);
+                    this.session = this.handshake(socket, reader, writer, deadline);
+                    socket.setSoTimeout(0);
+
+                    link = new Link(socket, reader, writer, this.session);
+
+                } catch (IOException | CipherException e) {
+                    socket.close();
+                    throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+                }
+                this.links.set(index, link);
+                logger.log("[TunnelClient] Connection #" + index + " opened with "
+                        + this.serverHost + ":" + this.serverPort);
+            }
+            return link;
+
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the time left before a deadline.
+     *
+     * @param deadline The deadline, as {@link System#nanoTime()}.
+     * @return Returns the time in milliseconds, not positive if the deadline has passed.
+     */
+    private static long remainingMillis(long deadline) {
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    /**
+     * Retrieves the time left before a deadline that has not passed yet.
+     *
+     * @param deadline The deadline, as {@link System#nanoTime()}.
+     * @return Returns the time in milliseconds, at least 1 and at most Integer.MAX_VALUE.
+     *
+     * @throws SocketTimeoutException if the deadline has passed.
+     */
+    private static long checkedRemainingMillis(long deadline) throws SocketTimeoutException {
+        long remaining = remainingMillis(deadline);
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Handshake timed out");
+        }
+        return Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Performs the handshake of a new connection: joins the current session, otherwise resumes it with
+     * its ticket and as last resort establishes a new session with a key exchange. A retired session is
+     * never joined.
+     *
+     * @param socket The socket of the connection, whose read timeout is armed before each reply.
+     * @param reader The reader of frames of the connection.
+     * @param writer The writer of frames of the connection.
+     * @param deadline The deadline of the handshake, as {@link System#nanoTime()}.
+     * @return Returns the session of the connection.
+     *
+     * @throws IOException if an I/O error occurs, the server refuses the key exchange or the handshake
+     *                     does not complete before the deadline.
+     * @throws CipherException if an error occurs during key generation.
+     */
+    private TunnelSession handshake(Socket socket, FrameReader reader, FrameWriter writer, long deadline)
+            throws IOException, CipherException
+    {
+        TunnelSession current = this.session;
+        if (current != null && current != this.retiredSession) {
+            byte[] clientRandom = TunnelSession.randomBytes(TunnelSession.RANDOM_LENGTH);
+            byte[] proof = current.joinProof(clientRandom);
+            writer.write(new Frame(Frame.TYPE_JOIN, 0, ByteBuffer.allocate(
+                    current.getId().length + clientRandom.length + proof.length)
+                    .put(current.getId())
+                    .put(clientRandom)
+                    .put(proof)
+                    .array()));
+            socket.setSoTimeout((int) checkedRemainingMillis(deadline));
+            if (readHandshake(reader).getType() == Frame.TYPE_JOIN) {
+                return current;
+            }
+        }
+
+        if (current != null && current.getTicket() != null) {
+            byte[] clientRandom = TunnelSession.randomBytes(TunnelSession.RANDOM_LENGTH);
+            writer.write(new Frame(Frame.TYPE_RESUME, 0, ByteBuffer.allocate(
+                    clientRandom.length + current.getTicket().length)
+                    .put(clientRandom)
+                    .put(current.getTicket())
+                    .array()));
+            socket.setSoTimeout((int) checkedRemainingMillis(deadline));
+            Frame reply = readHandshake(reader);
+            if (reply.getType() == Frame.TYPE_RESUME) {
+                Grant grant = new Grant(reply.getPayload());
+                logger.log("[TunnelClient] Session resumed");
+                return new TunnelSession(grant.id, TunnelSession.resumedSecret(current.resumptionSecret(),
+                        clientRandom, grant.keyMaterial), grant.ticket, this.mode, FlowCipher.CLIENT_TO_SERVER);
+            }
+        }
+
+        socket.setSoTimeout((int) checkedRemainingMillis(deadline));
+        TunnelSession established = exchangeKeys(reader, writer, ClientProxy.KEY_EXCHANGE, this.mode);
+        logger.log("[TunnelClient] Session established with " + ClientProxy.KEY_EXCHANGE);
+        return established;
+    }
+
+    /**
+     * Establishes a new session with a key exchange, in a single round trip.
+     *
+     * @param reader The reader of frames of the connection.
+     * @param writer The writer of frames of the connection.
+     * @param algorithm The algorithm of the key exchange.
+     * @param mode The cipher mode used in the tunnel.
+     * @return Returns the new session.
+     *
+     * @throws IOException if an I/O error occurs or the server refuses the key exchange.
+     * @throws CipherException if an error occurs during key generation.
+     */
+    static TunnelSession exchangeKeys(FrameReader reader, FrameWriter writer, KeyExchange algorithm,
+                                      CipherMode mode)
+            throws IOException, CipherException
+    {
+        DHKeyExchange keyExchange = new DHKeyExchange(algorithm);
+        byte[] publicKey = keyExchange.createPublicKey();
+        writer.write(new Frame(Frame.TYPE_KEY_EXCHANGE, 0, ByteBuffer.allocate(1 + publicKey.length)
+                .put(algorithm.getId())
+                .put(publicKey)
+                .array()));
+
+        Frame reply = readHandshake(reader);
+        if (reply.getType() != Frame.TYPE_KEY_EXCHANGE) {
+            throw new IOException("Key exchange refused by the server: " + new String(reply.getPayload()));
+        }
+        Grant grant = new Grant(reply.getPayload());
+        keyExchange.complete(grant.keyMaterial);
+        return new TunnelSession(grant.id, keyExchange.getSecretKey(), grant.ticket, mode,
+                FlowCipher.CLIENT_TO_SERVER);
+    }
+
+    /**
+     * Reads the reply to a handshake frame.
+     *
+     * @param reader The reader of frames of the connection.
+     * @return Returns the reply, a reset frame if the handshake has been refused.
+     *
+     * @throws IOException if an I/O error occurs or the connection is closed.
+     */
+    private static Frame readHandshake(FrameReader reader) throws IOException {
+        Frame reply = reader.read();
+        if (reply == null) {
+            throw new IOException("Connection closed by the server during the handshake");
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a request on a new connection, used for the legacy hexadecimal encoding.
+     *
+     * @param request The encrypted client HTTP request in bytes.
+     * @return Returns the encrypted server response in bytes.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private byte[] exchangeOnNewConnection(byte[] request) throws IOException {
+        // connect to the proxy server
+        try (Socket socket = new Socket(this.serverHost, this.serverPort)) {
+
+            // send the client request
+            FrameWriter writer = new FrameWriter(socket.getOutputStream(), this.encoding);
+            writer.write(new Frame(Frame.TYPE_MESSAGE, 0, request));
+
+            // receive the server response
+            FrameReader reader = new FrameReader(socket.getInputStream(), this.encoding);
+            Frame response = reader.read();
+            if (response == null) {
+                throw new IOException("Connection closed by the server before the response");
+            }
+            logger.log(Logger.Level.DEBUG, "TunnelClient", "Exchange completed ({} bytes sent, {} bytes received "
+                    + "on the wire)", writer.getBytesWritten(), reader.getBytesRead());
+
+            return response.getPayload();
+        }
+    }
+
+    /**
+     * A persistent connection with the server proxy.
+     */
+    private class Link {
+
+        /**
+         * The socket connected to the server proxy.
+         */
+        private final Socket socket;
+
+        /**
+         * The session of the connection.
+         */
+        private final TunnelSession session;
+
+        /**
+         * The writer of frames.
+         */
+        private final FrameWriter writer;
+
+        /**
+         * The responses still expected from the server, by stream id.
+         */
+        private final Map<Integer, CompletableFuture<Frame>> pendingStreams = new ConcurrentHashMap<>();
+
+        /**
+         * The receiving side of the streams opened with the per-flow protection, by stream id.
+         */
+        private final Map<Integer, RecordInputStream> flowStreams = new ConcurrentHashMap<>();
+
+        /**
+         * The sending side of the streams opened with the per-flow protection, by stream id, waiting for
+         * the credit granted by the server.
+         */
+        private final Map<Integer, RecordOutputStream> flowWindows = new ConcurrentHashMap<>();
+
+        /**
+         * The lock that serializes the writes, not a monitor so virtual threads don't pin.
+         */
+        private final Lock writeLock = new ReentrantLock();
+
+        /**
+         * The batcher of the small requests, NULL until the server enables batching.
+         */
+        private volatile RecordBatcher batcher;
+
+        /**
+         * Whether the connection has been closed.
+         */
+        private volatile boolean closed;
+
+        /**
+         * Initialize the connection and start the thread that receives responses.
+         *
+         * @param socket The socket connected to the server proxy.
+         * @param reader The reader of frames, after the handshake.
+         * @param writer The writer of frames, after the handshake.
+         * @param session The session of the connection.
+         *
+         * @throws IOException if an I/O error occurs.
+         * @throws CipherException if the hello frame cannot be encrypted.
+         */
+        private Link(Socket socket, FrameReader reader, FrameWriter writer, TunnelSession session)
+                throws IOException, CipherException
+        {
+            this.socket  = socket;
+            this.writer  = writer;
+            this.session = session;
+
+            // announce the features under the session keys, the server answers with the ones it enables
+            byte features = compressor != null ? Frame.FEATURE_COMPRESSION : 0;
+            if (RecordBatcher.isConfigured()) {
+                features |= Frame.FEATURE_BATCHING;
+            }
+            this.writer.write(new Frame(Frame.TYPE_HELLO, 0,
+                    session.getCipher().encrypt(new byte[] {features}, Frame.TYPE_HELLO)));
+
+            Thread receiver = new Thread(() -> this.receive(reader), "TunnelClient-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        /**
+         * Writes a frame in the connection.
+         *
+         * @param frame The frame to send.
+         *
+         * @throws IOException if an I/O error occurs.
+         */
+        private void send(Frame frame) throws IOException {
+            this.writeLock.lock();
+            try {
+                this.writer.write(frame);
+
+            } catch (IOException e) {
+                this.close(e);
+                throw e;
+
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+
+        /**
+         * Receives frames from the server and completes the matching streams.
+         *
+         * @param reader The reader of frames.
+         */
+        private void receive(FrameReader reader) {
+            try {
+                Frame frame;
+                while ((frame = reader.read()) != null) {
+                    if (frame.getType() == Frame.TYPE_HELLO) {
+                        byte[] features = this.session.getCipher().decrypt(frame.getPayload(),
+                                Frame.TYPE_HELLO);
+                        compressionEnabled = features.length > 0 && (features[0] & Frame.FEATURE_COMPRESSION) != 0;
+                        this.batcher = features.length > 0 && (features[0] & Frame.FEATURE_BATCHING) != 0
+                                ? new RecordBatcher(this::send, this.session.getCipher(), Metrics.CLIENT_ENCRYPT) : null;
+                        continue;
+                    }
+
+                    if (frame.getType() == Frame.TYPE_BATCH) {
+                        for (Frame message : RecordBatcher.open(this.session.getCipher(), frame)) {
+                            CompletableFuture<Frame> response = this.pendingStreams.remove(message.getStreamId());
+                            if (response != null) {
+                                response.complete(message);
+                            }
+                        }
+                        continue;
+                    }
+
+                    if (frame.getType() == Frame.TYPE_WINDOW_UPDATE) {
+                        RecordOutputStream window = this.flowWindows.get(frame.getStreamId());
+                        if (window != null && frame.getPayload().length == 4) {
+                            window.grant(ByteBuffer.wrap(frame.getPayload()).getInt());
+                        }
+                        continue;
+                    }
+                    if (frame.getType() == Frame.TYPE_RESET) {
+                        RecordOutputStream window = this.flowWindows.remove(frame.getStreamId());
+                        if (window != null) {
+                            window.cancel(new String(frame.getPayload()));
+                        }
+                    }
+
+                    RecordInputStream flow = this.flowStreams.get(frame.getStreamId());
+                    if (flow != null) {
+                        flow.offer(frame);
+                        continue;
+                    }
+
+                    CompletableFuture<Frame> response = this.pendingStreams.remove(frame.getStreamId());
+                    if (response == null) {
+                        continue; // the stream has been abandoned
+                    }
+
+                    if (frame.getType() == Frame.TYPE_RESET) {
+                        response.completeExceptionally(new IOException(
+                                "Stream reset by the server: " + new String(frame.getPayload())));
+                    } else {
+                        response.complete(frame);
+                    }
+                }
+                this.close(new IOException("Connection closed by the server"));
+
+            } catch (IOException e) {
+                this.close(e);
+
+            } catch (CipherException e) {
+                this.close(new IOException(e.getMessage(), e));
+            }
+        }
+
+        /**
+         * Closes the connection and fails all the streams still waiting for a response.
+         *
+         * @param cause The reason of the closing.
+         */
+        private void close(IOException cause) {
+            this.closed = true;
+            try {
+                this.socket.close();
+
+            } catch (IOException e) {
+                logger.error("Error closing tunnel socket", e);
+            }
+
+            if (!this.pendingStreams.isEmpty()) {
+                logger.log("[TunnelClient] Connection lost, failing " + this.pendingStreams.size() + " streams");
+            }
+            this.pendingStreams.forEach((streamId, response) -> response.completeExceptionally(cause));
+            this.flowStreams.forEach((streamId, flow) -> flow.offer(
+                    new Frame(Frame.TYPE_RESET, streamId, String.valueOf(cause.getMessage()).getBytes())));
+            this.flowWindows.forEach((streamId, window) -> window.cancel(String.valueOf(cause.getMessage())));
+        }
+
+    }
+
+    /**
+     * The session granted by the server in reply to a key exchange or a resumption.
+     */
+    private static class Grant {
+
+        /**
+         * The session id.
+         */
+        private final byte[] id;
+
+        /**
+         * The ticket to resume the session.
+         */
+        private final byte[] ticket;
+
+        /**
+         * The DH public key or the random value of the server.
+         */
+        private final byte[] keyMaterial;
+
+        /**
+         * Parses the payload of the reply.
+         *
+         * @param payload The session id, the ticket length (2 bytes), the ticket and the key material.
+         *
+         * @throws IOException if the payload is malformed.
+         */
+        private Grant(byte[] payload) throws IOException {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                this.id = new byte[TunnelSession.ID_LENGTH];
+                buffer.get(this.id);
+                this.ticket = new byte[buffer.getShort() & 0xffff];
+                buffer.get(this.ticket);
+                this.keyMaterial = new byte[buffer.remaining()];
+                buffer.get(this.keyMaterial);
+
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Malformed handshake reply", e);
+            }
+        }
+
+    }
+
+    /**
+     * A stream opened with the per-flow protection.
+     */
+    class Flow implements Closeable {
+
+        /**
+         * The connection carrying the stream.
+         */
+        private final Link link;
+
+        /**
+         * The identifier of the stream.
+         */
+        private final int streamId;
+
+        /**
+         * The decrypted flow received from the server.
+         */
+        private final RecordInputStream in;
+
+        /**
+         * The flow sent encrypted to the server.
+         */
+        private final RecordOutputStream out;
+
+        private Flow(Link link, int streamId, RecordInputStream in, RecordOutputStream out) {
+            this.link     = link;
+            this.streamId = streamId;
+            this.in       = in;
+            this.out      = out;
+        }
+
+        InputStream getInputStream() {
+            return this.in;
+        }
+
+        OutputStream getOutputStream() {
+            return this.out;
+        }
+
+        /**
+         * Creates the relay of a CONNECT tunnel between a channel and the stream.
+         *
+         * @param loop The event loop of the relay.
+         * @param channel The channel of the client.
+         * @param logSource The source of the log messages of the relay.
+         * @return Returns the relay, which closes the flow when it ends.
+         */
+        FlowRelay relay(EventLoop loop, SocketChannel channel, String logSource) {
+            return new FlowRelay(loop, channel, this.in, this.out, this::close, logSource);
+        }
+
+        /**
+         * Stops receiving the frames of the stream, resetting it if the response has not been entirely
+         * received, so that the server stops waiting for credit.
+         */
+        public void close() {
+            this.out.cancel("Stream closed");
+            this.link.flowWindows.remove(this.streamId);
+            if (this.link.flowStreams.remove(this.streamId) != null && !this.in.isEnded() && !this.link.closed) {
+                try {
+                    this.link.send(new Frame(Frame.TYPE_RESET, this.streamId, "Stream closed".getBytes()));
+
+                } catch (IOException e) {
+                    logger.error("Error resetting stream", e);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.saccorina.securehttpproxy.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of the durations of a stage, in buckets whose upper bounds are the powers of two
+ * from 1 microsecond to about 33 seconds.
+ *
+ * The bucket of a duration is found from its leading zeros and the counts are plain atomic longs, so
+ * a record neither allocates nor takes a lock. The total of the durations is a striped counter, the
+ * one updated by every record whatever its bucket.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class Histogram {
+
+    /**
+     * The number of buckets with a finite upper bound.
+     */
+    static final int BUCKETS = 26;
+
+    /**
+     * The name of the stage.
+     */
+    private final String stage;
+
+    /**
+     * The number of durations in each bucket, the last one for those over the highest bound.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+
+    /**
+     * The total of the durations in nanoseconds.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Initialize an empty histogram.
+     *
+     * @param stage The name of the stage.
+     */
+    Histogram(String stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Records the duration of the stage from its start.
+     *
+     * @param startNanos The start of the stage, from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        this.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        // rounded up, so that a duration is never counted below its "le" bound
+        long micros = (Math.max(nanos, 0) + 999) / 1000;
+        int bucket = micros <= 1 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(micros - 1), BUCKETS);
+        this.counts.incrementAndGet(bucket);
+        this.sum.add(nanos);
+    }
+
+    /**
+     * Writes the histogram in the Prometheus text format, with cumulative buckets.
+     *
+     * @param name The name of the metric.
+     * @param output The output of the exposition.
+     */
+    void writeTo(String name, StringBuilder output) {
+        String labels = "stage=\"" + this.stage + "\"";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += this.counts.get(i);
+            output.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append((1L << i) / 1e6).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += this.counts.get(BUCKETS);
+        output.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                .append(cumulative).append('\n');
+        output.append(name).append("_sum{").append(labels).append("} ")
+                .append(this.sum.sum() / 1e9).append('\n');
+        output.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.saccorina.securehttpproxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a proxy: the latency of each stage of the pipeline and striped counters of the
+ * traffic, exposed by the {@link MetricsServer}.
+ *
+ * Both proxies share the same set, each one fills only the stages it performs.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public final class Metrics {
+
+    /**
+     * P1 reads and parses the request of the client.
+     */
+    public static final Histogram CLIENT_PARSE = new Histogram("client_parse");
+
+    /**
+     * P1 compresses and encrypts the request.
+     */
+    public static final Histogram CLIENT_ENCRYPT = new Histogram("client_encrypt");
+
+    /**
+     * P1 waits for the response from the moment the request is sent in the tunnel.
+     */
+    public static final Histogram TUNNEL_ROUND_TRIP = new Histogram("tunnel_round_trip");
+
+    /**
+     * P1 decrypts and decompresses the response.
+     */
+    public static final Histogram CLIENT_DECRYPT = new Histogram("client_decrypt");
+
+    /**
+     * P1 writes the response to the client.
+     */
+    public static final Histogram CLIENT_WRITE = new Histogram("client_write");
+
+    /**
+     * P2 decrypts and decompresses the request.
+     */
+    public static final Histogram SERVER_DECRYPT = new Histogram("server_decrypt");
+
+    /**
+     * P2 retrieves the response from the final server or its cache.
+     */
+    public static final Histogram ORIGIN_FETCH = new Histogram("origin_fetch");
+
+    /**
+     * P2 compresses and encrypts the response.
+     */
+    public static final Histogram SERVER_ENCRYPT = new Histogram("server_encrypt");
+
+    /**
+     * P2 writes the response in the tunnel.
+     */
+    public static final Histogram SERVER_WRITE = new Histogram("server_write");
+
+    /**
+     * The number of requests handled.
+     */
+    public static final LongAdder REQUESTS = new LongAdder();
+
+    /**
+     * The number of requests and connections failed with an error.
+     */
+    public static final LongAdder ERRORS = new LongAdder();
+
+    /**
+     * The number of bytes of the HTTP requests relayed.
+     */
+    public static final LongAdder REQUEST_BYTES = new LongAdder();
+
+    /**
+     * The number of bytes of the HTTP responses relayed.
+     */
+    public static final LongAdder RESPONSE_BYTES = new LongAdder();
+
+    /**
+     * The number of connections currently open, with the clients in P1 and with P1 in P2.
+     */
+    public static final LongAdder ACTIVE_CONNECTIONS = new LongAdder();
+
+    /**
+     * The number of bytes of the HTTP bodies currently buffered in the heap.
+     */
+    public static final LongAdder BUFFERED_BYTES = new LongAdder();
+
+    /**
+     * The number of requests refused with 503 because the memory budget was exhausted.
+     */
+    public static final LongAdder REJECTED = new LongAdder();
+
+    private static final Histogram[] STAGES = {
+            CLIENT_PARSE, CLIENT_ENCRYPT, TUNNEL_ROUND_TRIP, CLIENT_DECRYPT, CLIENT_WRITE,
+            SERVER_DECRYPT, ORIGIN_FETCH, SERVER_ENCRYPT, SERVER_WRITE
+    };
+
+    private Metrics() {}
+
+    /**
+     * Writes all the metrics in the Prometheus text format.
+     *
+     * @return Returns the exposition.
+     */
+    static String expose() {
+        StringBuilder output = new StringBuilder(16 * 1024);
+
+        String stageName = "securehttpproxy_stage_duration_seconds";
+        output.append("# HELP ").append(stageName).append(" Duration of each stage of the pipeline.\n");
+        output.append("# TYPE ").append(stageName).append(" histogram\n");
+        for (Histogram stage : STAGES) {
+            stage.writeTo(stageName, output);
+        }
+
+        writeCounter(output, "securehttpproxy_requests_total", "Requests handled.", REQUESTS);
+        writeCounter(output, "securehttpproxy_errors_total", "Requests and connections failed.", ERRORS);
+        writeCounter(output, "securehttpproxy_request_bytes_total", "Bytes of the HTTP requests.", REQUEST_BYTES);
+        writeCounter(output, "securehttpproxy_response_bytes_total", "Bytes of the HTTP responses.", RESPONSE_BYTES);
+        writeCounter(output, "securehttpproxy_rejected_total", "Requests refused for lack of memory.", REJECTED);
+
+        output.append("# HELP securehttpproxy_active_connections Connections currently open.\n");
+        output.append("# TYPE securehttpproxy_active_connections gauge\n");
+        output.append("securehttpproxy_active_connections ").append(ACTIVE_CONNECTIONS.sum()).append('\n');
+
+        output.append("# HELP securehttpproxy_buffered_bytes Bytes of the HTTP bodies buffered in the heap.\n");
+        output.append("# TYPE securehttpproxy_buffered_bytes gauge\n");
+        output.append("securehttpproxy_buffered_bytes ").append(BUFFERED_BYTES.sum()).append('\n');
+
+        return output.toString();
+    }
+
+    /**
+     * Writes a counter in the Prometheus text format.
+     *
+     * @param output The output of the exposition.
+     * @param name The name of the metric.
+     * @param help The description of the metric.
+     * @param counter The counter.
+     */
+    private static void writeCounter(StringBuilder output, String name, String help, LongAdder counter) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(" counter\n");
+        output.append(name).append(' ').append(counter.sum()).append('\n');
+    }
+
+}
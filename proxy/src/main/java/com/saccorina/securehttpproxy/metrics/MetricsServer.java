@@ -0,0 +1,78 @@
+package com.saccorina.securehttpproxy.metrics;
+
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP endpoint that serves the {@link Metrics} at "/metrics" in the Prometheus text format.
+ *
+ * The endpoint listens on the loopback interface only, on the port of the "metrics.port" setting.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class MetricsServer {
+
+    /**
+     * The path of the metrics.
+     */
+    private static final String PATH = "/metrics";
+
+    private MetricsServer() {}
+
+    /**
+     * Starts the endpoint if the "metrics.port" setting is defined.
+     *
+     * @param name The name of the proxy, for the log.
+     *
+     * @throws IOException if the port cannot be bound.
+     */
+    public static void startConfigured(String name) throws IOException {
+        int port = Configuration.getInt("metrics.port", 0);
+        if (port <= 0) {
+            return;
+        }
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, MetricsServer::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, name + "-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        Logger.getInstance().log("[" + name + "] Metrics available at http://localhost:" + port + PATH);
+    }
+
+    /**
+     * Answers a request of the metrics.
+     *
+     * @param exchange The HTTP exchange.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = Metrics.expose().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.saccorina.securehttpproxy.nio;
+
+import com.saccorina.securehttpproxy.Configuration;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of the direct buffers used by the relays.
+ *
+ * A direct buffer is read and written by the channels without the copy through a temporary native
+ * buffer that heap buffers need, but it is costly to allocate and freed only by the garbage collector:
+ * buffers are therefore reused across relays, up to a limit.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class BufferPool {
+
+    /**
+     * The capacity in bytes of each buffer.
+     */
+    public static final int BUFFER_SIZE = Configuration.getInt("relay.bufferSize", 16 * 1024);
+
+    /**
+     * The maximum number of idle buffers kept for reuse.
+     */
+    private static final int MAX_IDLE = Configuration.getInt("relay.maxIdleBuffers", 1024);
+
+    /**
+     * The idle buffers.
+     */
+    private static final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of idle buffers, tracked apart since the size of the queue is not constant-time.
+     */
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private BufferPool() {}
+
+    /**
+     * Takes an idle buffer or allocates a new one.
+     *
+     * @return Returns a cleared direct buffer.
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        idleCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer, which must not be used anymore.
+     *
+     * @param buffer The buffer taken with {@link #acquire()}.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (idleCount.incrementAndGet() > MAX_IDLE) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        idle.add(buffer);
+    }
+
+}
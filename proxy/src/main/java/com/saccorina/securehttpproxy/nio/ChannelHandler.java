@@ -0,0 +1,30 @@
+package com.saccorina.securehttpproxy.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handler of the events of a channel registered in an event loop.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public interface ChannelHandler {
+
+    /**
+     * Handles the operations the channel is ready for.
+     *
+     * @param key The selection key of the channel.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void onReady(SelectionKey key) throws IOException;
+
+    /**
+     * Handles an error thrown while processing the channel, usually by closing it.
+     *
+     * @param e The exception thrown.
+     */
+    void onError(Exception e);
+
+}
@@ -0,0 +1,303 @@
+package com.saccorina.securehttpproxy.nio;
+
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Relays the bytes of a CONNECT tunnel between two channels, in both directions, on an event loop.
+ *
+ * Each direction has a pooled direct buffer: the bytes read from a channel are written to the other one
+ * without leaving native memory, and a channel is not read while the other one has not accepted the
+ * previous bytes. When a side shuts down its output, the other one is shut down too once its bytes are
+ * written; the relay is closed when both directions have ended.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class ChannelRelay {
+
+    /**
+     * The reply to a CONNECT request once the tunnel is established.
+     */
+    public static final byte[] CONNECTION_ESTABLISHED = "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes();
+
+    /**
+     * The reply to a CONNECT request whose target cannot be reached.
+     */
+    public static final byte[] BAD_GATEWAY =
+            "HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes();
+
+    /**
+     * The connection timeout in milliseconds of the targets of the tunnels.
+     */
+    private static final int CONNECT_TIMEOUT = Configuration.getInt("pool.connectTimeout", 10000);
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The event loop of the relay.
+     */
+    private final EventLoop loop;
+
+    /**
+     * The side of the client, which asked for the tunnel.
+     */
+    private final Side client;
+
+    /**
+     * The side of the target of the tunnel.
+     */
+    private final Side remote;
+
+    /**
+     * The source of the log messages of the relay.
+     */
+    private final String logSource;
+
+    /**
+     * Whether the relay has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Initialize a relay between two connected channels.
+     *
+     * @param loop The event loop of the relay.
+     * @param client The channel of the client, registered in the same loop if it is registered yet.
+     * @param remote The channel of the target.
+     * @param logSource The source of the log messages of the relay.
+     */
+    public ChannelRelay(EventLoop loop, SocketChannel client, SocketChannel remote, String logSource) {
+        this.loop      = loop;
+        this.client    = new Side(client);
+        this.remote    = new Side(remote);
+        this.logSource = logSource;
+        this.client.other = this.remote;
+        this.remote.other = this.client;
+    }
+
+    /**
+     * Parses the target of a CONNECT request.
+     *
+     * @param target The target in "host:port" form, the host of an IPv6 address in brackets.
+     * @return Returns the unresolved address of the target.
+     *
+     * @throws IOException if the target is not valid.
+     */
+    public static InetSocketAddress parseTarget(String target) throws IOException {
+        int colon = target.lastIndexOf(':');
+        if (colon <= 0 || colon < target.lastIndexOf(']')) {
+            throw new IOException("Invalid CONNECT target: " + target);
+        }
+        String host = target.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            return InetSocketAddress.createUnresolved(host, Integer.parseInt(target.substring(colon + 1)));
+
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid CONNECT target: " + target, e);
+        }
+    }
+
+    /**
+     * Opens a blocking channel to the target of a tunnel.
+     *
+     * @param host The host of the target.
+     * @param port The port of the target.
+     * @return Returns the connected channel.
+     *
+     * @throws IOException if the target cannot be reached.
+     */
+    public static SocketChannel connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            return channel;
+
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts relaying in the event loop, can be called from any thread.
+     *
+     * @param greeting The bytes written to the client before the relayed ones, e.g. the reply to CONNECT.
+     */
+    public void start(byte[] greeting) {
+        this.loop.execute(() -> {
+            try {
+                Metrics.ACTIVE_CONNECTIONS.increment();
+                this.remote.buffer.put(greeting);
+                this.client.register();
+                this.remote.register();
+                this.remote.transfer();
+                logger.log(Logger.Level.DEBUG, this.logSource, "Tunnel established");
+
+            } catch (IOException | RuntimeException e) {
+                this.client.onError(e);
+            }
+        });
+    }
+
+    /**
+     * Closes both channels and gives back the buffers.
+     */
+    private void close() {
+        if (this.closed) return;
+        this.closed = true;
+        this.client.close();
+        this.remote.close();
+        Metrics.ACTIVE_CONNECTIONS.decrement();
+        logger.log(Logger.Level.DEBUG, this.logSource, "Tunnel closed ({} bytes sent, {} received)",
+                this.client.relayed, this.remote.relayed);
+    }
+
+    /**
+     * One of the two channels, with the bytes read from it and not written to the other one yet.
+     */
+    private class Side implements ChannelHandler {
+
+        /**
+         * The channel of the side.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * The bytes read from the channel, to write to the other side.
+         */
+        private final ByteBuffer buffer = BufferPool.acquire();
+
+        /**
+         * The other side.
+         */
+        private Side other;
+
+        /**
+         * The selection key of the channel.
+         */
+        private SelectionKey key;
+
+        /**
+         * Whether the end of the stream of the channel has been read.
+         */
+        private boolean ended;
+
+        /**
+         * Whether the output of the other side has been shut down after the end of this one.
+         */
+        private boolean shut;
+
+        /**
+         * The number of bytes written to the other side.
+         */
+        private long relayed;
+
+        private Side(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Registers the channel in the loop of the relay, replacing its previous handler if any.
+         *
+         * @throws IOException if an I/O error occurs.
+         */
+        private void register() throws IOException {
+            this.channel.configureBlocking(false);
+            this.key = ChannelRelay.this.loop.register(this.channel, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onReady(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                this.transfer();
+            }
+            if (key.isValid() && key.isWritable()) {
+                this.other.transfer();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onError(Exception e) {
+            Metrics.ERRORS.increment();
+            logger.error("Error in tunnel relay", e);
+            ChannelRelay.this.close();
+        }
+
+        /**
+         * Reads the channel while there is room in the buffer and writes the buffer to the other side.
+         *
+         * @throws IOException if an I/O error occurs.
+         */
+        private void transfer() throws IOException {
+            if (ChannelRelay.this.closed) return;
+
+            if (!this.ended && this.buffer.hasRemaining() && this.channel.read(this.buffer) == -1) {
+                this.ended = true;
+            }
+            this.buffer.flip();
+            this.relayed += this.other.channel.write(this.buffer);
+            this.buffer.compact();
+
+            boolean pending = this.buffer.position() > 0;
+            if (this.ended && !pending && !this.shut) {
+                this.shut = true;
+                this.other.channel.shutdownOutput();
+                if (this.other.shut) {
+                    ChannelRelay.this.close();
+                    return;
+                }
+            }
+            this.updateInterest();
+            this.other.updateInterest();
+        }
+
+        /**
+         * Reads only while the buffer has room and writes only while the other side has pending bytes.
+         */
+        private void updateInterest() {
+            int ops = 0;
+            if (!this.ended && this.buffer.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (this.other.buffer.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            this.key.interestOps(ops);
+        }
+
+        /**
+         * Closes the channel and gives back the buffer.
+         */
+        private void close() {
+            try {
+                this.channel.close();
+
+            } catch (IOException e) {
+                logger.error("Error closing tunnel channel", e);
+            }
+            BufferPool.release(this.buffer);
+        }
+
+    }
+
+}
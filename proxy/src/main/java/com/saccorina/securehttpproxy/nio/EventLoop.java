@@ -0,0 +1,139 @@
+package com.saccorina.securehttpproxy.nio;
+
+import com.saccorina.securehttpproxy.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that multiplexes the events of many non-blocking channels with a selector.
+ *
+ * All the operations on a channel registered in the loop must be executed in the loop thread:
+ * other threads hand them over with {@link #execute(Runnable)}.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class EventLoop implements Runnable {
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The selector of the registered channels.
+     */
+    private final Selector selector;
+
+    /**
+     * The tasks submitted by other threads.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The loop thread.
+     */
+    private final Thread thread;
+
+    /**
+     * Initialize the event loop.
+     *
+     * @param name The name of the loop thread.
+     *
+     * @throws IOException if the selector cannot be opened.
+     */
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread   = new Thread(this, name);
+    }
+
+    /**
+     * Starts the loop thread.
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Checks if the caller is running in the loop thread.
+     *
+     * @return Returns TRUE if the current thread is the loop thread.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Executes a task in the loop thread.
+     *
+     * @param task The task to execute.
+     */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        if (!this.inEventLoop()) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel in the loop, must be called in the loop thread.
+     *
+     * @param channel The non-blocking channel.
+     * @param ops The interest set.
+     * @param handler The handler of the channel events.
+     * @return Returns the selection key of the channel.
+     *
+     * @throws ClosedChannelException if the channel is closed.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler)
+            throws ClosedChannelException
+    {
+        return channel.register(this.selector, ops, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                logger.error("Error selecting channels", e);
+                continue;
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                ChannelHandler handler = (ChannelHandler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.onReady(key);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    handler.onError(e);
+                }
+            }
+
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Error executing event loop task", e);
+                }
+            }
+        }
+    }
+
+}
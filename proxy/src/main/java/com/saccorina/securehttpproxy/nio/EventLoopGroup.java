@@ -0,0 +1,58 @@
+package com.saccorina.securehttpproxy.nio;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loops that share the channels in round-robin.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class EventLoopGroup {
+
+    /**
+     * The event loops.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * The index of the next loop to use.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Initialize and start the event loops.
+     *
+     * @param name The prefix of the loop thread names.
+     * @param size The number of event loops, 0 to use the number of available processors.
+     *
+     * @throws IOException if a selector cannot be opened.
+     */
+    public EventLoopGroup(String name, int size) throws IOException {
+        this.loops = new EventLoop[size > 0 ? size : Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new EventLoop(name + "-" + i);
+            this.loops[i].start();
+        }
+    }
+
+    /**
+     * Retrieves the next event loop.
+     *
+     * @return Returns an event loop.
+     */
+    public EventLoop next() {
+        return this.loops[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+    }
+
+    /**
+     * Retrieves the number of event loops.
+     *
+     * @return Returns the number of event loops.
+     */
+    public int size() {
+        return this.loops.length;
+    }
+
+}
@@ -0,0 +1,287 @@
+package com.saccorina.securehttpproxy.nio;
+
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.RecordInputStream;
+import com.saccorina.securehttpproxy.RecordOutputStream;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Relays the bytes of a CONNECT tunnel between a channel and a tunnel stream, in both directions, on an
+ * event loop.
+ *
+ * The bytes read from the channel are sent as records as soon as they arrive, since the protocol in the
+ * tunnel (usually TLS) waits for them. The records of the stream are read only when the thread reading
+ * the tunnel notifies their arrival, and only while the channel accepts the previous bytes, so that no
+ * thread waits for either direction. The channel is read only while the receiver of the stream has granted
+ * credit for the records, and again when it grants more. An error in either side resets the stream.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class FlowRelay implements ChannelHandler {
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The event loop of the relay.
+     */
+    private final EventLoop loop;
+
+    /**
+     * The channel of the relay.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The decrypted flow received from the tunnel.
+     */
+    private final RecordInputStream in;
+
+    /**
+     * The flow sent encrypted in the tunnel.
+     */
+    private final RecordOutputStream out;
+
+    /**
+     * The task that stops receiving the frames of the stream, run once the relay is closed.
+     */
+    private final Runnable onClose;
+
+    /**
+     * The source of the log messages of the relay.
+     */
+    private final String logSource;
+
+    /**
+     * The bytes read from the channel, to send in the stream.
+     */
+    private final ByteBuffer fromChannel = BufferPool.acquire();
+
+    /**
+     * The bytes received from the stream, to write to the channel.
+     */
+    private final ByteBuffer toChannel = BufferPool.acquire();
+
+    /**
+     * The selection key of the channel.
+     */
+    private SelectionKey key;
+
+    /**
+     * Whether the end of the stream of the channel has been read.
+     */
+    private boolean channelEnded;
+
+    /**
+     * Whether the end of the tunnel stream has been received.
+     */
+    private boolean flowEnded;
+
+    /**
+     * Whether the relay has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * The number of bytes sent in the stream.
+     */
+    private long sent;
+
+    /**
+     * The number of bytes written to the channel.
+     */
+    private long received;
+
+    /**
+     * Initialize a relay between a connected channel and a tunnel stream.
+     *
+     * @param loop The event loop of the relay.
+     * @param channel The channel, registered in the same loop if it is registered yet.
+     * @param in The decrypted flow received from the tunnel.
+     * @param out The flow sent encrypted in the tunnel.
+     * @param onClose The task that stops receiving the frames of the stream.
+     * @param logSource The source of the log messages of the relay.
+     */
+    public FlowRelay(EventLoop loop,
+                     SocketChannel channel,
+                     RecordInputStream in,
+                     RecordOutputStream out,
+                     Runnable onClose,
+                     String logSource)
+    {
+        this.loop      = loop;
+        this.channel   = channel;
+        this.in        = in;
+        this.out       = out;
+        this.onClose   = onClose;
+        this.logSource = logSource;
+    }
+
+    /**
+     * Starts relaying in the event loop, can be called from any thread.
+     *
+     * @param greeting The bytes written to the channel before the relayed ones, e.g. the reply to CONNECT.
+     */
+    public void start(byte[] greeting) {
+        this.loop.execute(() -> {
+            try {
+                Metrics.ACTIVE_CONNECTIONS.increment();
+                this.toChannel.put(greeting);
+                this.channel.configureBlocking(false);
+                this.key = this.loop.register(this.channel, SelectionKey.OP_READ, this);
+                this.in.setListener(() -> this.loop.execute(this::onFrame));
+                this.out.setListener(() -> this.loop.execute(this::onCredit));
+                this.receive();
+                logger.log(Logger.Level.DEBUG, this.logSource, "Tunnel established");
+
+            } catch (IOException | RuntimeException e) {
+                this.onError(e);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            this.send();
+        }
+        if (key.isValid() && key.isWritable()) {
+            this.receive();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onError(Exception e) {
+        if (this.closed) return;
+        Metrics.ERRORS.increment();
+        logger.error("Error in tunnel relay", e);
+        try {
+            this.out.reset(String.valueOf(e.getMessage()));
+
+        } catch (IOException ex) {
+            logger.error("Error resetting stream", ex);
+        }
+        this.close();
+    }
+
+    /**
+     * Handles the frames received from the tunnel, in the loop thread.
+     */
+    private void onFrame() {
+        try {
+            this.receive();
+
+        } catch (IOException e) {
+            this.onError(e);
+        }
+    }
+
+    /**
+     * Resumes reading the channel once the receiver of the stream grants credit, in the loop thread.
+     */
+    private void onCredit() {
+        if (this.closed || this.channelEnded || !this.key.isValid()) return;
+        this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Sends the bytes available in the channel as a record, as many as the credit of the stream allows.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void send() throws IOException {
+        if (this.closed) return;
+
+        int writable = this.out.writableBytes();
+        if (writable == 0) {
+            // out of credit, the channel is read again when the receiver grants more
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        this.fromChannel.limit(Math.min(this.fromChannel.capacity(), writable));
+        int read = this.channel.read(this.fromChannel);
+        if (read == -1) {
+            this.channelEnded = true;
+            this.out.close();
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            if (this.flowEnded) {
+                this.close();
+            }
+            return;
+        }
+
+        this.fromChannel.flip();
+        this.out.write(this.fromChannel);
+        this.out.flush();
+        this.fromChannel.clear();
+        this.sent += read;
+    }
+
+    /**
+     * Writes the received records to the channel until it stops accepting bytes.
+     *
+     * @throws IOException if an I/O error occurs or a record is not authentic.
+     */
+    private void receive() throws IOException {
+        if (this.closed) return;
+
+        while (true) {
+            if (this.toChannel.position() > 0) {
+                this.toChannel.flip();
+                this.received += this.channel.write(this.toChannel);
+                this.toChannel.compact();
+                if (this.toChannel.position() > 0) {
+                    // the socket buffer is full, wait until it is writable again
+                    this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            int read = this.flowEnded ? -1 : this.in.readAvailable(this.toChannel);
+            if (read <= 0) {
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (read == -1 && !this.flowEnded) {
+                    this.flowEnded = true;
+                    this.channel.shutdownOutput();
+                    if (this.channelEnded) {
+                        this.close();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the channel, stops receiving the stream and gives back the buffers.
+     */
+    private void close() {
+        if (this.closed) return;
+        this.closed = true;
+        try {
+            this.channel.close();
+
+        } catch (IOException e) {
+            logger.error("Error closing tunnel channel", e);
+        }
+        this.onClose.run();
+        BufferPool.release(this.fromChannel);
+        BufferPool.release(this.toChannel);
+        Metrics.ACTIVE_CONNECTIONS.decrement();
+        logger.log(Logger.Level.DEBUG, this.logSource, "Tunnel closed ({} bytes sent, {} received)",
+                this.sent, this.received);
+    }
+
+}
@@ -0,0 +1,308 @@
+package com.saccorina.securehttpproxy.nio;
+
+import com.saccorina.securehttpproxy.BodyBudget;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Base handler of a non-blocking connection bound to an event loop.
+ *
+ * Received bytes are accumulated in an input buffer handed to {@link #onRead(ByteBuffer)}, while
+ * outgoing buffers are queued and written as soon as the socket is writable.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public abstract class NioConnection implements ChannelHandler {
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The application logger.
+     */
+    protected final Logger logger = Logger.getInstance();
+
+    /**
+     * The connection channel.
+     */
+    protected final SocketChannel channel;
+
+    /**
+     * The event loop of the connection.
+     */
+    protected final EventLoop loop;
+
+    /**
+     * The address of the remote peer.
+     */
+    protected final String remoteAddress;
+
+    /**
+     * The maximum size of the input buffer.
+     */
+    private final int maxBufferSize;
+
+    /**
+     * The selection key of the channel.
+     */
+    private SelectionKey key;
+
+    /**
+     * The buffer of received bytes not consumed yet.
+     */
+    private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * The bytes of the input buffer acquired from the memory budget, beyond its initial size.
+     */
+    private int budgeted;
+
+    /**
+     * The buffers waiting to be written.
+     */
+    private final Deque<ByteBuffer> output = new ArrayDeque<>();
+
+    /**
+     * Whether the connection must be closed once the output is written.
+     */
+    private boolean closeAfterWrite;
+
+    /**
+     * Whether the connection has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Initialize the connection.
+     *
+     * @param channel The non-blocking channel.
+     * @param loop The event loop of the connection.
+     * @param maxBufferSize The maximum size of the input buffer.
+     */
+    protected NioConnection(SocketChannel channel, EventLoop loop, int maxBufferSize) {
+        this.channel       = channel;
+        this.loop          = loop;
+        this.maxBufferSize = maxBufferSize;
+        this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Registers the connection in its event loop, must be called in the loop thread.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void register() throws IOException {
+        this.key = this.loop.register(this.channel, SelectionKey.OP_READ, this);
+        Metrics.ACTIVE_CONNECTIONS.increment();
+        this.onOpen();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            this.read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            this.flush();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onError(Exception e) {
+        Metrics.ERRORS.increment();
+        logger.error("Error in non-blocking connection", e);
+        this.close();
+    }
+
+    /**
+     * Reads the available bytes and hands them to the handler.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void read() throws IOException {
+        int read = this.channel.read(this.input);
+        if (read == -1) {
+            this.onEndOfStream();
+            return;
+        }
+
+        this.input.flip();
+        this.onRead(this.input);
+        if (this.closed) return;
+        this.input.compact();
+
+        if (this.budgeted > 0 && this.input.position() == 0) {
+            // the large message has been consumed, give back its memory
+            this.input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            BodyBudget.release(this.budgeted);
+            this.budgeted = 0;
+
+        } else if (!this.input.hasRemaining()) {
+            if (this.input.capacity() >= this.maxBufferSize) {
+                throw new IOException("Message exceeds " + this.maxBufferSize + " bytes");
+            }
+            int capacity = Math.min(this.input.capacity() * 2, this.maxBufferSize);
+            if (!BodyBudget.tryAcquire(capacity - this.input.capacity())) {
+                this.onOverload();
+                return;
+            }
+            this.budgeted += capacity - this.input.capacity();
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            this.input.flip();
+            larger.put(this.input);
+            this.input = larger;
+        }
+    }
+
+    /**
+     * Writes a buffer in the connection, can be called from any thread.
+     *
+     * @param buffer The buffer to write.
+     */
+    public void write(ByteBuffer buffer) {
+        if (!this.loop.inEventLoop()) {
+            this.loop.execute(() -> this.write(buffer));
+            return;
+        }
+        if (this.closed) return;
+
+        this.output.add(buffer);
+        try {
+            this.flush();
+
+        } catch (IOException e) {
+            this.onError(e);
+        }
+    }
+
+    /**
+     * Writes the queued buffers until the socket accepts bytes.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void flush() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = this.output.peek()) != null) {
+            this.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                // the socket buffer is full, wait until it is writable again
+                this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            this.output.poll();
+        }
+
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (this.closeAfterWrite) {
+            this.close();
+        }
+    }
+
+    /**
+     * Stops reading from the connection.
+     */
+    protected void stopReading() {
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Closes the connection once all the queued buffers are written, can be called from any thread.
+     */
+    public void closeAfterWrite() {
+        if (!this.loop.inEventLoop()) {
+            this.loop.execute(this::closeAfterWrite);
+            return;
+        }
+        this.closeAfterWrite = true;
+        if (this.output.isEmpty()) {
+            this.close();
+        }
+    }
+
+    /**
+     * Stops handling the channel without closing it, so that another handler can register it in the same
+     * loop, must be called in the loop thread.
+     *
+     * @return Returns FALSE if the connection has already been closed.
+     */
+    protected boolean handOver() {
+        if (this.closed) return false;
+        this.closed = true;
+        Metrics.ACTIVE_CONNECTIONS.decrement();
+        if (this.budgeted > 0) {
+            BodyBudget.release(this.budgeted);
+            this.budgeted = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public void close() {
+        if (this.closed) return;
+        this.closed = true;
+        if (this.key != null) {
+            Metrics.ACTIVE_CONNECTIONS.decrement();
+        }
+        if (this.budgeted > 0) {
+            BodyBudget.release(this.budgeted);
+            this.budgeted = 0;
+        }
+        try {
+            this.channel.close();
+
+        } catch (IOException e) {
+            logger.error("Error closing non-blocking connection", e);
+        }
+        this.onClose();
+    }
+
+    /**
+     * Called in the loop thread once the connection is registered.
+     */
+    protected void onOpen() {}
+
+    /**
+     * Called in the loop thread when new bytes are available.
+     *
+     * @param input The buffer of received bytes, the bytes left unread are kept for the next call.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    protected abstract void onRead(ByteBuffer input) throws IOException;
+
+    /**
+     * Called in the loop thread when the other side shuts down its output, by default closes the connection.
+     */
+    protected void onEndOfStream() {
+        this.close();
+    }
+
+    /**
+     * Called in the loop thread once the connection is closed.
+     */
+    protected void onClose() {}
+
+    /**
+     * Called in the loop thread when the input buffer cannot grow within the memory budget, by default
+     * failing the connection.
+     *
+     * @throws IOException if the connection must fail.
+     */
+    protected void onOverload() throws IOException {
+        throw new IOException("Memory budget exhausted");
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.saccorina.securehttpproxy.nio;
+
+import com.saccorina.securehttpproxy.Acceptors;
+import com.saccorina.securehttpproxy.Logger;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.BiFunction;
+
+/**
+ * Non-blocking server that accepts connections and distributes them among the event loops of a group.
+ *
+ * Each acceptor registers its listener in an event loop of the group. When every loop has its own
+ * listener, the connections stay in the loop that accepted them, without crossing threads.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class NioServer {
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The listening channels, one for each acceptor if the port can be shared.
+     */
+    private final ServerSocketChannel[] listeners;
+
+    /**
+     * The event loops that handle the accepted connections.
+     */
+    private final EventLoopGroup group;
+
+    /**
+     * The factory of the handlers for accepted connections.
+     */
+    private final BiFunction<SocketChannel, EventLoop, NioConnection> connectionFactory;
+
+    /**
+     * Initialize the server and bind the listening channels.
+     *
+     * @param port The port number to listen.
+     * @param acceptors The number of acceptors, at most one for each event loop.
+     * @param group The event loops that handle the accepted connections.
+     * @param connectionFactory The factory of the handlers for accepted connections.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public NioServer(int port,
+                     int acceptors,
+                     EventLoopGroup group,
+                     BiFunction<SocketChannel, EventLoop, NioConnection> connectionFactory)
+            throws IOException
+    {
+        this.group             = group;
+        this.connectionFactory = connectionFactory;
+        this.listeners         = Acceptors.open(port, Math.min(acceptors, group.size()));
+
+        for (ServerSocketChannel listener : this.listeners) {
+            listener.configureBlocking(false);
+        }
+    }
+
+    /**
+     * Starts accepting connections in the event loops of the group.
+     */
+    public void start() {
+        boolean local = this.listeners.length > 1 && this.listeners.length == this.group.size();
+        for (ServerSocketChannel listener : this.listeners) {
+            EventLoop acceptLoop = this.group.next();
+            Acceptor acceptor = new Acceptor(listener, local ? acceptLoop : null);
+            acceptLoop.execute(() -> {
+                try {
+                    acceptLoop.register(listener, SelectionKey.OP_ACCEPT, acceptor);
+
+                } catch (IOException e) {
+                    logger.error("Error registering server channel", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Retrieves the number of listening channels.
+     *
+     * @return Returns the number of listeners.
+     */
+    public int getListenerCount() {
+        return this.listeners.length;
+    }
+
+    /**
+     * Registers an accepted connection in its event loop, in the loop thread.
+     *
+     * @param channel The channel of the connection.
+     * @param loop The event loop of the connection.
+     */
+    private void register(SocketChannel channel, EventLoop loop) {
+        try {
+            this.connectionFactory.apply(channel, loop).register();
+
+        } catch (IOException e) {
+            logger.error("Error registering connection", e);
+        }
+    }
+
+    /**
+     * Accepts the connections of a listener.
+     */
+    private class Acceptor implements ChannelHandler {
+
+        /**
+         * The listening channel.
+         */
+        private final ServerSocketChannel listener;
+
+        /**
+         * The event loop of the accepted connections or NULL to distribute them among the group.
+         */
+        private final EventLoop loop;
+
+        private Acceptor(ServerSocketChannel listener, EventLoop loop) {
+            this.listener = listener;
+            this.loop     = loop;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onReady(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = this.listener.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                if (this.loop != null) {
+                    NioServer.this.register(channel, this.loop);
+                    continue;
+                }
+
+                SocketChannel accepted = channel;
+                EventLoop loop = NioServer.this.group.next();
+                loop.execute(() -> NioServer.this.register(accepted, loop));
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onError(Exception e) {
+            logger.error("Error accepting connection", e);
+        }
+
+    }
+
+}
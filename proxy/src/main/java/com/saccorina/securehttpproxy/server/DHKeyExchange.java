@@ -1,17 +1,18 @@
 package com.saccorina.securehttpproxy.server;
 
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.FrameReader;
+import com.saccorina.securehttpproxy.FrameWriter;
+import com.saccorina.securehttpproxy.KeyExchange;
 import com.saccorina.securehttpproxy.Logger;
-import com.saccorina.securehttpproxy.Utility;
+import com.saccorina.securehttpproxy.TunnelEncoding;
 import com.saccorina.securehttpproxy.exception.CipherException;
 import com.saccorina.securehttpproxy.exception.SocketException;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPublicKey;
 import javax.crypto.spec.DHParameterSpec;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.*;
@@ -19,7 +20,8 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 
 /**
- * This class performs a Diffie-Hellman Key Exchange from the server side.
+ * This class performs a Diffie-Hellman Key Exchange from the server side, with finite-field parameters
+ * or on Curve25519.
  *
  * @author Matteo Rinaldini
  * @author Francesco Saccani
@@ -28,10 +30,28 @@ class DHKeyExchange {
 
     private static final Logger logger = Logger.getInstance();
 
+    private final KeyExchange keyExchange;
+
     private KeyAgreement keyAgreement;
 
     private byte[] secretKey;
 
+    /**
+     * Initialize a finite-field Diffie-Hellman Key Exchange.
+     */
+    DHKeyExchange() {
+        this(KeyExchange.DH);
+    }
+
+    /**
+     * Initialize a Diffie-Hellman Key Exchange.
+     *
+     * @param keyExchange The algorithm of the key exchange.
+     */
+    DHKeyExchange(KeyExchange keyExchange) {
+        this.keyExchange = keyExchange;
+    }
+
     /**
      * Create a key pair for this entity.
      *
@@ -42,13 +62,15 @@ class DHKeyExchange {
      */
     private KeyPair createKeyPair(PublicKey otherPublicKey) throws CipherException {
         try {
-            DHParameterSpec dhParamFromPublicKey = ((DHPublicKey) otherPublicKey).getParams();
-
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DH");
-            keyPairGenerator.initialize(dhParamFromPublicKey);
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(this.keyExchange.getAlgorithm());
+            if (this.keyExchange == KeyExchange.DH) {
+                // use the parameters chosen by the client
+                DHParameterSpec dhParamFromPublicKey = ((DHPublicKey) otherPublicKey).getParams();
+                keyPairGenerator.initialize(dhParamFromPublicKey);
+            }
             KeyPair keyPair = keyPairGenerator.generateKeyPair();
 
-            this.keyAgreement = KeyAgreement.getInstance("DH");
+            this.keyAgreement = KeyAgreement.getInstance(this.keyExchange.getAlgorithm());
             this.keyAgreement.init(keyPair.getPrivate());
 
             logger.log("[DHKeyExchange] Key pair created");
@@ -68,40 +90,64 @@ class DHKeyExchange {
      * @throws SocketException if an I/O error occurs during the exchange.
      */
     void performsKeyExchange(int port) throws CipherException, SocketException {
-        try {
-            ServerSocket server = new ServerSocket(port);
+        try (ServerSocket server = new ServerSocket(port)) {
             server.setReuseAddress(true);
             // connect to the other entity
             logger.log("[DHKeyExchange] Waiting for the client connection...");
-            Socket socket = server.accept();
-
-            // receive other public key
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            StringBuilder messageBuilder = new StringBuilder();
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                if (inputLine.isEmpty()) break;
-                messageBuilder.append(inputLine);
+            try (Socket socket = server.accept()) {
+                this.performsKeyExchange(socket);
             }
-            byte[] otherPublicKeyEnc = Utility.hexStringToBytes(messageBuilder.toString());
+
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Performs the Diffie-Hellman Key Exchange on a connected socket, left open.
+     *
+     * @param socket The socket connected to the other entity.
+     *
+     * @throws CipherException if an error occurs during key generation.
+     * @throws SocketException if an I/O error occurs during the exchange.
+     */
+    void performsKeyExchange(Socket socket) throws CipherException, SocketException {
+        try {
+            // receive other public key, in hexadecimal lines as the key exchange always did
+            Frame otherPublicKeyFrame = new FrameReader(socket.getInputStream(), TunnelEncoding.HEX).read();
+            if (otherPublicKeyFrame == null) {
+                throw new IOException("Connection closed by the client during the key exchange");
+            }
+            byte[] publicKey = this.respond(otherPublicKeyFrame.getPayload());
+
+            // send public key
+            FrameWriter out = new FrameWriter(socket.getOutputStream(), TunnelEncoding.HEX);
+            out.write(new Frame(Frame.TYPE_MESSAGE, 0, publicKey));
+            logger.log("[DHKeyExchange] Personal public key sent");
+
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Completes the Diffie-Hellman Key Exchange with the public key of the other entity.
+     *
+     * @param otherPublicKeyEnc The X.509 encoded public key of the other entity.
+     * @return Returns the X.509 encoded public key of this entity, to be sent to the other one.
+     *
+     * @throws CipherException if the public key is not valid or an error occurs during key generation.
+     */
+    byte[] respond(byte[] otherPublicKeyEnc) throws CipherException {
+        try {
             // decode other public key
-            KeyFactory keyFactory = KeyFactory.getInstance("DH");
+            KeyFactory keyFactory = KeyFactory.getInstance(this.keyExchange.getAlgorithm());
             X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(otherPublicKeyEnc);
             PublicKey otherPublicKey = keyFactory.generatePublic(x509KeySpec);
             logger.log("[DHKeyExchange] Other public key received");
 
             // create key pair
             KeyPair keyPair = this.createKeyPair(otherPublicKey);
-            byte[] publicKey = keyPair.getPublic().getEncoded();
-
-            // send public key
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(Utility.bytesToHexString(publicKey));
-            out.println();
-            logger.log("[DHKeyExchange] Personal public key sent");
-
-            // close the socket server
-            server.close();
 
             // the DH key agreement protocol is completed
             this.keyAgreement.doPhase(otherPublicKey, true);
@@ -110,10 +156,9 @@ class DHKeyExchange {
             this.secretKey = this.keyAgreement.generateSecret();
             logger.log("[DHKeyExchange] Secret key generated");
 
-        } catch (IOException e) {
-            throw new SocketException(e.getMessage(), e);
+            return keyPair.getPublic().getEncoded();
 
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException | ClassCastException e) {
             throw new CipherException(e.getMessage(), e);
         }
     }
@@ -0,0 +1,158 @@
+package com.saccorina.securehttpproxy.server;
+
+import com.saccorina.securehttpproxy.BodyBudget;
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.ConnectionPool;
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.HttpCaching;
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import com.saccorina.securehttpproxy.PooledConnection;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+import com.saccorina.securehttpproxy.nio.ChannelRelay;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client used by the server proxy to forward requests to the final server.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class OriginClient {
+
+    /**
+     * The host of the final server.
+     */
+    private static final String ORIGIN_HOST = Configuration.getString("origin.host", "localhost");
+
+    /**
+     * The port of the final server.
+     */
+    private static final int ORIGIN_PORT = Configuration.getInt("origin.port", 80);
+
+    /**
+     * The pool of persistent connections to the final server.
+     */
+    private final ConnectionPool pool = new ConnectionPool("OriginPool");
+
+    /**
+     * The shared cache of the responses or NULL if disabled.
+     */
+    private final SegmentCache cache = SegmentCache.configured();
+
+    /**
+     * Retrieves the HTTP response from the cache or from the final server.
+     *
+     * The response is held whole in the heap to be encrypted at once, so it is admitted within the memory
+     * budget and it must fit in a frame.
+     *
+     * @param request The HTTP request from the initial client.
+     * @return Returns the server response as byte array, to be given back with
+     *         {@link #releaseResponse(byte[])}, or a 503 response if the memory budget cannot hold it.
+     *
+     * @throws IOException if an I/O error occurs or the response is longer than a frame.
+     */
+    byte[] retrieveResponse(byte[] request) throws IOException {
+        HttpMessageReader requestReader = new HttpMessageReader(new ByteArrayInputStream(request), false);
+        SegmentCache.Hit hit = this.cache == null ? null : this.cache.lookup(requestReader);
+        if (hit != null) {
+            return BodyBudget.tryAcquire(footprint(hit.length())) ? hit.toByteArray() : refuse();
+        }
+
+        byte[] response = this.pool.exchange(ORIGIN_HOST, ORIGIN_PORT, request, Frame.MAX_PAYLOAD_LENGTH,
+                OriginClient::footprint);
+        if (this.cache != null && HttpCaching.isUnsafe(requestReader)) {
+            // the final server has received the request even if its response is refused
+            this.cache.invalidate(requestReader);
+        }
+        if (response == null) {
+            return refuse();
+        }
+        if (this.cache != null && HttpCaching.isCacheable(requestReader)) {
+            try {
+                this.cache.store(requestReader, response);
+
+            } catch (IOException | RuntimeException e) {
+                this.releaseResponse(response);
+                throw e;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Gives back the memory budget held by a response.
+     *
+     * @param response The response retrieved with {@link #retrieveResponse(byte[])}.
+     */
+    void releaseResponse(byte[] response) {
+        if (response != BodyBudget.SERVICE_UNAVAILABLE) {
+            BodyBudget.release(footprint(response.length));
+        }
+    }
+
+    /**
+     * Answers a request whose response cannot be held within the memory budget.
+     *
+     * @return Returns the 503 response.
+     */
+    private static byte[] refuse() {
+        Metrics.REJECTED.increment();
+        return BodyBudget.SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Estimates the bytes of the heap held by a response while it is encrypted and sent.
+     *
+     * @param length The length in bytes of the response.
+     * @return Returns the number of bytes.
+     */
+    private static long footprint(long length) {
+        return BodyBudget.protectedFootprint(length, ServerProxy.TUNNEL_ENCODING);
+    }
+
+    /**
+     * Retrieves the shared cache of the responses.
+     *
+     * @return Returns the cache or NULL if disabled.
+     */
+    SegmentCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Leases a connection with the final server.
+     *
+     * @return Returns the connection, to be given back with {@link #release(PooledConnection, boolean)}.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    PooledConnection connect() throws IOException {
+        return this.pool.lease(ORIGIN_HOST, ORIGIN_PORT);
+    }
+
+    /**
+     * Opens a connection with the final server for a CONNECT tunnel, not pooled.
+     *
+     * @param port The port of the final server asked by the tunnel.
+     * @return Returns the connected blocking channel.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    SocketChannel connectTunnel(int port) throws IOException {
+        return ChannelRelay.connect(ORIGIN_HOST, port);
+    }
+
+    /**
+     * Gives back a connection with the final server.
+     *
+     * @param connection The leased connection.
+     * @param reusable Whether the connection can be used for another request.
+     */
+    void release(PooledConnection connection, boolean reusable) {
+        this.pool.release(connection, reusable);
+    }
+
+}
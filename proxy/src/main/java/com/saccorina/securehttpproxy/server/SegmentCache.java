@@ -0,0 +1,897 @@
+package com.saccorina.securehttpproxy.server;
+
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.HttpCaching;
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import com.saccorina.securehttpproxy.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Shared HTTP cache of the responses of the final server, kept off-heap and persistent across restarts.
+ *
+ * The responses are appended to memory-mapped segment files and located by an open addressing index of
+ * primitive arrays, keyed by the 64-bit hash of the URI, so a stored response costs a few bytes of heap.
+ * When the last segment is full, the oldest one is dropped with its responses. At startup the segments
+ * are scanned to rebuild the index, stopping at the first incomplete record of each segment. A response
+ * invalidated by an unsafe request is marked in its segment, so that it is not loaded again.
+ *
+ * Only fresh responses are served; validation is left to the caches of the clients.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class SegmentCache {
+
+    /**
+     * The first bytes of a record, "SCR1".
+     */
+    private static final int RECORD_MAGIC = 0x53435231;
+
+    /**
+     * The first bytes of an invalidated record, "SCR0": its length and checksum are still valid, so the
+     * scan goes on after it.
+     */
+    private static final int INVALIDATED_MAGIC = 0x53435230;
+
+    /**
+     * The length of the record header: magic, length, checksum, hash, birth, lifetime and the lengths of
+     * key, head and body.
+     */
+    private static final int RECORD_HEADER = 4 + 4 + 4 + 8 + 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * The offset of the bytes covered by the checksum in a record.
+     */
+    private static final int CHECKSUM_START = 12;
+
+    /**
+     * The size of the chunks copied from a segment to a stream.
+     */
+    private static final int COPY_CHUNK = 16 * 1024;
+
+    /**
+     * The period in milliseconds of the statistics log.
+     */
+    private static final long STATISTICS_PERIOD = 60000;
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The directory of the segment files.
+     */
+    private final Path directory;
+
+    /**
+     * The size in bytes of a segment file.
+     */
+    private final int segmentSize;
+
+    /**
+     * The maximum number of segments.
+     */
+    private final int maxSegments;
+
+    /**
+     * The maximum size in bytes of a stored response.
+     */
+    private final int maxEntrySize;
+
+    /**
+     * The lock guarding the index and the segments: lookups share it, appends take it exclusively.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The segments, oldest first; the last one receives the new responses.
+     */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    /**
+     * The segments by identifier modulo {@link #maxSegments}.
+     */
+    private final Segment[] segmentSlots;
+
+    /**
+     * The index of the stored responses.
+     */
+    private Index index = new Index(1024);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * The number of lookups at the last statistics log.
+     */
+    private long loggedLookups;
+
+    /**
+     * Opens the cache with the settings prefixed by "segmentCache.".
+     *
+     * @return Returns the cache or NULL if it is disabled, without a directory, or it cannot be opened.
+     */
+    static SegmentCache configured() {
+        String directory = Configuration.getString("segmentCache.dir", "");
+        if (directory.isEmpty()) {
+            return null;
+        }
+        try {
+            return new SegmentCache(Paths.get(directory),
+                    Configuration.getInt("segmentCache.segmentSize", 64 * 1024 * 1024),
+                    Configuration.getInt("segmentCache.segments", 16),
+                    Configuration.getInt("segmentCache.maxEntrySize", 8 * 1024 * 1024));
+
+        } catch (IOException e) {
+            Logger.getInstance().error("Error opening the segment cache, disabled", e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the cache, loading the segments found in the directory, and starts the statistics log.
+     *
+     * @param directory The directory of the segment files.
+     * @param segmentSize The size in bytes of a segment file.
+     * @param maxSegments The maximum number of segments.
+     * @param maxEntrySize The maximum size in bytes of a stored response.
+     *
+     * @throws IOException if the directory or the segments cannot be opened.
+     */
+    SegmentCache(Path directory, int segmentSize, int maxSegments, int maxEntrySize) throws IOException {
+        this.directory    = directory;
+        this.segmentSize  = segmentSize;
+        this.maxSegments  = Math.max(2, maxSegments);
+        this.maxEntrySize = Math.min(maxEntrySize, segmentSize - RECORD_HEADER);
+        this.segmentSlots = new Segment[this.maxSegments];
+
+        Files.createDirectories(directory);
+        this.load();
+
+        ScheduledExecutorService statistics = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "SegmentCache-statistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        statistics.scheduleWithFixedDelay(this::logStatistics, STATISTICS_PERIOD, STATISTICS_PERIOD,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Maps the existing segments and rebuilds the index from their records.
+     *
+     * @throws IOException if a segment cannot be opened.
+     */
+    private void load() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.matches("segment-\\d{8}\\.dat"))
+                    .forEach(name -> ids.add(Integer.parseInt(name.substring(8, 16))));
+        }
+        ids.sort(null);
+
+        // keep only the most recent segments
+        while (ids.size() > this.maxSegments) {
+            Files.deleteIfExists(this.segmentPath(ids.remove(0)));
+        }
+
+        long now = System.currentTimeMillis();
+        for (int id : ids) {
+            Segment segment = this.openSegment(id);
+            ByteBuffer buffer = segment.buffer;
+            int offset = 0;
+            int magic;
+            while (offset + RECORD_HEADER <= this.segmentSize
+                    && ((magic = buffer.getInt(offset)) == RECORD_MAGIC || magic == INVALIDATED_MAGIC)) {
+                int length = buffer.getInt(offset + 4);
+                if (length < RECORD_HEADER || length > this.segmentSize - offset
+                        || buffer.getInt(offset + 8) != checksum(buffer, offset, length)) {
+                    break;
+                }
+                long hash = buffer.getLong(offset + 12);
+                if (magic == INVALIDATED_MAGIC) {
+                    // the records are scanned oldest first, the invalidation covers the older ones too
+                    this.index.remove(hash);
+                } else if (buffer.getLong(offset + 20) + buffer.getLong(offset + 28) > now) {
+                    this.indexPut(hash, location(id, offset));
+                } else {
+                    // a stale record replaces the older responses of its URI as well
+                    this.index.remove(hash);
+                }
+                offset += length;
+            }
+            segment.position = offset;
+        }
+
+        if (this.segments.isEmpty()) {
+            this.openSegment(1);
+        }
+        this.logger.log("[SegmentCache] Loaded " + this.index.size() + " fresh responses from " + this.segments.size()
+                + " segments in " + this.directory);
+    }
+
+    /**
+     * Finds the fresh stored response of a request.
+     *
+     * @param request The request.
+     * @return Returns the stored response or NULL if it is not present, stale or the request is not cacheable.
+     */
+    Hit lookup(HttpMessageReader request) {
+        if (!HttpCaching.isCacheable(request) || HttpCaching.isNoCache(request)) {
+            return null;
+        }
+        byte[] key = HttpCaching.key(request).getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+
+        Segment segment;
+        int offset;
+        this.lock.readLock().lock();
+        try {
+            long location = this.index.get(hash);
+            segment = location == 0 ? null : this.segmentSlots[(int) (location >>> 32) % this.maxSegments];
+            if (segment == null || segment.id != (int) (location >>> 32)) {
+                this.misses.increment();
+                return null;
+            }
+            offset = (int) location;
+
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        // only the magic of a record is modified and the mapping stays valid while it is referenced
+        ByteBuffer buffer = segment.buffer.duplicate();
+        long birth = buffer.getLong(offset + 20);
+        long lifetime = buffer.getLong(offset + 28);
+        int keyLength = buffer.getInt(offset + 36);
+        int headLength = buffer.getInt(offset + 40);
+        int bodyLength = buffer.getInt(offset + 44);
+
+        long now = System.currentTimeMillis();
+        int keyStart = offset + RECORD_HEADER;
+        if (now - birth >= lifetime || keyLength != key.length
+                || !buffer.slice(keyStart, keyLength).equals(ByteBuffer.wrap(key))) {
+            this.misses.increment();
+            return null;
+        }
+
+        this.hits.increment();
+        int headStart = keyStart + keyLength;
+        return new Hit(buffer.slice(headStart, headLength), buffer.slice(headStart + headLength, bodyLength),
+                now - birth);
+    }
+
+    /**
+     * Checks if the response to a cacheable request may be stored, before its payload is received.
+     *
+     * @param response The response of the final server, of which only the head is used.
+     * @return Returns TRUE if the response is fresh, shared and not too large.
+     *
+     * @throws IOException if the payload framing is not valid.
+     */
+    boolean isStorable(HttpMessageReader response) throws IOException {
+        Map<String, String> directives = HttpCaching.directives(response);
+        if (!HttpCaching.isHeuristicallyCacheable(response.getStatus())
+                || directives.containsKey("no-store") || directives.containsKey("private")
+                || response.getHeader(HttpCaching.HEADER_VARY) != null
+                || response.getHeader("Set-Cookie") != null
+                || response.isCloseDelimited()) {
+            return false;
+        }
+        String contentLength = response.getHeader(HttpCaching.HEADER_CONTENT_LENGTH);
+        try {
+            if (contentLength != null && Long.parseLong(contentLength) > this.maxEntrySize) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return HttpCaching.freshnessLifetime(response, directives, System.currentTimeMillis())
+                > HttpCaching.initialAge(response, System.currentTimeMillis());
+    }
+
+    /**
+     * Stores the response to a cacheable request, if allowed by the response.
+     *
+     * @param request The request.
+     * @param response The entire response of the final server.
+     *
+     * @throws IOException if the response cannot be parsed or the segment cannot be written.
+     */
+    void store(HttpMessageReader request, byte[] response) throws IOException {
+        if (response.length > this.maxEntrySize) {
+            return;
+        }
+        HttpMessageReader head = new HttpMessageReader(new ByteArrayInputStream(response), false);
+        if (!this.isStorable(head)) {
+            return;
+        }
+        long responseTime = System.currentTimeMillis();
+        long birth = responseTime - HttpCaching.initialAge(head, responseTime);
+        long lifetime = HttpCaching.freshnessLifetime(head, HttpCaching.directives(head), responseTime);
+
+        StringBuilder stored = new StringBuilder(head.getHead().length);
+        stored.append(head.getStartLine()).append("\r\n");
+        for (int i = 0; i < head.getHeaderCount(); i++) {
+            String name = head.getHeaderName(i);
+            if (!name.equalsIgnoreCase(HttpCaching.HEADER_AGE)) {
+                stored.append(name).append(": ").append(head.getHeaderValue(i)).append("\r\n");
+            }
+        }
+        byte[] storedHead = stored.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] key = HttpCaching.key(request).getBytes(StandardCharsets.UTF_8);
+        int bodyStart = head.getHead().length;
+
+        int length = RECORD_HEADER + key.length + storedHead.length + response.length - bodyStart;
+        if (length > this.segmentSize) {
+            return;
+        }
+        this.append(hash(key), birth, lifetime, key, storedHead, response, bodyStart, length);
+        this.stores.increment();
+    }
+
+    /**
+     * Removes the stored response of the URI of a request that may change the state of the final server,
+     * marking its record as invalidated for the next load.
+     *
+     * @param request The request.
+     */
+    void invalidate(HttpMessageReader request) {
+        long hash = hash(HttpCaching.key(request).getBytes(StandardCharsets.UTF_8));
+        this.lock.writeLock().lock();
+        try {
+            long location = this.index.get(hash);
+            this.index.remove(hash);
+            Segment segment = location == 0 ? null : this.segmentSlots[(int) (location >>> 32) % this.maxSegments];
+            if (segment != null && segment.id == (int) (location >>> 32)) {
+                // the magic is not covered by the checksum, the lookups in progress still read the record
+                segment.buffer.putInt((int) location, INVALIDATED_MAGIC);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves the maximum size of a stored response.
+     *
+     * @return Returns the size in bytes.
+     */
+    int getMaxEntrySize() {
+        return this.maxEntrySize;
+    }
+
+    /**
+     * Appends a record to the last segment, moving to a new segment if it is full.
+     *
+     * @param hash The hash of the key.
+     * @param birth The time in milliseconds the response was generated.
+     * @param lifetime The freshness lifetime in milliseconds.
+     * @param key The absolute URI of the request.
+     * @param head The head of the response, without Age and without the empty line.
+     * @param response The response, whose payload starts at bodyStart.
+     * @param bodyStart The offset of the payload in the response.
+     * @param length The length of the record.
+     *
+     * @throws IOException if a new segment cannot be opened.
+     */
+    private void append(long hash, long birth, long lifetime, byte[] key, byte[] head, byte[] response,
+                        int bodyStart, int length) throws IOException
+    {
+        this.lock.writeLock().lock();
+        try {
+            Segment segment = this.segments.getLast();
+            if (segment.position + length > this.segmentSize) {
+                segment = this.rotate();
+            }
+
+            int offset = segment.position;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + 4);
+            buffer.putInt(length);
+            buffer.putInt(0);
+            buffer.putLong(hash);
+            buffer.putLong(birth);
+            buffer.putLong(lifetime);
+            buffer.putInt(key.length);
+            buffer.putInt(head.length);
+            buffer.putInt(response.length - bodyStart);
+            buffer.put(key);
+            buffer.put(head);
+            buffer.put(response, bodyStart, response.length - bodyStart);
+            buffer.putInt(offset + 8, checksum(buffer, offset, length));
+            buffer.putInt(offset, RECORD_MAGIC); // written last, the record is complete
+
+            segment.position += length;
+            this.indexPut(hash, location(segment.id, offset));
+
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the location of a hash in the index, rebuilding it when its slots are running out.
+     *
+     * @param hash The key hash.
+     * @param location The record location.
+     */
+    private void indexPut(long hash, long location) {
+        this.index.put(hash, location);
+        if (this.index.isFull()) {
+            this.index = this.index.rebuild(this.index.capacity(), -1);
+        }
+    }
+
+    /**
+     * Opens a new segment, dropping the oldest one and its responses if there are too many.
+     *
+     * @return Returns the new segment.
+     *
+     * @throws IOException if the new segment cannot be opened.
+     */
+    private Segment rotate() throws IOException {
+        Segment last = this.segments.getLast();
+        last.buffer.force();
+
+        if (this.segments.size() == this.maxSegments) {
+            Segment oldest = this.segments.removeFirst();
+            this.segmentSlots[oldest.id % this.maxSegments] = null;
+            int before = this.index.size();
+            this.index = this.index.rebuild(this.index.capacity(), oldest.id);
+            this.evictions.add(before - this.index.size());
+            oldest.channel.close();
+            Files.deleteIfExists(oldest.path);
+        }
+        return this.openSegment(last.id + 1);
+    }
+
+    /**
+     * Maps a segment file, creating it if needed, and adds it as the last segment.
+     *
+     * @param id The identifier of the segment.
+     * @return Returns the segment.
+     *
+     * @throws IOException if the file cannot be mapped.
+     */
+    private Segment openSegment(int id) throws IOException {
+        Path path = this.segmentPath(id);
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel,
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize));
+        this.segments.addLast(segment);
+        this.segmentSlots[id % this.maxSegments] = segment;
+        return segment;
+    }
+
+    /**
+     * Retrieves the path of a segment file.
+     *
+     * @param id The identifier of the segment.
+     * @return Returns the path.
+     */
+    private Path segmentPath(int id) {
+        return this.directory.resolve(String.format("segment-%08d.dat", id));
+    }
+
+    /**
+     * Calculates the checksum of a record, from the hash to the end of the body.
+     *
+     * @param buffer The segment buffer.
+     * @param offset The offset of the record.
+     * @param length The length of the record.
+     * @return Returns the CRC-32 of the record.
+     */
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset + CHECKSUM_START, length - CHECKSUM_START));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Encodes the location of a record.
+     *
+     * @param segmentId The identifier of the segment.
+     * @param offset The offset of the record in the segment.
+     * @return Returns the location, never 0.
+     */
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Calculates the 64-bit FNV-1a hash of a key.
+     *
+     * @param key The key bytes.
+     * @return Returns the hash, never 0.
+     */
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Logs the statistics of the cache if there have been lookups since the last log.
+     */
+    private void logStatistics() {
+        long lookups = this.getHits() + this.getMisses();
+        if (lookups != this.loggedLookups) {
+            this.loggedLookups = lookups;
+            this.logger.log(Logger.Level.INFO, "SegmentCache", "Statistics: {}", this);
+        }
+    }
+
+    /**
+     * Retrieves the number of requests served with a stored response.
+     *
+     * @return Returns the number of hits.
+     */
+    long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Retrieves the number of cacheable requests forwarded to the final server.
+     *
+     * @return Returns the number of misses.
+     */
+    long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Retrieves the number of responses stored.
+     *
+     * @return Returns the number of stores.
+     */
+    long getStores() {
+        return this.stores.sum();
+    }
+
+    /**
+     * Retrieves the number of responses dropped with their segment.
+     *
+     * @return Returns the number of evictions.
+     */
+    long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Retrieves the number of responses in the index.
+     *
+     * @return Returns the number of entries.
+     */
+    int getEntries() {
+        this.lock.readLock().lock();
+        try {
+            return this.index.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        long hits = this.getHits();
+        long lookups = hits + this.getMisses();
+        return "hits=" + hits + ", misses=" + this.getMisses()
+                + ", hitRatio=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%"
+                + ", stores=" + this.getStores() + ", evictions=" + this.getEvictions()
+                + ", entries=" + this.getEntries();
+    }
+
+    /**
+     * A stored response found in a segment.
+     */
+    static final class Hit {
+
+        /**
+         * The starting line and the headers, without Age and without the empty line.
+         */
+        private final ByteBuffer head;
+
+        /**
+         * The payload, as received from the final server.
+         */
+        private final ByteBuffer body;
+
+        /**
+         * The trailing Age header and the empty line.
+         */
+        private final byte[] age;
+
+        /**
+         * Initialize a stored response.
+         *
+         * @param head The starting line and the headers.
+         * @param body The payload.
+         * @param age The current age in milliseconds.
+         */
+        private Hit(ByteBuffer head, ByteBuffer body, long age) {
+            this.head = head;
+            this.body = body;
+            this.age  = (HttpCaching.HEADER_AGE + ": " + age / 1000 + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Writes the response to a stream, copying it from the segment chunk by chunk.
+         *
+         * @param out The output stream.
+         *
+         * @throws IOException if an I/O error occurs.
+         */
+        void writeTo(OutputStream out) throws IOException {
+            byte[] chunk = new byte[Math.min(COPY_CHUNK, Math.max(this.head.remaining(), this.body.remaining()))];
+            copy(this.head.duplicate(), out, chunk);
+            out.write(this.age);
+            copy(this.body.duplicate(), out, chunk);
+        }
+
+        /**
+         * Retrieves the length of the response.
+         *
+         * @return Returns the length in bytes.
+         */
+        int length() {
+            return this.head.remaining() + this.age.length + this.body.remaining();
+        }
+
+        /**
+         * Retrieves the response.
+         *
+         * @return Returns the response as a byte array.
+         */
+        byte[] toByteArray() {
+            byte[] response = new byte[this.length()];
+            this.head.duplicate().get(response, 0, this.head.remaining());
+            System.arraycopy(this.age, 0, response, this.head.remaining(), this.age.length);
+            this.body.duplicate().get(response, this.head.remaining() + this.age.length, this.body.remaining());
+            return response;
+        }
+
+        /**
+         * Copies the remaining bytes of a buffer to a stream.
+         *
+         * @param buffer The buffer.
+         * @param out The output stream.
+         * @param chunk The array used for the copy.
+         *
+         * @throws IOException if an I/O error occurs.
+         */
+        private static void copy(ByteBuffer buffer, OutputStream out, byte[] chunk) throws IOException {
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static final class Segment {
+
+        /**
+         * The identifier, increasing with the age of the segment.
+         */
+        private final int id;
+
+        /**
+         * The path of the file.
+         */
+        private final Path path;
+
+        /**
+         * The channel of the file.
+         */
+        private final FileChannel channel;
+
+        /**
+         * The mapping of the whole file.
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * The offset of the next record.
+         */
+        private int position;
+
+        /**
+         * Initialize a segment.
+         *
+         * @param id The identifier.
+         * @param path The path of the file.
+         * @param channel The channel of the file.
+         * @param buffer The mapping of the whole file.
+         */
+        private Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id      = id;
+            this.path    = path;
+            this.channel = channel;
+            this.buffer  = buffer;
+        }
+
+    }
+
+    /**
+     * Open addressing hash table from key hashes to record locations, with linear probing.
+     *
+     * Removed entries keep their slot with location 0 until the next rebuild.
+     */
+    private static final class Index {
+
+        /**
+         * The key hashes, 0 for the empty slots.
+         */
+        private final long[] hashes;
+
+        /**
+         * The record locations, 0 for the removed entries.
+         */
+        private final long[] locations;
+
+        /**
+         * The number of used slots.
+         */
+        private int used;
+
+        /**
+         * The number of entries with a location.
+         */
+        private int size;
+
+        /**
+         * Initialize an empty index.
+         *
+         * @param capacity The number of slots, a power of two.
+         */
+        private Index(int capacity) {
+            this.hashes    = new long[capacity];
+            this.locations = new long[capacity];
+        }
+
+        /**
+         * Finds the slot of a hash.
+         *
+         * @param hash The key hash.
+         * @return Returns the slot of the hash or the empty slot where it would be inserted.
+         */
+        private int slot(long hash) {
+            int mask = this.hashes.length - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (this.hashes[slot] != 0 && this.hashes[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Retrieves the location of a hash.
+         *
+         * @param hash The key hash.
+         * @return Returns the location or 0 if not present.
+         */
+        private long get(long hash) {
+            return this.locations[this.slot(hash)];
+        }
+
+        /**
+         * Sets the location of a hash.
+         *
+         * @param hash The key hash.
+         * @param location The record location.
+         */
+        private void put(long hash, long location) {
+            int slot = this.slot(hash);
+            if (this.hashes[slot] == 0) {
+                this.hashes[slot] = hash;
+                this.used++;
+            }
+            if (this.locations[slot] == 0) {
+                this.size++;
+            }
+            this.locations[slot] = location;
+        }
+
+        /**
+         * Removes the location of a hash.
+         *
+         * @param hash The key hash.
+         */
+        private void remove(long hash) {
+            int slot = this.slot(hash);
+            if (this.locations[slot] != 0) {
+                this.locations[slot] = 0;
+                this.size--;
+            }
+        }
+
+        /**
+         * Checks if the index must be rebuilt, with three quarters of the slots used.
+         *
+         * @return Returns TRUE if the index is full.
+         */
+        private boolean isFull() {
+            return this.used * 4L >= this.hashes.length * 3L;
+        }
+
+        /**
+         * Retrieves the number of slots.
+         *
+         * @return Returns the capacity.
+         */
+        private int capacity() {
+            return this.hashes.length;
+        }
+
+        /**
+         * Retrieves the number of entries with a location.
+         *
+         * @return Returns the size.
+         */
+        private int size() {
+            return this.size;
+        }
+
+        /**
+         * Copies the entries with a location to a new index, dropping the removed slots.
+         *
+         * @param capacity The minimum number of slots of the new index, a power of two, doubled until
+         *                 at most half of them are used.
+         * @param droppedSegment The identifier of a segment whose entries are dropped, -1 for none.
+         * @return Returns the new index.
+         */
+        private Index rebuild(int capacity, int droppedSegment) {
+            while (this.size * 2L >= capacity) {
+                capacity *= 2;
+            }
+            Index index = new Index(capacity);
+            for (int slot = 0; slot < this.hashes.length; slot++) {
+                long location = this.locations[slot];
+                if (location != 0 && (int) (location >>> 32) != droppedSegment) {
+                    index.put(this.hashes[slot], location);
+                }
+            }
+            return index;
+        }
+
+    }
+
+}
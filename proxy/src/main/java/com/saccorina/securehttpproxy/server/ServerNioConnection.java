@@ -0,0 +1,356 @@
+package com.saccorina.securehttpproxy.server;
+
+import com.saccorina.securehttpproxy.CipherPool;
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.MessageCompressor;
+import com.saccorina.securehttpproxy.RecordBatcher;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+import com.saccorina.securehttpproxy.nio.EventLoop;
+import com.saccorina.securehttpproxy.nio.NioConnection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking handler for the tunnel connection between proxy-client and proxy-server.
+ *
+ * Frames are decoded and decrypted by the event loop, while the blocking request to the final server
+ * is handed to the stream executor. The response is then encrypted and written by the event loop.
+ * The handshake is handed to the stream executor too, since a key exchange has a costly DH computation.
+ * When batching is agreed, the small responses of concurrent streams share a batch frame.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class ServerNioConnection extends NioConnection {
+
+    /**
+     * The sessions established with the clients.
+     */
+    private final SessionTable sessions;
+
+    /**
+     * The cipher used to encrypt communication, NULL until the handshake is completed.
+     */
+    private CipherPool cipher;
+
+    /**
+     * The session of the connection, NULL until the handshake is completed.
+     */
+    private TunnelSession session;
+
+    /**
+     * The number of handshake frames received.
+     */
+    private int handshakeAttempts;
+
+    /**
+     * Whether a handshake frame is being handled by the stream executor.
+     */
+    private boolean handshaking;
+
+    /**
+     * The executor that retrieves the responses from the final server.
+     */
+    private final Executor streamExecutor;
+
+    /**
+     * The client used to forward requests to the final server.
+     */
+    private final OriginClient originClient;
+
+    /**
+     * The compressor of the responses or NULL if the compression is off.
+     */
+    private final MessageCompressor compressor;
+
+    /**
+     * Whether the responses are compressed, as agreed with the hello frames.
+     */
+    private volatile boolean compressResponses;
+
+    /**
+     * The batcher of the small responses, NULL unless batching is agreed with the hello frames.
+     */
+    private RecordBatcher batcher;
+
+    /**
+     * The number of requests waiting for their response, only accessed by the event loop.
+     */
+    private int activeStreams;
+
+    /**
+     * The source of the log messages of the connection.
+     */
+    private final String logSource;
+
+    /**
+     * Initialize a non-blocking connection to a client.
+     *
+     * @param channel The channel used for the connection to a client.
+     * @param loop The event loop of the connection.
+     * @param sessions The sessions established with the clients.
+     * @param streamExecutor The executor that retrieves the responses from the final server.
+     * @param originClient The client used to forward requests to the final server.
+     * @param compressor The compressor of the responses or NULL if the compression is off.
+     */
+    ServerNioConnection(SocketChannel channel,
+                        EventLoop loop,
+                        SessionTable sessions,
+                        Executor streamExecutor,
+                        OriginClient originClient,
+                        MessageCompressor compressor)
+    {
+        super(channel, loop, Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD_LENGTH);
+        this.sessions       = sessions;
+        this.streamExecutor = streamExecutor;
+        this.originClient   = originClient;
+        this.compressor     = compressor;
+        this.logSource      = "ServerProxy@" + this.remoteAddress;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void onOpen() {
+        this.log("Connection established");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void onRead(ByteBuffer input) throws IOException {
+        Frame frame;
+        while ((frame = Frame.decode(input)) != null) {
+            if (this.session == null) {
+                this.handleHandshake(frame);
+
+            } else if (frame.getType() == Frame.TYPE_MESSAGE) {
+                this.handleStream(frame);
+
+            } else if (frame.getType() == Frame.TYPE_BATCH) {
+                try {
+                    for (Frame requestFrame : RecordBatcher.open(this.cipher, frame)) {
+                        this.handleStream(requestFrame);
+                    }
+                } catch (CipherException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+
+            } else if (frame.getType() == Frame.TYPE_PING) {
+                this.write(frame.encode());
+
+            } else if (frame.getType() == Frame.TYPE_DATA) {
+                this.reset(frame.getStreamId(), new IOException("Per-flow protection not supported by the nio engine"));
+
+            } else if (frame.getType() == Frame.TYPE_HELLO) {
+                this.handleHello(frame);
+            }
+        }
+    }
+
+    /**
+     * Handles the hello frame of the client, answering with the features enabled for the connection.
+     *
+     * @param frame The hello frame, whose features are encrypted under the session keys.
+     *
+     * @throws IOException if the features are not authentic.
+     */
+    private void handleHello(Frame frame) throws IOException {
+        try {
+            byte[] clientFeatures = this.cipher.decrypt(frame.getPayload(), Frame.TYPE_HELLO);
+            byte features = clientFeatures.length > 0 && this.compressor != null
+                    ? (byte) (clientFeatures[0] & Frame.FEATURE_COMPRESSION) : 0;
+            if (clientFeatures.length > 0 && RecordBatcher.isConfigured()) {
+                features |= (byte) (clientFeatures[0] & Frame.FEATURE_BATCHING);
+            }
+            this.compressResponses = (features & Frame.FEATURE_COMPRESSION) != 0;
+            this.batcher = (features & Frame.FEATURE_BATCHING) != 0
+                    ? new RecordBatcher(batch -> this.write(batch.encode()), this.cipher, Metrics.SERVER_ENCRYPT)
+                    : null;
+            this.write(new Frame(Frame.TYPE_HELLO, 0,
+                    this.cipher.encrypt(new byte[] {features}, Frame.TYPE_HELLO)).encode());
+
+        } catch (CipherException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Handles a handshake frame, the client waits for the reply before sending other frames.
+     *
+     * @param frame The handshake frame.
+     *
+     * @throws IOException if the handshake failed.
+     */
+    private void handleHandshake(Frame frame) throws IOException {
+        if (this.handshaking || ++this.handshakeAttempts > ServerProxyConnection.MAX_HANDSHAKE_ATTEMPTS) {
+            throw new IOException("Handshake failed");
+        }
+        this.handshaking = true;
+
+        this.streamExecutor.execute(() -> {
+            try {
+                SessionTable.Handshake handshake = this.sessions.accept(frame);
+                this.loop.execute(() -> {
+                    if (!this.channel.isOpen()) {
+                        // closed while the handshake was handled
+                        if (handshake.getSession() != null) {
+                            this.sessions.release(handshake.getSession());
+                        }
+                        return;
+                    }
+                    this.handshaking = false;
+                    this.write(handshake.getReply().encode());
+                    logger.log(Logger.Level.DEBUG, this.logSource, "Handshake {}", handshake.describe());
+                    if (handshake.getSession() != null) {
+                        this.session = handshake.getSession();
+                        this.cipher  = this.session.getCipher();
+                    }
+                });
+
+            } catch (CipherException e) {
+                this.loop.execute(() -> {
+                    logger.error("Error in proxy-server handshake", e);
+                    this.close();
+                });
+            }
+        });
+    }
+
+    /**
+     * Handles a request received from the client and sends back the response in the same stream.
+     *
+     * @param requestFrame The frame containing the encrypted request, or the request itself if it came in a batch.
+     */
+    private void handleStream(Frame requestFrame) {
+        int streamId = requestFrame.getStreamId();
+
+        Metrics.REQUESTS.increment();
+
+        byte[] request;
+        try {
+            long start = System.nanoTime();
+            request = MessageCompressor.decompress(requestFrame.getType() == Frame.TYPE_BATCH
+                    ? requestFrame.getPayload() : this.cipher.decrypt(requestFrame.getPayload()));
+            Metrics.SERVER_DECRYPT.recordSince(start);
+
+        } catch (IOException | CipherException e) {
+            this.reset(streamId, e);
+            return;
+        }
+        Metrics.REQUEST_BYTES.add(request.length);
+        this.log("HTTP request received and decrypted ({} bytes)", request.length);
+
+        this.activeStreams++;
+        this.streamExecutor.execute(() -> {
+            byte[] response = null;
+            try {
+                long start = System.nanoTime();
+                response = this.originClient.retrieveResponse(request);
+                Metrics.ORIGIN_FETCH.recordSince(start);
+                Metrics.RESPONSE_BYTES.add(response.length);
+
+                start = System.nanoTime();
+                byte[] payload = this.compressResponses ? this.compressor.compress(response) : response;
+                long compression = System.nanoTime() - start;
+                byte[] retrieved = response;
+                this.loop.execute(() -> {
+                    try {
+                        this.sendResponse(streamId, payload, compression);
+
+                    } finally {
+                        this.originClient.releaseResponse(retrieved);
+                    }
+                });
+
+            } catch (IOException e) {
+                if (response != null) {
+                    this.originClient.releaseResponse(response);
+                }
+                this.loop.execute(() -> {
+                    this.activeStreams--;
+                    this.reset(streamId, e);
+                });
+            }
+        });
+    }
+
+    /**
+     * Encrypts the response and writes it in the stream.
+     *
+     * @param streamId The identifier of the stream.
+     * @param response The response of the final server, compressed if enabled.
+     * @param compression The time in nanoseconds spent compressing the response.
+     */
+    private void sendResponse(int streamId, byte[] response, long compression) {
+        // the last request in flight has nothing to wait for
+        long maxDelayNanos = --this.activeStreams > 0 ? RecordBatcher.MAX_DELAY_NANOS : 0;
+        try {
+            if (this.batcher != null && this.batcher.accepts(response)) {
+                this.log("HTTP response batched ({} bytes)", response.length);
+                this.batcher.add(streamId, response, maxDelayNanos);
+                return;
+            }
+
+            long start = System.nanoTime();
+            byte[] encryptedResponse = this.cipher.encrypt(response);
+            Metrics.SERVER_ENCRYPT.record(compression + System.nanoTime() - start);
+            this.log("HTTP response encrypted and sent ({} bytes)", response.length);
+
+            start = System.nanoTime();
+            this.write(new Frame(Frame.TYPE_MESSAGE, streamId, encryptedResponse).encode());
+            Metrics.SERVER_WRITE.recordSince(start);
+
+        } catch (IOException | CipherException e) {
+            this.reset(streamId, e);
+        }
+    }
+
+    /**
+     * Aborts a stream after an error.
+     *
+     * @param streamId The identifier of the stream.
+     * @param e The exception thrown.
+     */
+    private void reset(int streamId, Exception e) {
+        Metrics.ERRORS.increment();
+        logger.error("Error in proxy-server communication", e);
+        this.write(new Frame(Frame.TYPE_RESET, streamId, String.valueOf(e.getMessage()).getBytes()).encode());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void onClose() {
+        if (this.session != null) {
+            this.sessions.release(this.session);
+        }
+        this.log("Connection closed");
+    }
+
+    /**
+     * Log some message.
+     *
+     * @param message The message to log.
+     */
+    private void log(String message) {
+        logger.log(Logger.Level.DEBUG, this.logSource, message);
+    }
+
+    /**
+     * Log some message built from a format.
+     *
+     * @param format The message with a "{}" placeholder for the argument.
+     * @param arg The numeric argument.
+     */
+    private void log(String format, long arg) {
+        logger.log(Logger.Level.DEBUG, this.logSource, format, arg);
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.saccorina.securehttpproxy.server;
+
+import com.saccorina.securehttpproxy.Acceptors;
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.Engine;
+import com.saccorina.securehttpproxy.FlowCipher;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.MessageCompressor;
+import com.saccorina.securehttpproxy.TunnelEncoding;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.exception.SocketException;
+import com.saccorina.securehttpproxy.metrics.MetricsServer;
+import com.saccorina.securehttpproxy.nio.EventLoopGroup;
+import com.saccorina.securehttpproxy.nio.NioServer;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class provide a Secure HTTP Proxy in the server-side.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class ServerProxy {
+
+    static final boolean DEBUG = false;
+
+    /**
+     * The encoding used for frames in the tunnel with the client proxy.
+     */
+    static final TunnelEncoding TUNNEL_ENCODING = TunnelEncoding.configured();
+
+    /**
+     * The cipher mode used in the tunnel with the client proxy.
+     */
+    static final CipherMode CIPHER_MODE = CipherMode.configured();
+
+    /**
+     * The engine used to handle the tunnel connections.
+     */
+    static final Engine ENGINE = Engine.configured();
+
+    /**
+     * The number of event loops of the non-blocking engine, 0 to use one for each processor.
+     */
+    private static final int ENGINE_THREADS = Configuration.getInt("engine.threads", 0);
+
+    /**
+     * The application logger.
+     */
+    private static final Logger logger = Logger.getInstance();
+
+    /**
+     * The port number for the proxy server.
+     */
+    private final int port;
+
+    /**
+     * The session established with the single client of the hexadecimal encoding, NULL in binary encoding
+     * where each connection starts with its own handshake.
+     */
+    private TunnelSession legacySession;
+
+    /**
+     * Initialize the secure proxy server.
+     *
+     * In the legacy hexadecimal encoding the key exchange is performed with the first client before
+     * starting the server, which then serves only that client.
+     *
+     * @param port The port number for the proxy server.
+     *
+     * @throws CipherException if an error occurs during key generation.
+     * @throws SocketException if an I/O error occurs during the exchange.
+     */
+    private ServerProxy(int port) throws CipherException, SocketException {
+        this.port = port;
+
+        if (TUNNEL_ENCODING == TunnelEncoding.HEX) {
+            DHKeyExchange dhKeyExchange = new DHKeyExchange();
+            dhKeyExchange.performsKeyExchange(port);
+            this.legacySession = new TunnelSession(new byte[TunnelSession.ID_LENGTH], dhKeyExchange.getSecretKey(),
+                    null, CIPHER_MODE, FlowCipher.SERVER_TO_CLIENT, false);
+        }
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @throws SocketException if a socket error occurs.
+     */
+    private void startServer() throws SocketException {
+        SessionTable sessions = new SessionTable(CIPHER_MODE);
+        ExecutorService streamExecutor = ENGINE.newExecutor("ServerProxy-stream");
+        OriginClient originClient = new OriginClient();
+        MessageCompressor compressor = MessageCompressor.configured();
+
+        try {
+            MetricsServer.startConfigured("ServerProxy");
+
+            if (ENGINE == Engine.NIO) {
+                this.startNioServer(sessions, streamExecutor, originClient, compressor);
+                return;
+            }
+
+            ServerSocketChannel[] listeners = Acceptors.open(port, Acceptors.COUNT);
+            logger.log("[ServerProxy] Started on localhost, port " + port + " (" + listeners.length + " listeners, "
+                    + Acceptors.COUNT + " acceptors)");
+
+            ExecutorService connectionExecutor = ENGINE.newExecutor("ServerProxyConnection");
+            EventLoopGroup relayGroup = new EventLoopGroup("ServerProxy-relay", ENGINE_THREADS);
+
+            Acceptors.start("ServerProxy", listeners, Acceptors.COUNT, channel -> {
+                ServerProxyConnection connection = new ServerProxyConnection(
+                        channel.socket(),
+                        sessions,
+                        this.legacySession,
+                        streamExecutor,
+                        originClient,
+                        compressor,
+                        relayGroup
+                );
+                connectionExecutor.execute(connection);
+            });
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts the server with the non-blocking engine.
+     *
+     * @param sessions The sessions established with the clients.
+     * @param streamExecutor The executor that retrieves the responses from the final server.
+     * @param originClient The client used to forward requests to the final server.
+     * @param compressor The compressor of the responses or NULL if the compression is off.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void startNioServer(SessionTable sessions, Executor streamExecutor, OriginClient originClient,
+                                MessageCompressor compressor)
+            throws IOException
+    {
+        if (TUNNEL_ENCODING != TunnelEncoding.BINARY) {
+            throw new IllegalStateException("The nio engine requires the binary tunnel encoding");
+        }
+
+        EventLoopGroup group = new EventLoopGroup("ServerProxy-loop", ENGINE_THREADS);
+
+        NioServer server = new NioServer(port, Acceptors.COUNT, group, (channel, loop) -> new ServerNioConnection(
+                channel,
+                loop,
+                sessions,
+                streamExecutor,
+                originClient,
+                compressor
+        ));
+        server.start();
+        logger.log("[ServerProxy] Started on localhost, port " + port + " (" + group.size() + " event loops, "
+                + server.getListenerCount() + " listeners)");
+    }
+
+    /**
+     * ServerProxy application entry-point.
+     *
+     * @param args Console arguments.
+     */
+    public static void main(String[] args) {
+        try {
+            ServerProxy server = new ServerProxy(Configuration.getInt("server.port", 4321));
+            server.startServer();
+
+        } catch (Throwable e) {
+            logger.error("FATAL ERROR", e);
+        }
+    }
+
+}
@@ -0,0 +1,591 @@
+package com.saccorina.securehttpproxy.server;
+
+import com.saccorina.securehttpproxy.CaptureOutputStream;
+import com.saccorina.securehttpproxy.CipherPool;
+import com.saccorina.securehttpproxy.FlowCipher;
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.FrameReader;
+import com.saccorina.securehttpproxy.FrameWriter;
+import com.saccorina.securehttpproxy.HttpCaching;
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.MessageCompressor;
+import com.saccorina.securehttpproxy.PooledConnection;
+import com.saccorina.securehttpproxy.RecordBatcher;
+import com.saccorina.securehttpproxy.RecordInputStream;
+import com.saccorina.securehttpproxy.RecordOutputStream;
+import com.saccorina.securehttpproxy.TunnelEncoding;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import com.saccorina.securehttpproxy.metrics.Metrics;
+import com.saccorina.securehttpproxy.nio.ChannelRelay;
+import com.saccorina.securehttpproxy.nio.EventLoopGroup;
+import com.saccorina.securehttpproxy.nio.FlowRelay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Handler class for the connection between proxy-client and proxy-server.
+ *
+ * A CONNECT request received in a stream of the per-flow protection opens a connection with the final
+ * server, at the port of the request, which is relayed with the stream by an event loop.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+public class ServerProxyConnection implements Runnable {
+
+    /**
+     * The maximum number of handshake frames of a connection.
+     */
+    static final int MAX_HANDSHAKE_ATTEMPTS = 3;
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The socket used for the connection.
+     */
+    private Socket socket;
+
+    /**
+     * The sessions established with the clients.
+     */
+    private final SessionTable sessions;
+
+    /**
+     * The session of the connection, NULL until the handshake is completed.
+     */
+    private TunnelSession session;
+
+    /**
+     * The cipher used to encrypt communication, the one of the session.
+     */
+    private CipherPool cipher;
+
+    /**
+     * The executor that handles the streams of the connection.
+     */
+    private final Executor streamExecutor;
+
+    /**
+     * The client used to forward requests to the final server.
+     */
+    private final OriginClient originClient;
+
+    /**
+     * The cipher of the streams opened with the per-flow protection, the one of the session.
+     */
+    private FlowCipher flowCipher;
+
+    /**
+     * The compressor of the responses or NULL if the compression is off.
+     */
+    private final MessageCompressor compressor;
+
+    /**
+     * The event loops of the relays of the CONNECT tunnels.
+     */
+    private final EventLoopGroup relayGroup;
+
+    /**
+     * Whether the responses are compressed, as agreed with the hello frames.
+     */
+    private volatile boolean compressResponses;
+
+    /**
+     * The batcher of the small responses, NULL unless batching is agreed with the hello frames.
+     */
+    private volatile RecordBatcher batcher;
+
+    /**
+     * The number of requests being handled, a small response waits for others only if there are some.
+     */
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    /**
+     * The receiving side of the streams opened with the per-flow protection, by stream id.
+     */
+    private final Map<Integer, RecordInputStream> flowStreams = new ConcurrentHashMap<>();
+
+    /**
+     * The sending side of the streams opened with the per-flow protection, by stream id, waiting for the
+     * credit granted by the client.
+     */
+    private final Map<Integer, RecordOutputStream> flowWindows = new ConcurrentHashMap<>();
+
+    /**
+     * The writer of frames to the client, shared by all streams.
+     */
+    private FrameWriter writer;
+
+    /**
+     * The lock that serializes the writes of the streams, not a monitor so virtual threads don't pin.
+     */
+    private final Lock writeLock = new ReentrantLock();
+
+    /**
+     * The source of the log messages of the connection.
+     */
+    private final String logSource;
+
+    /**
+     * Initialize a connection to a client.
+     *
+     * @param socket The socket used for the connection to a client.
+     * @param sessions The sessions established with the clients.
+     * @param session The session of the hexadecimal encoding or NULL to start with a handshake.
+     * @param streamExecutor The executor that handles the streams of the connection.
+     * @param originClient The client used to forward requests to the final server.
+     * @param compressor The compressor of the responses or NULL if the compression is off.
+     * @param relayGroup The event loops of the relays of the CONNECT tunnels.
+     */
+    ServerProxyConnection(Socket socket,
+                          SessionTable sessions,
+                          TunnelSession session,
+                          Executor streamExecutor,
+                          OriginClient originClient,
+                          MessageCompressor compressor,
+                          EventLoopGroup relayGroup)
+    {
+        this.socket         = socket;
+        this.sessions       = sessions;
+        this.streamExecutor = streamExecutor;
+        this.originClient   = originClient;
+        this.compressor     = compressor;
+        this.relayGroup     = relayGroup;
+        this.logSource      = "ServerProxy@" + socket.getInetAddress().getHostAddress();
+        if (session != null) {
+            this.bind(session);
+        }
+
+        this.log("Connection established");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+        Metrics.ACTIVE_CONNECTIONS.increment();
+        try {
+            FrameReader reader = new FrameReader(this.socket.getInputStream(), ServerProxy.TUNNEL_ENCODING);
+            this.writer = new FrameWriter(this.socket.getOutputStream(), ServerProxy.TUNNEL_ENCODING);
+
+            if (ServerProxy.TUNNEL_ENCODING == TunnelEncoding.HEX) {
+                // legacy encoding: one request for each connection
+                Frame requestFrame = reader.read();
+                if (requestFrame == null) {
+                    throw new IOException("Connection closed by the client before the request");
+                }
+                this.activeStreams.incrementAndGet();
+                this.handleStream(requestFrame);
+                return;
+            }
+
+            // the client tries to join its session, then to resume it and finally exchanges new keys
+            for (int attempt = 0; this.session == null; attempt++) {
+                Frame handshakeFrame = reader.read();
+                if (handshakeFrame == null || attempt == MAX_HANDSHAKE_ATTEMPTS) {
+                    throw new IOException("Handshake failed");
+                }
+                SessionTable.Handshake handshake = this.sessions.accept(handshakeFrame);
+                this.writer.write(handshake.getReply());
+                this.log("Handshake {}", handshake.describe());
+                if (handshake.getSession() != null) {
+                    this.bind(handshake.getSession());
+                }
+            }
+
+            // persistent connection: each request is handled concurrently and answered when ready
+            Frame frame;
+            while ((frame = reader.read()) != null) {
+                if (frame.getType() == Frame.TYPE_MESSAGE) {
+                    Frame requestFrame = frame;
+                    this.activeStreams.incrementAndGet();
+                    this.streamExecutor.execute(() -> this.handleStream(requestFrame));
+
+                } else if (frame.getType() == Frame.TYPE_BATCH) {
+                    for (Frame requestFrame : RecordBatcher.open(this.cipher, frame)) {
+                        this.activeStreams.incrementAndGet();
+                        this.streamExecutor.execute(() -> this.handleStream(requestFrame));
+                    }
+
+                } else if (frame.getType() == Frame.TYPE_DATA || frame.getType() == Frame.TYPE_RESET
+                        || frame.getType() == Frame.TYPE_WINDOW_UPDATE) {
+                    this.dispatchFlowFrame(frame);
+
+                } else if (frame.getType() == Frame.TYPE_PING) {
+                    this.send(frame);
+
+                } else if (frame.getType() == Frame.TYPE_HELLO) {
+                    byte[] clientFeatures = this.cipher.decrypt(frame.getPayload(), Frame.TYPE_HELLO);
+                    byte features = clientFeatures.length > 0 && this.compressor != null
+                            ? (byte) (clientFeatures[0] & Frame.FEATURE_COMPRESSION) : 0;
+                    if (clientFeatures.length > 0 && RecordBatcher.isConfigured()) {
+                        features |= (byte) (clientFeatures[0] & Frame.FEATURE_BATCHING);
+                    }
+                    this.compressResponses = (features & Frame.FEATURE_COMPRESSION) != 0;
+                    this.batcher = (features & Frame.FEATURE_BATCHING) != 0
+                            ? new RecordBatcher(this::send, this.cipher, Metrics.SERVER_ENCRYPT) : null;
+                    this.send(new Frame(Frame.TYPE_HELLO, 0,
+                            this.cipher.encrypt(new byte[] {features}, Frame.TYPE_HELLO)));
+                }
+            }
+
+        } catch (IOException | CipherException e) {
+            Metrics.ERRORS.increment();
+            logger.error("Error in proxy-server communication", e);
+
+        } finally {
+            Metrics.ACTIVE_CONNECTIONS.decrement();
+            if (this.session != null && ServerProxy.TUNNEL_ENCODING != TunnelEncoding.HEX) {
+                this.sessions.release(this.session);
+            }
+            this.flowStreams.forEach((streamId, flow) ->
+                    flow.offer(new Frame(Frame.TYPE_RESET, streamId, "Connection closed".getBytes())));
+            this.flowWindows.forEach((streamId, window) -> window.cancel("Connection closed"));
+
+            try {
+                this.socket.close();
+                this.log("Connection closed");
+            } catch (IOException e) {
+                logger.error("Error closing proxy-server socket", e);
+            }
+        }
+    }
+
+    /**
+     * Uses the keys of a session for the rest of the connection.
+     *
+     * @param session The session.
+     */
+    private void bind(TunnelSession session) {
+        this.session    = session;
+        this.cipher     = session.getCipher();
+        this.flowCipher = session.getFlowCipher();
+    }
+
+    /**
+     * Handles a request received from the client and sends back the response in the same stream.
+     *
+     * @param requestFrame The frame containing the encrypted request, or the request itself if it came in a batch.
+     */
+    private void handleStream(Frame requestFrame) {
+        int streamId = requestFrame.getStreamId();
+        Metrics.REQUESTS.increment();
+        byte[] response = null;
+        try {
+            long start = System.nanoTime();
+            byte[] request = MessageCompressor.decompress(requestFrame.getType() == Frame.TYPE_BATCH
+                    ? requestFrame.getPayload() : this.cipher.decrypt(requestFrame.getPayload()));
+            Metrics.SERVER_DECRYPT.recordSince(start);
+            Metrics.REQUEST_BYTES.add(request.length);
+
+            if (ServerProxy.DEBUG) {
+                System.out.println("--- SERVER REQUEST ---");
+                System.out.println(new String(request));
+                System.out.println("--- SERVER REQUEST ---");
+            }
+            this.log("HTTP request received and decrypted ({} bytes)", request.length);
+
+            start = System.nanoTime();
+            response = this.originClient.retrieveResponse(request);
+            Metrics.ORIGIN_FETCH.recordSince(start);
+            Metrics.RESPONSE_BYTES.add(response.length);
+
+            byte[] payload = this.compressResponses ? this.compressor.compress(response) : response;
+
+            if (ServerProxy.DEBUG) {
+                System.out.println("--- SERVER RESPONSE ---");
+                System.out.println(new String(response));
+                System.out.println("--- SERVER RESPONSE ---");
+            }
+            if (payload != response) {
+                logger.log(Logger.Level.DEBUG, this.logSource,
+                        "HTTP response encrypted and sent ({} bytes, {} compressed)", response.length, payload.length);
+            } else {
+                this.log("HTTP response encrypted and sent ({} bytes)", response.length);
+            }
+
+            // the last request in flight has nothing to wait for
+            RecordBatcher batcher = this.batcher;
+            long maxDelayNanos = this.activeStreams.get() > 1 ? RecordBatcher.MAX_DELAY_NANOS : 0;
+            if (batcher != null && batcher.accepts(payload)) {
+                batcher.add(streamId, payload, maxDelayNanos);
+
+            } else {
+                start = System.nanoTime();
+                byte[] encryptedResponse = this.cipher.encrypt(payload);
+                Metrics.SERVER_ENCRYPT.recordSince(start);
+
+                start = System.nanoTime();
+                this.send(new Frame(Frame.TYPE_MESSAGE, streamId, encryptedResponse));
+                Metrics.SERVER_WRITE.recordSince(start);
+            }
+
+        } catch (IOException | CipherException e) {
+            Metrics.ERRORS.increment();
+            logger.error("Error in proxy-server communication", e);
+
+            if (ServerProxy.TUNNEL_ENCODING == TunnelEncoding.BINARY) {
+                try {
+                    this.send(new Frame(Frame.TYPE_RESET, streamId, String.valueOf(e.getMessage()).getBytes()));
+
+                } catch (IOException ex) {
+                    logger.error("Error resetting stream", ex);
+                }
+            }
+
+        } finally {
+            if (response != null) {
+                this.originClient.releaseResponse(response);
+            }
+            this.activeStreams.decrementAndGet();
+        }
+    }
+
+    /**
+     * Hands a frame to the stream it belongs to, starting the handler of new streams.
+     *
+     * @param frame A data, reset or window update frame.
+     *
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    private void dispatchFlowFrame(Frame frame) throws CipherException {
+        int streamId = frame.getStreamId();
+
+        if (frame.getType() == Frame.TYPE_WINDOW_UPDATE) {
+            RecordOutputStream window = this.flowWindows.get(streamId);
+            if (window != null && frame.getPayload().length == 4) {
+                window.grant(ByteBuffer.wrap(frame.getPayload()).getInt());
+            }
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_RESET) {
+            RecordOutputStream window = this.flowWindows.remove(streamId);
+            if (window != null) {
+                window.cancel(new String(frame.getPayload()));
+            }
+        }
+
+        RecordInputStream flow = this.flowStreams.get(streamId);
+        if (flow == null) {
+            if (frame.getType() != Frame.TYPE_DATA) return;
+
+            RecordInputStream newFlow = this.flowCipher.newInputStream(this::send, FlowCipher.CLIENT_TO_SERVER,
+                    streamId, 0);
+            this.flowStreams.put(streamId, newFlow);
+            this.streamExecutor.execute(() -> this.handleFlow(streamId, newFlow));
+            flow = newFlow;
+        }
+
+        flow.offer(frame);
+        if (frame.getType() == Frame.TYPE_RESET || frame.hasFlag(Frame.FLAG_END_STREAM)) {
+            this.flowStreams.remove(streamId);
+        }
+    }
+
+    /**
+     * Relays a stream opened with the per-flow protection to the final server and streams back the response.
+     *
+     * @param streamId The identifier of the stream.
+     * @param in The decrypted flow received from the client.
+     */
+    private void handleFlow(int streamId, RecordInputStream in) {
+        PooledConnection origin = null;
+        boolean reusable = false;
+        boolean relayed = false;
+        Metrics.REQUESTS.increment();
+        try {
+            long start = System.nanoTime();
+            HttpMessageReader requestReader = new HttpMessageReader(in, false);
+            Metrics.SERVER_DECRYPT.recordSince(start);
+
+            if (requestReader.isConnect()) {
+                relayed = this.relayConnect(streamId, requestReader, in);
+                return;
+            }
+
+            SegmentCache cache = this.originClient.getCache();
+            if (cache != null) {
+                SegmentCache.Hit hit = cache.lookup(requestReader);
+                if (hit != null) {
+                    requestReader.transferPayload(OutputStream.nullOutputStream());
+                    RecordOutputStream out = this.openWindow(streamId);
+                    start = System.nanoTime();
+                    hit.writeTo(out);
+                    out.close();
+                    Metrics.SERVER_WRITE.recordSince(start);
+                    this.log("HTTP response served from cache, encrypted and streamed");
+                    return;
+                }
+                if (HttpCaching.isUnsafe(requestReader)) {
+                    cache.invalidate(requestReader);
+                }
+            }
+
+            start = System.nanoTime();
+            origin = this.originClient.connect();
+            OutputStream originOut = origin.getOutputStream();
+            originOut.write(requestReader.getHead());
+            long requestLength = requestReader.transferPayload(originOut);
+            originOut.flush();
+            Metrics.REQUEST_BYTES.add(requestReader.getHead().length + requestLength);
+            this.log("HTTP request decrypted and streamed ({} payload bytes)", requestLength);
+
+            HttpMessageReader responseReader = new HttpMessageReader(origin.getInputStream(), false,
+                    requestReader.getMethod());
+            Metrics.ORIGIN_FETCH.recordSince(start);
+            RecordOutputStream out = this.openWindow(streamId);
+
+            // keep a copy of the response while streaming it, if it can be stored
+            CaptureOutputStream capture = cache != null && HttpCaching.isCacheable(requestReader)
+                    && cache.isStorable(responseReader) ? new CaptureOutputStream(out, cache.getMaxEntrySize()) : null;
+            OutputStream target = capture == null ? out : capture;
+            start = System.nanoTime();
+            target.write(responseReader.getHead());
+            long responseLength = responseReader.transferPayload(target);
+            out.close();
+            Metrics.SERVER_WRITE.recordSince(start);
+            Metrics.RESPONSE_BYTES.add(responseReader.getHead().length + responseLength);
+            this.log("HTTP response encrypted and streamed ({} payload bytes)", responseLength);
+
+            byte[] response = capture == null ? null : capture.toByteArray();
+            if (response != null) {
+                cache.store(requestReader, response);
+            }
+
+            reusable = requestReader.isKeepAlive() && responseReader.isKeepAlive() && !responseReader.isCloseDelimited();
+
+        } catch (IOException | CipherException e) {
+            Metrics.ERRORS.increment();
+            logger.error("Error in proxy-server communication", e);
+            try {
+                this.send(new Frame(Frame.TYPE_RESET, streamId, String.valueOf(e.getMessage()).getBytes()));
+
+            } catch (IOException ex) {
+                logger.error("Error resetting stream", ex);
+            }
+
+        } finally {
+            if (!relayed) {
+                this.flowWindows.remove(streamId);
+            }
+            if (origin != null) {
+                this.originClient.release(origin, reusable);
+            }
+        }
+    }
+
+    /**
+     * Creates the sending side of a stream, which waits for the credit granted by the client.
+     *
+     * @param streamId The identifier of the stream.
+     * @return Returns the output stream.
+     *
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    private RecordOutputStream openWindow(int streamId) throws CipherException {
+        RecordOutputStream out = this.flowCipher.newOutputStream(this::send, FlowCipher.SERVER_TO_CLIENT, streamId);
+        this.flowWindows.put(streamId, out);
+        return out;
+    }
+
+    /**
+     * Opens the tunnel asked by a CONNECT request and relays it with its stream.
+     *
+     * @param streamId The identifier of the stream.
+     * @param requestReader The reader of the CONNECT request.
+     * @param in The decrypted flow received from the client.
+     * @return Returns TRUE if the stream has been handed over to a relay.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws CipherException if the stream ciphers cannot be created.
+     */
+    private boolean relayConnect(int streamId, HttpMessageReader requestReader, RecordInputStream in)
+            throws IOException, CipherException
+    {
+        RecordOutputStream out = this.openWindow(streamId);
+        SocketChannel origin;
+        try {
+            origin = this.originClient.connectTunnel(ChannelRelay.parseTarget(requestReader.getTarget()).getPort());
+
+        } catch (IOException e) {
+            Metrics.ERRORS.increment();
+            logger.error("Error opening CONNECT tunnel to " + requestReader.getTarget(), e);
+            this.flowStreams.remove(streamId);
+            out.write(ChannelRelay.BAD_GATEWAY);
+            out.close();
+            return false;
+        }
+
+        // the reply goes in a record of its own, the client reads it before relaying
+        out.write(ChannelRelay.CONNECTION_ESTABLISHED);
+        out.flush();
+        this.log("CONNECT tunnel opened to the final server");
+        new FlowRelay(this.relayGroup.next(), origin, in, out, () -> {
+            this.flowStreams.remove(streamId);
+            this.flowWindows.remove(streamId);
+        }, this.logSource).start(new byte[0]);
+        return true;
+    }
+
+    /**
+     * Writes a frame to the client.
+     *
+     * @param frame The frame to send.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void send(Frame frame) throws IOException {
+        this.writeLock.lock();
+        try {
+            this.writer.write(frame);
+
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Log some message.
+     *
+     * @param message The message to log.
+     */
+    private void log(String message) {
+        logger.log(Logger.Level.DEBUG, this.logSource, message);
+    }
+
+    /**
+     * Log some message built from a format.
+     *
+     * @param format The message with a "{}" placeholder for the argument.
+     * @param arg The argument.
+     */
+    private void log(String format, Object arg) {
+        logger.log(Logger.Level.DEBUG, this.logSource, format, arg);
+    }
+
+    /**
+     * Log some message built from a format.
+     *
+     * @param format The message with a "{}" placeholder for the argument.
+     * @param arg The numeric argument.
+     */
+    private void log(String format, long arg) {
+        logger.log(Logger.Level.DEBUG, this.logSource, format, arg);
+    }
+
+}
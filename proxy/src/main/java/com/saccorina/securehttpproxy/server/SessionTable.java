@@ -0,0 +1,427 @@
+package com.saccorina.securehttpproxy.server;
+
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.Configuration;
+import com.saccorina.securehttpproxy.FlowCipher;
+import com.saccorina.securehttpproxy.Frame;
+import com.saccorina.securehttpproxy.KeyExchange;
+import com.saccorina.securehttpproxy.Logger;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.Utility;
+import com.saccorina.securehttpproxy.exception.CipherException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The sessions established with the client proxies, by session id.
+ *
+ * Each connection starts with a handshake frame: a full key exchange creates a new session, a join
+ * attaches the connection to a known session and a resumption creates a new session from a ticket,
+ * skipping the DH computation. The random value of a join is accepted once per session, so that a
+ * recorded join cannot attach another connection. Tickets are sealed with a key generated at startup, so they survive the
+ * eviction of the idle sessions but not a restart of the server.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class SessionTable {
+
+    /**
+     * The time in milliseconds a session without connections is kept in the table.
+     */
+    private static final long SESSION_TIMEOUT = Configuration.getInt("session.timeout", 3600000);
+
+    /**
+     * The time in milliseconds a ticket can resume a session.
+     */
+    private static final long TICKET_LIFETIME = Configuration.getInt("session.ticketLifetime", 86400000);
+
+    /**
+     * The length in bytes of the nonce of the tickets.
+     */
+    private static final int TICKET_NONCE_LENGTH = 12;
+
+    /**
+     * The length in bits of the authentication tag of the tickets.
+     */
+    private static final int TICKET_TAG_LENGTH = 128;
+
+    /**
+     * The application logger.
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * The cipher mode used in the tunnel.
+     */
+    private final CipherMode mode;
+
+    /**
+     * The key that seals the tickets.
+     */
+    private final SecretKeySpec ticketKey = new SecretKeySpec(TunnelSession.randomBytes(16), "AES");
+
+    /**
+     * The sessions, by hexadecimal session id.
+     */
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+
+    private final LongAdder keyExchanges = new LongAdder();
+    private final LongAdder resumptions = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * The number of handshakes at the last statistics log.
+     */
+    private long loggedHandshakes;
+
+    /**
+     * Initialize the table and start the eviction of the idle sessions.
+     *
+     * @param mode The cipher mode used in the tunnel.
+     */
+    SessionTable(CipherMode mode) {
+        this.mode = mode;
+
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "SessionTable-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(60000, SESSION_TIMEOUT / 2));
+        evictor.scheduleWithFixedDelay(this::evictExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Handles the handshake frame of a new connection.
+     *
+     * @param frame The frame received from the client.
+     * @return Returns the outcome of the handshake, with the session of the connection if successful.
+     *
+     * @throws CipherException if the DH public key of the client is not valid.
+     */
+    Handshake accept(Frame frame) throws CipherException {
+        switch (frame.getType()) {
+            case Frame.TYPE_KEY_EXCHANGE:
+                return this.exchangeKeys(frame.getPayload());
+
+            case Frame.TYPE_RESUME:
+                return this.resume(frame.getPayload());
+
+            case Frame.TYPE_JOIN:
+                return this.join(frame.getPayload());
+
+            default:
+                return this.reject("Handshake expected");
+        }
+    }
+
+    /**
+     * Releases the session of a closed connection.
+     *
+     * @param session The session.
+     */
+    void release(TunnelSession session) {
+        this.sessions.computeIfPresent(Utility.bytesToHexString(session.getId()), (id, entry) -> {
+            entry.connections--;
+            entry.idleSince = System.currentTimeMillis();
+            return entry;
+        });
+    }
+
+    /**
+     * Creates a session and registers it with a first connection.
+     *
+     * @param secret The shared secret.
+     * @param type The type of the handshake frame.
+     * @param keyMaterial The DH public key or the random value of the server, sent after the ticket.
+     * @return Returns the successful handshake.
+     *
+     * @throws CipherException if the ticket cannot be sealed.
+     */
+    private Handshake open(byte[] secret, byte type, byte[] keyMaterial) throws CipherException {
+        byte[] id = TunnelSession.randomBytes(TunnelSession.ID_LENGTH);
+        TunnelSession session = new TunnelSession(id, secret, null, this.mode, FlowCipher.SERVER_TO_CLIENT);
+        byte[] ticket = this.sealTicket(session.resumptionSecret());
+
+        Entry entry = new Entry(session);
+        entry.connections = 1;
+        this.sessions.put(Utility.bytesToHexString(id), entry);
+
+        ByteBuffer reply = ByteBuffer.allocate(id.length + 2 + ticket.length + keyMaterial.length)
+                .put(id)
+                .putShort((short) ticket.length)
+                .put(ticket)
+                .put(keyMaterial);
+        return new Handshake(new Frame(type, 0, reply.array()), session);
+    }
+
+    /**
+     * Creates a session with a key exchange.
+     *
+     * @param payload The identifier of the key exchange followed by the public key of the client.
+     * @return Returns the outcome of the handshake.
+     *
+     * @throws CipherException if the public key is not valid.
+     */
+    private Handshake exchangeKeys(byte[] payload) throws CipherException {
+        KeyExchange algorithm = payload.length > 1 ? KeyExchange.fromId(payload[0]) : null;
+        if (algorithm == null) {
+            return this.reject("Unsupported key exchange");
+        }
+        DHKeyExchange keyExchange = new DHKeyExchange(algorithm);
+        byte[] publicKey = keyExchange.respond(Arrays.copyOfRange(payload, 1, payload.length));
+        this.keyExchanges.increment();
+        return this.open(keyExchange.getSecretKey(), Frame.TYPE_KEY_EXCHANGE, publicKey);
+    }
+
+    /**
+     * Creates a session from a ticket.
+     *
+     * @param payload The random value of the client followed by the ticket.
+     * @return Returns the outcome of the handshake.
+     *
+     * @throws CipherException if the key derivation fails.
+     */
+    private Handshake resume(byte[] payload) throws CipherException {
+        if (payload.length <= TunnelSession.RANDOM_LENGTH) {
+            return this.reject("Malformed resumption");
+        }
+        byte[] clientRandom = Arrays.copyOf(payload, TunnelSession.RANDOM_LENGTH);
+        byte[] resumptionSecret = this.openTicket(Arrays.copyOfRange(payload, TunnelSession.RANDOM_LENGTH,
+                payload.length));
+        if (resumptionSecret == null) {
+            return this.reject("Invalid or expired ticket");
+        }
+
+        byte[] serverRandom = TunnelSession.randomBytes(TunnelSession.RANDOM_LENGTH);
+        byte[] secret = TunnelSession.resumedSecret(resumptionSecret, clientRandom, serverRandom);
+        this.resumptions.increment();
+        return this.open(secret, Frame.TYPE_RESUME, serverRandom);
+    }
+
+    /**
+     * Attaches a connection to a known session.
+     *
+     * @param payload The session id, the random value of the client and the proof of the session secret.
+     * @return Returns the outcome of the handshake.
+     *
+     * @throws CipherException if the key derivation fails.
+     */
+    private Handshake join(byte[] payload) throws CipherException {
+        if (payload.length <= TunnelSession.ID_LENGTH + TunnelSession.RANDOM_LENGTH) {
+            return this.reject("Malformed join");
+        }
+        byte[] id = Arrays.copyOf(payload, TunnelSession.ID_LENGTH);
+        byte[] clientRandom = Arrays.copyOfRange(payload, id.length, id.length + TunnelSession.RANDOM_LENGTH);
+        byte[] proof = Arrays.copyOfRange(payload, id.length + clientRandom.length, payload.length);
+
+        Entry entry = this.sessions.computeIfPresent(Utility.bytesToHexString(id), (key, current) -> {
+            current.connections++;
+            return current;
+        });
+        if (entry == null) {
+            return this.reject("Unknown session");
+        }
+        if (!MessageDigest.isEqual(proof, entry.session.joinProof(clientRandom))) {
+            this.release(entry.session);
+            return this.reject("Invalid session proof");
+        }
+        if (!entry.joinRandoms.add(ByteBuffer.wrap(clientRandom))) {
+            this.release(entry.session);
+            return this.reject("Replayed join");
+        }
+
+        this.joins.increment();
+        return new Handshake(new Frame(Frame.TYPE_JOIN, 0, new byte[0]), entry.session);
+    }
+
+    /**
+     * Refuses a handshake, the client may try another one on the same connection.
+     *
+     * @param reason The description of the error sent to the client.
+     * @return Returns the failed handshake.
+     */
+    private Handshake reject(String reason) {
+        this.rejections.increment();
+        return new Handshake(new Frame(Frame.TYPE_RESET, 0, reason.getBytes()), null);
+    }
+
+    /**
+     * Seals a resumption secret in a ticket, readable only by this server.
+     *
+     * @param resumptionSecret The resumption secret.
+     * @return Returns the nonce followed by the encrypted expiration time and secret.
+     *
+     * @throws CipherException if the encryption fails.
+     */
+    private byte[] sealTicket(byte[] resumptionSecret) throws CipherException {
+        byte[] nonce = TunnelSession.randomBytes(TICKET_NONCE_LENGTH);
+        byte[] content = ByteBuffer.allocate(Long.BYTES + resumptionSecret.length)
+                .putLong(System.currentTimeMillis() + TICKET_LIFETIME)
+                .put(resumptionSecret)
+                .array();
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, this.ticketKey, new GCMParameterSpec(TICKET_TAG_LENGTH, nonce));
+            byte[] sealed = cipher.doFinal(content);
+
+            byte[] ticket = Arrays.copyOf(nonce, nonce.length + sealed.length);
+            System.arraycopy(sealed, 0, ticket, nonce.length, sealed.length);
+            return ticket;
+
+        } catch (GeneralSecurityException e) {
+            throw new CipherException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Opens a ticket sealed by this server.
+     *
+     * @param ticket The ticket.
+     * @return Returns the resumption secret or NULL if the ticket is not valid or expired.
+     */
+    private byte[] openTicket(byte[] ticket) {
+        if (ticket.length <= TICKET_NONCE_LENGTH) {
+            return null;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, this.ticketKey,
+                    new GCMParameterSpec(TICKET_TAG_LENGTH, ticket, 0, TICKET_NONCE_LENGTH));
+            ByteBuffer content = ByteBuffer.wrap(cipher.doFinal(ticket, TICKET_NONCE_LENGTH,
+                    ticket.length - TICKET_NONCE_LENGTH));
+
+            if (content.getLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            byte[] resumptionSecret = new byte[content.remaining()];
+            content.get(resumptionSecret);
+            return resumptionSecret;
+
+        } catch (GeneralSecurityException | BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes the sessions without connections for longer than the session timeout.
+     */
+    private void evictExpired() {
+        long expiration = System.currentTimeMillis() - SESSION_TIMEOUT;
+        for (String id : this.sessions.keySet()) {
+            this.sessions.computeIfPresent(id, (key, entry) ->
+                    entry.connections <= 0 && entry.idleSince < expiration ? null : entry);
+        }
+
+        long handshakes = this.keyExchanges.sum() + this.resumptions.sum() + this.joins.sum() + this.rejections.sum();
+        if (handshakes != this.loggedHandshakes) {
+            this.loggedHandshakes = handshakes;
+            this.logger.log(Logger.Level.INFO, "SessionTable", "Statistics: {}", this);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "sessions=" + this.sessions.size() + ", keyExchanges=" + this.keyExchanges.sum()
+                + ", resumptions=" + this.resumptions.sum() + ", joins=" + this.joins.sum()
+                + ", rejections=" + this.rejections.sum();
+    }
+
+    /**
+     * The outcome of a handshake.
+     */
+    static class Handshake {
+
+        /**
+         * The frame sent back to the client.
+         */
+        private final Frame reply;
+
+        /**
+         * The session of the connection or NULL if the handshake failed.
+         */
+        private final TunnelSession session;
+
+        private Handshake(Frame reply, TunnelSession session) {
+            this.reply   = reply;
+            this.session = session;
+        }
+
+        Frame getReply() {
+            return this.reply;
+        }
+
+        TunnelSession getSession() {
+            return this.session;
+        }
+
+        /**
+         * Describes the handshake for the logs.
+         *
+         * @return Returns the kind of the handshake.
+         */
+        String describe() {
+            switch (this.reply.getType()) {
+                case Frame.TYPE_KEY_EXCHANGE:
+                    return "key exchange";
+                case Frame.TYPE_RESUME:
+                    return "resumption";
+                case Frame.TYPE_JOIN:
+                    return "join";
+                default:
+                    return "rejected: " + new String(this.reply.getPayload());
+            }
+        }
+
+    }
+
+    /**
+     * A session with its open connections, modified only inside the atomic operations of the map.
+     */
+    private static class Entry {
+
+        /**
+         * The session.
+         */
+        private final TunnelSession session;
+
+        /**
+         * The number of open connections of the session.
+         */
+        private int connections;
+
+        /**
+         * The time in milliseconds the last connection has been closed.
+         */
+        private long idleSince = System.currentTimeMillis();
+
+        /**
+         * The random values of the joins accepted during the lifetime of the session.
+         */
+        private final Set<ByteBuffer> joinRandoms = ConcurrentHashMap.newKeySet();
+
+        private Entry(TunnelSession session) {
+            this.session = session;
+        }
+
+    }
+
+}
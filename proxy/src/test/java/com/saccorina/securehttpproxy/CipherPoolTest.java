@@ -0,0 +1,70 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the authentication of the messages encrypted in GCM mode.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class CipherPoolTest {
+
+    private static final SecretKeySpec KEY = new SecretKeySpec(new byte[16], "AES");
+
+    private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes();
+
+    @Test
+    void tamperedCiphertextIsRejected() throws CipherException {
+        CipherPool server = new CipherPool(KEY, CipherMode.GCM, FlowCipher.SERVER_TO_CLIENT);
+        CipherPool client = new CipherPool(KEY, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+
+        byte[] message = server.encrypt(RESPONSE);
+        for (int i = 0; i < message.length; i++) {
+            byte[] tampered = message.clone();
+            tampered[i] ^= 0x01;
+            assertThrows(CipherException.class, () -> client.decrypt(tampered));
+        }
+        assertArrayEquals(RESPONSE, client.decrypt(message));
+    }
+
+    @Test
+    void messageOfAnotherFrameTypeIsRejected() throws CipherException {
+        CipherPool server = new CipherPool(KEY, CipherMode.GCM, FlowCipher.SERVER_TO_CLIENT);
+        CipherPool client = new CipherPool(KEY, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+
+        byte[] hello = server.encrypt(new byte[] {Frame.FEATURE_COMPRESSION}, Frame.TYPE_HELLO);
+        assertThrows(CipherException.class, () -> client.decrypt(hello));
+        assertArrayEquals(new byte[] {Frame.FEATURE_COMPRESSION}, client.decrypt(hello, Frame.TYPE_HELLO));
+    }
+
+    @Test
+    void messageReflectedToItsSenderIsRejected() throws CipherException {
+        CipherPool client = new CipherPool(KEY, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+
+        byte[] message = client.encrypt(RESPONSE);
+        assertThrows(CipherException.class, () -> client.decrypt(message));
+    }
+
+    @Test
+    void tamperedKeyEpochIsRejected() throws CipherException {
+        byte[] upstream = new byte[32];
+        byte[] downstream = new byte[32];
+        downstream[0] = 1;
+        CipherPool client = new CipherPool(upstream, downstream, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+        CipherPool server = new CipherPool(downstream, upstream, CipherMode.GCM, FlowCipher.SERVER_TO_CLIENT);
+
+        byte[] message = client.encrypt(RESPONSE);
+        byte[] tampered = message.clone();
+        tampered[0] = 1;
+        assertThrows(CipherException.class, () -> server.decrypt(tampered));
+        assertArrayEquals(RESPONSE, server.decrypt(message));
+    }
+
+}
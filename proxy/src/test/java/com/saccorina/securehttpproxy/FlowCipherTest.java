@@ -0,0 +1,123 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the records of the per-flow protection and of their credit window.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class FlowCipherTest {
+
+    private static final int RECORD_SIZE = 16;
+
+    private static final int WINDOW = TunnelProtection.FLOW_WINDOW;
+
+    private static final byte[] SECRET = new byte[48];
+
+    @Test
+    void recordsCarryTheFlowInBothModes() throws IOException, CipherException {
+        for (CipherMode mode : new CipherMode[] {CipherMode.ECB, CipherMode.GCM}) {
+            FlowCipher cipher = new FlowCipher(SECRET, RECORD_SIZE, mode);
+            List<Frame> sent = new ArrayList<>();
+            RecordOutputStream out = cipher.newOutputStream(sent::add, FlowCipher.SERVER_TO_CLIENT, 1);
+            byte[] flow = flow(3 * RECORD_SIZE + 5);
+            out.write(flow);
+            out.close();
+
+            RecordInputStream in = cipher.newInputStream(frame -> {}, FlowCipher.SERVER_TO_CLIENT, 1, 1000);
+            sent.forEach(in::offer);
+            assertArrayEquals(flow, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void tamperedRecordIsRejected() throws IOException, CipherException {
+        for (CipherMode mode : new CipherMode[] {CipherMode.ECB, CipherMode.GCM}) {
+            FlowCipher cipher = new FlowCipher(SECRET, RECORD_SIZE, mode);
+            List<Frame> sent = new ArrayList<>();
+            RecordOutputStream out = cipher.newOutputStream(sent::add, FlowCipher.SERVER_TO_CLIENT, 1);
+            out.write(flow(RECORD_SIZE));
+            out.close();
+
+            Frame record = sent.get(0);
+            byte[] payload = record.getPayload().clone();
+            payload[0] ^= 0x01;
+            RecordInputStream in = cipher.newInputStream(frame -> {}, FlowCipher.SERVER_TO_CLIENT, 1, 1000);
+            in.offer(new Frame(Frame.TYPE_DATA, record.getFlags(), 1, payload));
+            assertThrows(IOException.class, in::read);
+        }
+    }
+
+    @Test
+    void recordOfAnotherStreamIsRejected() throws IOException, CipherException {
+        FlowCipher cipher = new FlowCipher(SECRET, RECORD_SIZE, CipherMode.GCM);
+        List<Frame> sent = new ArrayList<>();
+        RecordOutputStream out = cipher.newOutputStream(sent::add, FlowCipher.SERVER_TO_CLIENT, 1);
+        out.write(flow(RECORD_SIZE));
+        out.close();
+
+        RecordInputStream in = cipher.newInputStream(frame -> {}, FlowCipher.SERVER_TO_CLIENT, 2, 1000);
+        sent.forEach(in::offer);
+        assertThrows(IOException.class, in::read);
+    }
+
+    @Test
+    void writerStopsAtTheEndOfTheCredit() throws IOException, CipherException {
+        FlowCipher cipher = new FlowCipher(SECRET, RECORD_SIZE, CipherMode.GCM);
+        List<Frame> sent = new ArrayList<>();
+        List<Frame> grants = new ArrayList<>();
+        RecordOutputStream out = cipher.newOutputStream(sent::add, FlowCipher.SERVER_TO_CLIENT, 1);
+        RecordInputStream in = cipher.newInputStream(grants::add, FlowCipher.SERVER_TO_CLIENT, 1, 1000);
+
+        assertEquals(WINDOW * RECORD_SIZE, out.writableBytes());
+        out.write(flow(WINDOW * RECORD_SIZE));
+        out.flush();
+        assertEquals(WINDOW, sent.size());
+        assertEquals(0, out.writableBytes());
+
+        // the reader grants the records read once they are half of the window
+        sent.forEach(in::offer);
+        in.readNBytes(Math.max(1, WINDOW / 2) * RECORD_SIZE);
+        assertEquals(1, grants.size());
+        assertEquals(Frame.TYPE_WINDOW_UPDATE, grants.get(0).getType());
+
+        out.grant(ByteBuffer.wrap(grants.get(0).getPayload()).getInt());
+        assertEquals(Math.max(1, WINDOW / 2) * RECORD_SIZE, out.writableBytes());
+    }
+
+    @Test
+    void recordsBeyondTheWindowResetTheStream() throws IOException, CipherException {
+        FlowCipher cipher = new FlowCipher(SECRET, RECORD_SIZE, CipherMode.GCM);
+        List<Frame> sent = new ArrayList<>();
+        RecordOutputStream out = cipher.newOutputStream(sent::add, FlowCipher.SERVER_TO_CLIENT, 1);
+        out.grant(1);
+        out.write(flow((WINDOW + 1) * RECORD_SIZE));
+        out.flush();
+
+        RecordInputStream in = cipher.newInputStream(frame -> {}, FlowCipher.SERVER_TO_CLIENT, 1, 1000);
+        sent.forEach(in::offer);
+        assertEquals(WINDOW * RECORD_SIZE, in.readNBytes(WINDOW * RECORD_SIZE).length);
+        assertThrows(IOException.class, in::read);
+    }
+
+    private static byte[] flow(int length) {
+        byte[] flow = new byte[length];
+        for (int i = 0; i < length; i++) {
+            flow[i] = (byte) i;
+        }
+        return flow;
+    }
+
+}
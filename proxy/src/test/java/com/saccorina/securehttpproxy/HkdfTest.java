@@ -0,0 +1,58 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+import org.junit.jupiter.api.Test;
+
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Tests of the key derivation against the test vectors of RFC 5869 for SHA-256.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class HkdfTest {
+
+    @Test
+    void basicTestCase() throws CipherException {
+        check("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b",
+                "000102030405060708090a0b0c",
+                "f0f1f2f3f4f5f6f7f8f9",
+                "077709362c2e32df0ddc3f0dc47bba6390b6c73bb50f9c3122ec844ad7c2b3e5",
+                "3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865");
+    }
+
+    @Test
+    void longerInputsAndOutput() throws CipherException {
+        check(range(0x00, 80), range(0x60, 80), range(0xb0, 80),
+                "06a6b88c5853361a06104c9ceb35b45cef760014904671014a193f40c15fc244",
+                "b11e398dc80327a1c8e7f78c596a49344f012eda2d4efad8a050cc4c19afa97c"
+                        + "59045a99cac7827271cb41c65e590e09da3275600c2f09b8367793a9aca3db71"
+                        + "cc30c58179ec3e87c14c01d5c1f3434f1d87");
+    }
+
+    @Test
+    void emptySaltAndInfo() throws CipherException {
+        check("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b", "", "",
+                "19ef24a32c717b167f33a91d6f648bdf96596776afdb6377ac434c1c293ccb04",
+                "8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d9d201395faa4b61a96c8");
+    }
+
+    private static void check(String ikm, String salt, String info, String prk, String okm) throws CipherException {
+        HexFormat hex = HexFormat.of();
+        byte[] key = Hkdf.extract(hex.parseHex(salt), hex.parseHex(ikm));
+        assertArrayEquals(hex.parseHex(prk), key);
+        assertArrayEquals(hex.parseHex(okm), Hkdf.expand(key, hex.parseHex(info), okm.length() / 2));
+    }
+
+    private static String range(int first, int length) {
+        StringBuilder bytes = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            bytes.append(String.format("%02x", first + i));
+        }
+        return bytes.toString();
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.saccorina.securehttpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the payload framing of {@link HttpMessageReader} (RFC 7230, section 3.3.3).
+ *
+ * Each response is followed by another message on the same stream, as on a persistent connection, so
+ * a payload read beyond its end shows up in the next message.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class HttpMessageReaderTest {
+
+    private static final String NEXT = "HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nnext";
+
+    @Test
+    void headResponseHasNoPayload() throws IOException {
+        HttpInputStream in = stream("HTTP/1.1 200 OK\r\nContent-Length: 1024\r\n\r\n" + NEXT);
+
+        HttpMessageReader response = new HttpMessageReader(in, false, "HEAD");
+        assertEquals(0, transfer(response).length);
+        assertFalse(response.isCloseDelimited());
+        assertEquals(response.getHead().length, response.getDeclaredLength());
+        assertNext(in);
+    }
+
+    @Test
+    void headResponseWithoutLengthIsNotCloseDelimited() throws IOException {
+        HttpInputStream in = stream("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\n" + NEXT);
+
+        HttpMessageReader response = new HttpMessageReader(in, true, "HEAD");
+        assertFalse(response.isCloseDelimited());
+        assertEquals(response.getHead().length, response.getMessage().length);
+        assertNext(in);
+    }
+
+    @Test
+    void successfulConnectResponseHasNoPayload() throws IOException {
+        HttpInputStream in = stream("HTTP/1.1 200 Connection Established\r\nContent-Length: 1024\r\n\r\n" + NEXT);
+
+        HttpMessageReader response = new HttpMessageReader(in, false, "CONNECT");
+        assertEquals(0, transfer(response).length);
+        assertNext(in);
+    }
+
+    @Test
+    void failedConnectResponseHasPayload() throws IOException {
+        HttpInputStream in = stream("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 5\r\n\r\nerror" + NEXT);
+
+        HttpMessageReader response = new HttpMessageReader(in, false, "CONNECT");
+        assertEquals("error", new String(transfer(response)));
+        assertNext(in);
+    }
+
+    @Test
+    void noContentAndNotModifiedResponsesHaveNoPayload() throws IOException {
+        for (String status : new String[] {"204 No Content", "304 Not Modified", "100 Continue"}) {
+            HttpInputStream in = stream("HTTP/1.1 " + status + "\r\nContent-Length: 1024\r\n\r\n" + NEXT);
+
+            HttpMessageReader response = new HttpMessageReader(in, false, "GET");
+            assertEquals(0, transfer(response).length, status);
+            assertFalse(response.isCloseDelimited(), status);
+            assertNext(in);
+        }
+    }
+
+    @Test
+    void chunkedPayloadKeepsChunksAndTrailers() throws IOException {
+        String payload = "5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nExpires: 0\r\nX-Checksum: 42\r\n\r\n";
+        String head = "HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, chunked\r\nContent-Length: 3\r\n\r\n";
+        HttpInputStream in = stream(head + payload + NEXT);
+
+        HttpMessageReader response = new HttpMessageReader(in, true, "GET");
+        assertFalse(response.isCloseDelimited());
+        assertEquals(-1, new HttpMessageReader(stream(head + payload), false, "GET").getDeclaredLength());
+        assertEquals(head + payload, new String(response.getMessage()));
+        assertNext(in);
+    }
+
+    @Test
+    void chunkedRequestLengthInBuffer() throws IOException {
+        String request = "POST /upload HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "3\r\nabc\r\n0\r\nX-Trailer: yes\r\n\r\n";
+        byte[] bytes = (request + "GET / HTTP/1.1\r\n\r\n").getBytes();
+
+        assertEquals(request.length(), HttpMessageReader.getMessageLength(ByteBuffer.wrap(bytes)));
+        assertEquals(-1, HttpMessageReader.getMessageLength(ByteBuffer.wrap(bytes, 0, request.length() - 2)));
+    }
+
+    @Test
+    void closeDelimitedPayloadIsReadUntilTheEnd() throws IOException {
+        HttpInputStream in = stream("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nuntil the end");
+
+        HttpMessageReader response = new HttpMessageReader(in, false, "GET");
+        assertTrue(response.isCloseDelimited());
+        assertFalse(response.isKeepAlive());
+        assertEquals(-1, response.getDeclaredLength());
+        assertEquals("until the end", new String(transfer(response)));
+    }
+
+    @Test
+    void requestWithoutLengthHasNoPayload() throws IOException {
+        HttpInputStream in = stream("GET / HTTP/1.1\r\nHost: localhost\r\n\r\nGET /next HTTP/1.1\r\n\r\n");
+
+        HttpMessageReader request = new HttpMessageReader(in, true);
+        assertEquals("GET", request.getMethod());
+        assertFalse(request.isCloseDelimited());
+        assertArrayEquals(request.getHead(), request.getMessage());
+        assertEquals("GET /next HTTP/1.1", new HttpMessageReader(in, false).getStartLine());
+    }
+
+    @Test
+    void truncatedLengthPayloadFails() throws IOException {
+        HttpMessageReader response = new HttpMessageReader(
+                stream("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nshort"), false, "GET");
+        assertThrows(IOException.class, () -> transfer(response));
+    }
+
+    private static HttpInputStream stream(String bytes) {
+        return HttpInputStream.of(new ByteArrayInputStream(bytes.getBytes()));
+    }
+
+    private static byte[] transfer(HttpMessageReader reader) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.transferPayload(out);
+        return out.toByteArray();
+    }
+
+    private static void assertNext(HttpInputStream in) throws IOException {
+        HttpMessageReader next = new HttpMessageReader(in, true, "GET");
+        assertEquals("HTTP/1.1 200 OK", next.getStartLine());
+        assertEquals("next", new String(transfer(next)));
+    }
+
+}
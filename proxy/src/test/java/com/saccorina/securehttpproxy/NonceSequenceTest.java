@@ -0,0 +1,87 @@
+package com.saccorina.securehttpproxy;
+
+import com.saccorina.securehttpproxy.exception.CipherException;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the replay protection of the messages encrypted in GCM mode.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class NonceSequenceTest {
+
+    private static final SecretKeySpec KEY = new SecretKeySpec(new byte[16], "AES");
+
+    private static final byte[] REQUEST = "POST /orders HTTP/1.1\r\nContent-Length: 0\r\n\r\n".getBytes();
+
+    @Test
+    void replayedMessageIsRejected() throws CipherException {
+        CipherPool client = new CipherPool(KEY, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+        CipherPool server = new CipherPool(KEY, CipherMode.GCM, FlowCipher.SERVER_TO_CLIENT);
+
+        byte[] message = client.encrypt(REQUEST);
+        assertArrayEquals(REQUEST, server.decrypt(message));
+        assertThrows(CipherException.class, () -> server.decrypt(message));
+    }
+
+    @Test
+    void replayedMessageUnderRotatedKeysIsRejected() throws CipherException {
+        byte[] upstream = new byte[32];
+        byte[] downstream = new byte[32];
+        downstream[0] = 1;
+        CipherPool client = new CipherPool(upstream, downstream, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+        CipherPool server = new CipherPool(downstream, upstream, CipherMode.GCM, FlowCipher.SERVER_TO_CLIENT);
+
+        byte[] message = client.encrypt(REQUEST);
+        assertArrayEquals(REQUEST, server.decrypt(message));
+        assertThrows(CipherException.class, () -> server.decrypt(message));
+    }
+
+    @Test
+    void messagesOutOfOrderAreAcceptedOnce() throws CipherException {
+        CipherPool client = new CipherPool(KEY, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+        CipherPool server = new CipherPool(KEY, CipherMode.GCM, FlowCipher.SERVER_TO_CLIENT);
+
+        byte[] first = client.encrypt(REQUEST);
+        byte[] second = client.encrypt(REQUEST);
+        byte[] third = client.encrypt(REQUEST);
+        assertArrayEquals(REQUEST, server.decrypt(third));
+        assertArrayEquals(REQUEST, server.decrypt(first));
+        assertArrayEquals(REQUEST, server.decrypt(second));
+        assertThrows(CipherException.class, () -> server.decrypt(first));
+        assertThrows(CipherException.class, () -> server.decrypt(third));
+    }
+
+    @Test
+    void forgedMessageDoesNotMoveTheWindow() throws CipherException {
+        CipherPool client = new CipherPool(KEY, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+        CipherPool server = new CipherPool(KEY, CipherMode.GCM, FlowCipher.SERVER_TO_CLIENT);
+
+        byte[] first = client.encrypt(REQUEST);
+        byte[] forged = client.encrypt(REQUEST);
+        // a counter far ahead, under a tag that does not match
+        forged[4] = 0x7f;
+        assertThrows(CipherException.class, () -> server.decrypt(forged));
+        assertArrayEquals(REQUEST, server.decrypt(first));
+    }
+
+    @Test
+    void nonceBelowTheWindowIsRejected() throws CipherException {
+        NonceSequence sender = new NonceSequence(FlowCipher.CLIENT_TO_SERVER);
+        NonceSequence receiver = new NonceSequence(FlowCipher.SERVER_TO_CLIENT);
+
+        byte[] old = sender.next();
+        for (int i = 1; i < NonceSequence.REPLAY_WINDOW; i++) {
+            sender.next();
+        }
+        receiver.accept(sender.next());
+        assertThrows(CipherException.class, () -> receiver.accept(old));
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the freshness, the revalidation, the variants and the eviction of the client cache.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class ResponseCacheTest {
+
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    private static final String VARY_LANGUAGE = "Cache-Control: max-age=60\r\nVary: Accept-Language";
+
+    @Test
+    void freshResponseIsServed() throws IOException {
+        ResponseCache cache = new ResponseCache(MAX_BYTES, MAX_BYTES);
+        cache.store(request("/a"), response("Cache-Control: max-age=60", "fresh"));
+
+        ResponseCache.Entry entry = cache.lookup(request("/a"));
+        assertNotNull(entry);
+        String served = string(cache.serve(entry, request("/a")));
+        assertTrue(served.contains("\r\nAge: 0\r\n"));
+        assertTrue(served.endsWith("\r\n\r\nfresh"));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    void freshResponseIsRevalidatedOnNoCache() throws IOException {
+        ResponseCache cache = new ResponseCache(MAX_BYTES, MAX_BYTES);
+        cache.store(request("/a"), response("Cache-Control: max-age=60\r\nETag: \"v1\"", "fresh"));
+
+        ResponseCache.Entry entry = cache.lookup(request("/a", "Cache-Control: no-cache"));
+        assertNotNull(entry);
+        assertNull(cache.serve(entry, request("/a", "Cache-Control: no-cache")));
+    }
+
+    @Test
+    void staleResponseIsRevalidated() throws IOException {
+        ResponseCache cache = new ResponseCache(MAX_BYTES, MAX_BYTES);
+        cache.store(request("/a"), response("Cache-Control: max-age=0\r\nETag: \"v1\"", "stale"));
+
+        ResponseCache.Entry entry = cache.lookup(request("/a"));
+        assertNotNull(entry);
+        assertNull(cache.serve(entry, request("/a")));
+
+        byte[] head = "GET /a HTTP/1.1\r\nHost: origin\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(string(ResponseCache.conditionalRequest(head, entry))
+                .endsWith("\r\nIf-None-Match: \"v1\"\r\n\r\n"));
+
+        HttpMessageReader notModified = new HttpMessageReader(new ByteArrayInputStream(
+                "HTTP/1.1 304 Not Modified\r\nCache-Control: max-age=60\r\nETag: \"v1\"\r\n\r\n"
+                        .getBytes(StandardCharsets.ISO_8859_1)), false, "GET");
+        ResponseCache.Entry refreshed = cache.revalidate(entry, notModified);
+        assertEquals(1, cache.getRevalidations());
+        assertTrue(string(cache.serve(refreshed, request("/a"))).endsWith("\r\n\r\nstale"));
+    }
+
+    @Test
+    void variantsMatchTheVaryHeaders() throws IOException {
+        ResponseCache cache = new ResponseCache(MAX_BYTES, MAX_BYTES);
+        cache.store(request("/a", "Accept-Language: it"), response(VARY_LANGUAGE, "ciao"));
+
+        assertNotNull(cache.lookup(request("/a", "Accept-Language: it")));
+        assertNull(cache.lookup(request("/a", "Accept-Language: en")));
+        assertNull(cache.lookup(request("/a")));
+
+        cache.store(request("/a", "Accept-Language: en"), response(VARY_LANGUAGE, "hello"));
+        ResponseCache.Entry italian = cache.lookup(request("/a", "Accept-Language: it"));
+        ResponseCache.Entry english = cache.lookup(request("/a", "Accept-Language: en"));
+        assertTrue(string(cache.serve(italian, request("/a"))).endsWith("ciao"));
+        assertTrue(string(cache.serve(english, request("/a"))).endsWith("hello"));
+    }
+
+    @Test
+    void leastRecentlyUsedResponseIsEvicted() throws IOException {
+        byte[] response = response("Cache-Control: max-age=60", "x".repeat(1000));
+        ResponseCache cache = new ResponseCache(2 * response.length + 100, MAX_BYTES);
+        cache.store(request("/a"), response);
+        cache.store(request("/b"), response);
+        assertNotNull(cache.lookup(request("/a")));
+
+        // the budget holds two responses, /b is the least recently used
+        cache.store(request("/c"), response);
+        assertNotNull(cache.lookup(request("/a")));
+        assertNull(cache.lookup(request("/b")));
+        assertNotNull(cache.lookup(request("/c")));
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getSize() <= 2 * response.length + 100);
+    }
+
+    private static HttpMessageReader request(String path, String... headers) throws IOException {
+        StringBuilder request = new StringBuilder("GET " + path + " HTTP/1.1\r\nHost: origin\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        request.append("\r\n");
+        return new HttpMessageReader(new ByteArrayInputStream(
+                request.toString().getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static byte[] response(String headers, String body) {
+        return ("HTTP/1.1 200 OK\r\n" + headers + "\r\nContent-Length: " + body.length() + "\r\n\r\n" + body)
+                .getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+}
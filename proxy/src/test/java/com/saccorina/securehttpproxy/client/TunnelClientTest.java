@@ -0,0 +1,64 @@
+package com.saccorina.securehttpproxy.client;
+
+import com.saccorina.securehttpproxy.CipherMode;
+import com.saccorina.securehttpproxy.FlowCipher;
+import com.saccorina.securehttpproxy.TunnelSession;
+import com.saccorina.securehttpproxy.exception.CipherException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the stream ids, whose flows must never reuse the nonces of the flow keys.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class TunnelClientTest {
+
+    /**
+     * The number of the last stream before the ids wrap around.
+     */
+    private static final long LAST_STREAM = Integer.MAX_VALUE - 1;
+
+    @Test
+    void streamIdsSkipTheConnectionStream() {
+        assertEquals(1, TunnelClient.streamId(0));
+        assertEquals(Integer.MAX_VALUE, TunnelClient.streamId(LAST_STREAM));
+        assertEquals(1, TunnelClient.streamId(LAST_STREAM + 1));
+    }
+
+    @Test
+    void streamIdsWrapIntoANewCycle() {
+        assertEquals(0, TunnelClient.streamCycle(0));
+        assertEquals(0, TunnelClient.streamCycle(LAST_STREAM));
+        assertEquals(1, TunnelClient.streamCycle(LAST_STREAM + 1));
+    }
+
+    @Test
+    void sessionRefusesTheFlowsOfTheNextCycle() throws CipherException {
+        TunnelSession session = newSession();
+
+        assertTrue(session.claimFlowCycle(TunnelClient.streamCycle(0)));
+        assertTrue(session.claimFlowCycle(TunnelClient.streamCycle(LAST_STREAM)));
+        assertFalse(session.claimFlowCycle(TunnelClient.streamCycle(LAST_STREAM + 1)));
+    }
+
+    @Test
+    void newSessionProtectsTheFlowsOfTheNextCycle() throws CipherException {
+        TunnelSession exhausted = newSession();
+        assertTrue(exhausted.claimFlowCycle(0));
+
+        TunnelSession renewed = newSession();
+        assertTrue(renewed.claimFlowCycle(TunnelClient.streamCycle(LAST_STREAM + 1)));
+        assertFalse(renewed.claimFlowCycle(0));
+    }
+
+    private static TunnelSession newSession() throws CipherException {
+        return new TunnelSession(TunnelSession.randomBytes(TunnelSession.ID_LENGTH),
+                TunnelSession.randomBytes(32), null, CipherMode.GCM, FlowCipher.CLIENT_TO_SERVER);
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.saccorina.securehttpproxy.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the buckets of the latency histograms, whose upper bounds are inclusive as in Prometheus.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class HistogramTest {
+
+    @Test
+    void durationOnTheBoundIsCountedInItsBucket() {
+        Histogram histogram = new Histogram("test");
+        histogram.record(2000);
+
+        String exposition = exposition(histogram);
+        assertTrue(exposition.contains("le=\"1.0E-6\"} 0\n"));
+        assertTrue(exposition.contains("le=\"2.0E-6\"} 1\n"));
+    }
+
+    @Test
+    void fractionOfAMicrosecondIsNotCountedBelowItsBound() {
+        Histogram histogram = new Histogram("test");
+        histogram.record(1001);
+        histogram.record(2001);
+
+        String exposition = exposition(histogram);
+        assertTrue(exposition.contains("le=\"1.0E-6\"} 0\n"));
+        assertTrue(exposition.contains("le=\"2.0E-6\"} 1\n"));
+        assertTrue(exposition.contains("le=\"4.0E-6\"} 2\n"));
+    }
+
+    private static String exposition(Histogram histogram) {
+        StringBuilder output = new StringBuilder();
+        histogram.writeTo("latency_seconds", output);
+        return output.toString();
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.saccorina.securehttpproxy.server;
+
+import com.saccorina.securehttpproxy.HttpMessageReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the persistence of the off-heap cache across restarts.
+ *
+ * @author Matteo Rinaldini
+ * @author Francesco Saccani
+ */
+class SegmentCacheTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void invalidatedResponseIsNotLoadedAgain() throws IOException {
+        SegmentCache cache = this.open();
+        cache.store(request("/a"), response(3600, "a"));
+        assertNotNull(cache.lookup(request("/a")));
+
+        cache.invalidate(request("/a"));
+        assertNull(cache.lookup(request("/a")));
+
+        SegmentCache reopened = this.open();
+        assertNull(reopened.lookup(request("/a")));
+        assertEquals(0, reopened.getEntries());
+    }
+
+    @Test
+    void staleResponseHidesTheOlderOnesAtRestart() throws IOException, InterruptedException {
+        SegmentCache cache = this.open();
+        cache.store(request("/a"), response(3600, "old"));
+        cache.store(request("/a"), response(1, "new"));
+        Thread.sleep(1100);
+
+        SegmentCache reopened = this.open();
+        assertNull(reopened.lookup(request("/a")));
+    }
+
+    @Test
+    void rotationEvictsTheOldestSegment() throws IOException {
+        SegmentCache cache = new SegmentCache(this.directory, SEGMENT_SIZE, 2, SEGMENT_SIZE);
+        String body = "x".repeat(1500);
+        for (int i = 0; i < 5; i++) {
+            cache.store(request("/" + i), response(3600, body));
+        }
+
+        // two responses fit in a segment, the fifth opens the third segment and drops the first
+        assertNull(cache.lookup(request("/0")));
+        assertNull(cache.lookup(request("/1")));
+        assertNotNull(cache.lookup(request("/4")));
+        assertEquals(2, cache.getEvictions());
+
+        SegmentCache reopened = new SegmentCache(this.directory, SEGMENT_SIZE, 2, SEGMENT_SIZE);
+        assertNull(reopened.lookup(request("/1")));
+        assertEquals(3, reopened.getEntries());
+    }
+
+    @Test
+    void truncatedRecordEndsTheSegment() throws IOException {
+        SegmentCache cache = this.open();
+        cache.store(request("/a"), response(3600, "a"));
+        cache.store(request("/b"), response(3600, "b"));
+
+        // corrupt the last byte of the second record, as if it had not been entirely written
+        Path segment = this.directory.resolve("segment-00000001.dat");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            channel.read(header, 0);
+            int second = header.getInt(4);
+            header.clear();
+            channel.read(header, second);
+            channel.write(ByteBuffer.wrap(new byte[]{'?'}), second + header.getInt(4) - 1);
+        }
+
+        SegmentCache reopened = this.open();
+        assertNotNull(reopened.lookup(request("/a")));
+        assertNull(reopened.lookup(request("/b")));
+
+        // the next response overwrites the truncated record
+        reopened.store(request("/c"), response(3600, "c"));
+        SegmentCache again = this.open();
+        assertNotNull(again.lookup(request("/a")));
+        SegmentCache.Hit hit = again.lookup(request("/c"));
+        assertNotNull(hit);
+        assertTrue(new String(hit.toByteArray(), StandardCharsets.ISO_8859_1).endsWith("\r\n\r\nc"));
+    }
+
+    private SegmentCache open() throws IOException {
+        return new SegmentCache(this.directory, SEGMENT_SIZE, 4, SEGMENT_SIZE);
+    }
+
+    private static HttpMessageReader request(String path) throws IOException {
+        return new HttpMessageReader(new ByteArrayInputStream(
+                ("GET " + path + " HTTP/1.1\r\nHost: origin\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static byte[] response(int maxAge, String body) {
+        return ("HTTP/1.1 200 OK\r\nCache-Control: max-age=" + maxAge + "\r\nContent-Length: " + body.length()
+                + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+}